@@ -0,0 +1,151 @@
+/*  Copyright 2010 Ben Ruijl, Wouter Smeenk
+
+This file is part of Walled In.
+
+Walled In is free software; you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation; either version 3, or (at your option)
+any later version.
+
+Walled In is distributed in the hope that it will be useful, but
+WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with Walled In; see the file LICENSE.  If not, write to the
+Free Software Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA
+02111-1307 USA.
+
+ */
+package walledin.game;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import walledin.engine.math.Circle;
+import walledin.engine.math.Vector2f;
+import walledin.game.entity.Attribute;
+import walledin.game.entity.Entity;
+import walledin.game.entity.Family;
+import walledin.game.map.Tile;
+import walledin.game.map.TileType;
+import walledin.util.SettingsManager;
+import walledin.util.Utils;
+
+/**
+ * Builds the synthetic maps and entities used by the benchmarks.
+ * 
+ * @author Wouter Smeenk
+ * 
+ */
+public final class BenchmarkFixtures {
+    /** The width of a tile of the synthetic maps. */
+    public static final float TILE_WIDTH = 32;
+    /** The delta time of one server tick at 60 updates per second. */
+    public static final double DELTA = 1.0 / 60.0;
+
+    private static boolean settingsLoaded;
+
+    /** Private constructor. Never called. */
+    private BenchmarkFixtures() {
+
+    }
+
+    /**
+     * Loads the server settings, which most of the game classes read when
+     * they are created.
+     */
+    public static synchronized void loadSettings() {
+        if (settingsLoaded) {
+            return;
+        }
+        try {
+            SettingsManager.getInstance().loadSettings(
+                    Utils.getClasspathURL("server_settings.ini"));
+        } catch (final IOException e) {
+            throw new IllegalStateException("Could not read the settings", e);
+        }
+        settingsLoaded = true;
+    }
+
+    /**
+     * Creates a map of empty tiles surrounded by filled tiles.
+     * 
+     * @param entityManager
+     *            The entity manager of the map
+     * @param width
+     *            The number of tiles horizontally
+     * @param height
+     *            The number of tiles vertically
+     * @return The map entity
+     */
+    public static Entity createMap(final EntityManager entityManager,
+            final int width, final int height) {
+        final List<Tile> tiles = new ArrayList<Tile>(width * height);
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++) {
+                final boolean border = x == 0 || y == 0 || x == width - 1
+                        || y == height - 1;
+                tiles.add(new Tile(border ? TileType.TILE_FILLED
+                        : TileType.TILE_EMPTY, x, y));
+            }
+        }
+
+        final Entity map = new Entity(entityManager, Family.MAP, "map");
+        map.setAttribute(Attribute.WIDTH, width);
+        map.setAttribute(Attribute.HEIGHT, height);
+        map.setAttribute(Attribute.TILES, tiles);
+        map.setAttribute(Attribute.TILE_WIDTH, TILE_WIDTH);
+        return map;
+    }
+
+    /**
+     * Creates entities with a circular bounding geometry at random positions
+     * inside a map created by <code>createMap</code>. Half of the entities
+     * are moving.
+     * 
+     * @param entityManager
+     *            The entity manager the entities are added to
+     * @param count
+     *            The number of entities
+     * @param width
+     *            The number of tiles of the map horizontally
+     * @param height
+     *            The number of tiles of the map vertically
+     * @param rng
+     *            The random number generator, for repeatable runs
+     * @return The entities
+     */
+    public static List<Entity> createBodies(final EntityManager entityManager,
+            final int count, final int width, final int height,
+            final Random rng) {
+        final float radius = 8;
+        final float minimum = TILE_WIDTH + 2 * radius;
+        final float maxX = (width - 1) * TILE_WIDTH - 4 * radius;
+        final float maxY = (height - 1) * TILE_WIDTH - 4 * radius;
+        final List<Entity> bodies = new ArrayList<Entity>(count);
+
+        for (int i = 0; i < count; i++) {
+            final Entity body = new Entity(entityManager,
+                    Family.HANDGUN_BULLET, "body" + i);
+            body.setId(i + 1);
+            body.setAttribute(Attribute.BOUNDING_GEOMETRY, new Circle(
+                    new Vector2f(0, 0), radius));
+            body.setAttribute(Attribute.POSITION, new Vector2f(minimum
+                    + rng.nextFloat() * (maxX - minimum), minimum
+                    + rng.nextFloat() * (maxY - minimum)));
+            if (i % 2 == 0) {
+                body.setAttribute(Attribute.VELOCITY, new Vector2f(rng
+                        .nextFloat() * 200 - 100, rng.nextFloat() * 200 - 100));
+            } else {
+                body.setAttribute(Attribute.VELOCITY, new Vector2f(0, 0));
+            }
+            entityManager.add(body);
+            bodies.add(body);
+        }
+        return bodies;
+    }
+}
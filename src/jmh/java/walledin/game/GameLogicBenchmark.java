@@ -0,0 +1,112 @@
+/*  Copyright 2010 Ben Ruijl, Wouter Smeenk
+
+This file is part of Walled In.
+
+Walled In is free software; you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation; either version 3, or (at your option)
+any later version.
+
+Walled In is distributed in the hope that it will be useful, but
+WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with Walled In; see the file LICENSE.  If not, write to the
+Free Software Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA
+02111-1307 USA.
+
+ */
+package walledin.game;
+
+import java.util.EnumSet;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import walledin.engine.math.Vector2f;
+import walledin.game.entity.Attribute;
+import walledin.game.entity.Entity;
+import walledin.game.network.server.ChangeSet;
+
+/**
+ * Benchmarks a complete server tick with synthetic players. The players
+ * follow a fixed script of walking, jumping and shooting, so foam and bullets
+ * are created and removed like in a real match. The game is created again for
+ * every iteration, so every iteration starts from the same state.
+ * 
+ * @author Wouter Smeenk
+ * 
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Fork(1)
+@Warmup(iterations = 5)
+@Measurement(iterations = 5)
+public class GameLogicBenchmark {
+    /** The number of ticks each script step lasts. */
+    private static final int TICKS_PER_STEP = 30;
+
+    /** The script the players follow. */
+    private static final Set<?>[] SCRIPT = new Set<?>[] {
+            EnumSet.of(PlayerAction.WALK_LEFT),
+            EnumSet.of(PlayerAction.WALK_RIGHT, PlayerAction.JUMP),
+            EnumSet.of(PlayerAction.WALK_RIGHT, PlayerAction.SHOOT_PRIMARY),
+            EnumSet.of(PlayerAction.WALK_LEFT, PlayerAction.SHOOT_SECUNDARY),
+            EnumSet.of(PlayerAction.SELECT_WEAPON_2,
+                    PlayerAction.SHOOT_PRIMARY) };
+
+    @Param( { "2", "8", "32" })
+    private int playerCount;
+
+    private GameLogicManager gameLogicManager;
+    private Entity[] players;
+    private int tick;
+
+    @Setup(Level.Iteration)
+    public void setUp() {
+        BenchmarkFixtures.loadSettings();
+        gameLogicManager = new GameLogicManager();
+        gameLogicManager.initialize();
+
+        players = new Entity[playerCount];
+        for (int i = 0; i < playerCount; i++) {
+            players[i] = gameLogicManager.createPlayer("player" + i, "Bot "
+                    + i);
+        }
+        gameLogicManager.getEntityManager().createChangeSet();
+        tick = 0;
+    }
+
+    @Benchmark
+    public ChangeSet update() {
+        final int step = tick / TICKS_PER_STEP;
+        for (int i = 0; i < players.length; i++) {
+            final Entity player = players[i];
+            player.setAttribute(Attribute.PLAYER_ACTIONS, SCRIPT[(step + i)
+                    % SCRIPT.length]);
+            final Vector2f position = (Vector2f) player
+                    .getAttribute(Attribute.POSITION);
+            player.setAttribute(Attribute.CURSOR_POS, position
+                    .add(new Vector2f(i % 2 == 0 ? 100 : -100, 0)));
+        }
+        tick++;
+
+        gameLogicManager.update(BenchmarkFixtures.DELTA);
+        return gameLogicManager.getEntityManager().createChangeSet();
+    }
+}
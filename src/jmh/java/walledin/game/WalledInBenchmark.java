@@ -0,0 +1,146 @@
+/*  Copyright 2010 Ben Ruijl, Wouter Smeenk
+
+This file is part of Walled In.
+
+Walled In is free software; you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation; either version 3, or (at your option)
+any later version.
+
+Walled In is distributed in the hope that it will be useful, but
+WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with Walled In; see the file LICENSE.  If not, write to the
+Free Software Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA
+02111-1307 USA.
+
+ */
+package walledin.game;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import walledin.engine.math.Vector2f;
+import walledin.game.entity.Attribute;
+import walledin.game.entity.Entity;
+import walledin.game.entity.Family;
+import walledin.util.SettingsManager;
+
+/**
+ * Benchmarks the walled in detection. The players stand in a map with
+ * randomly placed foam particles, one of which is next to every player.
+ * <code>changed</code> removes and adds that particle before every check, so
+ * the result has to be computed again, while <code>cached</code> measures the
+ * check when nothing changed.
+ * 
+ * @author Ben Ruijl
+ * 
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Fork(1)
+@Warmup(iterations = 5)
+@Measurement(iterations = 5)
+public class WalledInBenchmark {
+    private static final int MAP_WIDTH = 128;
+    private static final int MAP_HEIGHT = 64;
+
+    @Param( { "100", "1000", "10000" })
+    private int foamCount;
+
+    @Param( { "8" })
+    private int playerCount;
+
+    private WalledInDetector detector;
+    private Entity[] players;
+    private Entity[] nearbyFoam;
+
+    @Setup
+    public void setUp() {
+        BenchmarkFixtures.loadSettings();
+        final Random rng = new Random(42);
+        final EntityManager entityManager = new EntityManager(null);
+        final Entity map = BenchmarkFixtures.createMap(entityManager,
+                MAP_WIDTH, MAP_HEIGHT);
+        detector = new WalledInDetector(map, SettingsManager.getInstance()
+                .getInteger("game.mininmalWalledInSpace"));
+
+        final float width = (MAP_WIDTH - 2) * BenchmarkFixtures.TILE_WIDTH;
+        final float height = (MAP_HEIGHT - 2) * BenchmarkFixtures.TILE_WIDTH;
+        final List<Entity> foam = new ArrayList<Entity>();
+        for (int i = 0; i < foamCount; i++) {
+            foam.add(createFoam(entityManager, "foam" + i,
+                    BenchmarkFixtures.TILE_WIDTH + rng.nextFloat() * width,
+                    BenchmarkFixtures.TILE_WIDTH + rng.nextFloat() * height));
+        }
+
+        players = new Entity[playerCount];
+        nearbyFoam = new Entity[playerCount];
+        for (int i = 0; i < playerCount; i++) {
+            final float x = BenchmarkFixtures.TILE_WIDTH + rng.nextFloat()
+                    * (width - 100);
+            final float y = BenchmarkFixtures.TILE_WIDTH + rng.nextFloat()
+                    * height;
+            players[i] = new Entity(entityManager, Family.PLAYER, "player"
+                    + i);
+            players[i].setAttribute(Attribute.POSITION, new Vector2f(x, y));
+            nearbyFoam[i] = createFoam(entityManager, "nearbyFoam" + i,
+                    x + 50, y);
+            foam.add(nearbyFoam[i]);
+        }
+
+        for (final Entity particle : foam) {
+            detector.addFoam(particle);
+        }
+    }
+
+    private static Entity createFoam(final EntityManager entityManager,
+            final String name, final float x, final float y) {
+        final Entity foam = new Entity(entityManager, Family.FOAM_PARTICLE,
+                name);
+        foam.setAttribute(Attribute.POSITION, new Vector2f(x, y));
+        return foam;
+    }
+
+    @Benchmark
+    public int changed() {
+        int walledIn = 0;
+        for (int i = 0; i < players.length; i++) {
+            detector.removeFoam(nearbyFoam[i]);
+            detector.addFoam(nearbyFoam[i]);
+            if (detector.isWalledIn(players[i])) {
+                walledIn++;
+            }
+        }
+        return walledIn;
+    }
+
+    @Benchmark
+    public int cached() {
+        int walledIn = 0;
+        for (int i = 0; i < players.length; i++) {
+            if (detector.isWalledIn(players[i])) {
+                walledIn++;
+            }
+        }
+        return walledIn;
+    }
+}
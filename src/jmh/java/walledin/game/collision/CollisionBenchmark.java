@@ -0,0 +1,120 @@
+/*  Copyright 2010 Ben Ruijl, Wouter Smeenk
+
+This file is part of Walled In.
+
+Walled In is free software; you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation; either version 3, or (at your option)
+any later version.
+
+Walled In is distributed in the hope that it will be useful, but
+WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with Walled In; see the file LICENSE.  If not, write to the
+Free Software Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA
+02111-1307 USA.
+
+ */
+package walledin.game.collision;
+
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import walledin.engine.math.Rectangle;
+import walledin.engine.math.Vector2f;
+import walledin.game.BenchmarkFixtures;
+import walledin.game.EntityManager;
+import walledin.game.entity.Attribute;
+import walledin.game.entity.Entity;
+import walledin.util.SettingsManager;
+
+/**
+ * Benchmarks the collision detection between entities and between entities
+ * and the map. The positions and velocities are restored before every
+ * invocation, because the collision detection changes them.
+ * 
+ * @author Ben Ruijl
+ * 
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Fork(1)
+@Warmup(iterations = 5)
+@Measurement(iterations = 5)
+public class CollisionBenchmark {
+    private static final int MAP_WIDTH = 256;
+    private static final int MAP_HEIGHT = 128;
+
+    @Param( { "100", "1000", "10000" })
+    private int entityCount;
+
+    private Entity map;
+    private List<Entity> entities;
+    private Vector2f[] positions;
+    private Vector2f[] velocities;
+    private SpatialHash broadphase;
+    private QuadTree staticMap;
+
+    @Setup
+    public void setUp() {
+        BenchmarkFixtures.loadSettings();
+        final EntityManager entityManager = new EntityManager(null);
+        map = BenchmarkFixtures.createMap(entityManager, MAP_WIDTH,
+                MAP_HEIGHT);
+        entities = BenchmarkFixtures.createBodies(entityManager, entityCount,
+                MAP_WIDTH, MAP_HEIGHT, new Random(42));
+
+        positions = new Vector2f[entityCount];
+        velocities = new Vector2f[entityCount];
+        for (int i = 0; i < entityCount; i++) {
+            positions[i] = (Vector2f) entities.get(i).getAttribute(
+                    Attribute.POSITION);
+            velocities[i] = (Vector2f) entities.get(i).getAttribute(
+                    Attribute.VELOCITY);
+        }
+
+        broadphase = new SpatialHash(SettingsManager.getInstance().getFloat(
+                "game.collisionCellSize"));
+        staticMap = new QuadTree(new Rectangle(0, 0, MAP_WIDTH
+                * BenchmarkFixtures.TILE_WIDTH, MAP_HEIGHT
+                * BenchmarkFixtures.TILE_WIDTH));
+    }
+
+    @Setup(Level.Invocation)
+    public void restore() {
+        for (int i = 0; i < entityCount; i++) {
+            entities.get(i).setAttribute(Attribute.POSITION, positions[i]);
+            entities.get(i).setAttribute(Attribute.VELOCITY, velocities[i]);
+        }
+    }
+
+    @Benchmark
+    public void entityCollisions() {
+        CollisionManager.calculateEntityCollisions(entities, broadphase,
+                staticMap, BenchmarkFixtures.DELTA);
+    }
+
+    @Benchmark
+    public void mapCollisions() {
+        CollisionManager.calculateMapCollisions(map, entities,
+                BenchmarkFixtures.DELTA);
+    }
+}
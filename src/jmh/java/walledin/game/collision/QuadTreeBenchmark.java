@@ -0,0 +1,164 @@
+/*  Copyright 2010 Ben Ruijl, Wouter Smeenk
+
+This file is part of Walled In.
+
+Walled In is free software; you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation; either version 3, or (at your option)
+any later version.
+
+Walled In is distributed in the hope that it will be useful, but
+WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with Walled In; see the file LICENSE.  If not, write to the
+Free Software Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA
+02111-1307 USA.
+
+ */
+package walledin.game.collision;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import walledin.engine.math.Rectangle;
+
+/**
+ * Benchmarks inserting, querying, updating and removing objects in the
+ * quadtree.
+ * 
+ * @author Ben Ruijl
+ * 
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Fork(1)
+@Warmup(iterations = 5)
+@Measurement(iterations = 5)
+public class QuadTreeBenchmark {
+    private static final float WIDTH = 8192;
+    private static final float HEIGHT = 4096;
+    private static final float OBJECT_SIZE = 32;
+    private static final int QUERIES = 256;
+
+    /** A static object with a fixed bounding rectangle. */
+    private static final class Box implements StaticObject {
+        private Rectangle rectangle;
+        private QuadTree node;
+
+        private Box(final Rectangle rectangle) {
+            this.rectangle = rectangle;
+        }
+
+        @Override
+        public Rectangle getBoudingRectangle() {
+            return rectangle;
+        }
+
+        @Override
+        public QuadTree getQuadTreeNode() {
+            return node;
+        }
+
+        @Override
+        public void setQuadTreeNode(final QuadTree node) {
+            this.node = node;
+        }
+    }
+
+    @Param( { "100", "1000", "10000" })
+    private int objectCount;
+
+    private Rectangle bounds;
+    /** The objects in <code>tree</code>. */
+    private Box[] boxes;
+    /** The objects that are added and removed by every invocation. */
+    private Box[] churnBoxes;
+    private QuadTree tree;
+    private Rectangle[] queries;
+    private List<StaticObject> result;
+    private float offset;
+
+    private static Box[] createBoxes(final int count, final Random rng) {
+        final Box[] result = new Box[count];
+        for (int i = 0; i < count; i++) {
+            result[i] = new Box(new Rectangle(rng.nextFloat()
+                    * (WIDTH - 2 * OBJECT_SIZE), rng.nextFloat()
+                    * (HEIGHT - 2 * OBJECT_SIZE), OBJECT_SIZE, OBJECT_SIZE));
+        }
+        return result;
+    }
+
+    @Setup
+    public void setUp() {
+        final Random rng = new Random(42);
+        bounds = new Rectangle(0, 0, WIDTH, HEIGHT);
+        boxes = createBoxes(objectCount, rng);
+        churnBoxes = createBoxes(objectCount, rng);
+
+        tree = new QuadTree(bounds);
+        for (final Box box : boxes) {
+            tree.add(box);
+        }
+
+        queries = new Rectangle[QUERIES];
+        for (int i = 0; i < QUERIES; i++) {
+            queries[i] = new Rectangle(rng.nextFloat() * (WIDTH - 200), rng
+                    .nextFloat()
+                    * (HEIGHT - 200), 200, 200);
+        }
+        result = new ArrayList<StaticObject>();
+    }
+
+    @Benchmark
+    public QuadTree insertAndRemove() {
+        final QuadTree churnTree = new QuadTree(bounds);
+        for (final Box box : churnBoxes) {
+            churnTree.add(box);
+        }
+        for (final Box box : churnBoxes) {
+            churnTree.remove(box);
+        }
+        return churnTree;
+    }
+
+    @Benchmark
+    public void query(final Blackhole blackhole) {
+        for (final Rectangle query : queries) {
+            result.clear();
+            tree.getObjectsFromRectangle(query, result);
+            blackhole.consume(result.size());
+        }
+    }
+
+    @Benchmark
+    public QuadTree update() {
+        /* Move every object back and forth. */
+        offset = offset > 0 ? -OBJECT_SIZE / 2 : OBJECT_SIZE / 2;
+        for (final Box box : boxes) {
+            final Rectangle rect = box.rectangle;
+            box.rectangle = new Rectangle(rect.getLeft() + offset, rect
+                    .getTop(), rect.getWidth(), rect.getHeight());
+            tree.update(box);
+        }
+        return tree;
+    }
+}
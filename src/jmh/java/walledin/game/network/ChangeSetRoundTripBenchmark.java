@@ -0,0 +1,135 @@
+/*  Copyright 2010 Ben Ruijl, Wouter Smeenk
+
+This file is part of Walled In.
+
+Walled In is free software; you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation; either version 3, or (at your option)
+any later version.
+
+Walled In is distributed in the hope that it will be useful, but
+WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with Walled In; see the file LICENSE.  If not, write to the
+Free Software Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA
+02111-1307 USA.
+
+ */
+package walledin.game.network;
+
+import java.nio.ByteBuffer;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import walledin.engine.math.Vector2f;
+import walledin.game.BenchmarkFixtures;
+import walledin.game.EntityManager;
+import walledin.game.entity.Attribute;
+import walledin.game.entity.Entity;
+import walledin.game.network.server.ChangeSet;
+
+/**
+ * Benchmarks writing the change set of one tick and reading it back, in both
+ * gamestate encodings. The reader already knows the full game state, like a
+ * connected client.
+ * 
+ * @author Wouter Smeenk
+ * 
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Fork(1)
+@Warmup(iterations = 5)
+@Measurement(iterations = 5)
+public class ChangeSetRoundTripBenchmark {
+    /** The maximum size of an entity in the buffer. */
+    private static final int BYTES_PER_ENTITY = 256;
+
+    @Param( { "100", "1000", "10000" })
+    private int entityCount;
+
+    @Param( { "STANDARD", "COMPACT" })
+    private GamestateEncoding encoding;
+
+    private ChangeSet changeSet;
+    private ByteBuffer buffer;
+    private Quantization quantization;
+    private QuantizedVectorHistory writerHistory;
+    private EntityIdTable readerIds;
+    private Quantization readerQuantization;
+    private QuantizedVectorHistory readerHistory;
+
+    @Setup
+    public void setUp() {
+        BenchmarkFixtures.loadSettings();
+        final Random rng = new Random(42);
+        final EntityManager entityManager = new EntityManager(null);
+        final List<Entity> entities = BenchmarkFixtures.createBodies(
+                entityManager, entityCount, 64, 64, rng);
+        final ChangeSet fullChangeSet = entityManager.createChangeSet();
+
+        for (final Entity entity : entities) {
+            final Vector2f velocity = (Vector2f) entity
+                    .getAttribute(Attribute.VELOCITY);
+            if (velocity.getX() != 0 || velocity.getY() != 0) {
+                entity.setAttribute(Attribute.POSITION, ((Vector2f) entity
+                        .getAttribute(Attribute.POSITION)).add(velocity
+                        .scale((float) BenchmarkFixtures.DELTA)));
+            }
+        }
+        changeSet = entityManager.createChangeSet();
+
+        buffer = ByteBuffer.allocate(entityCount * BYTES_PER_ENTITY);
+        quantization = Quantization.fromSettings();
+        writerHistory = new QuantizedVectorHistory();
+        writerHistory.record(fullChangeSet, quantization, 0);
+        writerHistory.record(changeSet, quantization, 0);
+
+        /* Let the reader receive the full game state. */
+        readerIds = new EntityIdTable();
+        readerQuantization = new Quantization();
+        readerHistory = new QuantizedVectorHistory();
+        if (encoding == GamestateEncoding.COMPACT) {
+            NetworkMessageWriter.writeCompactChangeSet(fullChangeSet, buffer,
+                    quantization, null, null);
+            buffer.flip();
+            NetworkMessageReader.readCompactChangeSet(buffer, fullChangeSet
+                    .getLastVersion() + 1, readerIds, readerQuantization,
+                    readerHistory);
+        }
+    }
+
+    @Benchmark
+    public ChangeSet roundTrip() {
+        buffer.clear();
+        if (encoding == GamestateEncoding.COMPACT) {
+            NetworkMessageWriter.writeCompactChangeSet(changeSet, buffer,
+                    quantization, writerHistory, null);
+            buffer.flip();
+            return NetworkMessageReader.readCompactChangeSet(buffer, changeSet
+                    .getLastVersion() + 1, readerIds, readerQuantization,
+                    readerHistory);
+        } else {
+            NetworkMessageWriter.writeChangeSet(changeSet, buffer);
+            buffer.flip();
+            return NetworkMessageReader.readChangeSet(buffer);
+        }
+    }
+}
@@ -0,0 +1,99 @@
+/*  Copyright 2010 Ben Ruijl, Wouter Smeenk
+
+This file is part of Walled In.
+
+Walled In is free software; you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation; either version 3, or (at your option)
+any later version.
+
+Walled In is distributed in the hope that it will be useful, but
+WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with Walled In; see the file LICENSE.  If not, write to the
+Free Software Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA
+02111-1307 USA.
+
+ */
+package walledin.game.network.server;
+
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import walledin.engine.math.Vector2f;
+import walledin.game.BenchmarkFixtures;
+import walledin.game.EntityManager;
+import walledin.game.entity.Attribute;
+import walledin.game.entity.Entity;
+
+/**
+ * Benchmarks merging the change sets of a number of ticks, like the server
+ * does for a player that has not acknowledged the last versions.
+ * 
+ * @author Wouter Smeenk
+ * 
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Fork(1)
+@Warmup(iterations = 5)
+@Measurement(iterations = 5)
+public class ChangeSetMergeBenchmark {
+    @Param( { "100", "1000", "10000" })
+    private int entityCount;
+
+    @Param( { "2", "10", "60" })
+    private int versions;
+
+    private ChangeSet[] changeSets;
+
+    @Setup
+    public void setUp() {
+        BenchmarkFixtures.loadSettings();
+        final Random rng = new Random(42);
+        final EntityManager entityManager = new EntityManager(null);
+        final List<Entity> entities = BenchmarkFixtures.createBodies(
+                entityManager, entityCount, 64, 64, rng);
+        entityManager.createChangeSet();
+
+        changeSets = new ChangeSet[versions];
+        for (int i = 0; i < versions; i++) {
+            for (final Entity entity : entities) {
+                final Vector2f velocity = (Vector2f) entity
+                        .getAttribute(Attribute.VELOCITY);
+                if (velocity.getX() != 0 || velocity.getY() != 0) {
+                    entity.setAttribute(Attribute.POSITION, ((Vector2f) entity
+                            .getAttribute(Attribute.POSITION)).add(velocity
+                            .scale((float) BenchmarkFixtures.DELTA)));
+                }
+            }
+            changeSets[i] = entityManager.createChangeSet();
+        }
+    }
+
+    @Benchmark
+    public ChangeSet merge() {
+        final ChangeSet result = new ChangeSet(changeSets[0]);
+        for (int i = 1; i < changeSets.length; i++) {
+            result.merge(changeSets[i]);
+        }
+        return result;
+    }
+}
@@ -724,6 +724,24 @@ public class Renderer implements GLEventListener {
         gl.glColor4f(r, g, b, a);
     }
 
+    /**
+     * Returns the width of the viewport.
+     * 
+     * @return The width in pixels
+     */
+    public final int getWidth() {
+        return width;
+    }
+
+    /**
+     * Returns the height of the viewport.
+     * 
+     * @return The height in pixels
+     */
+    public final int getHeight() {
+        return height;
+    }
+
     /**
      * Centers the camera around a specific point.
      * 
@@ -0,0 +1,440 @@
+/*  Copyright 2010 Ben Ruijl, Wouter Smeenk
+
+This file is part of Walled In.
+
+Walled In is free software; you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation; either version 3, or (at your option)
+any later version.
+
+Walled In is distributed in the hope that it will be useful, but
+WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with Walled In; see the file LICENSE.  If not, write to the
+Free Software Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA
+02111-1307 USA.
+
+ */
+package walledin.engine.math;
+
+/**
+ * Geometry functions on floats that do not allocate, for the code that runs
+ * every tick. They give the same results as the geometry classes they mirror.
+ * 
+ * Polygons are stored in a float array as x, y pairs of their points. Edge i
+ * goes from point i to point i + 1, and the last edge back to the first
+ * point.
+ * 
+ * @author Ben Ruijl
+ */
+public final class GeometryKernels {
+    /** The minimum distance that is normalized. */
+    private static final float MIN_DISTANCE = 0.0000001f;
+
+    /** This class should not be created. */
+    private GeometryKernels() {
+
+    }
+
+    /**
+     * Checks if two rectangles overlap, like
+     * {@link Rectangle#intersects(Rectangle)}. Touching rectangles do not
+     * overlap.
+     */
+    public static boolean overlaps(final float leftA, final float topA,
+            final float rightA, final float bottomA, final float leftB,
+            final float topB, final float rightB, final float bottomB) {
+        return rightB > leftA && leftB < rightA && bottomB > topA
+                && topB < bottomA;
+    }
+
+    /**
+     * Checks if two rectangles overlap or touch.
+     */
+    public static boolean touches(final float leftA, final float topA,
+            final float rightA, final float bottomA, final float leftB,
+            final float topB, final float rightB, final float bottomB) {
+        return rightA >= leftB && leftA <= rightB && bottomA >= topB
+                && topA <= bottomB;
+    }
+
+    /**
+     * Stores the points of a rectangle in a polygon, in the order of
+     * {@link Rectangle#asPolygon()}.
+     * 
+     * @param polygon
+     *            The array of at least 8 floats to store the points in
+     */
+    public static void rectangle(final float[] polygon, final float left,
+            final float top, final float width, final float height) {
+        final float right = left + width;
+        final float bottom = top + height;
+        polygon[0] = left;
+        polygon[1] = top;
+        polygon[2] = left;
+        polygon[3] = bottom;
+        polygon[4] = right;
+        polygon[5] = bottom;
+        polygon[6] = right;
+        polygon[7] = top;
+    }
+
+    /**
+     * Rotates points around a center, like {@link Matrix2f#Matrix2f(double)}.
+     * 
+     * @param points
+     *            The points, which are changed
+     * @param count
+     *            The number of points
+     * @param centerX
+     *            X of the center
+     * @param centerY
+     *            Y of the center
+     * @param angle
+     *            Rotation in <b>radians</b>
+     */
+    public static void rotate(final float[] points, final int count,
+            final float centerX, final float centerY, final double angle) {
+        final float cos = (float) Math.cos(angle);
+        final float sin = (float) Math.sin(angle);
+        for (int i = 0; i < count * 2; i += 2) {
+            final float x = points[i] - centerX;
+            final float y = points[i + 1] - centerY;
+            points[i] = x * cos + y * -sin + centerX;
+            points[i + 1] = x * sin + y * cos + centerY;
+        }
+    }
+
+    /**
+     * Moves points.
+     * 
+     * @param points
+     *            The points, which are changed
+     * @param count
+     *            The number of points
+     * @param x
+     *            Horizontal offset
+     * @param y
+     *            Vertical offset
+     */
+    public static void translate(final float[] points, final int count,
+            final float x, final float y) {
+        for (int i = 0; i < count * 2; i += 2) {
+            points[i] += x;
+            points[i + 1] += y;
+        }
+    }
+
+    /**
+     * Returns the time at which a moving circle collides with a polygon, like
+     * {@link Polygon2f#circleCollision(Circle, Vector2f)}.
+     * 
+     * @param polygon
+     *            The points of the polygon
+     * @param count
+     *            The number of points
+     * @param circleX
+     *            X of the center of the circle
+     * @param circleY
+     *            Y of the center of the circle
+     * @param radius
+     *            Radius of the circle
+     * @param velocityX
+     *            Horizontal velocity of the circle
+     * @param velocityY
+     *            Vertical velocity of the circle
+     * @param closest
+     *            Used to store intermediate results
+     * @return Time. Negative means no collision.
+     */
+    public static float circlePolygonCollision(final float[] polygon,
+            final int count, final float circleX, final float circleY,
+            final float radius, final float velocityX, final float velocityY,
+            final MutableVector2f closest) {
+        /* Check if it is already colliding. */
+        closestPointOnPolygon(polygon, count, circleX, circleY, closest);
+        final float dx = circleX - closest.getX();
+        final float dy = circleY - closest.getY();
+        if (dx * dx + dy * dy < radius * radius
+                || pointInsidePolygon(polygon, count, circleX, circleY)) {
+            return 0;
+        }
+
+        float collisionTime = Float.MAX_VALUE;
+        boolean collision = false;
+        for (int i = 0; i < count; i++) {
+            final int j = (i + 1) % count;
+            final float time = circleLineCollision(polygon[i * 2],
+                    polygon[i * 2 + 1], polygon[j * 2], polygon[j * 2 + 1],
+                    circleX, circleY, radius, velocityX, velocityY);
+
+            if (time >= 0 && time < collisionTime) {
+                collision = true;
+                collisionTime = time;
+            }
+        }
+
+        return collision ? collisionTime : -1.0f;
+    }
+
+    /**
+     * Calculates the collision of a moving circle with a polygon, like
+     * {@link Polygon2f#circleCollisionData(Circle, Vector2f)}.
+     * 
+     * @param polygon
+     *            The points of the polygon
+     * @param count
+     *            The number of points
+     * @param circleX
+     *            X of the center of the circle
+     * @param circleY
+     *            Y of the center of the circle
+     * @param radius
+     *            Radius of the circle
+     * @param velocityX
+     *            Horizontal velocity of the circle
+     * @param velocityY
+     *            Vertical velocity of the circle
+     * @param normal
+     *            Is set to the normal of the collision
+     * @param penetration
+     *            Is set to the penetration of the collision
+     * @return Time. Negative means no collision, and then the normal and
+     *         penetration are not set.
+     */
+    public static float circlePolygonCollisionData(final float[] polygon,
+            final int count, final float circleX, final float circleY,
+            final float radius, final float velocityX, final float velocityY,
+            final MutableVector2f normal, final MutableVector2f penetration) {
+        final float time = circlePolygonCollision(polygon, count, circleX,
+                circleY, radius, velocityX, velocityY, normal);
+
+        if (time < 0) {
+            return time;
+        }
+
+        final float circlePosX = circleX + velocityX * time;
+        final float circlePosY = circleY + velocityY * time;
+        // The penetration holds the closest point on the polygon for now
+        closestPointOnPolygon(polygon, count, circlePosX, circlePosY,
+                penetration);
+        final float polygonPointX = penetration.getX();
+        final float polygonPointY = penetration.getY();
+
+        /* The closest point on the circle. */
+        float deltaX = polygonPointX - circlePosX;
+        float deltaY = polygonPointY - circlePosY;
+        final float distanceSquared = deltaX * deltaX + deltaY * deltaY;
+        final float dist = (float) Math.sqrt(distanceSquared);
+        if (dist > MIN_DISTANCE) {
+            final float invDist = 1.0f / dist;
+            deltaX *= invDist;
+            deltaY *= invDist;
+        }
+        float circlePointX = circlePosX + deltaX * radius;
+        float circlePointY = circlePosY + deltaY * radius;
+
+        normal.set(circlePosX - polygonPointX, circlePosY - polygonPointY)
+                .normalize();
+        penetration.set(polygonPointX - circlePointX, polygonPointY
+                - circlePointY);
+
+        if (pointInsidePolygon(polygon, count, circlePosX, circlePosY)) {
+            /* We are deep in the polygon! */
+            if (!(distanceSquared <= radius * radius)) {
+                normal.scale(-1.0f);
+            }
+
+            circlePointX = circlePosX + normal.getX() * radius;
+            circlePointY = circlePosY + normal.getY() * radius;
+            penetration.set(polygonPointX - circlePointX, polygonPointY
+                    - circlePointY);
+        }
+
+        return time;
+    }
+
+    /**
+     * Finds the point on the edges of a polygon that is closest to a point,
+     * like {@link Polygon2f#closestPointOnPolygon(Vector2f)}.
+     */
+    public static void closestPointOnPolygon(final float[] polygon,
+            final int count, final float x, final float y,
+            final MutableVector2f result) {
+        float closestX = 0;
+        float closestY = 0;
+        float distance = Float.MAX_VALUE;
+
+        for (int i = 0; i < count; i++) {
+            final int j = (i + 1) % count;
+            final float beginX = polygon[i * 2];
+            final float beginY = polygon[i * 2 + 1];
+            final float lineX = polygon[j * 2] - beginX;
+            final float lineY = polygon[j * 2 + 1] - beginY;
+            final float length = (float) Math.sqrt(lineX * lineX + lineY
+                    * lineY);
+            final float invLength = 1.00f / length;
+            final float dirX = lineX * invLength;
+            final float dirY = lineY * invLength;
+
+            /* Project point to line. */
+            final float projLength = (x - beginX) * dirX + (y - beginY) * dirY;
+            final float pointX;
+            final float pointY;
+            if (projLength <= 0) {
+                pointX = beginX;
+                pointY = beginY;
+            } else if (projLength >= length) {
+                pointX = polygon[j * 2];
+                pointY = polygon[j * 2 + 1];
+            } else {
+                pointX = dirX * projLength + beginX;
+                pointY = dirY * projLength + beginY;
+            }
+
+            final float dx = x - pointX;
+            final float dy = y - pointY;
+            final float distSquared = dx * dx + dy * dy;
+            if (distSquared < distance) {
+                distance = distSquared;
+                closestX = pointX;
+                closestY = pointY;
+            }
+        }
+
+        result.set(closestX, closestY);
+    }
+
+    /**
+     * Checks if a point is inside a convex polygon, like
+     * {@link Polygon2f#pointInsidePolygon(Vector2f)}.
+     */
+    public static boolean pointInsidePolygon(final float[] polygon,
+            final int count, final float x, final float y) {
+        boolean backFacing = false;
+        boolean frontFacing = false;
+
+        for (int i = 0; i < count; i++) {
+            final int j = (i + 1) % count;
+            final float beginX = polygon[i * 2];
+            final float beginY = polygon[i * 2 + 1];
+            final float lineX = polygon[j * 2] - beginX;
+            final float lineY = polygon[j * 2 + 1] - beginY;
+            final float invLength = 1.00f / (float) Math.sqrt(lineX * lineX
+                    + lineY * lineY);
+            if ((x - beginX) * (lineY * invLength) - (y - beginY)
+                    * (lineX * invLength) <= 0) {
+                backFacing = true;
+            } else {
+                frontFacing = true;
+            }
+        }
+
+        return !backFacing || !frontFacing;
+    }
+
+    /**
+     * Returns the time at which a moving circle collides with a line segment,
+     * like {@link Line2f#circleLineCollision(Circle, Vector2f)}.
+     */
+    private static float circleLineCollision(final float beginX,
+            final float beginY, final float endX, final float endY,
+            final float circleX, final float circleY, final float radius,
+            final float velocityX, final float velocityY) {
+        final float lineX = endX - beginX;
+        final float lineY = endY - beginY;
+        final float velocityCross = velocityX * lineY - velocityY * lineX;
+        final float positionCross = (circleX - beginX) * lineY
+                - (circleY - beginY) * lineX;
+        final float a = velocityCross * velocityCross;
+        final float b = 2.0f * velocityCross * positionCross;
+        final float c = positionCross * positionCross - radius * radius
+                * (lineX * lineX + lineY * lineY);
+        float d = b * b - 4.0f * a * c;
+
+        if (d < 0) {
+            /* There is no collision. */
+            return -1;
+        }
+
+        d = (float) Math.sqrt(d);
+        float t0 = (-b - d) / (2.0f * a);
+        float t1 = (-b + d) / (2.0f * a);
+
+        if (t0 > t1) {
+            final float temp = t0;
+            t0 = t1;
+            t1 = temp;
+        }
+
+        /* The point misses the infinite cylinder. */
+        if (t0 > 1.0f || t1 < 0.0f) {
+            return -1;
+        }
+
+        float tEdge = t0;
+        if (tEdge < 0.0f) {
+            tEdge = 0.0f;
+        }
+        final float edgeX = circleX + velocityX * tEdge;
+        final float edgeY = circleY + velocityY * tEdge;
+
+        /* Project edge to line. */
+        final float invLength = 1.00f / (float) Math.sqrt(lineX * lineX
+                + lineY * lineY);
+        final float e = (edgeX - beginX) * (lineX * invLength)
+                + (edgeY - beginY) * (lineY * invLength);
+
+        if (e < 0.0f) {
+            return pointCollision(circleX, circleY, radius, beginX, beginY,
+                    velocityX, velocityY);
+        } else if (e > 1.0f) {
+            return pointCollision(circleX, circleY, radius, endX, endY,
+                    velocityX, velocityY);
+        } else {
+            return t0;
+        }
+    }
+
+    /**
+     * Returns the time at which a moving point collides with a circle, like
+     * {@link Circle#pointCollision(Vector2f, Vector2f)}.
+     */
+    private static float pointCollision(final float circleX,
+            final float circleY, final float radius, final float x,
+            final float y, final float velocityX, final float velocityY) {
+        final float hX = circleX - x;
+        final float hY = circleY - y;
+
+        final float a = velocityX * velocityX + velocityY * velocityY;
+        final float b = 2.0f * (velocityX * hX + velocityY * hY);
+        final float c = hX * hX + hY * hY - radius * radius;
+        float d = b * b - 4.0f * a * c;
+
+        // point missed by infinite ray
+        if (d < 0.0f) {
+            return -1.0f;
+        }
+
+        d = (float) Math.sqrt(d);
+        float t0 = (-b - d) / (2.0f * a);
+        float t1 = (-b + d) / (2.0f * a);
+
+        // sort times
+        if (t0 > t1) {
+            final float temp = t0;
+            t0 = t1;
+            t1 = temp;
+        }
+
+        // point missed by ray range
+        if (t0 > 1.0f || t1 < 0.0f) {
+            return -1.0f;
+        }
+
+        return t0;
+    }
+}
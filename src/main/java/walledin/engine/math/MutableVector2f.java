@@ -0,0 +1,114 @@
+/*  Copyright 2010 Ben Ruijl, Wouter Smeenk
+
+This file is part of Walled In.
+
+Walled In is free software; you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation; either version 3, or (at your option)
+any later version.
+
+Walled In is distributed in the hope that it will be useful, but
+WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with Walled In; see the file LICENSE.  If not, write to the
+Free Software Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA
+02111-1307 USA.
+
+ */
+package walledin.engine.math;
+
+/**
+ * 2d vector class using floats that is changed in place, so it can be reused
+ * in code that runs every tick. The operations give the same results as the
+ * ones of {@link Vector2f}. It should not be stored in attributes, use
+ * {@link #toVector2f()} for that.
+ * 
+ * @author Ben Ruijl
+ */
+public final class MutableVector2f {
+    /** X component of the vector. */
+    private float x;
+    /** Y component of the vector. */
+    private float y;
+
+    public MutableVector2f() {
+        x = 0;
+        y = 0;
+    }
+
+    public MutableVector2f(final float x, final float y) {
+        this.x = x;
+        this.y = y;
+    }
+
+    public float getX() {
+        return x;
+    }
+
+    public float getY() {
+        return y;
+    }
+
+    public MutableVector2f set(final float x, final float y) {
+        this.x = x;
+        this.y = y;
+        return this;
+    }
+
+    public MutableVector2f set(final Vector2f vec) {
+        x = vec.getX();
+        y = vec.getY();
+        return this;
+    }
+
+    public MutableVector2f add(final float x, final float y) {
+        this.x += x;
+        this.y += y;
+        return this;
+    }
+
+    public MutableVector2f add(final Vector2f vec) {
+        return add(vec.getX(), vec.getY());
+    }
+
+    public MutableVector2f sub(final float x, final float y) {
+        this.x -= x;
+        this.y -= y;
+        return this;
+    }
+
+    public MutableVector2f scale(final float amount) {
+        x *= amount;
+        y *= amount;
+        return this;
+    }
+
+    public float dot(final float x, final float y) {
+        return this.x * x + this.y * y;
+    }
+
+    public float lengthSquared() {
+        return x * x + y * y;
+    }
+
+    public MutableVector2f normalize() {
+        return scale(1.00f / (float) Math.sqrt(lengthSquared()));
+    }
+
+    /**
+     * Returns an immutable copy of this vector.
+     * 
+     * @return The copy
+     */
+    public Vector2f toVector2f() {
+        return new Vector2f(x, y);
+    }
+
+    @Override
+    public String toString() {
+        return "(" + x + ", " + y + ")";
+    }
+}
@@ -331,6 +331,9 @@ public final class ClientLogicManager implements RenderListener,
             PlayerActionManager.getInstance().update();
         }
 
+        /* Send the input and predict the movement of the player */
+        client.updateInput(delta);
+
         /* Update all entities */
         getEntityManager().update(delta);
 
@@ -0,0 +1,80 @@
+/*  Copyright 2010 Ben Ruijl, Wouter Smeenk
+
+This file is part of Walled In.
+
+Walled In is free software; you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation; either version 3, or (at your option)
+any later version.
+
+Walled In is distributed in the hope that it will be useful, but
+WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with Walled In; see the file LICENSE.  If not, write to the
+Free Software Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA
+02111-1307 USA.
+
+ */
+package walledin.game;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import walledin.game.entity.EntityFunction;
+import walledin.game.entity.Family;
+
+/**
+ * Records the entities a worker thread creates during a parallel update, so
+ * they can be created on the updating thread afterwards. The entities are
+ * created in the order they were recorded.
+ * 
+ * @author Ben Ruijl
+ * 
+ */
+class CommandBuffer {
+    /** A recorded creation of an entity. */
+    private static final class Command {
+        private final Family family;
+        private final EntityFunction function;
+
+        Command(final Family family, final EntityFunction function) {
+            this.family = family;
+            this.function = function;
+        }
+    }
+
+    private final List<Command> commands;
+
+    CommandBuffer() {
+        commands = new ArrayList<Command>();
+    }
+
+    /**
+     * Records the creation of an entity.
+     * 
+     * @param family
+     *            Family of the entity
+     * @param function
+     *            Called with the created entity
+     */
+    void create(final Family family, final EntityFunction function) {
+        commands.add(new Command(family, function));
+    }
+
+    /**
+     * Creates the recorded entities and clears them.
+     * 
+     * @param entityManager
+     *            The entity manager to create the entities with
+     */
+    void apply(final EntityManager entityManager) {
+        for (int i = 0; i < commands.size(); i++) {
+            final Command command = commands.get(i);
+            command.function.create(entityManager.create(command.family));
+        }
+        commands.clear();
+    }
+}
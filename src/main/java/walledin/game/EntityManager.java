@@ -35,11 +35,15 @@ import org.apache.log4j.Logger;
 import walledin.engine.Renderer;
 import walledin.game.collision.CollisionManager;
 import walledin.game.collision.QuadTree;
+import walledin.game.collision.SpatialHash;
 import walledin.game.entity.Attribute;
 import walledin.game.entity.Entity;
 import walledin.game.entity.EntityFactory;
+import walledin.game.entity.EntityFunction;
 import walledin.game.entity.Family;
+import walledin.game.entity.behaviors.physics.PhysicsSystem;
 import walledin.game.network.server.ChangeSet;
+import walledin.util.SettingsManager;
 
 public class EntityManager {
     private static final Logger LOG = Logger.getLogger(EntityManager.class);
@@ -47,10 +51,17 @@ public class EntityManager {
     private final DrawOrderManager drawOrderManager;
     private final EntityFactory factory;
     private int uniqueNameCount = 0;
+    private int uniqueIdCount = 0;
     private final Set<Entity> removed;
     private final Set<Entity> created;
     private int currentVersion;
     private final List<EntityUpdateListener> listeners;
+    /** The broadphase of the entity collisions, created when first used. */
+    private SpatialHash broadphase;
+    /** Integrates the physics bodies in one loop, or null if disabled. */
+    private PhysicsSystem physicsSystem;
+    /** Updates the entities in parallel, or null to update them in order. */
+    private EntityUpdater entityUpdater;
 
     public EntityManager(final EntityFactory factory) {
         entities = new ConcurrentHashMap<String, Entity>();
@@ -95,6 +106,8 @@ public class EntityManager {
      */
     public Entity create(final Family family, final String entityName) {
         final Entity entity = factory.create(this, family, entityName);
+        uniqueIdCount++;
+        entity.setId(uniqueIdCount);
         add(entity);
         fireOnEntityCreated(entity);
         return entity;
@@ -111,6 +124,25 @@ public class EntityManager {
         return create(family, generateUniqueName(family));
     }
 
+    /**
+     * Creates a new entity with a unique name, adds it to the entity list and
+     * calls a function with it. During a parallel update this is done when
+     * all entities are updated.
+     * 
+     * @param family
+     *            Family of the entity
+     * @param function
+     *            Called with the created entity, to set it up
+     */
+    public void create(final Family family, final EntityFunction function) {
+        final CommandBuffer buffer = EntityUpdater.getCommandBuffer();
+        if (buffer == null) {
+            function.create(create(family));
+        } else {
+            buffer.create(family, function);
+        }
+    }
+
     /**
      * Generates a unique name for an object. Useful when generating entities in
      * runtime. The entities will be named in the following format:
@@ -168,6 +200,10 @@ public class EntityManager {
 
         entities.put(entity.getName(), entity);
 
+        if (physicsSystem != null) {
+            physicsSystem.addBody(entity);
+        }
+
         if (entity.hasAttribute(Attribute.Z_INDEX)) {
             drawOrderManager.add(entity);
         }
@@ -257,17 +293,71 @@ public class EntityManager {
             remove(removeList.get(i).getName());
         }
 
-        for (final Entity entity : entities.values()) {
-            entity.sendUpdate(delta);
+        if (entityUpdater == null) {
+            for (final Entity entity : entities.values()) {
+                entity.sendUpdate(delta);
+            }
+        } else {
+            entityUpdater.update(entities.values(), this, delta);
+        }
+
+        if (physicsSystem != null) {
+            physicsSystem.update(delta);
         }
     }
 
+    /**
+     * Returns the system that integrates the physics bodies of this manager.
+     * 
+     * @return The physics system, or null if every physics behavior
+     *         integrates its own body
+     */
+    public PhysicsSystem getPhysicsSystem() {
+        return physicsSystem;
+    }
+
+    /**
+     * Sets the system that integrates the physics bodies. Only the physics
+     * behaviors created afterwards use it.
+     * 
+     * @param physicsSystem
+     *            The physics system, or null to disable it
+     */
+    public void setPhysicsSystem(final PhysicsSystem physicsSystem) {
+        this.physicsSystem = physicsSystem;
+    }
+
+    /**
+     * Returns the updater that updates the entities in parallel.
+     * 
+     * @return The entity updater, or null if the entities are updated in
+     *         order on the calling thread
+     */
+    public EntityUpdater getEntityUpdater() {
+        return entityUpdater;
+    }
+
+    /**
+     * Sets the updater that updates the entities in parallel.
+     * 
+     * @param entityUpdater
+     *            The entity updater, or null to update the entities in order
+     *            on the calling thread
+     */
+    public void setEntityUpdater(final EntityUpdater entityUpdater) {
+        this.entityUpdater = entityUpdater;
+    }
+
     public void doCollisionDetection(final Entity curMap,
             final QuadTree staticMap, final double delta) {
+        if (broadphase == null) {
+            broadphase = new SpatialHash(SettingsManager.getInstance()
+                    .getFloat("game.collisionCellSize"));
+        }
         CollisionManager.calculateMapCollisions(curMap, entities.values(),
                 delta);
         CollisionManager.calculateEntityCollisions(entities.values(),
-                staticMap, delta);
+                broadphase, staticMap, delta);
     }
 
     public void init() {
@@ -306,11 +396,19 @@ public class EntityManager {
         }
         for (final Entry<String, Family> entry : changeSet
                 .getCreatedFromVersion(version).entrySet()) {
-            create(entry.getValue(), entry.getKey());
+            // Can already exist when an older change set was applied
+            if (!entities.containsKey(entry.getKey())) {
+                create(entry.getValue(), entry.getKey());
+            }
         }
         for (final Entry<String, Map<Attribute, Object>> entry : changeSet
                 .getUpdated().entrySet()) {
             final Entity entity = entities.get(entry.getKey());
+            if (entity == null) {
+                LOG.warn("Received update for unknown entity "
+                        + entry.getKey());
+                continue;
+            }
             for (final Entry<Attribute, Object> attribute : entry.getValue()
                     .entrySet()) {
                 entity.setAttribute(attribute.getKey(), attribute.getValue());
@@ -0,0 +1,186 @@
+/*  Copyright 2010 Ben Ruijl, Wouter Smeenk
+
+This file is part of Walled In.
+
+Walled In is free software; you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation; either version 3, or (at your option)
+any later version.
+
+Walled In is distributed in the hope that it will be useful, but
+WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with Walled In; see the file LICENSE.  If not, write to the
+Free Software Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA
+02111-1307 USA.
+
+ */
+package walledin.game;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+import org.apache.log4j.Logger;
+
+import walledin.game.entity.Entity;
+
+/**
+ * Updates the entities on a fixed pool of worker threads. The entities of
+ * which all behaviors are parallel safe are split in one consecutive part per
+ * thread. The other entities are updated on the calling thread after that.
+ * 
+ * The entities a worker thread creates are recorded in the command buffer of
+ * its part. The buffers are applied in the order of the parts when all
+ * entities are updated, so the result does not depend on the timing of the
+ * threads.
+ * 
+ * @author Ben Ruijl
+ * 
+ */
+public class EntityUpdater {
+    private static final Logger LOG = Logger.getLogger(EntityUpdater.class);
+    /** The minimum number of parallel safe entities to use the workers. */
+    private static final int MIN_PARALLEL_ENTITIES = 64;
+    /** The command buffer of the part the current thread is updating. */
+    private static final ThreadLocal<CommandBuffer> CURRENT_BUFFER = new ThreadLocal<CommandBuffer>();
+
+    /** The worker threads. */
+    private final ExecutorService executor;
+    /** The command buffers of the parts, in order. */
+    private final CommandBuffer[] buffers;
+    private final List<Entity> parallelEntities;
+    private final List<Entity> serialEntities;
+
+    /**
+     * Creates a new updater.
+     * 
+     * @param threads
+     *            The number of worker threads
+     */
+    public EntityUpdater(final int threads) {
+        if (threads < 1) {
+            throw new IllegalArgumentException(
+                    "The number of threads should be positive");
+        }
+        executor = Executors.newFixedThreadPool(threads, new ThreadFactory() {
+            private int count;
+
+            @Override
+            public Thread newThread(final Runnable runnable) {
+                count++;
+                final Thread thread = new Thread(runnable, "Entity updater "
+                        + count);
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        buffers = new CommandBuffer[threads];
+        for (int i = 0; i < threads; i++) {
+            buffers[i] = new CommandBuffer();
+        }
+        parallelEntities = new ArrayList<Entity>();
+        serialEntities = new ArrayList<Entity>();
+    }
+
+    /**
+     * Returns the command buffer of the current thread.
+     * 
+     * @return The command buffer, or null if the current thread is not
+     *         updating entities in parallel
+     */
+    static CommandBuffer getCommandBuffer() {
+        return CURRENT_BUFFER.get();
+    }
+
+    /**
+     * Updates the entities and waits until all are updated.
+     * 
+     * @param entities
+     *            The entities to update
+     * @param entityManager
+     *            The entity manager the recorded changes are applied to
+     * @param delta
+     *            Time since last update in seconds
+     */
+    void update(final Collection<Entity> entities,
+            final EntityManager entityManager, final double delta) {
+        parallelEntities.clear();
+        serialEntities.clear();
+        for (final Entity entity : entities) {
+            if (entity.isParallelSafe()) {
+                parallelEntities.add(entity);
+            } else {
+                serialEntities.add(entity);
+            }
+        }
+
+        // Not worth the hand off to the workers
+        if (parallelEntities.size() < MIN_PARALLEL_ENTITIES) {
+            for (final Entity entity : entities) {
+                entity.sendUpdate(delta);
+            }
+            return;
+        }
+
+        final List<Callable<Object>> tasks = new ArrayList<Callable<Object>>(
+                buffers.length);
+        final int size = parallelEntities.size();
+        for (int i = 0; i < buffers.length; i++) {
+            final List<Entity> part = parallelEntities.subList(size * i
+                    / buffers.length, size * (i + 1) / buffers.length);
+            final CommandBuffer buffer = buffers[i];
+            tasks.add(new Callable<Object>() {
+                @Override
+                public Object call() {
+                    CURRENT_BUFFER.set(buffer);
+                    try {
+                        for (int j = 0; j < part.size(); j++) {
+                            part.get(j).sendUpdate(delta);
+                        }
+                    } finally {
+                        CURRENT_BUFFER.remove();
+                    }
+                    return null;
+                }
+            });
+        }
+
+        try {
+            for (final Future<Object> future : executor.invokeAll(tasks)) {
+                try {
+                    future.get();
+                } catch (final ExecutionException e) {
+                    LOG.error("Could not update entities", e.getCause());
+                }
+            }
+        } catch (final InterruptedException e) {
+            LOG.warn("Interrupted while updating entities");
+            Thread.currentThread().interrupt();
+        }
+
+        for (int i = 0; i < serialEntities.size(); i++) {
+            serialEntities.get(i).sendUpdate(delta);
+        }
+
+        for (final CommandBuffer buffer : buffers) {
+            buffer.apply(entityManager);
+        }
+    }
+
+    /**
+     * Stops the worker threads.
+     */
+    public void shutdown() {
+        executor.shutdown();
+    }
+}
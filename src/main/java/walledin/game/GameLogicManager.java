@@ -20,8 +20,6 @@ Free Software Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA
  */
 package walledin.game;
 
-import java.io.BufferedWriter;
-import java.io.FileWriter;
 import java.io.IOException;
 import java.util.HashMap;
 import java.util.HashSet;
@@ -30,13 +28,11 @@ import java.util.Map;
 import java.util.Random;
 import java.util.Set;
 
-import org.apache.log4j.Level;
 import org.apache.log4j.Logger;
 import org.codehaus.groovy.control.CompilationFailedException;
 
 import walledin.engine.math.Rectangle;
-import walledin.engine.math.Vector2f;
-import walledin.engine.math.Vector2i;
+import walledin.game.collision.LagCompensator;
 import walledin.game.collision.QuadTree;
 import walledin.game.entity.Attribute;
 import walledin.game.entity.Entity;
@@ -44,6 +40,7 @@ import walledin.game.entity.EntityFactory;
 import walledin.game.entity.Family;
 import walledin.game.entity.MessageType;
 import walledin.game.entity.behaviors.logic.StaticObjectBehavior;
+import walledin.game.entity.behaviors.physics.PhysicsSystem;
 import walledin.game.gamemode.GameMode;
 import walledin.game.gamemode.GameModeHandler;
 import walledin.game.gamemode.GameModeHandlerFactory;
@@ -51,7 +48,6 @@ import walledin.game.gamemode.GameStateListener;
 import walledin.game.map.GameMapIO;
 import walledin.game.map.GameMapIOXML;
 import walledin.game.map.SpawnPoint;
-import walledin.game.map.Tile;
 import walledin.game.network.server.Server;
 import walledin.util.SettingsManager;
 import walledin.util.Utils;
@@ -66,6 +62,8 @@ public final class GameLogicManager implements GameStateListener,
         EntityUpdateListener {
     /** Logger. */
     private static final Logger LOG = Logger.getLogger(GameLogicManager.class);
+    /** The time to wait for the server to stop on exit, in ms. */
+    private static final long SHUTDOWN_TIMEOUT = 2000;
 
     /** Server that is running this game. */
     private final Server server;
@@ -77,6 +75,8 @@ public final class GameLogicManager implements GameStateListener,
     private final EntityFactory entityFactory;
     /** Quadtree of static objects for collision detection. */
     private QuadTree staticObjectsTree;
+    /** Tests bullets against the players where their shooter saw them. */
+    private final LagCompensator lagCompensator;
 
     /** Active map. */
     private Entity map;
@@ -90,8 +90,8 @@ public final class GameLogicManager implements GameStateListener,
     private final GameModeHandler gameModeHandler;
 
     /* Walled In checks */
-    /** Mobility field of the map. */
-    private boolean[][] staticField;
+    /** Detects if players are walled in. */
+    private WalledInDetector walledInDetector;
     /** Maximum Walled In time. */
     private final float maxWalledInTime;
     /** Minimum Walled In space in player size units. */
@@ -101,6 +101,14 @@ public final class GameLogicManager implements GameStateListener,
         entityFactory = new EntityFactory();
         entityManager = new EntityManager(entityFactory);
         entityManager.addListener(this);
+        if (SettingsManager.getInstance().getBoolean("game.batchPhysics")) {
+            entityManager.setPhysicsSystem(new PhysicsSystem());
+        }
+        final int updateThreads = SettingsManager.getInstance().getInteger(
+                "game.updateThreads");
+        if (updateThreads > 0) {
+            entityManager.setEntityUpdater(new EntityUpdater(updateThreads));
+        }
         players = new HashMap<String, PlayerInfo>();
         teams = new HashMap<Team, Set<PlayerInfo>>();
 
@@ -122,6 +130,10 @@ public final class GameLogicManager implements GameStateListener,
                 "game.mininmalWalledInSpace");
 
         gameModeHandler = GameModeHandlerFactory.createHandler(gameMode, this);
+
+        lagCompensator = new LagCompensator(SettingsManager.getInstance()
+                .getInteger("general.updatesPerSecond"), SettingsManager
+                .getInstance().getInteger("game.maxRewindTime"));
     }
 
     /**
@@ -144,13 +156,30 @@ public final class GameLogicManager implements GameStateListener,
     }
 
     /**
-     * Runs the server.
+     * Runs the server. When the application is stopped, the server is stopped
+     * after its current tick, so it can shut down its threads.
      */
     private void run() {
+        final Thread mainThread = Thread.currentThread();
+        Runtime.getRuntime().addShutdownHook(new Thread("Server shutdown") {
+            @Override
+            public void run() {
+                server.stop();
+                try {
+                    mainThread.join(SHUTDOWN_TIMEOUT);
+                } catch (final InterruptedException e) {
+                    LOG.warn("Interrupted while waiting for the server to stop");
+                }
+            }
+        });
         try {
             server.run();
         } catch (final IOException e) {
             LOG.fatal("A fatal network error occured.", e);
+        } finally {
+            if (entityManager.getEntityUpdater() != null) {
+                entityManager.getEntityUpdater().shutdown();
+            }
         }
     }
 
@@ -166,6 +195,10 @@ public final class GameLogicManager implements GameStateListener,
         return entityFactory;
     }
 
+    public LagCompensator getLagCompensator() {
+        return lagCompensator;
+    }
+
     /**
      * Gets the game mode.
      * 
@@ -275,158 +308,8 @@ public final class GameLogicManager implements GameStateListener,
         }
 
         killPlayer(entityName);
-        players.remove(entityName);
-    }
-
-    /**
-     * Recursively checks if a certain distance can be reached from a starting
-     * position.
-     * 
-     * @param distance
-     *            Distance to reach
-     * @param curPos
-     *            Current position
-     * @param startPos
-     *            Starting position
-     * @param field
-     *            Field of booleans. True is filled and false is empty.
-     * @return True if a certain distance can be reached, else false.
-     */
-    boolean canReachDistance(final int distance, final Vector2i curPos,
-            final Vector2i startPos, final boolean[][] field) {
-
-        if (field[curPos.getX()][curPos.getY()]) {
-            return false;
-        }
-
-        /* Disables going back. */
-        field[curPos.getX()][curPos.getY()] = true;
-
-        if (curPos.sub(startPos).lengthSquared() >= distance * distance) {
-            return true;
-        }
-
-        /* Crawl through the level. */
-        for (int i = -1; i <= 1; i++) {
-            for (int j = -1; j <= 1; j++) {
-                if (i == j || i == -j || curPos.getX() + i < 0
-                        || curPos.getY() + j < 0
-                        || curPos.getX() + i >= field.length
-                        || curPos.getY() + j >= field[0].length) {
-                    continue;
-                }
-
-                if (canReachDistance(distance, curPos.add(new Vector2i(i, j)),
-                        startPos, field)) {
-                    return true;
-                }
-            }
-        }
-
-        return false;
-
-    }
-
-    /**
-     * Builds the mobility field by looking only at the map.
-     */
-    private void buildStaticField() {
-        /* Do a + 1 do avoid rounding errors */
-        final float width = (Integer) map.getAttribute(Attribute.WIDTH);
-        final float height = (Integer) map.getAttribute(Attribute.HEIGHT);
-        final float playerSize = 44; // FIXME: hardcoded
-        final float tileWidth = (Float) map.getAttribute(Attribute.TILE_WIDTH);
-
-        staticField = new boolean[(int) Math.ceil(width * tileWidth
-                / playerSize)][(int) Math.ceil(height * tileWidth / playerSize)];
-        @SuppressWarnings("unchecked")
-        final List<Tile> tiles = (List<Tile>) map.getAttribute(Attribute.TILES);
-
-        /*
-         * Mark the filled tiles. TODO: if the tile width is greater than the
-         * player size, multiple entries in the field should be set.
-         */
-        for (final Tile tile : tiles) {
-            if (tile.getType().isSolid()) {
-                staticField[(int) (tile.getX() * tileWidth / playerSize)][(int) (tile
-                        .getY()
-                        * tileWidth / playerSize)] = true;
-            }
-        }
-
-    }
-
-    /**
-     * Checks if a certain player is walled in. This is the case if the mobility
-     * of the player is less than <code>minimalWalledInSpace</code>.
-     * 
-     * @param player
-     *            Player
-     * @return True if walled in, else false.
-     */
-    private boolean detectWalledIn(final Entity player) {
-        final float playerSize = 44; // FIXME: hardcoded
-        final Vector2f playerPos = (Vector2f) player
-                .getAttribute(Attribute.POSITION);
-
-        /* Use the static field as a base for new field. */
-        final boolean[][] field = Utils.clone2DArray(staticField);
-
-        /* Check the foam particles. */
-        for (final Entity ent : entityManager.getEntities().values()) {
-            if (ent.getFamily() == Family.FOAM_PARTICLE) {
-                Vector2f pos = ((Vector2f) ent.getAttribute(Attribute.POSITION));
-                field[(int) (pos.getX() / playerSize)][(int) (pos.getY() / playerSize)] = true;
-                pos = pos.add(new Vector2f(32, 32)); // FIXME: hardcoded
-                field[(int) (pos.getX() / playerSize)][(int) (pos.getY() / playerSize)] = true;
-            }
-        }
-
-        /* Make the player position free. */
-        field[(int) (playerPos.getX() / playerSize)][(int) (playerPos.getY() / playerSize)] = false;
-
-        /* Output the map if tracing. */
-        if (LOG.getLevel() == Level.TRACE) {
-            outputMobilityMap(field);
-        }
-
-        if (!canReachDistance(minimalWalledInSpace, playerPos.scale(
-                1 / playerSize).asVector2i(), playerPos.scale(1 / playerSize)
-                .asVector2i(), field)) {
-            return true;
-        }
-
-        return false;
-    }
-
-    /**
-     * Outputs a mobility map. Useful for debugging.
-     * 
-     * @param field
-     *            Mobility map
-     */
-    private void outputMobilityMap(final boolean[][] field) {
-        try {
-            final FileWriter fstream = new FileWriter("mobmap.txt");
-            final BufferedWriter out = new BufferedWriter(fstream);
-
-            // print map
-            for (int j = 0; j < field[0].length; j++) {
-                for (final boolean[] element : field) {
-                    if (element[j]) {
-                        out.write("#");
-                    } else {
-                        out.write(" ");
-                    }
-                }
-                out.write("\n");
-            }
-
-            out.close();
-
-        } catch (final IOException e) {
-            LOG.error("Error while writing mobility map: ", e);
-        }
+        lagCompensator.remove(entityName);
+        walledInDetector.removePlayer(players.remove(entityName).getPlayer());
     }
 
     /**
@@ -484,7 +367,8 @@ public final class GameLogicManager implements GameStateListener,
             }
 
             /* Check if walledin */
-            if (!info.isDead() && detectWalledIn(info.getPlayer())) {
+            if (!info.isDead()
+                    && walledInDetector.isWalledIn(info.getPlayer())) {
                 info.setWalledInTime(info.getWalledInTime() + (float) delta);
 
                 /* Kill the player if the max walledin time has passed. */
@@ -508,6 +392,7 @@ public final class GameLogicManager implements GameStateListener,
             if (entity != null && entity.getFamily() == Family.FOAM_PARTICLE) {
                 staticObjectsTree.add(entity
                         .getBehavior(StaticObjectBehavior.class));
+                walledInDetector.addFoam(entity);
             }
         }
 
@@ -516,11 +401,24 @@ public final class GameLogicManager implements GameStateListener,
             if (entity != null && entity.getFamily() == Family.FOAM_PARTICLE) {
                 staticObjectsTree.remove(entity
                         .getBehavior(StaticObjectBehavior.class));
+                walledInDetector.removeFoam(entity);
             }
         }
 
         /* Do collision detection */
         entityManager.doCollisionDetection(map, staticObjectsTree, delta);
+        lagCompensator.calculateCollisions(entityManager.getEntities()
+                .values(), delta);
+
+        /* Remember where the players are, for the bullets of later ticks. */
+        for (final PlayerInfo info : players.values()) {
+            if (info.isDead()) {
+                lagCompensator.remove(info.getPlayer().getName());
+            } else {
+                lagCompensator.record(info.getPlayer());
+            }
+        }
+        lagCompensator.nextTick();
     }
 
     /**
@@ -555,7 +453,7 @@ public final class GameLogicManager implements GameStateListener,
                 * (Float) map.getAttribute(Attribute.TILE_WIDTH)));
 
         /* Build the static movability field. */
-        buildStaticField();
+        walledInDetector = new WalledInDetector(map, minimalWalledInSpace);
     }
 
     @Override
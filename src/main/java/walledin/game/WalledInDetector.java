@@ -0,0 +1,367 @@
+/*  Copyright 2010 Ben Ruijl, Wouter Smeenk
+
+This file is part of Walled In.
+
+Walled In is free software; you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation; either version 3, or (at your option)
+any later version.
+
+Walled In is distributed in the hope that it will be useful, but
+WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with Walled In; see the file LICENSE.  If not, write to the
+Free Software Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA
+02111-1307 USA.
+
+ */
+package walledin.game;
+
+import java.io.BufferedWriter;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.log4j.Level;
+import org.apache.log4j.Logger;
+
+import walledin.engine.math.Vector2f;
+import walledin.game.entity.Attribute;
+import walledin.game.entity.Entity;
+import walledin.game.map.Tile;
+
+/**
+ * Detects if players are walled in. The map is divided into cells the size of
+ * a player, and a player is walled in if it cannot reach a cell at least
+ * <code>minimalWalledInSpace</code> cells away.
+ * 
+ * The occupancy of the cells is updated when foam particles are added or
+ * removed. The result of a check is cached per player, and is only computed
+ * again if the player moves to another cell or the occupancy of a cell near
+ * the player changes.
+ * 
+ * @author Ben Ruijl
+ * 
+ */
+public class WalledInDetector {
+    /** Logger. */
+    private static final Logger LOG = Logger.getLogger(WalledInDetector.class);
+    /** The size of a cell. */
+    private static final float PLAYER_SIZE = 44; // FIXME: hardcoded
+    /** The offset of the second cell a foam particle occupies. */
+    private static final float FOAM_SIZE = 32; // FIXME: hardcoded
+
+    /** The cached result of the check of a player. */
+    private static class Check {
+        /** The cell the player was in. */
+        private int cell;
+        /** True if the player was walled in. */
+        private boolean walledIn;
+        /** False if the result should be computed again. */
+        private boolean valid;
+    }
+
+    /** Number of cells horizontally. */
+    private final int width;
+    /** Number of cells vertically. */
+    private final int height;
+    /** Minimum Walled In space in player size units. */
+    private final int minimalWalledInSpace;
+    /** True for the cells that are filled by the map. */
+    private final boolean[] staticCells;
+    /** The number of foam particles in every cell. */
+    private final int[] foamCount;
+    /** The cells occupied by every foam particle. */
+    private final Map<Entity, int[]> foamCells;
+    /** The cached checks, by player. */
+    private final Map<Entity, Check> checks;
+
+    /**
+     * The generation in which a cell was last visited. A cell is visited in the
+     * current search if its value equals <code>generation</code>, so the
+     * array never has to be cleared.
+     */
+    private final int[] visited;
+    /** The generation of the current search. */
+    private int generation;
+    /** The queue of the breadth first search. */
+    private final int[] queue;
+
+    /**
+     * Creates a new detector and builds the mobility field by looking only at
+     * the map.
+     * 
+     * @param map
+     *            The map
+     * @param minimalWalledInSpace
+     *            Minimum Walled In space in player size units
+     */
+    public WalledInDetector(final Entity map, final int minimalWalledInSpace) {
+        final int mapWidth = (Integer) map.getAttribute(Attribute.WIDTH);
+        final int mapHeight = (Integer) map.getAttribute(Attribute.HEIGHT);
+        final float tileWidth = (Float) map.getAttribute(Attribute.TILE_WIDTH);
+
+        this.minimalWalledInSpace = minimalWalledInSpace;
+        width = (int) Math.ceil(mapWidth * tileWidth / PLAYER_SIZE);
+        height = (int) Math.ceil(mapHeight * tileWidth / PLAYER_SIZE);
+        staticCells = new boolean[width * height];
+        foamCount = new int[width * height];
+        foamCells = new HashMap<Entity, int[]>();
+        checks = new HashMap<Entity, Check>();
+        visited = new int[width * height];
+
+        /* The search never leaves the square around the start. */
+        final int side = 2 * minimalWalledInSpace + 1;
+        queue = new int[Math.min(side * side, width * height)];
+
+        @SuppressWarnings("unchecked")
+        final List<Tile> tiles = (List<Tile>) map.getAttribute(Attribute.TILES);
+
+        /*
+         * Mark the filled tiles. TODO: if the tile width is greater than the
+         * player size, multiple entries in the field should be set.
+         */
+        for (final Tile tile : tiles) {
+            if (tile.getType().isSolid()) {
+                staticCells[(int) (tile.getY() * tileWidth / PLAYER_SIZE)
+                        * width + (int) (tile.getX() * tileWidth / PLAYER_SIZE)] = true;
+            }
+        }
+    }
+
+    /**
+     * Returns the cell containing a position.
+     * 
+     * @param x
+     *            X coordinate
+     * @param y
+     *            Y coordinate
+     * @return The index of the cell, or -1 if it is outside the map
+     */
+    private int cell(final float x, final float y) {
+        final int cellX = (int) (x / PLAYER_SIZE);
+        final int cellY = (int) (y / PLAYER_SIZE);
+        if (x < 0 || y < 0 || cellX >= width || cellY >= height) {
+            return -1;
+        }
+        return cellY * width + cellX;
+    }
+
+    /**
+     * Marks the cells occupied by a foam particle as filled.
+     * 
+     * @param foam
+     *            The foam particle
+     */
+    public void addFoam(final Entity foam) {
+        if (foamCells.containsKey(foam)) {
+            return;
+        }
+
+        final Vector2f pos = (Vector2f) foam.getAttribute(Attribute.POSITION);
+        final int first = cell(pos.getX(), pos.getY());
+        final int second = cell(pos.getX() + FOAM_SIZE, pos.getY() + FOAM_SIZE);
+        final int[] cells = first == second ? new int[] { first } : new int[] {
+                first, second };
+        foamCells.put(foam, cells);
+
+        for (final int cell : cells) {
+            if (cell != -1 && foamCount[cell]++ == 0) {
+                cellChanged(cell);
+            }
+        }
+    }
+
+    /**
+     * Marks the cells occupied by a foam particle as free, unless another
+     * particle occupies them.
+     * 
+     * @param foam
+     *            The foam particle
+     */
+    public void removeFoam(final Entity foam) {
+        final int[] cells = foamCells.remove(foam);
+        if (cells == null) {
+            return;
+        }
+
+        for (final int cell : cells) {
+            if (cell != -1 && --foamCount[cell] == 0) {
+                cellChanged(cell);
+            }
+        }
+    }
+
+    /**
+     * Invalidates the checks of the players that are close enough to the cell
+     * for it to influence the result.
+     * 
+     * @param cell
+     *            The cell that was filled or freed
+     */
+    private void cellChanged(final int cell) {
+        final int cellX = cell % width;
+        final int cellY = cell / width;
+        for (final Check check : checks.values()) {
+            if (Math.abs(check.cell % width - cellX) <= minimalWalledInSpace
+                    && Math.abs(check.cell / width - cellY) <= minimalWalledInSpace) {
+                check.valid = false;
+            }
+        }
+    }
+
+    /**
+     * Forgets the cached check of a player. Should be called when the player
+     * leaves the game.
+     * 
+     * @param player
+     *            The player
+     */
+    public void removePlayer(final Entity player) {
+        checks.remove(player);
+    }
+
+    /**
+     * Checks if a certain player is walled in. This is the case if the mobility
+     * of the player is less than <code>minimalWalledInSpace</code>.
+     * 
+     * @param player
+     *            Player
+     * @return True if walled in, else false.
+     */
+    public boolean isWalledIn(final Entity player) {
+        final Vector2f playerPos = (Vector2f) player
+                .getAttribute(Attribute.POSITION);
+        final int start = cell(playerPos.getX(), playerPos.getY());
+
+        if (start == -1) {
+            return false;
+        }
+
+        Check check = checks.get(player);
+        if (check == null) {
+            check = new Check();
+            checks.put(player, check);
+        } else if (check.valid && check.cell == start) {
+            return check.walledIn;
+        }
+
+        check.cell = start;
+        check.walledIn = !canReachDistance(start);
+        check.valid = true;
+
+        /* Output the map if tracing. */
+        if (LOG.getLevel() == Level.TRACE) {
+            outputMobilityMap(start);
+        }
+
+        return check.walledIn;
+    }
+
+    /**
+     * Checks if a cell at least <code>minimalWalledInSpace</code> cells away
+     * can be reached from the start, by doing a breadth first search that
+     * only moves horizontally or vertically. The start itself is always
+     * considered free.
+     * 
+     * @param start
+     *            The cell to start from
+     * @return True if the distance can be reached, else false.
+     */
+    private boolean canReachDistance(final int start) {
+        final int distanceSquared = minimalWalledInSpace * minimalWalledInSpace;
+        final int startX = start % width;
+        final int startY = start / width;
+
+        generation++;
+        if (generation == 0) {
+            /* The generation wrapped around, so old marks could match. */
+            Arrays.fill(visited, 0);
+            generation = 1;
+        }
+
+        int head = 0;
+        int tail = 0;
+        queue[tail++] = start;
+        visited[start] = generation;
+
+        while (head < tail) {
+            final int current = queue[head++];
+            final int currentX = current % width;
+            final int currentY = current / width;
+
+            for (int i = 0; i < 4; i++) {
+                final int x = currentX + (i == 0 ? -1 : i == 1 ? 1 : 0);
+                final int y = currentY + (i == 2 ? -1 : i == 3 ? 1 : 0);
+                if (x < 0 || y < 0 || x >= width || y >= height) {
+                    continue;
+                }
+
+                final int next = y * width + x;
+                if (visited[next] == generation || isFilled(next)) {
+                    continue;
+                }
+
+                final int dx = x - startX;
+                final int dy = y - startY;
+                if (dx * dx + dy * dy >= distanceSquared) {
+                    return true;
+                }
+
+                visited[next] = generation;
+                queue[tail++] = next;
+            }
+        }
+
+        return false;
+    }
+
+    /**
+     * Checks if a cell is filled by the map or by foam.
+     * 
+     * @param cell
+     *            The cell
+     * @return True if filled, else false
+     */
+    private boolean isFilled(final int cell) {
+        return staticCells[cell] || foamCount[cell] > 0;
+    }
+
+    /**
+     * Outputs the mobility map as seen from a start cell. Useful for
+     * debugging.
+     * 
+     * @param start
+     *            The cell of the player, which is always free
+     */
+    private void outputMobilityMap(final int start) {
+        try {
+            final FileWriter fstream = new FileWriter("mobmap.txt");
+            final BufferedWriter out = new BufferedWriter(fstream);
+
+            // print map
+            for (int j = 0; j < height; j++) {
+                for (int i = 0; i < width; i++) {
+                    final int cell = j * width + i;
+                    if (cell != start && isFilled(cell)) {
+                        out.write("#");
+                    } else {
+                        out.write(" ");
+                    }
+                }
+                out.write("\n");
+            }
+
+            out.close();
+
+        } catch (final IOException e) {
+            LOG.error("Error while writing mobility map: ", e);
+        }
+    }
+}
@@ -20,6 +20,7 @@ Free Software Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA
  */
 package walledin.game.collision;
 
+import java.util.ArrayList;
 import java.util.Collection;
 import java.util.List;
 
@@ -27,8 +28,8 @@ import org.apache.log4j.Logger;
 
 import walledin.engine.math.AbstractGeometry;
 import walledin.engine.math.Circle;
-import walledin.engine.math.OrientedRectangle;
-import walledin.engine.math.Polygon2f;
+import walledin.engine.math.GeometryKernels;
+import walledin.engine.math.MutableVector2f;
 import walledin.engine.math.Rectangle;
 import walledin.engine.math.Vector2f;
 import walledin.game.entity.Attribute;
@@ -39,6 +40,7 @@ import walledin.game.entity.behaviors.logic.StaticObjectBehavior;
 import walledin.game.map.Tile;
 import walledin.game.map.TileType;
 import walledin.util.SettingsManager;
+import walledin.util.Utils;
 
 /**
  * CollisionManager checks for collisions between all non-map entities and
@@ -141,6 +143,17 @@ public final class CollisionManager {
 
     }
 
+    /**
+     * The intermediate results of the collision functions, so they can be
+     * reused for all the collisions of one update.
+     */
+    private static final class Workspace {
+        /** The points of the polygon. */
+        private final float[] polygon = new float[8];
+        private final MutableVector2f normal = new MutableVector2f();
+        private final MutableVector2f penetration = new MutableVector2f();
+    }
+
     /**
      * This class should not be created
      */
@@ -154,18 +167,21 @@ public final class CollisionManager {
      * 
      * @param map
      *            Map
-     * @param pos
-     *            The position
+     * @param posX
+     *            X of the position
+     * @param posY
+     *            Y of the position
      * @return The tile containing <code>pos</code>.
      */
-    private static Tile tileFromPixel(final Entity map, final Vector2f pos) {
+    private static Tile tileFromPixel(final Entity map, final float posX,
+            final float posY) {
         final float tileSize = (Float) map.getAttribute(Attribute.TILE_WIDTH);
         final int width = (Integer) map.getAttribute(Attribute.WIDTH);
         final int height = (Integer) map.getAttribute(Attribute.HEIGHT);
         @SuppressWarnings("unchecked")
         final List<Tile> tiles = (List<Tile>) map.getAttribute(Attribute.TILES);
-        final int x = (int) (pos.getX() / tileSize);
-        final int y = (int) (pos.getY() / tileSize);
+        final int x = (int) (posX / tileSize);
+        final int y = (int) (posY / tileSize);
 
         if (x < 0 || y < 0 || x >= width || y >= height) {
             LOG.warn("Illegal tile requested! "
@@ -176,8 +192,7 @@ public final class CollisionManager {
             return new Tile(TileType.TILE_FILLED, x, y);
         }
 
-        return tiles.get((int) (pos.getX() / tileSize) + width
-                * (int) (pos.getY() / tileSize));
+        return tiles.get(x + width * y);
     }
 
     /**
@@ -194,68 +209,94 @@ public final class CollisionManager {
     public static boolean resolvePolygonCircleCollision(
             final Entity polygonEntity, final Entity circleEntity,
             final double delta) {
+        return resolvePolygonCircleCollision(polygonEntity, circleEntity,
+                delta, new Workspace());
+    }
 
+    /**
+     * Resolved the collision between a moving polygon and a stationary
+     * circle, using the given workspace for the intermediate results. Only
+     * the new position and velocity are allocated.
+     */
+    private static boolean resolvePolygonCircleCollision(
+            final Entity polygonEntity, final Entity circleEntity,
+            final double delta, final Workspace workspace) {
         final Vector2f theoreticalPolygonPosition = (Vector2f) polygonEntity
                 .getAttribute(Attribute.POSITION);
-
         final Vector2f circlePosition = (Vector2f) circleEntity
                 .getAttribute(Attribute.POSITION);
+        final Vector2f velocity = (Vector2f) polygonEntity
+                .getAttribute(Attribute.VELOCITY);
 
-        final Vector2f polygonVelocity = ((Vector2f) polygonEntity
-                .getAttribute(Attribute.VELOCITY)).scale((float) delta);
-
-        final Vector2f polygonOldPos = theoreticalPolygonPosition
-                .sub(polygonVelocity);
+        final float velocityX = velocity.getX() * (float) delta;
+        final float velocityY = velocity.getY() * (float) delta;
+        final float oldX = theoreticalPolygonPosition.getX() - velocityX;
+        final float oldY = theoreticalPolygonPosition.getY() - velocityY;
 
         /* Polygon and circle at old position. */
-        Polygon2f polygon;
+        final float[] polygon = workspace.polygon;
+        final Rectangle rect = ((AbstractGeometry) polygonEntity
+                .getAttribute(Attribute.BOUNDING_GEOMETRY)).asRectangle();
 
         if (polygonEntity.hasAttribute(Attribute.ORIENTATION_ANGLE)) {
-            polygon = new OrientedRectangle(
-                    ((AbstractGeometry) polygonEntity.getAttribute(Attribute.BOUNDING_GEOMETRY))
-                            .asRectangle(), (Float) polygonEntity
-                            .getAttribute(Attribute.ORIENTATION_ANGLE))
-                    .translate(polygonOldPos).asPolygon();
+            GeometryKernels.rectangle(polygon, rect.getLeft(), rect.getTop(),
+                    rect.getWidth(), rect.getHeight());
+            GeometryKernels.rotate(polygon, 4, rect.getLeft()
+                    + rect.getWidth() / 2.0f, rect.getTop() + rect.getHeight()
+                    / 2.0f, (Float) polygonEntity
+                    .getAttribute(Attribute.ORIENTATION_ANGLE));
+            GeometryKernels.translate(polygon, 4, oldX, oldY);
         } else {
-            polygon = ((AbstractGeometry) polygonEntity
-                    .getAttribute(Attribute.BOUNDING_GEOMETRY)).asRectangle()
-                    .translate(polygonOldPos).asPolygon();
+            GeometryKernels.rectangle(polygon, rect.getLeft() + oldX,
+                    rect.getTop() + oldY, rect.getWidth(), rect.getHeight());
         }
 
         final Circle circle = ((AbstractGeometry) circleEntity
                 .getAttribute(Attribute.BOUNDING_GEOMETRY))
-                .asCircumscribedCircle().translate(circlePosition);
+                .asCircumscribedCircle();
 
         /* The circle velocity is -PolygonVelocity. */
-        final GeometricalCollisionData data = polygon.circleCollisionData(
-                circle, polygonVelocity.scale(-1.0f));
-
-        if (!data.isCollided()) {
+        final MutableVector2f normal = workspace.normal;
+        final MutableVector2f penetration = workspace.penetration;
+        final float time = GeometryKernels.circlePolygonCollisionData(polygon,
+                4, circle.getPos().getX() + circlePosition.getX(), circle
+                        .getPos().getY() + circlePosition.getY(), circle
+                        .getRadius(), -velocityX, -velocityY, normal,
+                penetration);
+
+        if (time < 0) {
             return false;
         }
 
-        Vector2f newPolygonPos = polygonOldPos.add(data.getPenetration().scale(
-                -1.0f));
+        float newX = oldX - penetration.getX();
+        float newY = oldY - penetration.getY();
 
-        final float dn = polygonVelocity.dot(data.getNormal().scale(-1.0f));
+        final float dn = velocityX * -normal.getX() + velocityY
+                * -normal.getY();
 
         if (dn < 0) {
-            newPolygonPos = newPolygonPos.add(polygonVelocity.scale(data
-                    .getTime()));
+            newX += velocityX * time;
+            newY += velocityY * time;
 
             // slide
-            Vector2f slideVel = polygonVelocity.scale(1.0f - data.getTime());
-            slideVel = slideVel.sub(data.getNormal().scale(-1.0f)
-                    .scale(slideVel.dot(data.getNormal().scale(-1.0f))));
-            newPolygonPos = newPolygonPos.add(slideVel);
+            float slideX = velocityX * (1.0f - time);
+            float slideY = velocityY * (1.0f - time);
+            final float slide = slideX * -normal.getX() + slideY
+                    * -normal.getY();
+            slideX -= -normal.getX() * slide;
+            slideY -= -normal.getY() * slide;
+            newX += slideX;
+            newY += slideY;
         } else {
             /* Moving away from collision. Allow. */
-            newPolygonPos = newPolygonPos.add(polygonVelocity);
+            newX += velocityX;
+            newY += velocityY;
         }
 
-        polygonEntity.setAttribute(Attribute.VELOCITY,
-                newPolygonPos.sub(polygonOldPos).scale(1.0f / (float) delta));
-        polygonEntity.setAttribute(Attribute.POSITION, newPolygonPos);
+        polygonEntity.setAttribute(Attribute.VELOCITY, new Vector2f(newX
+                - oldX, newY - oldY).scale(1.0f / (float) delta));
+        polygonEntity.setAttribute(Attribute.POSITION, new Vector2f(newX,
+                newY));
 
         return true;
     }
@@ -281,6 +322,23 @@ public final class CollisionManager {
         final Vector2f theorPosB = (Vector2f) objectB
                 .getAttribute(Attribute.POSITION);
 
+        if (check) {
+            final Rectangle boundsA = ((AbstractGeometry) objectA
+                    .getAttribute(Attribute.BOUNDING_GEOMETRY)).asRectangle();
+            final Rectangle boundsB = ((AbstractGeometry) objectB
+                    .getAttribute(Attribute.BOUNDING_GEOMETRY)).asRectangle();
+            final float leftA = boundsA.getLeft() + theorPosA.getX();
+            final float topA = boundsA.getTop() + theorPosA.getY();
+            final float leftB = boundsB.getLeft() + theorPosB.getX();
+            final float topB = boundsB.getTop() + theorPosB.getY();
+            if (!GeometryKernels.overlaps(leftA, topA, leftA
+                    + boundsA.getWidth(), topA + boundsA.getHeight(), leftB,
+                    topB, leftB + boundsB.getWidth(), topB
+                            + boundsB.getHeight())) {
+                return;
+            }
+        }
+
         final Vector2f oldPosA = theorPosA.sub(((Vector2f) objectA
                 .getAttribute(Attribute.VELOCITY)).scale((float) delta));
         final Vector2f oldPosB = theorPosA.sub(((Vector2f) objectB
@@ -292,69 +350,79 @@ public final class CollisionManager {
         final Vector2f posB = (Vector2f) objectB
                 .getAttribute(Attribute.POSITION);
 
-        final AbstractGeometry boundsA = ((AbstractGeometry) objectA
-                .getAttribute(Attribute.BOUNDING_GEOMETRY)).asRectangle()
-                .translate(theorPosA);
-        final AbstractGeometry boundsB = ((AbstractGeometry) objectB
-                .getAttribute(Attribute.BOUNDING_GEOMETRY)).asRectangle()
-                .translate(theorPosB);
-
-        if (!check || boundsA.intersects(boundsB)) {
-            objectA.sendMessage(MessageType.COLLIDED, new CollisionData(posA,
-                    oldPosA, theorPosA, delta, objectB));
-            objectB.sendMessage(MessageType.COLLIDED, new CollisionData(posB,
-                    oldPosB, theorPosB, delta, objectA));
-        }
+        objectA.sendMessage(MessageType.COLLIDED, new CollisionData(posA,
+                oldPosA, theorPosA, delta, objectB));
+        objectB.sendMessage(MessageType.COLLIDED, new CollisionData(posB,
+                oldPosB, theorPosB, delta, objectA));
+    }
+
+    /**
+     * Returns true if the entity has a velocity other than zero.
+     * 
+     * @param entity
+     *            The entity
+     * @return True if moving, else false.
+     */
+    private static boolean isMoving(final Entity entity) {
+        final Vector2f velocity = (Vector2f) entity
+                .getAttribute(Attribute.VELOCITY);
+        return velocity != null
+                && (!Utils.equals(velocity.getX(), 0) || !Utils.equals(
+                        velocity.getY(), 0));
     }
 
     /**
-     * Performs collision detection between entities other than a map.
+     * Performs collision detection between entities other than a map. The
+     * entities are inserted into the broadphase, and only the candidate pairs
+     * that share a cell are checked.
      * 
      * @param entities
      *            Entities to check
+     * @param broadphase
+     *            The spatial hash used to find the candidate pairs. Its
+     *            contents are replaced.
      * @param staticMap
      * @param delta
      *            Delta time, used for interpolation
      */
     public static void calculateEntityCollisions(
-            final Collection<Entity> entities, final QuadTree staticMap,
-            final double delta) {
-        final Entity[] entArray = entities.toArray(new Entity[0]);
-
-        for (int i = 0; i < entArray.length - 1; i++) {
-            for (int j = i + 1; j < entArray.length; j++) {
-                if (!entArray[i].hasAttribute(Attribute.BOUNDING_GEOMETRY)
-                        || !entArray[j]
-                                .hasAttribute(Attribute.BOUNDING_GEOMETRY)) {
-                    continue;
-                }
-
-                if (entArray[i].getFamily() == Family.FOAM_PARTICLE
-                        || entArray[j].getFamily() == Family.FOAM_PARTICLE) {
-                    continue;
-                }
-
-                if (entArray[i].hasAttribute(Attribute.NO_COLLIDE)
-                        || entArray[j].hasAttribute(Attribute.NO_COLLIDE)) {
-                    continue;
-                }
+            final Collection<Entity> entities, final SpatialHash broadphase,
+            final QuadTree staticMap, final double delta) {
+        broadphase.clear();
+
+        for (final Entity entity : entities) {
+            if (!entity.hasAttribute(Attribute.BOUNDING_GEOMETRY)
+                    || entity.getFamily() == Family.FOAM_PARTICLE
+                    || entity.hasAttribute(Attribute.NO_COLLIDE)) {
+                continue;
+            }
 
-                if (entArray[j].getAttribute(Attribute.VELOCITY).equals(
-                        new Vector2f(0, 0))
-                        && entArray[i].getAttribute(Attribute.VELOCITY).equals(
-                                new Vector2f(0, 0))) {
-                    continue;
-                }
+            final Vector2f position = (Vector2f) entity
+                    .getAttribute(Attribute.POSITION);
+            final Rectangle bounds = ((AbstractGeometry) entity
+                    .getAttribute(Attribute.BOUNDING_GEOMETRY)).asRectangle();
+            final float left = bounds.getLeft() + position.getX();
+            final float top = bounds.getTop() + position.getY();
+            broadphase.insert(entity, left, top, left + bounds.getWidth(), top
+                    + bounds.getHeight(), isMoving(entity));
+        }
 
-                sendCollisionMessage(entArray[i], entArray[j], delta, true);
+        final int pairCount = broadphase.findPairs();
+        for (int i = 0; i < pairCount; i++) {
+            final Entity first = broadphase.getFirst(i);
+            final Entity second = broadphase.getSecond(i);
+            /* Rewound bullets are hit tested by the lag compensator. */
+            if (!LagCompensator.isCompensated(first, second)) {
+                sendCollisionMessage(first, second, delta, true);
             }
         }
 
         /* Check non-static collidable entities against static ones. */
-        for (final Entity element : entArray) {
+        final List<StaticObject> targetList = new ArrayList<StaticObject>();
+        final Workspace workspace = new Workspace();
+        for (final Entity element : entities) {
             if (element.hasAttribute(Attribute.BOUNDING_GEOMETRY)
-                    && !new Vector2f(0, 0).equals(element
-                            .getAttribute(Attribute.VELOCITY))
+                    && isMoving(element)
                     && !element.hasAttribute(Attribute.NO_COLLIDE)) {
 
                 /* Create a rectangle from the old and new position. */
@@ -364,44 +432,41 @@ public final class CollisionManager {
                         .getAttribute(Attribute.VELOCITY))
                         .scale(1 / (float) delta));
 
-                final Rectangle theorRect = ((AbstractGeometry) element
+                final Rectangle bounds = ((AbstractGeometry) element
                         .getAttribute(Attribute.BOUNDING_GEOMETRY))
-                        .asRectangle().translate(theorPos);
-                final Rectangle oldRect = ((AbstractGeometry) element
-                        .getAttribute(Attribute.BOUNDING_GEOMETRY))
-                        .asRectangle().translate(oldPos);
-
-                final float left = Math.min(oldRect.getLeft(),
-                        theorRect.getLeft());
-                final float right = Math.max(oldRect.getRight(),
-                        theorRect.getRight());
-                final float top = Math
-                        .min(oldRect.getTop(), theorRect.getTop());
-                final float bottom = Math.max(oldRect.getBottom(),
-                        theorRect.getBottom());
-
-                final List<StaticObject> targetList = staticMap
-                        .getObjectsFromRectangle(new Rectangle(left, top, right
-                                - left, bottom - top));
-
-                if (targetList != null) {
-                    for (final StaticObject object : targetList) {
-                        /* Is the object an entity? */
-                        if (object instanceof StaticObjectBehavior) {
-                            final Entity target = ((StaticObjectBehavior) object)
-                                    .getOwner();
-                            if (resolvePolygonCircleCollision(element, target,
-                                    delta)) {
-                                element.sendMessage(
-                                        MessageType.COLLIDED,
-                                        new CollisionData(
-                                                (Vector2f) element
-                                                        .getAttribute(Attribute.POSITION),
-                                                oldPos, theorPos, delta, target));
-                                target.sendMessage(MessageType.COLLIDED,
-                                        new CollisionData(null, null, null,
-                                                delta, element));
-                            }
+                        .asRectangle();
+                final float theorLeft = bounds.getLeft() + theorPos.getX();
+                final float theorTop = bounds.getTop() + theorPos.getY();
+                final float oldLeft = bounds.getLeft() + oldPos.getX();
+                final float oldTop = bounds.getTop() + oldPos.getY();
+
+                final float left = Math.min(oldLeft, theorLeft);
+                final float right = Math.max(oldLeft + bounds.getWidth(),
+                        theorLeft + bounds.getWidth());
+                final float top = Math.min(oldTop, theorTop);
+                final float bottom = Math.max(oldTop + bounds.getHeight(),
+                        theorTop + bounds.getHeight());
+
+                targetList.clear();
+                staticMap.getObjectsFromRectangle(left, top, right, bottom,
+                        targetList);
+
+                for (int i = 0; i < targetList.size(); i++) {
+                    final StaticObject object = targetList.get(i);
+                    /* Is the object an entity? */
+                    if (object instanceof StaticObjectBehavior) {
+                        final Entity target = ((StaticObjectBehavior) object)
+                                .getOwner();
+                        if (resolvePolygonCircleCollision(element, target,
+                                delta, workspace)) {
+                            element.sendMessage(
+                                    MessageType.COLLIDED,
+                                    new CollisionData((Vector2f) element
+                                            .getAttribute(Attribute.POSITION),
+                                            oldPos, theorPos, delta, target));
+                            target.sendMessage(MessageType.COLLIDED,
+                                    new CollisionData(null, null, null, delta,
+                                            element));
                         }
                     }
                 }
@@ -431,17 +496,19 @@ public final class CollisionManager {
                     continue;
                 }
 
-                Vector2f vel = (Vector2f) ent.getAttribute(Attribute.VELOCITY);
-
                 // skip static entities
-                if (vel.equals(new Vector2f(0, 0))) {
+                if (!isMoving(ent)) {
                     continue;
                 }
 
-                vel = vel.scale((float) delta); // velocity per frame
+                // velocity per frame
+                final Vector2f vel = ((Vector2f) ent
+                        .getAttribute(Attribute.VELOCITY)).scale((float) delta);
                 final AbstractGeometry bounds = (AbstractGeometry) ent
                         .getAttribute(Attribute.BOUNDING_GEOMETRY);
-                Rectangle rect = bounds.asRectangle();
+                final Rectangle rect = bounds.asRectangle();
+                final float width = rect.getWidth();
+                final float height = rect.getHeight();
                 final Vector2f curPos = (Vector2f) ent
                         .getAttribute(Attribute.POSITION);
                 final Vector2f oldPos = curPos.sub(vel);
@@ -453,13 +520,16 @@ public final class CollisionManager {
                 final float eps = 0.001f;
 
                 // VERTICAL CHECK - move vertically only
-                rect = rect.setPos(new Vector2f(oldPos.getX(), curPos.getY()));
+                float left = oldPos.getX();
+                float top = curPos.getY();
+                float right = left + width;
+                float bottom = top + height;
 
                 // check the four edges
-                Tile lt = tileFromPixel(map, rect.getLeftTop());
-                Tile lb = tileFromPixel(map, rect.getLeftBottom());
-                Tile rt = tileFromPixel(map, rect.getRightTop());
-                Tile rb = tileFromPixel(map, rect.getRightBottom());
+                Tile lt = tileFromPixel(map, left, top);
+                Tile lb = tileFromPixel(map, left, bottom);
+                Tile rt = tileFromPixel(map, right, top);
+                Tile rb = tileFromPixel(map, right, bottom);
 
                 /*
                  * If the object is touching the floor, lower its horizontal
@@ -470,36 +540,39 @@ public final class CollisionManager {
                 // bottom check
                 if (vel.getY() > 0
                         && (lb.getType().isSolid() || rb.getType().isSolid())) {
-                    final int rest = (int) (rect.getBottom() / tileSize);
-                    y = rest * tileSize - rect.getHeight() - eps;
+                    final int rest = (int) (bottom / tileSize);
+                    y = rest * tileSize - height - eps;
 
                     damping = FLOOR_DAMPING;
                 } else
                 // top check
                 if (vel.getY() < 0
                         && (lt.getType().isSolid() || rt.getType().isSolid())) {
-                    final int rest = (int) (rect.getTop() / tileSize);
+                    final int rest = (int) (top / tileSize);
                     y = (rest + 1) * tileSize + eps;
                 }
 
                 // HORIZONTAL CHECK - move horizontally only
-                rect = rect.setPos(new Vector2f(curPos.getX(), y));
+                left = curPos.getX();
+                top = y;
+                right = left + width;
+                bottom = top + height;
 
-                lt = tileFromPixel(map, rect.getLeftTop());
-                lb = tileFromPixel(map, rect.getLeftBottom());
-                rt = tileFromPixel(map, rect.getRightTop());
-                rb = tileFromPixel(map, rect.getRightBottom());
+                lt = tileFromPixel(map, left, top);
+                lb = tileFromPixel(map, left, bottom);
+                rt = tileFromPixel(map, right, top);
+                rb = tileFromPixel(map, right, bottom);
 
                 // right check
                 if (vel.getX() > 0
                         && (rt.getType().isSolid() || rb.getType().isSolid())) {
-                    final int rest = (int) (rect.getRight() / tileSize);
-                    x = rest * tileSize - rect.getWidth() - eps;
+                    final int rest = (int) (right / tileSize);
+                    x = rest * tileSize - width - eps;
                 } else
                 // left check
                 if (vel.getX() < 0
                         && (lt.getType().isSolid() || lb.getType().isSolid())) {
-                    final int rest = (int) (rect.getLeft() / tileSize);
+                    final int rest = (int) (left / tileSize);
                     x = (rest + 1) * tileSize + eps;
                 }
 
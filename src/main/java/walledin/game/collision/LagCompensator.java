@@ -0,0 +1,224 @@
+/*  Copyright 2010 Ben Ruijl, Wouter Smeenk
+
+This file is part of Walled In.
+
+Walled In is free software; you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation; either version 3, or (at your option)
+any later version.
+
+Walled In is distributed in the hope that it will be useful, but
+WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with Walled In; see the file LICENSE.  If not, write to the
+Free Software Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA
+02111-1307 USA.
+
+ */
+package walledin.game.collision;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+
+import walledin.engine.math.AbstractGeometry;
+import walledin.engine.math.Rectangle;
+import walledin.engine.math.Vector2f;
+import walledin.game.entity.Attribute;
+import walledin.game.entity.Entity;
+import walledin.game.entity.Family;
+
+/**
+ * Compensates the latency of players when they shoot. A player sees the other
+ * players where they were some time ago, so the bullets of that player are
+ * tested against the positions the players had at that time instead of their
+ * current positions. The positions of the last ticks are kept in a
+ * {@link PositionHistory}.
+ * 
+ * A bullet is rewound if it has the <code>REWIND_TICKS</code> attribute, which
+ * it gets from the player that shoots it. Such bullets are skipped by the
+ * normal collision detection against players, so a player whose bounds are
+ * not stored for the rewound tick, for example because it just spawned, is
+ * tested at its current position.
+ * 
+ * @author Ben Ruijl
+ * 
+ */
+public class LagCompensator {
+    /** The bounds of the players in the last ticks. */
+    private final PositionHistory history;
+    /** The number of ticks per second. */
+    private final int updatesPerSecond;
+    /** The tick that is being simulated. */
+    private int tick;
+
+    /** The bullets that are rewound, reused every tick. */
+    private final List<Entity> bullets;
+    /** The players that can be hit, reused every tick. */
+    private final List<Entity> targets;
+
+    /**
+     * Creates a new lag compensator.
+     * 
+     * @param updatesPerSecond
+     *            The number of ticks per second
+     * @param maxRewindTime
+     *            The maximum time a bullet is rewound, in milliseconds
+     */
+    public LagCompensator(final int updatesPerSecond, final int maxRewindTime) {
+        this.updatesPerSecond = updatesPerSecond;
+        history = new PositionHistory(maxRewindTime * updatesPerSecond / 1000
+                + 1);
+        bullets = new ArrayList<Entity>();
+        targets = new ArrayList<Entity>();
+    }
+
+    /**
+     * Checks if two entities are tested by the lag compensator instead of by
+     * the normal collision detection.
+     * 
+     * @param entityA
+     *            The first entity
+     * @param entityB
+     *            The second entity
+     * @return True if one is a rewound bullet and the other a player
+     */
+    public static boolean isCompensated(final Entity entityA,
+            final Entity entityB) {
+        return isRewound(entityA) && entityB.getFamily() == Family.PLAYER
+                || isRewound(entityB) && entityA.getFamily() == Family.PLAYER;
+    }
+
+    private static boolean isRewound(final Entity entity) {
+        return entity.getFamily() != Family.PLAYER
+                && entity.hasAttribute(Attribute.REWIND_TICKS);
+    }
+
+    /**
+     * Converts the time a player is behind to the number of ticks its bullets
+     * are rewound, limited to the maximum rewind time.
+     * 
+     * @param time
+     *            The time in milliseconds
+     * @return The number of ticks, or 0 if the bullets are not rewound
+     */
+    public int getRewindTicks(final int time) {
+        if (time <= 0) {
+            return 0;
+        }
+        final int ticks = Math.round(time * updatesPerSecond / 1000.0f);
+        return Math.min(ticks, history.getLength() - 1);
+    }
+
+    /**
+     * Records the bounds of a player at the current tick.
+     * 
+     * @param player
+     *            The player
+     */
+    public void record(final Entity player) {
+        final Rectangle bounds = ((AbstractGeometry) player
+                .getAttribute(Attribute.BOUNDING_GEOMETRY)).asRectangle();
+        final Vector2f position = (Vector2f) player
+                .getAttribute(Attribute.POSITION);
+        history.record(tick, player.getName(), bounds.getLeft()
+                + position.getX(), bounds.getTop() + position.getY(), bounds
+                .getRight()
+                + position.getX(), bounds.getBottom() + position.getY());
+    }
+
+    /**
+     * Forgets the bounds of a player, so it cannot be hit at its old
+     * positions. Should be called when the player dies or leaves.
+     * 
+     * @param name
+     *            The name of the player
+     */
+    public void remove(final String name) {
+        history.remove(name);
+    }
+
+    /**
+     * Moves on to the next tick. Should be called after the bounds of all
+     * players have been recorded.
+     */
+    public void nextTick() {
+        tick++;
+    }
+
+    /**
+     * Tests the rewound bullets against the bounds the players had when the
+     * shooter saw them, and sends the collision messages of the hits.
+     * 
+     * @param entities
+     *            All entities
+     * @param delta
+     *            Delta time
+     */
+    public void calculateCollisions(final Collection<Entity> entities,
+            final double delta) {
+        bullets.clear();
+        targets.clear();
+        for (final Entity entity : entities) {
+            if (entity.getFamily() == Family.PLAYER
+                    && !entity.isMarkedRemoved()) {
+                targets.add(entity);
+            } else if (isRewound(entity)
+                    && entity.hasAttribute(Attribute.BOUNDING_GEOMETRY)
+                    && !entity.isMarkedRemoved()) {
+                bullets.add(entity);
+            }
+        }
+
+        for (int i = 0; i < bullets.size(); i++) {
+            final Entity bullet = bullets.get(i);
+            // The last recorded tick is the one the clients received last
+            final int rewindTick = tick - 1
+                    - (Integer) bullet.getAttribute(Attribute.REWIND_TICKS);
+            final Object owner = bullet.getAttribute(Attribute.OWNED_BY);
+            final Rectangle bounds = ((AbstractGeometry) bullet
+                    .getAttribute(Attribute.BOUNDING_GEOMETRY)).asRectangle();
+            final Vector2f position = (Vector2f) bullet
+                    .getAttribute(Attribute.POSITION);
+            final float left = bounds.getLeft() + position.getX();
+            final float top = bounds.getTop() + position.getY();
+            final float right = bounds.getRight() + position.getX();
+            final float bottom = bounds.getBottom() + position.getY();
+
+            for (int j = 0; j < targets.size(); j++) {
+                final Entity target = targets.get(j);
+                if (!target.getName().equals(owner)
+                        && intersects(target, rewindTick, left, top, right,
+                                bottom)) {
+                    CollisionManager.sendCollisionMessage(bullet, target,
+                            delta, false);
+                    break;
+                }
+            }
+        }
+    }
+
+    /**
+     * Checks if the bounds a player had at a tick intersect a rectangle. If
+     * they are not stored, the current bounds of the player are used.
+     */
+    private boolean intersects(final Entity target, final int tick,
+            final float left, final float top, final float right,
+            final float bottom) {
+        if (history.contains(tick, target.getName())) {
+            return history.intersects(tick, target.getName(), left, top,
+                    right, bottom);
+        }
+        final Rectangle bounds = ((AbstractGeometry) target
+                .getAttribute(Attribute.BOUNDING_GEOMETRY)).asRectangle();
+        final Vector2f position = (Vector2f) target
+                .getAttribute(Attribute.POSITION);
+        return bounds.getRight() + position.getX() > left
+                && bounds.getLeft() + position.getX() < right
+                && bounds.getBottom() + position.getY() > top
+                && bounds.getTop() + position.getY() < bottom;
+    }
+}
@@ -0,0 +1,205 @@
+/*  Copyright 2010 Ben Ruijl, Wouter Smeenk
+
+This file is part of Walled In.
+
+Walled In is free software; you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation; either version 3, or (at your option)
+any later version.
+
+Walled In is distributed in the hope that it will be useful, but
+WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with Walled In; see the file LICENSE.  If not, write to the
+Free Software Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA
+02111-1307 USA.
+
+ */
+package walledin.game.collision;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Stores the bounding rectangles of entities for the last ticks, so hit tests
+ * can be done against the positions the entities had in the past. Every
+ * entity gets a slot of <code>length</code> rectangles that is used as a ring,
+ * indexed by tick. The rectangles are stored in one float array, so recording
+ * a tick does not allocate once every entity has a slot.
+ * 
+ * @author Ben Ruijl
+ * 
+ */
+public class PositionHistory {
+    /** The initial number of slots. */
+    private static final int INITIAL_SLOTS = 8;
+    /** The number of floats that are stored per rectangle. */
+    private static final int FLOATS_PER_BOUNDS = 4;
+
+    /** The number of ticks that are stored per entity. */
+    private final int length;
+    /** The slot of every entity, by entity name. */
+    private final Map<String, Integer> slots;
+    /** The slots that have been freed, used as a stack. */
+    private int[] freeSlots;
+    private int freeSlotCount;
+    private int slotCount;
+
+    /** The left, top, right and bottom of every stored rectangle. */
+    private float[] bounds;
+    /** The tick every rectangle was recorded at, or -1 if it is empty. */
+    private int[] ticks;
+
+    /**
+     * Creates a new history.
+     * 
+     * @param length
+     *            The number of ticks that are stored
+     */
+    public PositionHistory(final int length) {
+        if (length <= 0) {
+            throw new IllegalArgumentException(
+                    "The length should be at least one");
+        }
+        this.length = length;
+        slots = new HashMap<String, Integer>();
+        freeSlots = new int[INITIAL_SLOTS];
+        bounds = new float[INITIAL_SLOTS * length * FLOATS_PER_BOUNDS];
+        ticks = new int[INITIAL_SLOTS * length];
+        Arrays.fill(ticks, -1);
+    }
+
+    private int index(final int slot, final int tick) {
+        return slot * length + tick % length;
+    }
+
+    private int getSlot(final String name) {
+        final Integer slot = slots.get(name);
+        if (slot != null) {
+            return slot;
+        }
+
+        final int newSlot;
+        if (freeSlotCount > 0) {
+            newSlot = freeSlots[--freeSlotCount];
+        } else {
+            newSlot = slotCount++;
+            if (slotCount * length > ticks.length) {
+                final int oldSize = ticks.length;
+                ticks = Arrays.copyOf(ticks, oldSize * 2);
+                Arrays.fill(ticks, oldSize, ticks.length, -1);
+                bounds = Arrays.copyOf(bounds, bounds.length * 2);
+            }
+        }
+        slots.put(name, newSlot);
+        return newSlot;
+    }
+
+    /**
+     * Records the bounding rectangle of an entity.
+     * 
+     * @param tick
+     *            The tick the entity had these bounds at
+     * @param name
+     *            The name of the entity
+     * @param left
+     *            The left of the bounds
+     * @param top
+     *            The top of the bounds
+     * @param right
+     *            The right of the bounds
+     * @param bottom
+     *            The bottom of the bounds
+     */
+    public void record(final int tick, final String name, final float left,
+            final float top, final float right, final float bottom) {
+        final int index = index(getSlot(name), tick);
+        final int offset = index * FLOATS_PER_BOUNDS;
+        ticks[index] = tick;
+        bounds[offset] = left;
+        bounds[offset + 1] = top;
+        bounds[offset + 2] = right;
+        bounds[offset + 3] = bottom;
+    }
+
+    /**
+     * Forgets the bounds of an entity, for example because it has been
+     * removed. Its slot is reused by the next new entity.
+     * 
+     * @param name
+     *            The name of the entity
+     */
+    public void remove(final String name) {
+        final Integer slot = slots.remove(name);
+        if (slot == null) {
+            return;
+        }
+        Arrays.fill(ticks, slot * length, (slot + 1) * length, -1);
+        if (freeSlotCount == freeSlots.length) {
+            freeSlots = Arrays.copyOf(freeSlots, freeSlotCount * 2);
+        }
+        freeSlots[freeSlotCount++] = slot;
+    }
+
+    /**
+     * Checks if the bounds of an entity at a tick are stored.
+     * 
+     * @param tick
+     *            The tick to check
+     * @param name
+     *            The name of the entity
+     * @return True if the bounds are stored, false otherwise
+     */
+    public boolean contains(final int tick, final String name) {
+        final Integer slot = slots.get(name);
+        return slot != null && tick >= 0
+                && ticks[index(slot, tick)] == tick;
+    }
+
+    /**
+     * Checks if the bounds an entity had at a tick intersect a rectangle.
+     * 
+     * @param tick
+     *            The tick to check
+     * @param name
+     *            The name of the entity
+     * @param left
+     *            The left of the rectangle
+     * @param top
+     *            The top of the rectangle
+     * @param right
+     *            The right of the rectangle
+     * @param bottom
+     *            The bottom of the rectangle
+     * @return True if they intersect, false if they do not or if the bounds at
+     *         that tick are not stored
+     */
+    public boolean intersects(final int tick, final String name,
+            final float left, final float top, final float right,
+            final float bottom) {
+        final Integer slot = slots.get(name);
+        if (slot == null || tick < 0) {
+            return false;
+        }
+        final int index = index(slot, tick);
+        if (ticks[index] != tick) {
+            return false;
+        }
+        final int offset = index * FLOATS_PER_BOUNDS;
+        return bounds[offset + 2] > left && bounds[offset] < right
+                && bounds[offset + 3] > top && bounds[offset + 1] < bottom;
+    }
+
+    /**
+     * Returns the number of ticks that are stored.
+     * 
+     * @return the number of ticks
+     */
+    public int getLength() {
+        return length;
+    }
+}
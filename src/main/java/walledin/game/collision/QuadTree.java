@@ -21,16 +21,23 @@ Free Software Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA
 package walledin.game.collision;
 
 import java.util.ArrayList;
-import java.util.Iterator;
+import java.util.Collection;
 import java.util.List;
 
 import org.apache.log4j.Logger;
 
+import walledin.engine.math.GeometryKernels;
 import walledin.engine.math.Rectangle;
-import walledin.engine.math.Vector2f;
 
 /**
- * A quadtree for spatial partitioning.
+ * A loose quadtree for spatial partitioning. The bounds of every node are
+ * extended by half its size on every side, so an object is stored in the
+ * deepest node whose loose bounds fully contain it, instead of being stuck in
+ * the node that its edges happen to cross.
+ * 
+ * Every object keeps a reference to the node it is stored in, so it can be
+ * removed or updated without searching the tree. Children that become empty
+ * enough are merged back into their parent.
  * 
  * @author Ben Ruijl
  * 
@@ -42,38 +49,77 @@ public class QuadTree {
      * Maximum objects per leaf if the depth is less than the maximum depth.
      */
     public static final int MAX_OBJECTS = 6;
+    /**
+     * The children of a node are merged if the node contains at most this many
+     * objects. Lower than <code>MAX_OBJECTS</code> to prevent a node from
+     * being subdivided and merged repeatedly.
+     */
+    public static final int MERGE_OBJECTS = MAX_OBJECTS / 2;
 
     /** Logger. */
     private static final Logger LOG = Logger.getLogger(QuadTree.class);
 
+    /**
+     * A visitor of the objects that are found by a query.
+     */
+    public interface Visitor {
+        /**
+         * Called for every object that is found.
+         * 
+         * @param object
+         *            The object
+         */
+        void visit(StaticObject object);
+    }
+
     /**
      * Children quadtrees. There are either none or four, depending on whether
      * this quadtree is a leaf or not.
      */
     private final QuadTree[] children;
 
+    /** The parent of this node, or null for the root. */
+    private final QuadTree parent;
+
     /** Objects in this node or leaf. */
     private final List<StaticObject> objects;
 
+    /**
+     * The bounding rectangles of the objects in this node, at the time they
+     * were added or updated. Has the same order as <code>objects</code>.
+     */
+    private final List<Rectangle> bounds;
+
     /** Bounding rectangle. */
     private final Rectangle rectangle;
 
+    /** The loose bounds of this node. */
+    private final float looseLeft;
+    private final float looseTop;
+    private final float looseRight;
+    private final float looseBottom;
+
+    /** The center of this node. */
+    private final float middleX;
+    private final float middleY;
+
     /** Depth in the hierarchy. */
     private final int depth;
 
+    /** The number of objects in this node and all its children. */
+    private int size;
+
     /** Is this quadtree a leaf? */
     private boolean leaf;
 
     /**
-     * Is this quadtree a leaf? private boolean leaf;
-     * 
-     * /** Creates a new quadtree that begins a new hierarchy.
+     * Creates a new quadtree that begins a new hierarchy.
      * 
      * @param rect
      *            Rectangle of this quadtree
      */
     public QuadTree(final Rectangle rect) {
-        this(rect, 0);
+        this(rect, null, 0);
     }
 
     /**
@@ -81,124 +127,232 @@ public class QuadTree {
      * 
      * @param rect
      *            Rectangle of this quadtree
+     * @param parent
+     *            The parent of this quadtree
      * @param depth
      *            Position of this quadtree in the hierarchy.
      */
-    private QuadTree(final Rectangle rect, final int depth) {
+    private QuadTree(final Rectangle rect, final QuadTree parent,
+            final int depth) {
         children = new QuadTree[4];
         objects = new ArrayList<StaticObject>();
+        bounds = new ArrayList<Rectangle>();
         rectangle = rect;
+        this.parent = parent;
         leaf = true;
         this.depth = depth;
-    }
-
-    /**
-     * Adds an object to the object list of the current node or leaf.
-     * 
-     * @param object
-     *            Object to add
-     */
-    private void addObject(final StaticObject object) {
-        objects.add(object);
 
-        if (objects.size() > MAX_OBJECTS) {
-            subdivide();
-        }
+        final float halfWidth = rect.getWidth() / 2.0f;
+        final float halfHeight = rect.getHeight() / 2.0f;
+        middleX = rect.getLeft() + halfWidth;
+        middleY = rect.getTop() + halfHeight;
+        looseLeft = rect.getLeft() - halfWidth;
+        looseTop = rect.getTop() - halfHeight;
+        looseRight = rect.getRight() + halfWidth;
+        looseBottom = rect.getBottom() + halfHeight;
     }
 
     /**
-     * Removes an object from the object list of the current node or leaf.
+     * Checks if a rectangle is fully contained in the loose bounds of this
+     * node or leaf.
      * 
-     * @param object
-     *            Object to remove
+     * @param rect
+     *            Rectangle
+     * @return True if fully contained, else false
      */
-    private void removeObject(final StaticObject object) {
-        objects.remove(object);
+    private boolean containsFully(final Rectangle rect) {
+        return rect.getLeft() >= looseLeft && rect.getRight() <= looseRight
+                && rect.getTop() >= looseTop && rect.getBottom() <= looseBottom;
     }
 
     /**
-     * Checks if the object is fully contained in the rectangle of this node or
-     * leaf.
+     * Checks if a rectangle is fully contained in the tight bounds of this
+     * node or leaf. Only used for the root, so that objects outside the map
+     * are not stored in the loose border of the root.
      * 
-     * @param object
-     *            Object
+     * @param rect
+     *            Rectangle
      * @return True if fully contained, else false
      */
-    private boolean containsFully(final StaticObject object) {
-        final Rectangle rect = object.getBoudingRectangle();
-        return rectangle.containsFully(rect);
+    private boolean containsTightly(final Rectangle rect) {
+        return rect.getLeft() >= rectangle.getLeft()
+                && rect.getRight() <= rectangle.getRight()
+                && rect.getTop() >= rectangle.getTop()
+                && rect.getBottom() <= rectangle.getBottom();
     }
 
     /**
-     * Checks if a rectangle is fully contained in the rectangle of this node or
-     * leaf.
+     * Checks if a rectangle is overlapping with the loose bounds of this node
+     * or leaf.
      * 
      * @param rect
      *            Rectangle
-     * @return True if fully contained, else false
+     * @return True if it is overlapping, else false
      */
-    private boolean containsFully(final Rectangle rect) {
-        return rectangle.containsFully(rect);
+    private boolean contains(final Rectangle rect) {
+        return rect.getRight() >= looseLeft && rect.getLeft() <= looseRight
+                && rect.getBottom() >= looseTop && rect.getTop() <= looseBottom;
     }
 
     /**
-     * Checks if a rectangle is overlapping with the rectangle of this node or
-     * leaf.
+     * Checks if two rectangles overlap. Touching rectangles are considered
+     * overlapping, so no possible collision is missed.
+     */
+    private static boolean overlaps(final Rectangle a, final Rectangle b) {
+        return a.getRight() >= b.getLeft() && a.getLeft() <= b.getRight()
+                && a.getBottom() >= b.getTop() && a.getTop() <= b.getBottom();
+    }
+
+    /**
+     * Returns the child that should contain a rectangle, based on its center.
      * 
      * @param rect
      *            Rectangle
-     * @return True if it is overlapping, else false
+     * @return The child, or null if this is a leaf or the rectangle does not
+     *         fit in the child
      */
-    private boolean contains(final Rectangle rect) {
-        return rectangle.intersects(rect);
+    private QuadTree getChild(final Rectangle rect) {
+        if (leaf) {
+            return null;
+        }
+
+        final boolean right = rect.getLeft() + rect.getWidth() / 2.0f >= middleX;
+        final boolean bottom = rect.getTop() + rect.getHeight() / 2.0f >= middleY;
+
+        final QuadTree child;
+        if (right) {
+            child = bottom ? children[2] : children[3];
+        } else {
+            child = bottom ? children[1] : children[0];
+        }
+
+        if (child.containsFully(rect)) {
+            return child;
+        }
+        return null;
     }
 
     /**
-     * Adds an object to the quadtree if it is fully contained.
+     * Adds an object to the quadtree if it is fully contained in the bounds of
+     * the root. If the object is already in a quadtree, it is removed from it
+     * first.
      * 
      * @param object
      *            Object to add
      */
     public void add(final StaticObject object) {
+        if (object.getQuadTreeNode() != null) {
+            object.getQuadTreeNode().getRoot().remove(object);
+        }
+
         final Rectangle rect = object.getBoudingRectangle();
-        final QuadTree tree = getSmallestQuadTreeContainingRectangle(rect);
 
-        if (tree == null) {
+        if (!containsTightly(rect)) {
             LOG.warn("Could not add object to the quadtree, because it is out of the bounds: "
                     + rect.getLeftTop() + " - " + rect.getRightBottom());
         } else {
-            addObject(object);
+            insert(object, rect);
         }
     }
 
     /**
-     * Get the smallest quadtree that <i>fully</i> contains a rectangle.
+     * Inserts an object in the deepest node that contains it.
      * 
+     * @param object
+     *            Object to insert
      * @param rect
-     *            Rectangle to check
-     * @return Smallest quadtree or null if none is found
+     *            The bounding rectangle of the object
      */
-    private QuadTree getSmallestQuadTreeContainingRectangle(final Rectangle rect) {
-        /* If this is a leaf and it does not contain the object, return null. */
+    private void insert(final StaticObject object, final Rectangle rect) {
+        QuadTree tree = this;
+        QuadTree child = tree.getChild(rect);
+        tree.size++;
+        while (child != null) {
+            tree = child;
+            child = tree.getChild(rect);
+            tree.size++;
+        }
 
-        if (!leaf) {
-            for (int i = 0; i < 4; i++) {
-                if (children[i].containsFully(rect)) {
-                    final QuadTree tree = children[i]
-                            .getSmallestQuadTreeContainingRectangle(rect);
-
-                    if (tree != null) {
-                        return tree;
-                    }
-                }
+        tree.objects.add(object);
+        tree.bounds.add(rect);
+        object.setQuadTreeNode(tree);
+
+        if (tree.objects.size() > MAX_OBJECTS) {
+            tree.subdivide();
+        }
+    }
+
+    /**
+     * Recursively removes an object from the quadtree.
+     * 
+     * @param object
+     *            Object to remove
+     */
+    public void remove(final StaticObject object) {
+        final QuadTree tree = object.getQuadTreeNode();
+
+        if (tree == null || tree.getRoot() != this) {
+            return;
+        }
+
+        final int index = tree.objects.indexOf(object);
+        tree.objects.remove(index);
+        tree.bounds.remove(index);
+        object.setQuadTreeNode(null);
+
+        /* Merge at the highest node that has become small enough. */
+        QuadTree mergeTree = null;
+        QuadTree current = tree;
+        while (current != null) {
+            current.size--;
+            if (!current.leaf && current.size <= MERGE_OBJECTS) {
+                mergeTree = current;
             }
+            current = current.parent;
         }
 
-        if (containsFully(rect)) {
-            return this;
+        if (mergeTree != null) {
+            mergeTree.merge();
         }
+    }
 
-        return null;
+    /**
+     * Updates the position of an object that has moved. The object is only
+     * moved to another node if it no longer belongs in its current one. An
+     * object that has moved out of the bounds of the root is removed.
+     * 
+     * @param object
+     *            The object to update
+     */
+    public void update(final StaticObject object) {
+        final QuadTree tree = object.getQuadTreeNode();
+
+        if (tree == null || tree.getRoot() != this) {
+            add(object);
+            return;
+        }
+
+        final Rectangle rect = object.getBoudingRectangle();
+        if (containsTightly(rect) && tree.containsFully(rect)
+                && tree.getChild(rect) == null) {
+            tree.bounds.set(tree.objects.indexOf(object), rect);
+        } else {
+            remove(object);
+            add(object);
+        }
+    }
+
+    /**
+     * Returns the root of the hierarchy this quadtree belongs to.
+     * 
+     * @return The root
+     */
+    private QuadTree getRoot() {
+        QuadTree root = this;
+        while (root.parent != null) {
+            root = root.parent;
+        }
+        return root;
     }
 
     /**
@@ -209,59 +363,110 @@ public class QuadTree {
      * @return Quadtree or null on failure
      */
     public QuadTree getQuadTreeContainingObject(final StaticObject object) {
-        final Rectangle rect = object.getBoudingRectangle();
-
-        if (objects.contains(object)) {
-            return this;
-        }
-
-        /* If this is a leaf and it does not contain the object, return null. */
-        if (leaf) {
+        final QuadTree tree = object.getQuadTreeNode();
+        if (tree == null || tree.getRoot() != getRoot()) {
             return null;
         }
+        return tree;
+    }
 
-        for (int i = 0; i < 4; i++) {
-            if (children[i].containsFully(rect)) {
-                final QuadTree tree = children[i]
-                        .getQuadTreeContainingObject(object);
+    /**
+     * Finds all the objects whose bounding rectangle overlaps the given
+     * rectangle and adds them to a collection. Does not allocate anything
+     * besides what the collection needs.
+     * 
+     * @param rect
+     *            Rectangle
+     * @param result
+     *            The collection to add the objects to
+     */
+    public void getObjectsFromRectangle(final Rectangle rect,
+            final Collection<? super StaticObject> result) {
+        getObjectsFromRectangle(rect.getLeft(), rect.getTop(),
+                rect.getRight(), rect.getBottom(), result);
+    }
+
+    /**
+     * Finds all the objects whose bounding rectangle overlaps the given
+     * rectangle and adds them to a collection. Does not allocate anything
+     * besides what the collection needs, not even the rectangle.
+     * 
+     * @param left
+     *            Left of the rectangle
+     * @param top
+     *            Top of the rectangle
+     * @param right
+     *            Right of the rectangle
+     * @param bottom
+     *            Bottom of the rectangle
+     * @param result
+     *            The collection to add the objects to
+     */
+    public void getObjectsFromRectangle(final float left, final float top,
+            final float right, final float bottom,
+            final Collection<? super StaticObject> result) {
+        if (!GeometryKernels.touches(left, top, right, bottom, looseLeft,
+                looseTop, looseRight, looseBottom)) {
+            return;
+        }
 
-                if (tree != null) {
-                    return tree;
-                }
+        for (int i = 0; i < objects.size(); i++) {
+            final Rectangle object = bounds.get(i);
+            if (GeometryKernels.touches(object.getLeft(), object.getTop(),
+                    object.getRight(), object.getBottom(), left, top, right,
+                    bottom)) {
+                result.add(objects.get(i));
             }
         }
 
-        return null;
+        if (!leaf) {
+            for (int i = 0; i < 4; i++) {
+                children[i].getObjectsFromRectangle(left, top, right, bottom,
+                        result);
+            }
+        }
     }
 
     /**
-     * Finds all the objects that could possibly be in the given rectangle.
+     * Finds all the objects whose bounding rectangle overlaps the given
+     * rectangle.
      * 
      * @param rect
      *            Rectangle
-     * @return List of entities
+     * @return List of objects
      */
     public List<StaticObject> getObjectsFromRectangle(final Rectangle rect) {
         final List<StaticObject> objectList = new ArrayList<StaticObject>();
+        getObjectsFromRectangle(rect, objectList);
+        return objectList;
+    }
 
-        if (contains(rect)) {
-            objectList.addAll(getObjects());
-        } else {
-            return null;
+    /**
+     * Visits all the objects whose bounding rectangle overlaps the given
+     * rectangle.
+     * 
+     * @param rect
+     *            Rectangle
+     * @param visitor
+     *            The visitor that is called for every object
+     */
+    public void visitObjectsFromRectangle(final Rectangle rect,
+            final Visitor visitor) {
+        if (!contains(rect)) {
+            return;
+        }
+
+        for (int i = 0; i < objects.size(); i++) {
+            if (overlaps(bounds.get(i), rect)) {
+                visitor.visit(objects.get(i));
+            }
         }
 
         if (!leaf) {
             for (int i = 0; i < 4; i++) {
-                final List<StaticObject> tree = children[i]
-                        .getObjectsFromRectangle(rect);
-
-                if (tree != null) {
-                    objectList.addAll(tree);
-                }
+                children[i].visitObjectsFromRectangle(rect, visitor);
             }
         }
-
-        return objectList;
     }
 
     /**
@@ -274,21 +479,17 @@ public class QuadTree {
     }
 
     /**
-     * Recursively removes an object from the quadtree.
+     * Returns the number of objects in this node and all its children.
      * 
-     * @param object
-     *            Object to remove
+     * @return the number of objects
      */
-    public void remove(final StaticObject object) {
-        final QuadTree tree = getQuadTreeContainingObject(object);
-
-        if (tree != null) {
-            tree.removeObject(object);
-        }
+    public int size() {
+        return size;
     }
 
     /**
-     * Subdivides this leaf into four children.
+     * Subdivides this leaf into four children and moves the objects that fit
+     * in a child into it.
      */
     private void subdivide() {
         if (!leaf || depth + 1 >= MAX_DEPTH) {
@@ -297,27 +498,57 @@ public class QuadTree {
 
         leaf = false;
 
-        final Vector2f size = new Vector2f(rectangle.getWidth() / 2.0f,
-                rectangle.getHeight() / 2.0f);
-        final Vector2f middle = rectangle.getLeftTop().add(size);
+        final float width = rectangle.getWidth() / 2.0f;
+        final float height = rectangle.getHeight() / 2.0f;
 
         children[0] = new QuadTree(new Rectangle(rectangle.getLeft(),
-                rectangle.getTop(), size.getX(), size.getY()), depth + 1);
-        children[1] = new QuadTree(new Rectangle(rectangle.getLeft(),
-                middle.getY(), size.getX(), size.getY()), depth + 1);
-        children[2] = new QuadTree(new Rectangle(middle.getX(), middle.getY(),
-                size.getX(), size.getY()), depth + 1);
-        children[3] = new QuadTree(new Rectangle(middle.getX(),
-                rectangle.getTop(), size.getX(), size.getY()), depth + 1);
-
-        final Iterator<StaticObject> it = objects.iterator();
-        while (it.hasNext()) {
-            final StaticObject object = it.next();
+                rectangle.getTop(), width, height), this, depth + 1);
+        children[1] = new QuadTree(new Rectangle(rectangle.getLeft(), middleY,
+                width, height), this, depth + 1);
+        children[2] = new QuadTree(new Rectangle(middleX, middleY, width,
+                height), this, depth + 1);
+        children[3] = new QuadTree(new Rectangle(middleX, rectangle.getTop(),
+                width, height), this, depth + 1);
+
+        for (int i = objects.size() - 1; i >= 0; i--) {
+            final Rectangle rect = bounds.get(i);
+            final QuadTree child = getChild(rect);
+            if (child != null) {
+                final StaticObject object = objects.remove(i);
+                bounds.remove(i);
+                child.insert(object, rect);
+            }
+        }
+    }
+
+    /**
+     * Moves all objects of the children into this node and removes the
+     * children.
+     */
+    private void merge() {
+        for (int i = 0; i < 4; i++) {
+            children[i].collect(this);
+            children[i] = null;
+        }
+        leaf = true;
+    }
+
+    /**
+     * Moves all objects of this node and its children into another node.
+     * 
+     * @param target
+     *            The node that receives the objects
+     */
+    private void collect(final QuadTree target) {
+        for (int i = 0; i < objects.size(); i++) {
+            objects.get(i).setQuadTreeNode(target);
+        }
+        target.objects.addAll(objects);
+        target.bounds.addAll(bounds);
+
+        if (!leaf) {
             for (int i = 0; i < 4; i++) {
-                if (children[i].containsFully(object)) {
-                    children[i].addObject(object);
-                    it.remove();
-                }
+                children[i].collect(target);
             }
         }
     }
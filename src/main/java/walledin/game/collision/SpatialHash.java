@@ -0,0 +1,383 @@
+/*  Copyright 2010 Ben Ruijl, Wouter Smeenk
+
+This file is part of Walled In.
+
+Walled In is free software; you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation; either version 3, or (at your option)
+any later version.
+
+Walled In is distributed in the hope that it will be useful, but
+WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with Walled In; see the file LICENSE.  If not, write to the
+Free Software Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA
+02111-1307 USA.
+
+ */
+package walledin.game.collision;
+
+import java.util.Arrays;
+import java.util.List;
+
+import walledin.game.entity.Entity;
+
+/**
+ * Broadphase for the collisions between entities. The bounding rectangles of
+ * the entities are hashed into a uniform grid of cells, and only entities that
+ * share a cell are reported as a candidate pair. The hash is rebuilt every
+ * tick, but all its arrays are reused, so rebuilding does not allocate once
+ * the arrays are large enough.
+ * 
+ * Entities that cover more than <code>MAX_CELLS_PER_ENTITY</code> cells are
+ * not hashed, but are paired with every other entity instead.
+ * 
+ * Besides finding pairs, the hash can find the entities near a rectangle.
+ * 
+ * @author Ben Ruijl
+ * 
+ */
+public class SpatialHash {
+    /** The maximum number of cells an entity is hashed into. */
+    private static final int MAX_CELLS_PER_ENTITY = 64;
+    /** The initial capacity of the arrays. */
+    private static final int INITIAL_CAPACITY = 64;
+
+    private final float inverseCellSize;
+
+    /** The inserted entities, indexed by insertion order. */
+    private Entity[] entities;
+    /** The cell range of every entity. */
+    private int[] minCellX;
+    private int[] minCellY;
+    private int[] maxCellX;
+    private int[] maxCellY;
+    /** True if the entity is moving. Pairs of static entities are skipped. */
+    private boolean[] moving;
+    private int entityCount;
+
+    /** The entries of the grid, one for every cell an entity covers. */
+    private int[] entryEntity;
+    private int[] entryCellX;
+    private int[] entryCellY;
+    /** The next entry in the same bucket, or -1. */
+    private int[] entryNext;
+    private int entryCount;
+    /** The first entry of every bucket, or -1. */
+    private int[] buckets;
+    /** True if the buckets contain all entries. */
+    private boolean bucketsBuilt;
+
+    /** The entities that cover too many cells to be hashed. */
+    private int[] oversized;
+    private int oversizedCount;
+
+    /** The candidate pairs, two entity indices per pair. */
+    private int[] pairs;
+    private int pairCount;
+
+    /**
+     * Creates a new spatial hash.
+     * 
+     * @param cellSize
+     *            The width and height of a cell. Should be around the size of
+     *            the largest common entity.
+     */
+    public SpatialHash(final float cellSize) {
+        if (cellSize <= 0) {
+            throw new IllegalArgumentException(
+                    "The cell size should be positive");
+        }
+        inverseCellSize = 1.0f / cellSize;
+        entities = new Entity[INITIAL_CAPACITY];
+        minCellX = new int[INITIAL_CAPACITY];
+        minCellY = new int[INITIAL_CAPACITY];
+        maxCellX = new int[INITIAL_CAPACITY];
+        maxCellY = new int[INITIAL_CAPACITY];
+        moving = new boolean[INITIAL_CAPACITY];
+        entryEntity = new int[INITIAL_CAPACITY];
+        entryCellX = new int[INITIAL_CAPACITY];
+        entryCellY = new int[INITIAL_CAPACITY];
+        entryNext = new int[INITIAL_CAPACITY];
+        buckets = new int[INITIAL_CAPACITY];
+        oversized = new int[INITIAL_CAPACITY];
+        pairs = new int[INITIAL_CAPACITY * 2];
+    }
+
+    /**
+     * Removes all entities and pairs. The entity references are cleared, so
+     * they can be garbage collected.
+     */
+    public void clear() {
+        Arrays.fill(entities, 0, entityCount, null);
+        entityCount = 0;
+        entryCount = 0;
+        oversizedCount = 0;
+        pairCount = 0;
+        bucketsBuilt = false;
+    }
+
+    /**
+     * Inserts an entity with the given bounding rectangle.
+     * 
+     * @param entity
+     *            The entity
+     * @param left
+     *            Left of the bounding rectangle
+     * @param top
+     *            Top of the bounding rectangle
+     * @param right
+     *            Right of the bounding rectangle
+     * @param bottom
+     *            Bottom of the bounding rectangle
+     * @param isMoving
+     *            True if the entity is moving
+     */
+    public void insert(final Entity entity, final float left, final float top,
+            final float right, final float bottom, final boolean isMoving) {
+        if (entityCount == entities.length) {
+            final int capacity = entityCount * 2;
+            entities = Arrays.copyOf(entities, capacity);
+            minCellX = Arrays.copyOf(minCellX, capacity);
+            minCellY = Arrays.copyOf(minCellY, capacity);
+            maxCellX = Arrays.copyOf(maxCellX, capacity);
+            maxCellY = Arrays.copyOf(maxCellY, capacity);
+            moving = Arrays.copyOf(moving, capacity);
+        }
+
+        bucketsBuilt = false;
+        final int index = entityCount++;
+        entities[index] = entity;
+        moving[index] = isMoving;
+        minCellX[index] = cell(left);
+        minCellY[index] = cell(top);
+        maxCellX[index] = cell(right);
+        maxCellY[index] = cell(bottom);
+
+        if (isOversized(index)) {
+            if (oversizedCount == oversized.length) {
+                oversized = Arrays.copyOf(oversized, oversizedCount * 2);
+            }
+            oversized[oversizedCount++] = index;
+            return;
+        }
+
+        for (int y = minCellY[index]; y <= maxCellY[index]; y++) {
+            for (int x = minCellX[index]; x <= maxCellX[index]; x++) {
+                addEntry(index, x, y);
+            }
+        }
+    }
+
+    private int cell(final float coordinate) {
+        return (int) Math.floor(coordinate * inverseCellSize);
+    }
+
+    private void addEntry(final int index, final int x, final int y) {
+        if (entryCount == entryEntity.length) {
+            final int capacity = entryCount * 2;
+            entryEntity = Arrays.copyOf(entryEntity, capacity);
+            entryCellX = Arrays.copyOf(entryCellX, capacity);
+            entryCellY = Arrays.copyOf(entryCellY, capacity);
+            entryNext = Arrays.copyOf(entryNext, capacity);
+        }
+        entryEntity[entryCount] = index;
+        entryCellX[entryCount] = x;
+        entryCellY[entryCount] = y;
+        entryCount++;
+    }
+
+    private static int hash(final int x, final int y) {
+        return x * 73856093 ^ y * 19349663;
+    }
+
+    private void addPair(final int a, final int b) {
+        if (!moving[a] && !moving[b]) {
+            return;
+        }
+        if (pairCount * 2 == pairs.length) {
+            pairs = Arrays.copyOf(pairs, pairs.length * 2);
+        }
+        pairs[pairCount * 2] = a;
+        pairs[pairCount * 2 + 1] = b;
+        pairCount++;
+    }
+
+    /**
+     * Finds the candidate pairs of the inserted entities. Every pair is
+     * reported once, even if the entities share multiple cells. Pairs of which
+     * both entities are static are not reported.
+     * 
+     * @return The number of candidate pairs
+     */
+    public int findPairs() {
+        pairCount = 0;
+        buildBuckets();
+
+        /*
+         * Every entry is only compared with the entries that come after it in
+         * the same bucket, so every pair in a cell is visited once.
+         */
+        for (int i = 0; i < entryCount; i++) {
+            final int x = entryCellX[i];
+            final int y = entryCellY[i];
+            final int a = entryEntity[i];
+            for (int j = entryNext[i]; j != -1; j = entryNext[j]) {
+                if (entryCellX[j] != x || entryCellY[j] != y) {
+                    continue;
+                }
+                final int b = entryEntity[j];
+
+                /*
+                 * Only report the pair in the first cell the entities share, so
+                 * it is not reported for every shared cell.
+                 */
+                if (x == Math.max(minCellX[a], minCellX[b])
+                        && y == Math.max(minCellY[a], minCellY[b])) {
+                    addPair(a, b);
+                }
+            }
+        }
+
+        /* Pair the oversized entities with all other entities. */
+        for (int i = 0; i < oversizedCount; i++) {
+            final int a = oversized[i];
+            for (int b = 0; b < entityCount; b++) {
+                if (b == a || isOversized(b) && b < a) {
+                    continue;
+                }
+                addPair(a, b);
+            }
+        }
+
+        return pairCount;
+    }
+
+    /**
+     * Links the entries into the buckets. Uses at least twice as many buckets
+     * as entries.
+     */
+    private void buildBuckets() {
+        if (bucketsBuilt) {
+            return;
+        }
+        int bucketCount = buckets.length;
+        while (bucketCount < entryCount * 2) {
+            bucketCount *= 2;
+        }
+        if (bucketCount != buckets.length) {
+            buckets = new int[bucketCount];
+        }
+        final int mask = bucketCount - 1;
+        Arrays.fill(buckets, -1);
+
+        for (int i = 0; i < entryCount; i++) {
+            final int bucket = hash(entryCellX[i], entryCellY[i]) & mask;
+            entryNext[i] = buckets[bucket];
+            buckets[bucket] = i;
+        }
+        bucketsBuilt = true;
+    }
+
+    /**
+     * Finds the entities that share a cell with a rectangle, and the oversized
+     * entities that overlap its cells. The result can contain entities that
+     * are close to the rectangle but not inside it. Every entity is added
+     * once.
+     * 
+     * @param left
+     *            Left of the rectangle
+     * @param top
+     *            Top of the rectangle
+     * @param right
+     *            Right of the rectangle
+     * @param bottom
+     *            Bottom of the rectangle
+     * @param result
+     *            The list to add the entities to
+     */
+    public void query(final float left, final float top, final float right,
+            final float bottom, final List<Entity> result) {
+        buildBuckets();
+        final int minX = cell(left);
+        final int minY = cell(top);
+        final int maxX = cell(right);
+        final int maxY = cell(bottom);
+        final int mask = buckets.length - 1;
+
+        for (int y = minY; y <= maxY; y++) {
+            for (int x = minX; x <= maxX; x++) {
+                for (int i = buckets[hash(x, y) & mask]; i != -1; i = entryNext[i]) {
+                    if (entryCellX[i] != x || entryCellY[i] != y) {
+                        continue;
+                    }
+                    final int index = entryEntity[i];
+
+                    /* Only add the entity in the first cell it shares. */
+                    if (x == Math.max(minCellX[index], minX)
+                            && y == Math.max(minCellY[index], minY)) {
+                        result.add(entities[index]);
+                    }
+                }
+            }
+        }
+
+        for (int i = 0; i < oversizedCount; i++) {
+            final int index = oversized[i];
+            if (minCellX[index] <= maxX && maxCellX[index] >= minX
+                    && minCellY[index] <= maxY && maxCellY[index] >= minY) {
+                result.add(entities[index]);
+            }
+        }
+    }
+
+    private boolean isOversized(final int index) {
+        final long cells = (long) (maxCellX[index] - minCellX[index] + 1)
+                * (maxCellY[index] - minCellY[index] + 1);
+        return cells > MAX_CELLS_PER_ENTITY;
+    }
+
+    /**
+     * Returns the number of candidate pairs found by the last call to
+     * <code>findPairs</code>.
+     * 
+     * @return the number of candidate pairs
+     */
+    public int getPairCount() {
+        return pairCount;
+    }
+
+    /**
+     * Returns the first entity of a candidate pair.
+     * 
+     * @param pair
+     *            The index of the pair
+     * @return The first entity
+     */
+    public Entity getFirst(final int pair) {
+        return entities[pairs[pair * 2]];
+    }
+
+    /**
+     * Returns the second entity of a candidate pair.
+     * 
+     * @param pair
+     *            The index of the pair
+     * @return The second entity
+     */
+    public Entity getSecond(final int pair) {
+        return entities[pairs[pair * 2 + 1]];
+    }
+
+    /**
+     * Returns the number of inserted entities.
+     * 
+     * @return the number of inserted entities
+     */
+    public int getEntityCount() {
+        return entityCount;
+    }
+}
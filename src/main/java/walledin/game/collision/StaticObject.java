@@ -24,4 +24,21 @@ import walledin.engine.math.Rectangle;
 
 public interface StaticObject {
     Rectangle getBoudingRectangle();
+
+    /**
+     * Returns the quadtree node this object is stored in. Only the quadtree
+     * should use this.
+     * 
+     * @return The node, or null if the object is not in a quadtree
+     */
+    QuadTree getQuadTreeNode();
+
+    /**
+     * Sets the quadtree node this object is stored in. Only the quadtree
+     * should use this.
+     * 
+     * @param node
+     *            The node, or null if the object is removed
+     */
+    void setQuadTreeNode(QuadTree node);
 }
@@ -20,19 +20,125 @@ Free Software Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA
  */
 package walledin.game.entity;
 
+import java.util.EnumSet;
+import java.util.Set;
+
 import walledin.game.EntityManager;
 
 /**
  * Base behavior class. Subclasses define specific behavior of its owner.
  * 
+ * A behavior receives every message, unless it declares the messages it
+ * handles with {@link #handleMessages(MessageType...)} and
+ * {@link #handleAttributes(Attribute...)}. The declarations should be made in
+ * the constructor, because the entity looks them up when the behavior is
+ * added. Subclasses add to the declarations of their superclass.
+ * 
+ * A behavior that is declared parallel safe with
+ * {@link #declareParallelSafe()} may be updated on a worker thread, together
+ * with the other behaviors of its entity. Its update, and the messages its
+ * entity receives during that update, may only change its own entity. It may
+ * create entities through
+ * {@link EntityManager#create(Family, EntityFunction)}, which defers the
+ * creation until the update of all entities is done. Messages to other
+ * entities are only sent while handling collisions, which happens on the
+ * updating thread.
+ * 
  * @author wouter
  * 
  */
 public abstract class AbstractBehavior {
     private final Entity owner;
+    /** The messages this behavior handles, or null if it handles all. */
+    private Set<MessageType> messageTypes;
+    /** The mask of the attributes of which it handles ATTRIBUTE_SET. */
+    private long attributeMask;
+    /** True if it can be updated on a worker thread. */
+    private boolean parallelSafe;
 
     public AbstractBehavior(final Entity owner) {
         this.owner = owner;
+        attributeMask = -1L;
+    }
+
+    /**
+     * Declares messages this behavior handles. Without arguments it declares
+     * that it handles no messages, unless other messages are declared.
+     * Declaring ATTRIBUTE_SET handles it for all attributes.
+     * 
+     * @param types
+     *            The message types
+     */
+    protected final void handleMessages(final MessageType... types) {
+        if (messageTypes == null) {
+            messageTypes = EnumSet.noneOf(MessageType.class);
+        }
+        for (final MessageType type : types) {
+            messageTypes.add(type);
+            if (type == MessageType.ATTRIBUTE_SET) {
+                attributeMask = -1L;
+            }
+        }
+    }
+
+    /**
+     * Declares attributes of which this behavior handles ATTRIBUTE_SET. Other
+     * attributes are not sent to it anymore, unless ATTRIBUTE_SET is declared
+     * for all attributes.
+     * 
+     * @param attributes
+     *            The attributes
+     */
+    protected final void handleAttributes(final Attribute... attributes) {
+        if (messageTypes == null
+                || !messageTypes.contains(MessageType.ATTRIBUTE_SET)) {
+            handleMessages();
+            messageTypes.add(MessageType.ATTRIBUTE_SET);
+            attributeMask = 0;
+        }
+        for (final Attribute attribute : attributes) {
+            attributeMask |= attribute.getMask();
+        }
+    }
+
+    /**
+     * Declares that this behavior can be updated on a worker thread. See the
+     * class documentation for what that requires.
+     */
+    protected final void declareParallelSafe() {
+        parallelSafe = true;
+    }
+
+    /**
+     * Checks if this behavior can be updated on a worker thread.
+     * 
+     * @return True if it is declared parallel safe
+     */
+    public final boolean isParallelSafe() {
+        return parallelSafe;
+    }
+
+    /**
+     * Checks if this behavior handles a message.
+     * 
+     * @param type
+     *            The message type
+     * @return True if the behavior should receive the message
+     */
+    public final boolean handlesMessage(final MessageType type) {
+        return messageTypes == null || messageTypes.contains(type);
+    }
+
+    /**
+     * Checks if this behavior handles ATTRIBUTE_SET of an attribute.
+     * 
+     * @param attribute
+     *            The attribute
+     * @return True if the behavior should receive the message
+     */
+    public final boolean handlesAttribute(final Attribute attribute) {
+        return handlesMessage(MessageType.ATTRIBUTE_SET)
+                && (attributeMask & attribute.getMask()) != 0;
     }
 
     /**
@@ -31,6 +31,15 @@ import walledin.game.Team;
  * Attributes of entities. An entity can have some of these, according to its
  * function.
  * 
+ * Sets of attributes are stored as a bitmask of their ordinals, so there can
+ * be at most 64 attributes. A mask is iterated without allocation with:
+ * 
+ * <pre>
+ * for (long m = mask; m != 0; m &amp;= m - 1) {
+ *     final Attribute attribute = Attribute.first(m);
+ * }
+ * </pre>
+ * 
  * @author Ben Ruijl
  * 
  */
@@ -96,7 +105,24 @@ public enum Attribute {
      * The entity that owns this entity. A bullet is owned by the player that
      * shoots it.
      */
-    OWNED_BY(String.class, true);
+    OWNED_BY(String.class, true),
+    /**
+     * The sequence number of the last input frame the server has applied to
+     * a player. The client replays the input after it on the state of the
+     * server.
+     */
+    INPUT_SEQUENCE(Integer.class, true),
+    /**
+     * The number of ticks a player sees the other players behind. The bullets
+     * of the player are tested against the players as they were that many
+     * ticks ago.
+     */
+    REWIND_TICKS(Integer.class);
+
+    /** The attributes, indexed by ordinal. */
+    private static final Attribute[] VALUES = values();
+    /** The bitmask of the attributes that can be sent over network. */
+    public static final long NETWORK_MASK = networkMask();
 
     /** Class of the attribute. */
     private final Class<?> clazz;
@@ -139,4 +165,58 @@ public enum Attribute {
         return clazz;
     }
 
+    /**
+     * Returns the bit of this attribute in an attribute mask.
+     * 
+     * @return The bit of this attribute
+     */
+    public long getMask() {
+        return 1L << ordinal();
+    }
+
+    /**
+     * Returns the attribute with an ordinal.
+     * 
+     * @param ordinal
+     *            The ordinal of the attribute
+     * @return The attribute
+     */
+    public static Attribute get(final int ordinal) {
+        return VALUES[ordinal];
+    }
+
+    /**
+     * Returns the number of attributes.
+     * 
+     * @return The number of attributes
+     */
+    public static int count() {
+        return VALUES.length;
+    }
+
+    /**
+     * Returns the attribute with the lowest ordinal in a mask.
+     * 
+     * @param mask
+     *            A mask that is not zero
+     * @return The first attribute in the mask
+     */
+    public static Attribute first(final long mask) {
+        return VALUES[Long.numberOfTrailingZeros(mask)];
+    }
+
+    private static long networkMask() {
+        if (VALUES.length > Long.SIZE) {
+            throw new IllegalStateException(
+                    "There can be at most 64 attributes");
+        }
+        long mask = 0;
+        for (final Attribute attribute : VALUES) {
+            if (attribute.sendOverNetwork) {
+                mask |= attribute.getMask();
+            }
+        }
+        return mask;
+    }
+
 }
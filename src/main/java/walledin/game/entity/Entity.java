@@ -20,12 +20,9 @@ Free Software Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA
  */
 package walledin.game.entity;
 
-import java.util.ArrayList;
+import java.util.EnumMap;
 import java.util.HashMap;
-import java.util.HashSet;
-import java.util.List;
 import java.util.Map;
-import java.util.Set;
 
 import org.apache.log4j.Logger;
 
@@ -33,10 +30,31 @@ import walledin.game.EntityManager;
 
 public final class Entity {
     private static final Logger LOG = Logger.getLogger(Entity.class.getName());
+    /** The handlers of messages that no behavior handles. */
+    private static final AbstractBehavior[] NO_BEHAVIORS = new AbstractBehavior[0];
+    private static final MessageType[] MESSAGE_TYPES = MessageType.values();
     private final Map<Class<? extends AbstractBehavior>, AbstractBehavior> behaviors;
-    private final Map<Attribute, Object> attributes;
-    private Set<Attribute> changedAttributes;
+    /**
+     * The behaviors as an array, and the behaviors that handle each message
+     * type and the ATTRIBUTE_SET of each attribute. The arrays are replaced
+     * when the behaviors change, so they can be iterated while behaviors are
+     * added or removed.
+     */
+    private AbstractBehavior[] behaviorArray;
+    private final AbstractBehavior[][] messageHandlers;
+    private final AbstractBehavior[][] attributeHandlers;
+    /** True if the handlers have to be rebuilt before they are used. */
+    private boolean behaviorsChanged;
+    /** True if all behaviors are parallel safe. */
+    private boolean parallelSafe;
+    /** The values of the attributes, indexed by ordinal. */
+    private final Object[] attributes;
+    /** The mask of the attributes that have been set, even to null. */
+    private long attributeMask;
+    /** The mask of the network attributes that changed since the last clear. */
+    private long changedAttributes;
     private String name;
+    private int id;
     private final Family family;
     private boolean markedRemoved;
     private final EntityManager entityManager;
@@ -54,8 +72,11 @@ public final class Entity {
     public Entity(final EntityManager entityManager, final Family family,
             final String name) {
         behaviors = new HashMap<Class<? extends AbstractBehavior>, AbstractBehavior>();
-        attributes = new HashMap<Attribute, Object>();
-        changedAttributes = new HashSet<Attribute>();
+        behaviorArray = NO_BEHAVIORS;
+        messageHandlers = new AbstractBehavior[MESSAGE_TYPES.length][];
+        attributeHandlers = new AbstractBehavior[Attribute.count()][];
+        behaviorsChanged = true;
+        attributes = new Object[Attribute.count()];
         this.name = name;
         this.family = family;
         markedRemoved = false;
@@ -71,6 +92,27 @@ public final class Entity {
         return name;
     }
 
+    /**
+     * Get the numeric id of the entity. The id is assigned by the entity
+     * manager that created the entity and is used to identify the entity in
+     * compact network messages.
+     * 
+     * @return Id of the entity
+     */
+    public int getId() {
+        return id;
+    }
+
+    /**
+     * Sets the numeric id of the entity.
+     * 
+     * @param id
+     *            New id
+     */
+    public void setId(final int id) {
+        this.id = id;
+    }
+
     /**
      * Get the family.
      * 
@@ -104,6 +146,7 @@ public final class Entity {
                     + behavior.getClass().getName());
         }
         behaviors.put(clazz, behavior);
+        behaviorsChanged = true;
     }
 
     /**
@@ -137,8 +180,7 @@ public final class Entity {
      * @return True if entity has a non-null attribute, else false
      */
     public boolean hasAttribute(final Attribute attribute) {
-        return attributes.containsKey(attribute)
-                && attributes.get(attribute) != null;
+        return attributes[attribute.ordinal()] != null;
     }
 
     /**
@@ -149,12 +191,12 @@ public final class Entity {
      * @return Returns the object bound to this attribute
      */
     public Object getAttribute(final Attribute attribute) {
-        if (!attributes.containsKey(attribute)) {
+        if ((attributeMask & attribute.getMask()) == 0) {
             LOG.warn("Object " + name + "@" + hashCode()
                     + " does not have attribute " + attribute.name());
         }
 
-        return attributes.get(attribute);
+        return attributes[attribute.ordinal()];
     }
 
     /**
@@ -184,12 +226,14 @@ public final class Entity {
     @SuppressWarnings("unchecked")
     public <T> T setAttribute(final Attribute attribute, final T newObject) {
         if (attribute.getClazz().isInstance(newObject) || newObject == null) {
-            final T result = (T) attributes.put(attribute, newObject);
+            final T result = (T) attributes[attribute.ordinal()];
+            attributes[attribute.ordinal()] = newObject;
+            attributeMask |= attribute.getMask();
 
             // Only add it if it has actually changed
             if (attribute.canSendOverNetwork()
                     && (newObject == null || !newObject.equals(result))) {
-                changedAttributes.add(attribute);
+                changedAttributes |= attribute.getMask();
             }
             sendMessage(MessageType.ATTRIBUTE_SET, attribute);
             return result;
@@ -204,35 +248,53 @@ public final class Entity {
      * adding every attribute which can be sent over network to that list.
      */
     public void resetAttributes() {
-        for (final Attribute attribute : attributes.keySet()) {
-            if (attribute.canSendOverNetwork()) {
-                changedAttributes.add(attribute);
-            }
-        }
+        changedAttributes |= attributeMask & Attribute.NETWORK_MASK;
     }
 
     /**
-     * Get attributes that can be send over the network that have been changed
-     * since the last call.
+     * Get the mask of the attributes that can be send over the network that
+     * have been changed since the last clear. See {@link Attribute} for how
+     * to iterate it.
      * 
-     * @return The changed attributes
+     * @return The mask of the changed attributes
      */
-    public Set<Attribute> getChangedAttributes() {
-        final Set<Attribute> temp = changedAttributes;
-        changedAttributes = new HashSet<Attribute>();
-        return temp;
+    public long getChangedAttributeMask() {
+        return changedAttributes;
     }
 
-    public Map<Attribute, Object> getAttributes(
-            final Set<Attribute> requestedAttributes) {
+    /**
+     * Clears the mask of the changed attributes.
+     */
+    public void clearChangedAttributes() {
+        changedAttributes = 0;
+    }
 
-        final Map<Attribute, Object> temp = new HashMap<Attribute, Object>();
-        for (final Attribute attribute : requestedAttributes) {
-            temp.put(attribute, attributes.get(attribute));
+    /**
+     * Copies the values of some attributes.
+     * 
+     * @param requestedAttributes
+     *            The mask of the attributes to copy
+     * @return The values of the attributes
+     */
+    public Map<Attribute, Object> getAttributes(final long requestedAttributes) {
+        final Map<Attribute, Object> temp = new EnumMap<Attribute, Object>(
+                Attribute.class);
+        for (long mask = requestedAttributes; mask != 0; mask &= mask - 1) {
+            final Attribute attribute = Attribute.first(mask);
+            temp.put(attribute, attributes[attribute.ordinal()]);
         }
         return temp;
     }
 
+    /**
+     * Get all attributes that can be send over the network.
+     * 
+     * @return The attributes that can be send over the network
+     */
+    public Map<Attribute, Object> getNetworkAttributes() {
+        return getAttributes(attributeMask & Attribute.NETWORK_MASK);
+    }
+
     /**
      * Removes a behavior from this entity.
      * 
@@ -243,18 +305,84 @@ public final class Entity {
     public AbstractBehavior removeBehavior(
             final Class<? extends AbstractBehavior> clazz) {
         final AbstractBehavior behavior = behaviors.remove(clazz);
+        behaviorsChanged = true;
         return behavior;
     }
 
     /**
-     * Calls onMessage on all the behaviors of this entity.
+     * Rebuilds the handlers if the behaviors changed since they were built.
      */
-    public void sendMessage(final MessageType messageType, final Object data) {
-        final List<AbstractBehavior> behaviorList = new ArrayList<AbstractBehavior>(
-                behaviors.values());
+    private void updateHandlers() {
+        if (!behaviorsChanged) {
+            return;
+        }
+        behaviorsChanged = false;
+        behaviorArray = behaviors.values().toArray(
+                new AbstractBehavior[behaviors.size()]);
+        parallelSafe = true;
+        for (final AbstractBehavior behavior : behaviorArray) {
+            parallelSafe &= behavior.isParallelSafe();
+        }
+        for (final MessageType type : MESSAGE_TYPES) {
+            messageHandlers[type.ordinal()] = findHandlers(type, null);
+        }
+        for (int i = 0; i < attributeHandlers.length; i++) {
+            attributeHandlers[i] = findHandlers(MessageType.ATTRIBUTE_SET,
+                    Attribute.get(i));
+        }
+    }
+
+    /**
+     * Returns the behaviors that handle a message. The arrays for no or all
+     * behaviors are shared.
+     */
+    private AbstractBehavior[] findHandlers(final MessageType type,
+            final Attribute attribute) {
+        int count = 0;
+        for (final AbstractBehavior behavior : behaviorArray) {
+            if (handles(behavior, type, attribute)) {
+                count++;
+            }
+        }
+        if (count == 0) {
+            return NO_BEHAVIORS;
+        }
+        if (count == behaviorArray.length) {
+            return behaviorArray;
+        }
+        final AbstractBehavior[] result = new AbstractBehavior[count];
+        count = 0;
+        for (final AbstractBehavior behavior : behaviorArray) {
+            if (handles(behavior, type, attribute)) {
+                result[count] = behavior;
+                count++;
+            }
+        }
+        return result;
+    }
 
-        for (int i = 0; i < behaviorList.size(); i++) {
-            behaviorList.get(i).onMessage(messageType, data);
+    private static boolean handles(final AbstractBehavior behavior,
+            final MessageType type, final Attribute attribute) {
+        if (attribute == null) {
+            return behavior.handlesMessage(type);
+        }
+        return behavior.handlesAttribute(attribute);
+    }
+
+    /**
+     * Calls onMessage on the behaviors of this entity that handle the message.
+     * The data of an ATTRIBUTE_SET message is the attribute that was set.
+     */
+    public void sendMessage(final MessageType messageType, final Object data) {
+        updateHandlers();
+        final AbstractBehavior[] handlers;
+        if (messageType == MessageType.ATTRIBUTE_SET) {
+            handlers = attributeHandlers[((Attribute) data).ordinal()];
+        } else {
+            handlers = messageHandlers[messageType.ordinal()];
+        }
+        for (int i = 0; i < handlers.length; i++) {
+            handlers[i].onMessage(messageType, data);
         }
     }
 
@@ -262,16 +390,26 @@ public final class Entity {
      * Calls onUpdate on all the behaviors of this entity.
      */
     public void sendUpdate(final double delta) {
-        final List<AbstractBehavior> behaviorList = new ArrayList<AbstractBehavior>(
-                behaviors.values());
-
-        for (int i = 0; i < behaviorList.size(); i++) {
-            behaviorList.get(i).onUpdate(delta);
+        updateHandlers();
+        final AbstractBehavior[] currentBehaviors = behaviorArray;
+        for (int i = 0; i < currentBehaviors.length; i++) {
+            currentBehaviors[i].onUpdate(delta);
         }
     }
 
     /**
-     * Mark this entity for removal.
+     * Checks if this entity can be updated on a worker thread.
+     * 
+     * @return True if all its behaviors are parallel safe
+     */
+    public boolean isParallelSafe() {
+        updateHandlers();
+        return parallelSafe;
+    }
+
+    /**
+     * Mark this entity for removal. The entity is removed at the start of the
+     * next update, so this can also be done during a parallel update.
      */
     public void remove() {
         markedRemoved = true;
@@ -28,6 +28,8 @@ public class AnimationBehavior extends AbstractBehavior {
 
     public AnimationBehavior(final Entity owner) {
         super(owner);
+        handleMessages();
+        declareParallelSafe();
     }
 
     @Override
@@ -34,6 +34,9 @@ public class BulletBehavior extends AbstractBehavior {
 
     public BulletBehavior(final Entity owner, final int damage) {
         super(owner);
+        handleMessages(MessageType.COLLIDED);
+        handleAttributes(Attribute.VELOCITY);
+        declareParallelSafe();
         this.damage = damage;
     }
 
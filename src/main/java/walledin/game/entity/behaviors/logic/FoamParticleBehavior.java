@@ -29,6 +29,8 @@ public class FoamParticleBehavior extends AbstractBehavior {
 
     public FoamParticleBehavior(final Entity owner) {
         super(owner);
+        handleMessages();
+        declareParallelSafe();
     }
 
     @Override
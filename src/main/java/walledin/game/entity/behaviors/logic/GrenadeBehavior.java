@@ -25,6 +25,7 @@ import walledin.engine.math.Vector2f;
 import walledin.game.entity.AbstractBehavior;
 import walledin.game.entity.Attribute;
 import walledin.game.entity.Entity;
+import walledin.game.entity.EntityFunction;
 import walledin.game.entity.Family;
 import walledin.game.entity.MessageType;
 
@@ -42,6 +43,8 @@ public class GrenadeBehavior extends AbstractBehavior {
 
     public GrenadeBehavior(final Entity owner) {
         super(owner);
+        handleMessages();
+        declareParallelSafe();
     }
 
     @Override
@@ -56,25 +59,27 @@ public class GrenadeBehavior extends AbstractBehavior {
         if (time > EXPLODE_TIME) {
             /* Explode! */
 
+            final Vector2f position = (Vector2f) getAttribute(Attribute.POSITION);
+            final Object owner = getAttribute(Attribute.OWNED_BY);
             for (int i = 0; i < NUMBER_OFPARTICALS; i++) {
-                final Entity foamBullet = getOwner().getEntityManager().create(
-                        Family.FOAMGUN_BULLET);
-                foamBullet.setAttribute(Attribute.POSITION,
-                        getAttribute(Attribute.POSITION));
-
-                foamBullet.sendMessage(MessageType.APPLY_FORCE, new Matrix2f(-i
-                        * Math.PI / (NUMBER_OFPARTICALS - 1))
-                        .apply(particleAcc));
-
-                foamBullet
-                        .setAttribute(Attribute.TARGET, ((Vector2f) foamBullet
-                                .getAttribute(Attribute.POSITION))
-                                .add(new Matrix2f(-i * Math.PI
-                                        / (NUMBER_OFPARTICALS - 1))
-                                        .apply(particleTarget)));
-
-                foamBullet.setAttribute(Attribute.OWNED_BY,
-                        getAttribute(Attribute.OWNED_BY));
+                final Matrix2f rotation = new Matrix2f(-i * Math.PI
+                        / (NUMBER_OFPARTICALS - 1));
+                getEntityManager().create(Family.FOAMGUN_BULLET,
+                        new EntityFunction() {
+                            @Override
+                            public void create(final Entity foamBullet) {
+                                foamBullet.setAttribute(Attribute.POSITION,
+                                        position);
+                                foamBullet.sendMessage(
+                                        MessageType.APPLY_FORCE,
+                                        rotation.apply(particleAcc));
+                                foamBullet.setAttribute(Attribute.TARGET,
+                                        position.add(rotation
+                                                .apply(particleTarget)));
+                                foamBullet.setAttribute(Attribute.OWNED_BY,
+                                        owner);
+                            }
+                        });
             }
 
             getOwner().remove();
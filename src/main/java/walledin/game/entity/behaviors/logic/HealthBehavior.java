@@ -32,6 +32,8 @@ public class HealthBehavior extends AbstractBehavior {
     public HealthBehavior(final Entity owner, final int maxHealth,
             final int curHealth) {
         super(owner);
+        handleMessages(MessageType.RESTORE_HEALTH, MessageType.TAKE_DAMAGE);
+        declareParallelSafe();
 
         health = curHealth;
         this.maxHealth = maxHealth;
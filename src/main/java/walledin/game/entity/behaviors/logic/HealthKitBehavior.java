@@ -35,6 +35,8 @@ public class HealthKitBehavior extends AbstractBehavior {
 
     public HealthKitBehavior(final Entity owner, final int strength) {
         super(owner);
+        handleMessages(MessageType.COLLIDED);
+        declareParallelSafe();
         this.strength = strength;
     }
 
@@ -28,6 +28,7 @@ public class InventoryBehavior extends AbstractBehavior {
 
     public InventoryBehavior(final Entity owner) {
         super(owner);
+        handleMessages();
         // TODO Auto-generated constructor stub
     }
 
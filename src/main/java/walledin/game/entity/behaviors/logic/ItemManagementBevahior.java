@@ -40,6 +40,7 @@ public class ItemManagementBevahior extends AbstractBehavior {
 
     public ItemManagementBevahior(final Entity owner, final Set<ItemInfo> items) {
         super(owner);
+        handleMessages();
         this.items = items;
     }
 
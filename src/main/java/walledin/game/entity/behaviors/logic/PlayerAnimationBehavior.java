@@ -38,6 +38,7 @@ public class PlayerAnimationBehavior extends AnimationBehavior {
 
     public PlayerAnimationBehavior(final Entity owner) {
         super(owner);
+        handleAttributes(Attribute.VELOCITY);
         setAttribute(Attribute.WALK_ANIM_FRAME, new Float(0));
     }
 
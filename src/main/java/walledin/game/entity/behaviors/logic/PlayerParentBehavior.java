@@ -30,6 +30,8 @@ public class PlayerParentBehavior extends AbstractBehavior {
 
     public PlayerParentBehavior(final Entity owner) {
         super(owner);
+        handleAttributes(Attribute.CURSOR_POS, Attribute.POSITION,
+                Attribute.VELOCITY, Attribute.ORIENTATION_ANGLE);
     }
 
     /**
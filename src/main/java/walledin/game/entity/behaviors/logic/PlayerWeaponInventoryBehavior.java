@@ -40,6 +40,8 @@ public class PlayerWeaponInventoryBehavior extends AbstractBehavior {
 
     public PlayerWeaponInventoryBehavior(final Entity owner) {
         super(owner);
+        handleMessages(MessageType.DEATH, MessageType.COLLIDED,
+                MessageType.SELECT_WEAPON);
 
         weapons = new HashMap<Family, Entity>();
         weaponKeyMap = new HashMap<Integer, Family>();
@@ -23,6 +23,7 @@ package walledin.game.entity.behaviors.logic;
 import walledin.engine.math.AbstractGeometry;
 import walledin.engine.math.Rectangle;
 import walledin.engine.math.Vector2f;
+import walledin.game.collision.QuadTree;
 import walledin.game.collision.StaticObject;
 import walledin.game.entity.AbstractBehavior;
 import walledin.game.entity.Attribute;
@@ -38,9 +39,13 @@ import walledin.game.entity.MessageType;
  */
 public class StaticObjectBehavior extends AbstractBehavior implements
         StaticObject {
+    /** The quadtree node this object is stored in. */
+    private QuadTree quadTreeNode;
 
     public StaticObjectBehavior(final Entity owner) {
         super(owner);
+        handleMessages();
+        declareParallelSafe();
     }
 
     @Override
@@ -50,6 +55,16 @@ public class StaticObjectBehavior extends AbstractBehavior implements
                         (Vector2f) getAttribute(Attribute.POSITION));
     }
 
+    @Override
+    public QuadTree getQuadTreeNode() {
+        return quadTreeNode;
+    }
+
+    @Override
+    public void setQuadTreeNode(final QuadTree node) {
+        quadTreeNode = node;
+    }
+
     @Override
     public void onMessage(final MessageType messageType, final Object data) {
     }
@@ -23,10 +23,10 @@ package walledin.game.entity.behaviors.logic;
 import org.apache.log4j.Logger;
 
 import walledin.engine.math.Vector2f;
-import walledin.game.EntityManager;
 import walledin.game.collision.CollisionManager.CollisionData;
 import walledin.game.entity.Attribute;
 import walledin.game.entity.Entity;
+import walledin.game.entity.EntityFunction;
 import walledin.game.entity.Family;
 import walledin.game.entity.MessageType;
 
@@ -49,11 +49,13 @@ public class StickyFoamBulletBehavior extends BulletBehavior {
     }
 
     public final void spawnBullet() {
-        final EntityManager manager = getEntityManager();
-        final Entity particle = manager.create(Family.FOAM_PARTICLE);
-
-        particle.setAttribute(Attribute.POSITION,
-                getAttribute(Attribute.POSITION));
+        final Object position = getAttribute(Attribute.POSITION);
+        getEntityManager().create(Family.FOAM_PARTICLE, new EntityFunction() {
+            @Override
+            public void create(final Entity particle) {
+                particle.setAttribute(Attribute.POSITION, position);
+            }
+        });
         blownUp = true;
         getOwner().remove();
     }
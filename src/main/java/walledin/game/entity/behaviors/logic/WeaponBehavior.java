@@ -48,6 +48,9 @@ public class WeaponBehavior extends AbstractBehavior {
     public WeaponBehavior(final Entity owner, final int fireLag,
             final Family bulletFamily) {
         super(owner);
+        handleMessages(MessageType.PICK_UP, MessageType.DROP,
+                MessageType.SHOOT);
+        handleAttributes(Attribute.PICKED_UP);
         this.fireLag = fireLag;
         lastShot = fireLag;
         canShoot = true;
@@ -61,6 +64,9 @@ public class WeaponBehavior extends AbstractBehavior {
     public WeaponBehavior(final Entity owner, final int fireLag,
             final float bulletAcceleration, final Family bulletFamily) {
         super(owner);
+        handleMessages(MessageType.PICK_UP, MessageType.DROP,
+                MessageType.SHOOT);
+        handleAttributes(Attribute.PICKED_UP);
         this.fireLag = fireLag;
         lastShot = fireLag;
         canShoot = true;
@@ -131,6 +137,12 @@ public class WeaponBehavior extends AbstractBehavior {
                 bullet.setAttribute(Attribute.TARGET, target);
                 bullet.setAttribute(Attribute.OWNED_BY,
                         getAttribute(Attribute.OWNED_BY));
+                /* Bullets hit the players where the shooter saw them. */
+                if (bulletFamily.getParent() == Family.BULLET
+                        && player.hasAttribute(Attribute.REWIND_TICKS)) {
+                    bullet.setAttribute(Attribute.REWIND_TICKS, player
+                            .getAttribute(Attribute.REWIND_TICKS));
+                }
                 bullet.sendMessage(MessageType.APPLY_FORCE, bulletAcceleration);
 
                 canShoot = false;
@@ -22,6 +22,7 @@ package walledin.game.entity.behaviors.physics;
 
 import org.apache.log4j.Logger;
 
+import walledin.engine.math.MutableVector2f;
 import walledin.engine.math.Vector2f;
 import walledin.game.entity.AbstractBehavior;
 import walledin.game.entity.Attribute;
@@ -49,7 +50,11 @@ public class PhysicsBehavior extends AbstractBehavior {
     /** The current velocity. */
     private Vector2f velocity;
     /** The current acceleration. */
-    private Vector2f acceleration;
+    private final MutableVector2f acceleration;
+    /** The system that integrates this body, or null to integrate it here. */
+    private final PhysicsSystem system;
+    /** The slot of this body in the system, or -1 if it has none. */
+    private int slot;
 
     /**
      * Creates a new standard physics behavior that gives the object gravity and
@@ -79,7 +84,16 @@ public class PhysicsBehavior extends AbstractBehavior {
     public PhysicsBehavior(final Entity owner, final float mass,
             final boolean doGravity, final boolean doFriction) {
         super(owner);
-        acceleration = new Vector2f();
+        handleMessages(MessageType.APPLY_FORCE);
+        handleAttributes(Attribute.POSITION, Attribute.VELOCITY);
+        declareParallelSafe();
+        acceleration = new MutableVector2f();
+        if (owner.getEntityManager() != null) {
+            system = owner.getEntityManager().getPhysicsSystem();
+        } else {
+            system = null;
+        }
+        slot = -1;
 
         if (mass == 0) {
             LOG.warn("Mass of " + getOwner().getName()
@@ -114,10 +128,43 @@ public class PhysicsBehavior extends AbstractBehavior {
         }
     }
 
+    float getMass() {
+        return mass;
+    }
+
+    float getGravity() {
+        return gravity.getY();
+    }
+
+    float getFrictionCoefficient() {
+        return frictionCoefficient;
+    }
+
+    void setSlot(final int slot) {
+        this.slot = slot;
+    }
+
+    /**
+     * Returns the slot of this body in the system, and adds it to the system
+     * if it has no slot yet. The system adds the body when its entity is
+     * added, so this does not add bodies during a parallel update.
+     */
+    int getSlot() {
+        if (slot < 0) {
+            slot = system.add(this);
+        }
+        return slot;
+    }
+
     @Override
     public void onMessage(final MessageType messageType, final Object data) {
-        if (messageType == MessageType.APPLY_FORCE) {
-            acceleration = acceleration.add(((Vector2f) data).scale(1 / mass));
+        if (system != null) {
+            onSystemMessage(messageType, data);
+        } else if (messageType == MessageType.APPLY_FORCE) {
+            final Vector2f force = (Vector2f) data;
+            final float inverseMass = 1 / mass;
+            acceleration.add(force.getX() * inverseMass, force.getY()
+                    * inverseMass);
         } else if (messageType == MessageType.ATTRIBUTE_SET) {
             final Attribute attribute = (Attribute) data;
             switch (attribute) {
@@ -133,25 +180,55 @@ public class PhysicsBehavior extends AbstractBehavior {
         }
     }
 
+    /**
+     * Forwards forces and changes of the position and velocity to the system.
+     */
+    private void onSystemMessage(final MessageType messageType,
+            final Object data) {
+        if (messageType == MessageType.APPLY_FORCE) {
+            system.applyForce(getSlot(), (Vector2f) data);
+        } else if (messageType == MessageType.ATTRIBUTE_SET && slot >= 0
+                && !system.isWritingBack()) {
+            final Attribute attribute = (Attribute) data;
+            switch (attribute) {
+            case POSITION:
+                system.setPosition(slot, (Vector2f) getAttribute(attribute));
+                break;
+            case VELOCITY:
+                system.setVelocity(slot, (Vector2f) getAttribute(attribute));
+                break;
+            default:
+                break;
+            }
+        }
+    }
+
     @Override
     public void onUpdate(final double delta) {
-        acceleration = acceleration.add(gravity);
+        if (system != null) {
+            // The system integrates the body after all entities are updated
+            system.activate(getSlot());
+            return;
+        }
+        acceleration.add(gravity);
 
         // add friction
-        acceleration = acceleration.add(new Vector2f(-Math.signum(velocity
-                .getX())
-                * velocity.getX()
-                * velocity.getX()
-                * frictionCoefficient, -Math.signum(velocity.getY())
-                * velocity.getY() * velocity.getY() * frictionCoefficient));
-
-        final Vector2f velNew = velocity.add(acceleration.scale((float) delta));
-        final Vector2f posNew = position.add(velNew.scale((float) delta));
+        acceleration.add(-Math.signum(velocity.getX()) * velocity.getX()
+                * velocity.getX() * frictionCoefficient,
+                -Math.signum(velocity.getY()) * velocity.getY()
+                        * velocity.getY() * frictionCoefficient);
+
+        final float dt = (float) delta;
+        final Vector2f velNew = new Vector2f(velocity.getX()
+                + acceleration.getX() * dt, velocity.getY()
+                + acceleration.getY() * dt);
+        final Vector2f posNew = new Vector2f(position.getX() + velNew.getX()
+                * dt, position.getY() + velNew.getY() * dt);
 
         setAttribute(Attribute.VELOCITY, velNew);
         setAttribute(Attribute.POSITION, posNew);
 
-        acceleration = new Vector2f(0, 0);
+        acceleration.set(0, 0);
     }
 
 }
@@ -0,0 +1,290 @@
+/*  Copyright 2010 Ben Ruijl, Wouter Smeenk
+
+This file is part of Walled In.
+
+Walled In is free software; you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation; either version 3, or (at your option)
+any later version.
+
+Walled In is distributed in the hope that it will be useful, but
+WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with Walled In; see the file LICENSE.  If not, write to the
+Free Software Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA
+02111-1307 USA.
+
+ */
+package walledin.game.entity.behaviors.physics;
+
+import java.util.Arrays;
+
+import walledin.engine.math.Vector2f;
+import walledin.game.entity.Attribute;
+import walledin.game.entity.Entity;
+
+/**
+ * Integrates all physics bodies in one loop. The state of the bodies is kept
+ * in primitive arrays indexed by a dense slot, instead of in the physics
+ * behaviors. A physics behavior of an entity manager with a physics system
+ * only forwards forces and attribute changes to its slot.
+ * 
+ * A body takes part in an update only if its behavior was updated in that
+ * tick. Bodies of entities that were removed, or of behaviors that were
+ * removed from their entity, are released in the next update. Bodies added
+ * since the last update are kept until the update after that, so the forces
+ * applied to new entities are not lost. After the
+ * integration the position and velocity attributes of the moved bodies are
+ * set, so the rest of the game sees the same attributes as without a physics
+ * system.
+ * 
+ * The entity manager adds the body of an entity when the entity is added, on
+ * the updating thread. When the entities are updated on several threads at
+ * the same time, every behavior therefore only writes to its own slot, which
+ * needs no locks. Slots are only added and released outside of that.
+ * 
+ * @author Ben Ruijl
+ * 
+ */
+public class PhysicsSystem {
+    /** The initial number of slots. */
+    private static final int INITIAL_CAPACITY = 64;
+
+    /** The behaviors of the bodies, by slot. */
+    private PhysicsBehavior[] bodies;
+    /** True if the behavior of the body was updated since the last update. */
+    private boolean[] active;
+    /** True if the body was added since the last update. */
+    private boolean[] added;
+    private float[] positionX;
+    private float[] positionY;
+    private float[] velocityX;
+    private float[] velocityY;
+    /** The acceleration of the forces applied since the last update. */
+    private float[] accelerationX;
+    private float[] accelerationY;
+    /** One divided by the mass. */
+    private float[] inverseMass;
+    /** The downwards acceleration by gravity. */
+    private float[] gravity;
+    private float[] friction;
+    /** The number of slots in use. */
+    private int count;
+    /** True while the attributes of the bodies are being set. */
+    private boolean writingBack;
+
+    public PhysicsSystem() {
+        bodies = new PhysicsBehavior[INITIAL_CAPACITY];
+        active = new boolean[INITIAL_CAPACITY];
+        added = new boolean[INITIAL_CAPACITY];
+        positionX = new float[INITIAL_CAPACITY];
+        positionY = new float[INITIAL_CAPACITY];
+        velocityX = new float[INITIAL_CAPACITY];
+        velocityY = new float[INITIAL_CAPACITY];
+        accelerationX = new float[INITIAL_CAPACITY];
+        accelerationY = new float[INITIAL_CAPACITY];
+        inverseMass = new float[INITIAL_CAPACITY];
+        gravity = new float[INITIAL_CAPACITY];
+        friction = new float[INITIAL_CAPACITY];
+    }
+
+    private void grow() {
+        final int capacity = bodies.length * 2;
+        bodies = Arrays.copyOf(bodies, capacity);
+        active = Arrays.copyOf(active, capacity);
+        added = Arrays.copyOf(added, capacity);
+        positionX = Arrays.copyOf(positionX, capacity);
+        positionY = Arrays.copyOf(positionY, capacity);
+        velocityX = Arrays.copyOf(velocityX, capacity);
+        velocityY = Arrays.copyOf(velocityY, capacity);
+        accelerationX = Arrays.copyOf(accelerationX, capacity);
+        accelerationY = Arrays.copyOf(accelerationY, capacity);
+        inverseMass = Arrays.copyOf(inverseMass, capacity);
+        gravity = Arrays.copyOf(gravity, capacity);
+        friction = Arrays.copyOf(friction, capacity);
+    }
+
+    /**
+     * Adds a body. Its position and velocity are read from the attributes of
+     * its owner.
+     * 
+     * @param body
+     *            The behavior of the body
+     * @return The slot of the body
+     */
+    int add(final PhysicsBehavior body) {
+        if (count == bodies.length) {
+            grow();
+        }
+        final int slot = count;
+        count++;
+        bodies[slot] = body;
+        active[slot] = false;
+        added[slot] = true;
+        accelerationX[slot] = 0;
+        accelerationY[slot] = 0;
+        inverseMass[slot] = 1 / body.getMass();
+        gravity[slot] = body.getGravity();
+        friction[slot] = body.getFrictionCoefficient();
+        setPosition(slot, (Vector2f) body.getOwner().getAttribute(
+                Attribute.POSITION));
+        setVelocity(slot, (Vector2f) body.getOwner().getAttribute(
+                Attribute.VELOCITY));
+        return slot;
+    }
+
+    /**
+     * Adds the body of an entity if it has one that has no slot yet. Should be
+     * called on the updating thread when the entity is added.
+     * 
+     * @param entity
+     *            The entity
+     */
+    public void addBody(final Entity entity) {
+        if (entity.hasBehavior(PhysicsBehavior.class)) {
+            entity.getBehavior(PhysicsBehavior.class).getSlot();
+        }
+    }
+
+    /**
+     * Releases a slot. The last body is moved into it, so the slots stay
+     * dense.
+     */
+    private void release(final int slot) {
+        bodies[slot].setSlot(-1);
+        count--;
+        if (slot != count) {
+            bodies[slot] = bodies[count];
+            active[slot] = active[count];
+            added[slot] = added[count];
+            positionX[slot] = positionX[count];
+            positionY[slot] = positionY[count];
+            velocityX[slot] = velocityX[count];
+            velocityY[slot] = velocityY[count];
+            accelerationX[slot] = accelerationX[count];
+            accelerationY[slot] = accelerationY[count];
+            inverseMass[slot] = inverseMass[count];
+            gravity[slot] = gravity[count];
+            friction[slot] = friction[count];
+            bodies[slot].setSlot(slot);
+        }
+        bodies[count] = null;
+    }
+
+    /**
+     * Marks a body to take part in the next update.
+     * 
+     * @param slot
+     *            The slot of the body
+     */
+    void activate(final int slot) {
+        active[slot] = true;
+    }
+
+    void applyForce(final int slot, final Vector2f force) {
+        accelerationX[slot] += force.getX() * inverseMass[slot];
+        accelerationY[slot] += force.getY() * inverseMass[slot];
+    }
+
+    void setPosition(final int slot, final Vector2f position) {
+        positionX[slot] = position.getX();
+        positionY[slot] = position.getY();
+    }
+
+    void setVelocity(final int slot, final Vector2f velocity) {
+        velocityX[slot] = velocity.getX();
+        velocityY[slot] = velocity.getY();
+    }
+
+    /**
+     * Returns true while the system sets the attributes of the bodies, so
+     * the behaviors do not have to copy them back.
+     * 
+     * @return True while the attributes are set
+     */
+    boolean isWritingBack() {
+        return writingBack;
+    }
+
+    /**
+     * Returns the number of bodies.
+     * 
+     * @return The number of bodies
+     */
+    public int getBodyCount() {
+        return count;
+    }
+
+    /**
+     * Integrates the bodies that were updated since the last update, with
+     * the same gravity and friction as a physics behavior without a system.
+     * 
+     * @param delta
+     *            Time since last update in seconds
+     */
+    public void update(final double delta) {
+        for (int i = count - 1; i >= 0; i--) {
+            if (!active[i] && !added[i]) {
+                release(i);
+            }
+        }
+
+        final float dt = (float) delta;
+        // Bodies added while setting the attributes wait for the next update
+        final int bodyCount = count;
+        for (int i = 0; i < bodyCount; i++) {
+            if (!active[i]) {
+                continue;
+            }
+            final float vx = velocityX[i];
+            final float vy = velocityY[i];
+            final float ax = accelerationX[i] - Math.signum(vx) * vx * vx
+                    * friction[i];
+            final float ay = accelerationY[i] + gravity[i] - Math.signum(vy)
+                    * vy * vy * friction[i];
+            velocityX[i] = vx + ax * dt;
+            velocityY[i] = vy + ay * dt;
+            positionX[i] += velocityX[i] * dt;
+            positionY[i] += velocityY[i] * dt;
+            accelerationX[i] = 0;
+            accelerationY[i] = 0;
+        }
+
+        writingBack = true;
+        try {
+            for (int i = 0; i < bodyCount; i++) {
+                if (active[i]) {
+                    writeBack(i);
+                }
+                active[i] = false;
+                added[i] = false;
+            }
+        } finally {
+            writingBack = false;
+        }
+    }
+
+    /**
+     * Sets the velocity and position attributes of a body, if they changed.
+     */
+    private void writeBack(final int slot) {
+        final PhysicsBehavior body = bodies[slot];
+        final Vector2f velocity = (Vector2f) body.getOwner().getAttribute(
+                Attribute.VELOCITY);
+        if (velocity.getX() != velocityX[slot]
+                || velocity.getY() != velocityY[slot]) {
+            body.getOwner().setAttribute(Attribute.VELOCITY,
+                    new Vector2f(velocityX[slot], velocityY[slot]));
+        }
+        final Vector2f position = (Vector2f) body.getOwner().getAttribute(
+                Attribute.POSITION);
+        if (position.getX() != positionX[slot]
+                || position.getY() != positionY[slot]) {
+            body.getOwner().setAttribute(Attribute.POSITION,
+                    new Vector2f(positionX[slot], positionY[slot]));
+        }
+    }
+}
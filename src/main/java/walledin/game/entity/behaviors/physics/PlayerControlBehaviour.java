@@ -43,6 +43,8 @@ public class PlayerControlBehaviour extends AbstractBehavior {
 
     public PlayerControlBehaviour(final Entity owner) {
         super(owner);
+        handleMessages(MessageType.COLLIDED, MessageType.DROP);
+        handleAttributes(Attribute.PLAYER_ACTIONS);
         playerActions = new HashSet<PlayerAction>();
         setAttribute(Attribute.PLAYER_ACTIONS, playerActions);
     }
@@ -80,25 +82,45 @@ public class PlayerControlBehaviour extends AbstractBehavior {
         }
     }
 
-    @Override
-    public void onUpdate(final double delta) {
+    /**
+     * Calculates the force that moves the player. The client uses this to
+     * predict the movement of its own player.
+     * 
+     * @param playerActions
+     *            The actions of the player
+     * @param canJump
+     *            True if the player is standing on something
+     * @return The force to apply to the player
+     */
+    public static Vector2f getMovementForce(
+            final Set<PlayerAction> playerActions, final boolean canJump) {
         float x = 0;
         float y = 0;
 
         if (playerActions.contains(PlayerAction.WALK_RIGHT)) {
             x += MOVE_SPEED;
-            setAttribute(Attribute.ORIENTATION_ANGLE, Float.valueOf(0));
-
         }
 
         if (playerActions.contains(PlayerAction.WALK_LEFT)) {
             x -= MOVE_SPEED;
-            setAttribute(Attribute.ORIENTATION_ANGLE, (float) Math.PI);
         }
 
         if (canJump && playerActions.contains(PlayerAction.JUMP)) {
             y -= JUMP_SPEED;
         }
+        return new Vector2f(x, y);
+    }
+
+    @Override
+    public void onUpdate(final double delta) {
+        if (playerActions.contains(PlayerAction.WALK_RIGHT)) {
+            setAttribute(Attribute.ORIENTATION_ANGLE, Float.valueOf(0));
+
+        }
+
+        if (playerActions.contains(PlayerAction.WALK_LEFT)) {
+            setAttribute(Attribute.ORIENTATION_ANGLE, (float) Math.PI);
+        }
 
         if (playerActions.contains(PlayerAction.SELECT_WEAPON_1)) {
             getOwner().sendMessage(MessageType.SELECT_WEAPON,
@@ -131,7 +153,8 @@ public class PlayerControlBehaviour extends AbstractBehavior {
             weapon.sendMessage(MessageType.SHOOT, getOwner());
         }
 
-        getOwner().sendMessage(MessageType.APPLY_FORCE, new Vector2f(x, y));
+        getOwner().sendMessage(MessageType.APPLY_FORCE,
+                getMovementForce(playerActions, canJump));
         canJump = false;
     }
 }
@@ -30,6 +30,7 @@ public class BackgroundRenderBehavior extends RenderBehavior {
 
     public BackgroundRenderBehavior(final Entity owner) {
         super(owner, ZValue.BACKGROUND);
+        handleMessages(MessageType.RENDER);
     }
 
     @Override
@@ -34,6 +34,7 @@ public class CursorRenderBehavior extends RenderBehavior {
 
     public CursorRenderBehavior(final Entity owner, final ZValue z) {
         super(owner, z);
+        handleMessages(MessageType.RENDER);
         // TODO Auto-generated constructor stub
     }
 
@@ -44,6 +44,7 @@ public class ItemRenderBehavior extends RenderBehavior {
     public ItemRenderBehavior(final Entity owner, final String texPart,
             final AbstractGeometry destRect) {
         super(owner, ZValue.ITEM);
+        handleMessages(MessageType.RENDER);
 
         this.texPart = texPart;
         itemRect = destRect.asRectangle();
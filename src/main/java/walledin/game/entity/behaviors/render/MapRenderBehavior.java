@@ -58,6 +58,9 @@ public class MapRenderBehavior extends RenderBehavior {
      */
     public MapRenderBehavior(final Entity owner) {
         super(owner, ZValue.MAP);
+        handleMessages(MessageType.RENDER);
+        handleAttributes(Attribute.HEIGHT, Attribute.WIDTH, Attribute.TILES,
+                Attribute.TILE_WIDTH);
         tiles = new ArrayList<Tile>();
     }
 
@@ -44,6 +44,7 @@ public class PlayerRenderBehavior extends RenderBehavior {
 
     public PlayerRenderBehavior(final Entity owner) {
         super(owner, ZValue.PLAYER);
+        handleMessages(MessageType.RENDER);
 
         scale = new Vector2f(0.5f, 0.5f); // standard scale
     }
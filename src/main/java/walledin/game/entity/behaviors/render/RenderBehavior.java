@@ -30,6 +30,7 @@ public class RenderBehavior extends AbstractBehavior {
 
     public RenderBehavior(final Entity owner, final ZValue z) {
         super(owner);
+        handleMessages();
 
         setAttribute(Attribute.Z_INDEX, z.getZ());
     }
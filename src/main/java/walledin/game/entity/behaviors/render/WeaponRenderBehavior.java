@@ -44,6 +44,7 @@ public class WeaponRenderBehavior extends RenderBehavior {
     public WeaponRenderBehavior(final Entity owner, final String texPart,
             final Rectangle destRect) {
         super(owner, ZValue.WEAPON);
+        handleMessages(MessageType.RENDER);
 
         this.texPart = texPart;
         weaponRect = destRect;
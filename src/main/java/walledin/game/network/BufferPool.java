@@ -0,0 +1,288 @@
+/*  Copyright 2010 Ben Ruijl, Wouter Smeenk
+
+This file is part of Walled In.
+
+Walled In is free software; you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation; either version 3, or (at your option)
+any later version.
+
+Walled In is distributed in the hope that it will be useful, but
+WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with Walled In; see the file LICENSE.  If not, write to the
+Free Software Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA
+02111-1307 USA.
+
+ */
+package walledin.game.network;
+
+import java.nio.ByteBuffer;
+import java.util.IdentityHashMap;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.log4j.Logger;
+
+import walledin.util.SettingsManager;
+
+/**
+ * A pool of direct byte buffers. Channels can send and receive direct buffers
+ * without copying them to a temporary direct buffer first, but direct buffers
+ * are expensive to allocate, so they are reused.
+ * 
+ * Buffers are pooled in size classes that are a power of two, from
+ * <code>MIN_SIZE</code> up to <code>NetworkConstants.BUFFER_SIZE</code>. A
+ * borrowed buffer is cleared and at least as large as requested. Every
+ * borrowed buffer should be released exactly once, after which it should not
+ * be used anymore. The pool can be used by multiple threads, so a buffer can be
+ * released by another thread than the one that borrowed it.
+ * 
+ * If <code>network.bufferPoolDebug</code> is set, the pool remembers where
+ * every buffer was borrowed, and logs the buffers that are not released for a
+ * long time and the buffers that are released twice. With assertions enabled,
+ * a buffer that is released twice while it is still in the pool fails an
+ * assertion.
+ * 
+ * @author Wouter Smeenk
+ * 
+ */
+public final class BufferPool {
+    private static final Logger LOG = Logger.getLogger(BufferPool.class);
+
+    /** The size of the smallest size class. Fits a datagram. */
+    public static final int MIN_SIZE = 2048;
+    /** The maximum amount of bytes that is kept in the pool per size class. */
+    private static final int MAX_POOLED_BYTES = 1024 * 1024;
+    /** The minimum amount of buffers that is kept in the pool per size class. */
+    private static final int MIN_POOLED_BUFFERS = 8;
+    /** Time in milliseconds after which a borrowed buffer is reported. */
+    private static final long LEAK_TIME = 10000;
+    /** The number of borrows between checks for leaks. */
+    private static final int LEAK_CHECK_INTERVAL = 1024;
+
+    private static BufferPool ref = null;
+
+    /** Where and when a buffer was borrowed. Only used when debugging. */
+    private static final class Borrow {
+        private final Throwable trace;
+        private final long time;
+        private boolean reported;
+
+        private Borrow(final Throwable trace, final long time) {
+            this.trace = trace;
+            this.time = time;
+        }
+    }
+
+    /** The free buffers of a size class. */
+    private static final class FreeList {
+        private final Queue<ByteBuffer> buffers;
+        /** The number of buffers, which is slow to get from the queue. */
+        private final AtomicInteger count;
+        /** The maximum number of buffers that is kept. */
+        private final int maxCount;
+
+        private FreeList(final int maxCount) {
+            buffers = new ConcurrentLinkedQueue<ByteBuffer>();
+            count = new AtomicInteger();
+            this.maxCount = maxCount;
+        }
+
+        /**
+         * Checks if a buffer is in the list. Slow, only used in assertions.
+         */
+        private boolean contains(final ByteBuffer buffer) {
+            for (final ByteBuffer free : buffers) {
+                if (free == buffer) {
+                    return true;
+                }
+            }
+            return false;
+        }
+    }
+
+    /** The free buffers of every size class. */
+    private final FreeList[] freeLists;
+    /** The number of buffers that have been borrowed and not released. */
+    private final AtomicInteger borrowedCount;
+    /** The number of buffers that have been allocated. */
+    private final AtomicInteger allocatedCount;
+    /** The borrowed buffers, or null if not debugging. */
+    private final Map<ByteBuffer, Borrow> borrowed;
+    /** The number of borrows since the last leak check. */
+    private int borrowsSinceCheck;
+
+    /**
+     * Creates a new pool.
+     * 
+     * @param debug
+     *            True to track the borrowed buffers
+     */
+    public BufferPool(final boolean debug) {
+        final int classes = sizeClass(NetworkConstants.BUFFER_SIZE) + 1;
+        freeLists = new FreeList[classes];
+        for (int i = 0; i < classes; i++) {
+            freeLists[i] = new FreeList(Math.max(MIN_POOLED_BUFFERS,
+                    MAX_POOLED_BYTES / classSize(i)));
+        }
+        borrowedCount = new AtomicInteger();
+        allocatedCount = new AtomicInteger();
+        if (debug) {
+            borrowed = new IdentityHashMap<ByteBuffer, Borrow>();
+        } else {
+            borrowed = null;
+        }
+    }
+
+    /**
+     * Returns the pool that is shared by the network code.
+     * 
+     * @return the shared pool
+     */
+    public static synchronized BufferPool getInstance() {
+        if (ref == null) {
+            final Boolean debug = SettingsManager.getInstance().getBoolean(
+                    "network.bufferPoolDebug");
+            ref = new BufferPool(debug != null && debug);
+        }
+        return ref;
+    }
+
+    /**
+     * Returns the size class of a buffer size.
+     * 
+     * @param size
+     *            The size
+     * @return The index of the smallest size class that fits the size
+     */
+    private static int sizeClass(final int size) {
+        if (size <= MIN_SIZE) {
+            return 0;
+        }
+        return 32 - Integer.numberOfLeadingZeros(size - 1)
+                - Integer.numberOfTrailingZeros(MIN_SIZE);
+    }
+
+    private static int classSize(final int sizeClass) {
+        return MIN_SIZE << sizeClass;
+    }
+
+    /**
+     * Borrows a buffer. The buffer is cleared, so its limit is its capacity.
+     * Buffers that are larger than the largest size class are not pooled.
+     * 
+     * @param size
+     *            The minimum capacity of the buffer
+     * @return A direct buffer
+     */
+    public ByteBuffer borrow(final int size) {
+        final int sizeClass = sizeClass(size);
+        ByteBuffer buffer = null;
+        if (sizeClass < freeLists.length) {
+            buffer = freeLists[sizeClass].buffers.poll();
+            if (buffer != null) {
+                freeLists[sizeClass].count.decrementAndGet();
+                buffer.clear();
+            }
+        }
+        if (buffer == null) {
+            buffer = ByteBuffer.allocateDirect(sizeClass < freeLists.length
+                    ? classSize(sizeClass) : size);
+            allocatedCount.incrementAndGet();
+        }
+        borrowedCount.incrementAndGet();
+        if (borrowed != null) {
+            trackBorrow(buffer);
+        }
+        return buffer;
+    }
+
+    /**
+     * Returns a buffer to the pool.
+     * 
+     * @param buffer
+     *            A buffer that was borrowed from this pool
+     */
+    public void release(final ByteBuffer buffer) {
+        if (borrowed != null && !trackRelease(buffer)) {
+            return;
+        }
+        borrowedCount.decrementAndGet();
+        final int sizeClass = sizeClass(buffer.capacity());
+        // Buffers that are not of a size class are left to the collector
+        if (sizeClass >= freeLists.length
+                || buffer.capacity() != classSize(sizeClass)) {
+            return;
+        }
+        final FreeList freeList = freeLists[sizeClass];
+        assert !freeList.contains(buffer) : "Released a buffer twice";
+        if (freeList.count.incrementAndGet() <= freeList.maxCount) {
+            freeList.buffers.offer(buffer);
+        } else {
+            freeList.count.decrementAndGet();
+        }
+    }
+
+    private void trackBorrow(final ByteBuffer buffer) {
+        synchronized (borrowed) {
+            borrowed.put(buffer, new Borrow(new Throwable("Borrowed here"),
+                    System.currentTimeMillis()));
+            borrowsSinceCheck++;
+            if (borrowsSinceCheck >= LEAK_CHECK_INTERVAL) {
+                borrowsSinceCheck = 0;
+                checkLeaks();
+            }
+        }
+    }
+
+    private boolean trackRelease(final ByteBuffer buffer) {
+        synchronized (borrowed) {
+            if (borrowed.remove(buffer) == null) {
+                LOG.error("Released a buffer that is not borrowed",
+                        new Throwable("Released here"));
+                return false;
+            }
+            return true;
+        }
+    }
+
+    /**
+     * Logs the buffers that have been borrowed for a long time. Every buffer
+     * is only reported once. Should be called while holding the lock on the
+     * borrowed buffers.
+     */
+    private void checkLeaks() {
+        final long now = System.currentTimeMillis();
+        for (final Borrow borrow : borrowed.values()) {
+            if (!borrow.reported && now - borrow.time > LEAK_TIME) {
+                borrow.reported = true;
+                LOG.warn("A buffer has not been released for "
+                        + (now - borrow.time) + " ms", borrow.trace);
+            }
+        }
+    }
+
+    /**
+     * Returns the number of buffers that have been borrowed and not released.
+     * 
+     * @return the number of borrowed buffers
+     */
+    public int getBorrowedCount() {
+        return borrowedCount.get();
+    }
+
+    /**
+     * Returns the number of buffers that have been allocated by this pool.
+     * 
+     * @return the number of allocated buffers
+     */
+    public int getAllocatedCount() {
+        return allocatedCount.get();
+    }
+}
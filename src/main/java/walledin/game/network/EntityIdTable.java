@@ -0,0 +1,123 @@
+/*  Copyright 2010 Ben Ruijl, Wouter Smeenk
+
+This file is part of Walled In.
+
+Walled In is free software; you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation; either version 3, or (at your option)
+any later version.
+
+Walled In is distributed in the hope that it will be useful, but
+WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with Walled In; see the file LICENSE.  If not, write to the
+Free Software Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA
+02111-1307 USA.
+
+ */
+package walledin.game.network;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import walledin.game.EntityManager;
+
+/**
+ * Maps the numeric entity ids used in compact game states to entity names.
+ * The ids are learned from the created entities in the game states. Ids of
+ * removed entities are kept until the removal has been applied, because older
+ * game states can still refer to them.
+ * 
+ * @author Wouter Smeenk
+ * 
+ */
+public class EntityIdTable {
+    private final Map<Integer, String> names;
+    private final Map<String, Integer> ids;
+    /** The ids of the entities that were removed in the received game states. */
+    private final List<Integer> removedIds;
+
+    public EntityIdTable() {
+        names = new HashMap<Integer, String>();
+        ids = new HashMap<String, Integer>();
+        removedIds = new ArrayList<Integer>();
+    }
+
+    /**
+     * Stores the name of an entity id.
+     * 
+     * @param id
+     *            The id of the entity
+     * @param name
+     *            The name of the entity
+     */
+    public void put(final int id, final String name) {
+        names.put(id, name);
+        ids.put(name, id);
+    }
+
+    /**
+     * Returns the name of an entity id.
+     * 
+     * @param id
+     *            The id of the entity
+     * @return The name of the entity or null if the id is unknown
+     */
+    public String getName(final int id) {
+        return names.get(id);
+    }
+
+    /**
+     * Marks an id as removed. It is forgotten by the next call to
+     * {@link #prune(EntityManager, QuantizedVectorHistory)} if the entity does not exist anymore.
+     * 
+     * @param id
+     *            The id of the removed entity
+     */
+    public void markRemoved(final int id) {
+        removedIds.add(id);
+    }
+
+    /**
+     * Forgets the removed ids of the entities that do not exist anymore or
+     * have been replaced by an entity with the same name.
+     * 
+     * @param entityManager
+     *            The entity manager the game states are applied to
+     * @param history
+     *            The vectors of the entities, which are forgotten as well
+     */
+    public void prune(final EntityManager entityManager,
+            final QuantizedVectorHistory history) {
+        for (int i = 0; i < removedIds.size(); i++) {
+            final Integer id = removedIds.get(i);
+            final String name = names.get(id);
+            if (name == null) {
+                continue;
+            }
+            final boolean replaced = !id.equals(ids.get(name));
+            if (replaced || entityManager.get(name) == null) {
+                names.remove(id);
+                history.remove(id);
+                if (!replaced) {
+                    ids.remove(name);
+                }
+            }
+        }
+        removedIds.clear();
+    }
+
+    /**
+     * Forgets all ids.
+     */
+    public void clear() {
+        names.clear();
+        ids.clear();
+        removedIds.clear();
+    }
+}
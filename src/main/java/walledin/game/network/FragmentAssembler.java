@@ -0,0 +1,184 @@
+/*  Copyright 2010 Ben Ruijl, Wouter Smeenk
+
+This file is part of Walled In.
+
+Walled In is free software; you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation; either version 3, or (at your option)
+any later version.
+
+Walled In is distributed in the hope that it will be useful, but
+WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with Walled In; see the file LICENSE.  If not, write to the
+Free Software Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA
+02111-1307 USA.
+
+ */
+package walledin.game.network;
+
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Reassembles messages that have been split in fragments by the
+ * {@link NetworkMessageWriter}. A message is dropped if not all of its
+ * fragments have been received within the timeout, or if too many messages
+ * are being reassembled at the same time.
+ * 
+ * @author Wouter Smeenk
+ * 
+ */
+public class FragmentAssembler {
+    private static final Logger LOG = Logger.getLogger(FragmentAssembler.class);
+    /** The size of the payload of a fragment. */
+    private static final int FRAGMENT_PAYLOAD_SIZE = NetworkConstants.MAX_DATAGRAM_SIZE
+            - NetworkConstants.FRAGMENT_HEADER_SIZE;
+    /** The messages being reassembled, oldest first. */
+    private final Map<MessageKey, PartialMessage> partialMessages;
+
+    public FragmentAssembler() {
+        partialMessages = new LinkedHashMap<MessageKey, PartialMessage>();
+    }
+
+    private static class MessageKey {
+        private final SocketAddress address;
+        private final int sequence;
+
+        public MessageKey(final SocketAddress address, final int sequence) {
+            this.address = address;
+            this.sequence = sequence;
+        }
+
+        @Override
+        public int hashCode() {
+            return address.hashCode() * 31 + sequence;
+        }
+
+        @Override
+        public boolean equals(final Object obj) {
+            if (!(obj instanceof MessageKey)) {
+                return false;
+            }
+            final MessageKey other = (MessageKey) obj;
+            return sequence == other.sequence && address.equals(other.address);
+        }
+    }
+
+    private static class PartialMessage {
+        private final byte[] data;
+        private final boolean[] received;
+        private final long startTime;
+        private int receivedCount;
+        private int length;
+
+        public PartialMessage(final int count, final long startTime) {
+            data = new byte[count * FRAGMENT_PAYLOAD_SIZE];
+            received = new boolean[count];
+            this.startTime = startTime;
+        }
+    }
+
+    /**
+     * Adds a fragment. The buffer should be positioned after the
+     * identification of the datagram. If the fragment completes the message,
+     * the message is written to the target buffer.
+     * 
+     * @param address
+     *            The address the fragment was received from
+     * @param buffer
+     *            The buffer that contains the fragment
+     * @param target
+     *            The buffer the complete message is written to
+     * @return true if the message is complete and has been written to the
+     *         target buffer, else false
+     */
+    public boolean addFragment(final SocketAddress address,
+            final ByteBuffer buffer, final ByteBuffer target) {
+        final long time = System.currentTimeMillis();
+        dropExpired(time);
+
+        final int sequence = buffer.getInt();
+        final int index = buffer.getShort() & 0xFFFF;
+        final int count = buffer.getShort() & 0xFFFF;
+        if (index >= count || buffer.remaining() > FRAGMENT_PAYLOAD_SIZE
+                || count * FRAGMENT_PAYLOAD_SIZE > target.capacity()) {
+            LOG.warn("Received invalid fragment from " + address);
+            return false;
+        }
+
+        final MessageKey key = new MessageKey(address, sequence);
+        PartialMessage message = partialMessages.get(key);
+        if (message == null) {
+            if (partialMessages.size() >= NetworkConstants.MAX_PARTIAL_MESSAGES) {
+                // Drop the oldest message
+                final Iterator<PartialMessage> it = partialMessages.values()
+                        .iterator();
+                it.next();
+                it.remove();
+                LOG.warn("Too many incomplete messages, dropped the oldest");
+            }
+            message = new PartialMessage(count, time);
+            partialMessages.put(key, message);
+        } else if (message.received.length != count) {
+            LOG.warn("Received fragment with wrong count from " + address);
+            return false;
+        }
+
+        if (message.received[index]) {
+            // Duplicate
+            return false;
+        }
+
+        final int payloadSize = buffer.remaining();
+        if (index < count - 1 && payloadSize != FRAGMENT_PAYLOAD_SIZE) {
+            LOG.warn("Received fragment with wrong size from " + address);
+            return false;
+        }
+        buffer.get(message.data, index * FRAGMENT_PAYLOAD_SIZE, payloadSize);
+        message.received[index] = true;
+        message.receivedCount++;
+        if (index == count - 1) {
+            message.length = index * FRAGMENT_PAYLOAD_SIZE + payloadSize;
+        }
+
+        if (message.receivedCount < count) {
+            return false;
+        }
+
+        partialMessages.remove(key);
+        target.clear();
+        target.put(message.data, 0, message.length);
+        target.flip();
+        return true;
+    }
+
+    /**
+     * Drops the messages that have not been completed within the timeout.
+     */
+    private void dropExpired(final long time) {
+        final Iterator<PartialMessage> it = partialMessages.values()
+                .iterator();
+        while (it.hasNext()) {
+            final PartialMessage message = it.next();
+            if (time - message.startTime <= NetworkConstants.FRAGMENT_TIMEOUT) {
+                // The rest is newer
+                break;
+            }
+            it.remove();
+            if (LOG.isDebugEnabled()) {
+                LOG.debug("Dropped incomplete message, received "
+                        + message.receivedCount + " of "
+                        + message.received.length + " fragments");
+            }
+        }
+    }
+}
@@ -0,0 +1,97 @@
+/*  Copyright 2010 Ben Ruijl, Wouter Smeenk
+
+This file is part of Walled In.
+
+Walled In is free software; you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation; either version 3, or (at your option)
+any later version.
+
+Walled In is distributed in the hope that it will be useful, but
+WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with Walled In; see the file LICENSE.  If not, write to the
+Free Software Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA
+02111-1307 USA.
+
+ */
+package walledin.game.network;
+
+import java.util.EnumSet;
+import java.util.Set;
+
+import walledin.engine.math.Vector2f;
+import walledin.game.PlayerAction;
+
+/**
+ * The input of a player during a single update. The client samples a frame
+ * for every update of the server, and numbers the frames in order.
+ * 
+ * @author Wouter Smeenk
+ * 
+ */
+public class InputFrame {
+    private static final PlayerAction[] ACTIONS = PlayerAction.values();
+
+    /** The sequence number of the frame. */
+    private final int sequence;
+    /** The actions the player does. */
+    private final Set<PlayerAction> actions;
+    /** The position of the cursor in the world. */
+    private final Vector2f mousePos;
+
+    public InputFrame(final int sequence, final Set<PlayerAction> actions,
+            final Vector2f mousePos) {
+        this.sequence = sequence;
+        this.actions = actions;
+        this.mousePos = mousePos;
+    }
+
+    /**
+     * Converts a set of actions to a bit mask, with a bit for every action
+     * ordinal.
+     * 
+     * @param actions
+     *            The actions
+     * @return The bit mask
+     */
+    public static int toMask(final Set<PlayerAction> actions) {
+        int mask = 0;
+        for (final PlayerAction action : actions) {
+            mask |= 1 << action.ordinal();
+        }
+        return mask;
+    }
+
+    /**
+     * Converts a bit mask back to a set of actions.
+     * 
+     * @param mask
+     *            The bit mask
+     * @return The actions
+     */
+    public static Set<PlayerAction> fromMask(final int mask) {
+        final Set<PlayerAction> actions = EnumSet.noneOf(PlayerAction.class);
+        for (int i = 0; i < ACTIONS.length; i++) {
+            if ((mask & 1 << i) != 0) {
+                actions.add(ACTIONS[i]);
+            }
+        }
+        return actions;
+    }
+
+    public int getSequence() {
+        return sequence;
+    }
+
+    public Set<PlayerAction> getActions() {
+        return actions;
+    }
+
+    public Vector2f getMousePos() {
+        return mousePos;
+    }
+}
@@ -35,6 +35,22 @@ public final class NetworkConstants {
     // TODO: what is max upd size?
     public static final int BUFFER_SIZE = 1024 * 1024;
 
+    /**
+     * The maximum size of a datagram. Larger messages are split in fragments
+     * so they are not fragmented by IP, which often drops them.
+     */
+    public static final int MAX_DATAGRAM_SIZE = 1200;
+    /** The maximum size of a received datagram, the maximum size of UDP. */
+    public static final int MAX_RECEIVE_SIZE = 64 * 1024;
+    /** Identification of datagrams that contain a fragment of a message. */
+    public static final int FRAGMENT_IDENTIFICATION = 0x01546F8E;
+    /** Size of the fragment header: identification, sequence, index, count. */
+    public static final int FRAGMENT_HEADER_SIZE = 12;
+    /** Maximum number of messages that are reassembled at the same time. */
+    public static final int MAX_PARTIAL_MESSAGES = 16;
+    /** Time in milliseconds after which an incomplete message is dropped. */
+    public static final long FRAGMENT_TIMEOUT = 1000;
+
     public static final int MASTER_PROTOCOL_PORT = SettingsManager
             .getInstance().getInteger("network.masterServerPort");
     public static final SocketAddress MASTERSERVER_ADDRESS = new InetSocketAddress(
@@ -30,6 +30,7 @@ import walledin.game.network.messages.game.InputMessage;
 import walledin.game.network.messages.game.LoginMessage;
 import walledin.game.network.messages.game.LoginResponseMessage;
 import walledin.game.network.messages.game.LogoutMessage;
+import walledin.game.network.messages.game.ReliableMessage;
 import walledin.game.network.messages.game.TeamSelectMessage;
 import walledin.game.network.messages.masterserver.ChallengeMessage;
 import walledin.game.network.messages.masterserver.GetServersMessage;
@@ -66,4 +67,6 @@ public interface NetworkEventListener {
 
     void receivedMessage(SocketAddress address,
             ConsoleUpdateMessage message);
+
+    void receivedMessage(SocketAddress address, ReliableMessage message);
 }
@@ -28,6 +28,7 @@ import java.net.UnknownHostException;
 import java.nio.ByteBuffer;
 import java.nio.channels.DatagramChannel;
 import java.util.ArrayList;
+import java.util.EnumMap;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
@@ -37,9 +38,11 @@ import java.util.Set;
 import org.apache.log4j.Logger;
 
 import walledin.engine.math.Vector2f;
+import walledin.game.EntityManager;
 import walledin.game.entity.Attribute;
 import walledin.game.entity.Family;
 import walledin.game.gamemode.GameMode;
+import walledin.game.network.messages.NetworkMessage;
 import walledin.game.network.messages.game.AbstractGameMessage;
 import walledin.game.network.messages.masterserver.AbstractMasterServerMessage;
 import walledin.game.network.server.ChangeSet;
@@ -57,8 +60,17 @@ import walledin.game.network.server.ChangeSet;
 public class NetworkMessageReader {
     private static final Logger LOG = Logger
             .getLogger(NetworkMessageReader.class);
+    private static final Family[] FAMILIES = Family.values();
+    /** The received datagram, borrowed from the buffer pool. */
     private final ByteBuffer buffer;
+    private final FragmentAssembler fragmentAssembler;
     private final NetworkEventListener listener;
+    /** The ids of the entities in compact game states. */
+    private final EntityIdTable entityIdTable;
+    /** The precision of the vectors in compact game states. */
+    private final Quantization quantization;
+    /** The quantized vectors received in compact game states. */
+    private final QuantizedVectorHistory vectorHistory;
     /** Amount of bytes read so far */
     private long bytesRead;
     /** Amount of messages read so far */
@@ -66,10 +78,51 @@ public class NetworkMessageReader {
 
     public NetworkMessageReader(final NetworkEventListener listener) {
         this.listener = listener;
-        buffer = ByteBuffer.allocate(NetworkConstants.BUFFER_SIZE);
+        // Used for as long as the reader, so it is not borrowed from the pool
+        buffer = ByteBuffer.allocateDirect(NetworkConstants.MAX_RECEIVE_SIZE);
+        fragmentAssembler = new FragmentAssembler();
+        entityIdTable = new EntityIdTable();
+        quantization = new Quantization();
+        vectorHistory = new QuantizedVectorHistory();
         resetStatistics();
     }
 
+    /**
+     * Returns the table of entity ids that is used to read compact game
+     * states.
+     * 
+     * @return The entity id table
+     */
+    public EntityIdTable getEntityIdTable() {
+        return entityIdTable;
+    }
+
+    public Quantization getQuantization() {
+        return quantization;
+    }
+
+    public QuantizedVectorHistory getVectorHistory() {
+        return vectorHistory;
+    }
+
+    /**
+     * Forgets the ids and vectors of the entities that have been removed.
+     * 
+     * @param entityManager
+     *            The entity manager the game states are applied to
+     */
+    public void pruneEntityIds(final EntityManager entityManager) {
+        entityIdTable.prune(entityManager, vectorHistory);
+    }
+
+    /**
+     * Forgets all ids and vectors of the entities in compact game states.
+     */
+    public void resetEntityIds() {
+        entityIdTable.clear();
+        vectorHistory.clear();
+    }
+
     public long getBytesRead() {
         return bytesRead;
     }
@@ -103,7 +156,7 @@ public class NetworkMessageReader {
         // Write attribute identification
         final short ord = buffer.getShort();
         // FIXME don't use ordinal
-        final Attribute attribute = Attribute.values()[ord];
+        final Attribute attribute = Attribute.get(ord);
         Object data = null;
         if (attribute.getClazz().equals(Integer.class)) {
             data = buffer.getInt();
@@ -122,8 +175,8 @@ public class NetworkMessageReader {
     public static Map<Attribute, Object> readAttributesData(
             final ByteBuffer buffer) {
         final int num = buffer.getInt();
-        final Map<Attribute, Object> attributes = new HashMap<Attribute, Object>(
-                num);
+        final Map<Attribute, Object> attributes = new EnumMap<Attribute, Object>(
+                Attribute.class);
         for (int i = 0; i < num; i++) {
             readAttributeData(attributes, buffer);
         }
@@ -172,6 +225,236 @@ public class NetworkMessageReader {
                 updated);
     }
 
+    /**
+     * Reads a change set in the compact encoding. The ids of created entities
+     * are stored in the id table, and are used to find the names of the
+     * removed and updated entities. Entities with an unknown id are skipped.
+     * The quantized vectors are stored in the history at the new version.
+     * Vectors relative to a value that is not in the history are skipped, and
+     * the history is marked incomplete.
+     * 
+     * @param buffer
+     *            The buffer to read from
+     * @param newVersion
+     *            The version the change set updates to
+     * @param entityIds
+     *            The id table of the connection
+     * @param quantization
+     *            The precision of the vector attributes, which is updated if
+     *            the change set contains the full game state
+     * @param history
+     *            The values of the vectors at the previous versions
+     * @return The change set
+     */
+    public static ChangeSet readCompactChangeSet(final ByteBuffer buffer,
+            final int newVersion, final EntityIdTable entityIds,
+            final Quantization quantization,
+            final QuantizedVectorHistory history) {
+        final int firstVersion = readVarInt(buffer);
+        final int lastVersion = firstVersion + readVarInt(buffer);
+        if (firstVersion == 0) {
+            quantization.read(buffer);
+        }
+
+        final int numCreatedVersions = readVarInt(buffer);
+        final Map<Integer, Map<String, Family>> created = new HashMap<Integer, Map<String, Family>>(
+                numCreatedVersions);
+        for (int i = 0; i < numCreatedVersions; i++) {
+            final int version = firstVersion + readVarInt(buffer);
+            final int numCreated = readVarInt(buffer);
+            final Map<String, Family> temp = new HashMap<String, Family>();
+            for (int j = 0; j < numCreated; j++) {
+                final int id = readVarInt(buffer);
+                final Family family = FAMILIES[buffer.get()];
+                final String name = readCompactStringData(buffer);
+                entityIds.put(id, name);
+                temp.put(name, family);
+            }
+            created.put(version, temp);
+        }
+
+        final int numRemovedVersions = readVarInt(buffer);
+        final Map<Integer, Set<String>> removed = new HashMap<Integer, Set<String>>(
+                numRemovedVersions);
+        for (int i = 0; i < numRemovedVersions; i++) {
+            final int version = firstVersion + readVarInt(buffer);
+            final int numRemoved = readVarInt(buffer);
+            final Set<String> temp = new HashSet<String>();
+            for (int j = 0; j < numRemoved; j++) {
+                final int id = readVarInt(buffer);
+                final String name = entityIds.getName(id);
+                if (name == null) {
+                    LOG.debug("Removed entity with unknown id " + id);
+                } else {
+                    temp.add(name);
+                    entityIds.markRemoved(id);
+                }
+            }
+            removed.put(version, temp);
+        }
+
+        final int numUpdated = readVarInt(buffer);
+        final Map<String, Map<Attribute, Object>> updated = new HashMap<String, Map<Attribute, Object>>(
+                numUpdated);
+        final int[] values = new int[2];
+        for (int i = 0; i < numUpdated; i++) {
+            final int id = readVarInt(buffer);
+            final String name = entityIds.getName(id);
+            final long mask = readVarLong(buffer);
+            final Map<Attribute, Object> attributes = new EnumMap<Attribute, Object>(
+                    Attribute.class);
+            for (long remaining = mask; remaining != 0; remaining &= remaining - 1) {
+                final Attribute attribute = Attribute.first(remaining);
+                if (quantization.isQuantized(attribute)) {
+                    if (!readQuantizedVector2fData(id, attribute,
+                            firstVersion, history, values, buffer)) {
+                        // A wrong value is worse than an old one
+                        LOG.warn("No reference value of " + attribute
+                                + " for entity " + id + " at version "
+                                + firstVersion);
+                        if (history != null) {
+                            history.markIncomplete();
+                        }
+                        continue;
+                    }
+                    attributes.put(attribute, new Vector2f(quantization
+                            .dequantize(attribute, values[0]), quantization
+                            .dequantize(attribute, values[1])));
+                    if (name != null) {
+                        history.record(id, attribute, newVersion, values[0],
+                                values[1], firstVersion);
+                    }
+                } else {
+                    attributes.put(attribute, readCompactAttributeData(
+                            attribute, buffer));
+                }
+            }
+            if (name == null) {
+                LOG.warn("Updated entity with unknown id " + id);
+            } else {
+                updated.put(name, attributes);
+            }
+        }
+        return new ChangeSet(firstVersion, lastVersion, created, removed,
+                updated);
+    }
+
+    /**
+     * Reads a quantized vector. If it is written relative to the value at the
+     * given version, that value is looked up in the history.
+     * 
+     * @param id
+     *            The id of the entity
+     * @param attribute
+     *            The attribute
+     * @param version
+     *            The version of the reference value
+     * @param history
+     *            The values of the vectors at the previous versions
+     * @param result
+     *            Array of at least two elements to store the quantized x and y
+     *            value in
+     * @param buffer
+     *            The buffer to read from
+     * @return false if the vector is relative to a value that is not in the
+     *         history, in which case the result is not set
+     */
+    public static boolean readQuantizedVector2fData(final int id,
+            final Attribute attribute, final int version,
+            final QuantizedVectorHistory history, final int[] result,
+            final ByteBuffer buffer) {
+        final long first = readVarLong(buffer);
+        final int zigzagX = (int) (first >>> 1);
+        final int x = zigzagX >>> 1 ^ -(zigzagX & 1);
+        final int y = readSignedVarInt(buffer);
+        if ((first & 1) == 0) {
+            result[0] = x;
+            result[1] = y;
+        } else {
+            if (history == null
+                    || !history.find(id, attribute, version, result)) {
+                return false;
+            }
+            result[0] += x;
+            result[1] += y;
+        }
+        return true;
+    }
+
+    public static Object readCompactAttributeData(final Attribute attribute,
+            final ByteBuffer buffer) {
+        Object data = null;
+        if (attribute.getClazz().equals(Integer.class)) {
+            data = readSignedVarInt(buffer);
+        } else if (attribute.getClazz().equals(Float.class)) {
+            data = buffer.getFloat();
+        } else if (attribute.getClazz().equals(String.class)) {
+            data = readCompactStringData(buffer);
+        } else if (attribute.getClazz().equals(Vector2f.class)) {
+            data = readVector2fData(buffer);
+        } else {
+            LOG.error("Could not process attribute " + attribute);
+        }
+        return data;
+    }
+
+    public static String readCompactStringData(final ByteBuffer buffer) {
+        final int size = readVarInt(buffer);
+        final byte[] bytes = new byte[size];
+        buffer.get(bytes);
+        return new String(bytes);
+    }
+
+    /**
+     * Reads an unsigned variable length integer.
+     * 
+     * @param buffer
+     *            The buffer to read from
+     * @return The value
+     */
+    public static int readVarInt(final ByteBuffer buffer) {
+        int result = 0;
+        int shift = 0;
+        byte current;
+        do {
+            current = buffer.get();
+            result |= (current & 0x7F) << shift;
+            shift += 7;
+        } while ((current & 0x80) != 0);
+        return result;
+    }
+
+    /**
+     * Reads an unsigned variable length long.
+     * 
+     * @param buffer
+     *            The buffer to read from
+     * @return The value
+     */
+    public static long readVarLong(final ByteBuffer buffer) {
+        long result = 0;
+        int shift = 0;
+        byte current;
+        do {
+            current = buffer.get();
+            result |= (current & 0x7FL) << shift;
+            shift += 7;
+        } while ((current & 0x80) != 0);
+        return result;
+    }
+
+    /**
+     * Reads a zigzag encoded signed variable length integer.
+     * 
+     * @param buffer
+     *            The buffer to read from
+     * @return The value
+     */
+    public static int readSignedVarInt(final ByteBuffer buffer) {
+        final int value = readVarInt(buffer);
+        return value >>> 1 ^ -(value & 1);
+    }
+
     public static Family readFamilyData(final ByteBuffer buffer) {
         final String name = readStringData(buffer);
         return Family.valueOf(name.toUpperCase());
@@ -218,6 +501,44 @@ public class NetworkMessageReader {
      *            The address the message was send from
      */
     public void processMessage(final SocketAddress address) {
+        final NetworkMessage message = decodeMessage(address, buffer, false);
+        if (message != null) {
+            message.fireEvent(listener, address);
+        }
+    }
+
+    /**
+     * Decodes the message in the buffer without firing its event, so the event
+     * can be fired later on another thread.
+     * 
+     * @param address
+     *            The address the message was send from
+     * @return The message, or null if the datagram did not contain a complete
+     *         message
+     */
+    public NetworkMessage decodeMessage(final SocketAddress address) {
+        return decodeMessage(address, buffer, false);
+    }
+
+    /**
+     * Decodes the message in a buffer without firing its event. The message
+     * is read from the position of the buffer, so it can be decoded from a
+     * borrowed buffer.
+     * 
+     * @param address
+     *            The address the message was send from
+     * @param buffer
+     *            The buffer that contains the datagram
+     * @return The message, or null if the datagram did not contain a complete
+     *         message
+     */
+    public NetworkMessage decodeMessage(final SocketAddress address,
+            final ByteBuffer buffer) {
+        return decodeMessage(address, buffer, false);
+    }
+
+    private NetworkMessage decodeMessage(final SocketAddress address,
+            final ByteBuffer buffer, final boolean assembled) {
         int ident = -1;
         ident = buffer.getInt();
         if (ident == AbstractGameMessage.DATAGRAM_IDENTIFICATION) {
@@ -227,9 +548,9 @@ public class NetworkMessageReader {
             if (message == null) {
                 LOG.warn("Received unhandled message");
             } else {
-                message.read(buffer, address);
-                message.fireEvent(listener, address);
+                message.read(buffer, address, this);
             }
+            return message;
         } else if (ident == AbstractMasterServerMessage.DATAGRAM_IDENTIFICATION) {
             final byte type = buffer.get();
             final AbstractMasterServerMessage message = AbstractMasterServerMessage
@@ -238,11 +559,26 @@ public class NetworkMessageReader {
                 LOG.warn("Received unhandled message");
             } else {
                 message.read(buffer, address);
-                message.fireEvent(listener, address);
+            }
+            return message;
+        } else if (ident == NetworkConstants.FRAGMENT_IDENTIFICATION) {
+            // Decode the message when the last fragment is received
+            if (!assembled) {
+                final BufferPool pool = BufferPool.getInstance();
+                final ByteBuffer message = pool
+                        .borrow(NetworkConstants.BUFFER_SIZE);
+                try {
+                    if (fragmentAssembler.addFragment(address, buffer, message)) {
+                        return decodeMessage(address, message, true);
+                    }
+                } finally {
+                    pool.release(message);
+                }
             }
         } else {
             LOG.warn("Unknown datagram identification");
             // else ignore the datagram, incorrect format
         }
+        return null;
     }
 }
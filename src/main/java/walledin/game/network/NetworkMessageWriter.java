@@ -24,6 +24,7 @@ import java.io.IOException;
 import java.net.SocketAddress;
 import java.nio.ByteBuffer;
 import java.nio.channels.DatagramChannel;
+import java.util.HashSet;
 import java.util.Map;
 import java.util.Map.Entry;
 import java.util.Set;
@@ -45,14 +46,21 @@ import walledin.game.network.server.ChangeSet;
 public class NetworkMessageWriter {
     private static final Logger LOG = Logger
             .getLogger(NetworkMessageWriter.class);
-    private final ByteBuffer buffer;
+    /** The pool the buffers of the messages are borrowed from. */
+    private final BufferPool pool;
+    /** Sequence number of the last message that was split in fragments. */
+    private int fragmentSequence;
+    /** Amount of fragments written so far */
+    private int fragmentsWritten;
     /** Amount of bytes written so far */
     private long bytesWritten;
     /** Amount of messages written so far */
     private int messagesWritten;
+    /** The thread that sends the datagrams, or null to send them directly. */
+    private NetworkSendThread sendThread;
 
     public NetworkMessageWriter() {
-        buffer = ByteBuffer.allocate(NetworkConstants.BUFFER_SIZE);
+        pool = BufferPool.getInstance();
         resetStatistics();
     }
 
@@ -64,31 +72,203 @@ public class NetworkMessageWriter {
         return messagesWritten;
     }
 
+    public int getFragmentsWritten() {
+        return fragmentsWritten;
+    }
+
+    /**
+     * Sets the thread that sends the datagrams. When set, the datagrams are
+     * queued on the thread instead of being sent directly.
+     * 
+     * @param sendThread
+     *            The send thread, or null to send directly
+     */
+    public void setSendThread(final NetworkSendThread sendThread) {
+        this.sendThread = sendThread;
+    }
+
     public void resetStatistics() {
         bytesWritten = 0;
         messagesWritten = 0;
+        fragmentsWritten = 0;
     }
 
-    private void writeMessage(final NetworkMessage message) {
-        buffer.clear();
-        message.writeHeader(buffer);
-        message.write(buffer);
-        buffer.flip();
+    /**
+     * Encodes a message into a borrowed buffer.
+     * 
+     * @param message
+     *            The message to encode
+     * @return The encoded message, which should be released to the buffer
+     *         pool
+     */
+    private ByteBuffer writeMessage(final NetworkMessage message) {
+        final ByteBuffer buffer = pool.borrow(NetworkConstants.BUFFER_SIZE);
+        encodeMessage(message, buffer);
         messagesWritten++;
         bytesWritten += buffer.limit();
+        return buffer;
+    }
+
+    /**
+     * Encodes a message into a buffer. The buffer is cleared first and flipped
+     * afterwards, so it contains exactly the encoded message. This does not
+     * use the state of a writer, so it can be called from any thread.
+     * 
+     * @param message
+     *            The message to encode
+     * @param target
+     *            The buffer to encode into
+     */
+    public static void encodeMessage(final NetworkMessage message,
+            final ByteBuffer target) {
+        target.clear();
+        message.writeHeader(target);
+        message.write(target);
+        target.flip();
+    }
+
+    /**
+     * Encodes a message into a buffer that is borrowed from the buffer pool.
+     * The buffer contains exactly the encoded message, and should be released
+     * to the pool when it is no longer used. This does not use the state of a
+     * writer, so it can be called from any thread.
+     * 
+     * @param message
+     *            The message to encode
+     * @return The encoded message
+     */
+    public static ByteBuffer encodeBorrowed(final NetworkMessage message) {
+        final BufferPool pool = BufferPool.getInstance();
+        final ByteBuffer buffer = pool.borrow(NetworkConstants.BUFFER_SIZE);
+        try {
+            encodeMessage(message, buffer);
+            // Only keep a buffer of the size of the message borrowed
+            final ByteBuffer result = pool.borrow(buffer.remaining());
+            result.put(buffer);
+            result.flip();
+            return result;
+        } finally {
+            pool.release(buffer);
+        }
     }
 
     public void sendMessage(final DatagramChannel channel,
             final NetworkMessage message) throws IOException {
-        writeMessage(message);
-        channel.write(buffer);
+        sendMessage(channel, null, message);
     }
 
     public void sendMessage(final DatagramChannel channel,
             final SocketAddress address, final NetworkMessage message)
             throws IOException {
-        writeMessage(message);
-        channel.send(buffer, address);
+        final ByteBuffer buffer = writeMessage(message);
+        try {
+            sendBuffer(channel, address, buffer);
+        } finally {
+            pool.release(buffer);
+        }
+    }
+
+    /**
+     * Sends a message that has already been encoded by
+     * <code>encodeMessage</code>. The bytes from the position to the limit of
+     * the buffer are sent, and the position and limit are left unchanged.
+     * 
+     * @param channel
+     *            The channel to send to
+     * @param address
+     *            The address to send to, or null if the channel is connected
+     * @param encoded
+     *            The encoded message
+     * @throws IOException
+     */
+    public void sendEncoded(final DatagramChannel channel,
+            final SocketAddress address, final ByteBuffer encoded)
+            throws IOException {
+        messagesWritten++;
+        bytesWritten += encoded.remaining();
+        final int position = encoded.position();
+        sendBuffer(channel, address, encoded);
+        encoded.position(position);
+    }
+
+    /**
+     * Sends the message in a buffer. Messages that do not fit in a single
+     * datagram are split in fragments, which are reassembled by the reader.
+     * 
+     * @param channel
+     *            The channel to send to
+     * @param address
+     *            The address to send to, or null if the channel is connected
+     * @param source
+     *            The message, from its position to its limit
+     * @throws IOException
+     */
+    private void sendBuffer(final DatagramChannel channel,
+            final SocketAddress address, final ByteBuffer source)
+            throws IOException {
+        final int start = source.position();
+        final int end = source.limit();
+        if (end - start <= NetworkConstants.MAX_DATAGRAM_SIZE) {
+            sendDatagram(channel, address, source);
+            return;
+        }
+
+        final int payloadSize = NetworkConstants.MAX_DATAGRAM_SIZE
+                - NetworkConstants.FRAGMENT_HEADER_SIZE;
+        final int count = (end - start + payloadSize - 1) / payloadSize;
+        if (count > 0xFFFF) {
+            LOG.error("Message of " + (end - start)
+                    + " bytes is too large to send");
+            return;
+        }
+        fragmentSequence++;
+        for (int i = 0; i < count; i++) {
+            final ByteBuffer fragmentBuffer = pool
+                    .borrow(NetworkConstants.MAX_DATAGRAM_SIZE);
+            fragmentBuffer.putInt(NetworkConstants.FRAGMENT_IDENTIFICATION);
+            fragmentBuffer.putInt(fragmentSequence);
+            fragmentBuffer.putShort((short) i);
+            fragmentBuffer.putShort((short) count);
+            final int fragmentStart = start + i * payloadSize;
+            final int fragmentEnd = Math.min(fragmentStart + payloadSize, end);
+            source.limit(fragmentEnd);
+            source.position(fragmentStart);
+            fragmentBuffer.put(source);
+            source.limit(end);
+            fragmentBuffer.flip();
+            sendBorrowedDatagram(channel, address, fragmentBuffer);
+        }
+        fragmentsWritten += count;
+    }
+
+    /**
+     * Sends a datagram in a borrowed buffer, and releases the buffer when it
+     * has been sent.
+     */
+    private void sendBorrowedDatagram(final DatagramChannel channel,
+            final SocketAddress address, final ByteBuffer datagram)
+            throws IOException {
+        if (sendThread != null) {
+            sendThread.sendBorrowed(channel, address, datagram);
+            return;
+        }
+        try {
+            sendDatagram(channel, address, datagram);
+        } finally {
+            pool.release(datagram);
+        }
+    }
+
+    private void sendDatagram(final DatagramChannel channel,
+            final SocketAddress address, final ByteBuffer datagram)
+            throws IOException {
+        if (sendThread != null) {
+            sendThread.send(channel, address, datagram);
+        } else if (address == null) {
+            channel.write(datagram);
+        } else {
+            channel.send(datagram, address);
+        }
     }
 
     public static void writeAttributeData(final Attribute attribute,
@@ -144,6 +324,268 @@ public class NetworkMessageWriter {
         }
     }
 
+    /**
+     * Writes a change set in the compact encoding. Entities are identified by
+     * their numeric id, families by a byte, attributes by a presence bitmask
+     * and counts and versions are written as variable length integers. The
+     * versions are written relative to the first version of the change set.
+     * 
+     * Quantized vectors are written as the difference with the value at the
+     * first version of the change set, if it is known and the entity is not
+     * created in the change set. The full game state
+     * contains the quantization, so the client can read them.
+     * 
+     * @param changeSet
+     *            The change set to write
+     * @param buffer
+     *            The buffer to write to
+     * @param quantization
+     *            The precision of the vector attributes
+     * @param history
+     *            The values of the vectors at the previous versions, or null
+     *            to write all vectors in full
+     * @param refreshedEntities
+     *            The entities of which the client may not have the values at
+     *            the first version, which are written in full, or null
+     */
+    public static void writeCompactChangeSet(final ChangeSet changeSet,
+            final ByteBuffer buffer, final Quantization quantization,
+            final QuantizedVectorHistory history,
+            final Set<String> refreshedEntities) {
+        final int firstVersion = changeSet.getFirstVersion();
+        writeVarInt(firstVersion, buffer);
+        writeVarInt(changeSet.getLastVersion() - firstVersion, buffer);
+        if (firstVersion == 0) {
+            quantization.write(buffer);
+        }
+        // Created is written first so the reader knows the ids of the new
+        // entities before they are used
+        writeVarInt(changeSet.getCreated().size(), buffer);
+        // The client does not have the previous values of created entities
+        final Set<String> createdNames = new HashSet<String>();
+        for (final Entry<Integer, Map<String, Family>> entry : changeSet
+                .getCreated().entrySet()) {
+            writeVarInt(entry.getKey() - firstVersion, buffer);
+            final Map<String, Family> created = entry.getValue();
+            writeVarInt(created.size(), buffer);
+            createdNames.addAll(created.keySet());
+            for (final Entry<String, Family> subEntry : created.entrySet()) {
+                writeVarInt(getEntityId(changeSet, subEntry.getKey()), buffer);
+                buffer.put((byte) subEntry.getValue().ordinal());
+                writeCompactStringData(subEntry.getKey(), buffer);
+            }
+        }
+        writeVarInt(changeSet.getRemoved().size(), buffer);
+        for (final Entry<Integer, Set<String>> entry : changeSet.getRemoved()
+                .entrySet()) {
+            writeVarInt(entry.getKey() - firstVersion, buffer);
+            final Set<String> removed = entry.getValue();
+            writeVarInt(removed.size(), buffer);
+            for (final String name : removed) {
+                writeVarInt(getEntityId(changeSet, name), buffer);
+            }
+        }
+        writeVarInt(changeSet.getUpdated().size(), buffer);
+        final int[] reference = new int[2];
+        for (final Entry<String, Map<Attribute, Object>> entry : changeSet
+                .getUpdated().entrySet()) {
+            final int id = getEntityId(changeSet, entry.getKey());
+            writeVarInt(id, buffer);
+            final boolean refreshed = createdNames.contains(entry.getKey())
+                    || refreshedEntities != null
+                    && refreshedEntities.contains(entry.getKey());
+            final Map<Attribute, Object> attributes = entry.getValue();
+            final long mask = getAttributeMask(attributes);
+            writeVarLong(mask, buffer);
+            for (long remaining = mask; remaining != 0; remaining &= remaining - 1) {
+                final Attribute attribute = Attribute.first(remaining);
+                final Object data = attributes.get(attribute);
+                if (quantization.isQuantized(attribute)) {
+                    final boolean known = history != null && !refreshed
+                            && history.find(id, attribute, firstVersion,
+                                    reference);
+                    writeQuantizedVector2fData(attribute, (Vector2f) data,
+                            known, reference, quantization, buffer);
+                } else {
+                    writeCompactAttributeData(attribute, data, buffer);
+                }
+            }
+        }
+    }
+
+    private static int getEntityId(final ChangeSet changeSet,
+            final String name) {
+        final Integer id = changeSet.getEntityIds().get(name);
+        if (id == null) {
+            // Id 0 is never assigned, so the reader will ignore the entity
+            LOG.error("No id known for entity " + name);
+            return 0;
+        }
+        return id;
+    }
+
+    /**
+     * Returns the bitmask of the attributes that are present. Null values are
+     * not written.
+     */
+    private static long getAttributeMask(final Map<Attribute, Object> attributes) {
+        long mask = 0;
+        for (final Map.Entry<Attribute, Object> attributeEntry : attributes
+                .entrySet()) {
+            if (attributeEntry.getValue() != null) {
+                mask |= attributeEntry.getKey().getMask();
+            }
+        }
+        return mask;
+    }
+
+    /**
+     * Writes a quantized vector. The lowest bit of the first value tells if
+     * the values are the difference with the reference or the full values.
+     * 
+     * @param attribute
+     *            The attribute
+     * @param data
+     *            The vector
+     * @param relative
+     *            True if the vector is written relative to the reference
+     * @param reference
+     *            The quantized reference value
+     * @param quantization
+     *            The precision of the vector attributes
+     * @param buffer
+     *            The buffer to write to
+     */
+    public static void writeQuantizedVector2fData(final Attribute attribute,
+            final Vector2f data, final boolean relative,
+            final int[] reference, final Quantization quantization,
+            final ByteBuffer buffer) {
+        int x = quantization.quantize(attribute, data.getX());
+        int y = quantization.quantize(attribute, data.getY());
+        long flag = 0;
+        if (relative) {
+            x -= reference[0];
+            y -= reference[1];
+            flag = 1;
+        }
+        // Zigzag encode x as an unsigned int before adding the flag
+        final long zigzagX = (x << 1 ^ x >> 31) & 0xFFFFFFFFL;
+        writeVarLong(zigzagX << 1 | flag, buffer);
+        writeSignedVarInt(y, buffer);
+    }
+
+    /**
+     * Writes an attribute value in the compact encoding without
+     * quantization.
+     * 
+     * @param attribute
+     *            The attribute
+     * @param data
+     *            The value
+     * @param buffer
+     *            The buffer to write to
+     */
+    public static void writeCompactAttributeData(final Attribute attribute,
+            final Object data, final ByteBuffer buffer) {
+        if (data instanceof Integer) {
+            writeSignedVarInt((Integer) data, buffer);
+        } else if (data instanceof Float) {
+            buffer.putFloat((Float) data);
+        } else if (data instanceof String) {
+            writeCompactStringData((String) data, buffer);
+        } else if (data instanceof Vector2f) {
+            writeVector2fData((Vector2f) data, buffer);
+        } else {
+            LOG.error("Could not process attribute " + attribute
+                    + " with data of class " + data.getClass());
+        }
+    }
+
+    public static void writeCompactStringData(final String data,
+            final ByteBuffer buffer) {
+        final byte[] bytes = data.getBytes();
+        writeVarInt(bytes.length, buffer);
+        buffer.put(bytes);
+    }
+
+    /**
+     * Writes an unsigned variable length integer. Every byte holds seven bits
+     * of the value, the highest bit is set if more bytes follow.
+     * 
+     * @param value
+     *            The value, which is treated as unsigned
+     * @param buffer
+     *            The buffer to write to
+     */
+    public static void writeVarInt(final int value, final ByteBuffer buffer) {
+        int rest = value;
+        while ((rest & ~0x7F) != 0) {
+            buffer.put((byte) (rest & 0x7F | 0x80));
+            rest >>>= 7;
+        }
+        buffer.put((byte) rest);
+    }
+
+    /**
+     * Writes an unsigned variable length long.
+     * 
+     * @param value
+     *            The value, which is treated as unsigned
+     * @param buffer
+     *            The buffer to write to
+     */
+    public static void writeVarLong(final long value, final ByteBuffer buffer) {
+        long rest = value;
+        while ((rest & ~0x7FL) != 0) {
+            buffer.put((byte) (rest & 0x7F | 0x80));
+            rest >>>= 7;
+        }
+        buffer.put((byte) rest);
+    }
+
+    /**
+     * Writes a signed variable length integer. The value is zigzag encoded so
+     * small negative values are written in a few bytes as well.
+     * 
+     * @param value
+     *            The value
+     * @param buffer
+     *            The buffer to write to
+     */
+    public static void writeSignedVarInt(final int value,
+            final ByteBuffer buffer) {
+        writeVarInt(value << 1 ^ value >> 31, buffer);
+    }
+
+    /**
+     * Estimates the number of bytes an entity takes in the updated entities of
+     * a change set.
+     * 
+     * @param encoding
+     *            The encoding of the change set
+     * @param name
+     *            The name of the entity
+     * @param attributes
+     *            The updated attributes
+     * @return The estimated number of bytes
+     */
+    public static int estimateUpdateSize(final GamestateEncoding encoding,
+            final String name, final Map<Attribute, Object> attributes) {
+        final boolean compact = encoding == GamestateEncoding.COMPACT;
+        // Entity name or id followed by attribute count or mask
+        int size = compact ? 6 : name.length() + 8;
+        for (final Object data : attributes.values()) {
+            if (data instanceof String) {
+                size += ((String) data).length() + (compact ? 1 : 6);
+            } else if (data instanceof Vector2f) {
+                size += compact ? 4 : 10;
+            } else {
+                size += compact ? 3 : 6;
+            }
+        }
+        return size;
+    }
+
     private static void writeAttributes(
             final Map<Attribute, Object> attributes, final ByteBuffer buffer) {
         buffer.putInt(attributes.size());
@@ -0,0 +1,134 @@
+/*  Copyright 2010 Ben Ruijl, Wouter Smeenk
+
+This file is part of Walled In.
+
+Walled In is free software; you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation; either version 3, or (at your option)
+any later version.
+
+Walled In is distributed in the hope that it will be useful, but
+WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with Walled In; see the file LICENSE.  If not, write to the
+Free Software Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA
+02111-1307 USA.
+
+ */
+package walledin.game.network;
+
+import java.io.IOException;
+import java.net.SocketAddress;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.DatagramChannel;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+import org.apache.log4j.Logger;
+
+import walledin.game.network.messages.NetworkMessage;
+
+/**
+ * Receives and decodes the messages of a channel on its own thread. The
+ * decoded messages are put in a lock free queue, and their events are fired
+ * when the owner of the listener calls <code>processMessages</code>, so the
+ * listener does not have to be thread safe.
+ * 
+ * The channel should be in blocking mode. The thread stops when the channel
+ * is closed.
+ * 
+ * @author Wouter Smeenk
+ * 
+ */
+public class NetworkReceiveThread extends Thread {
+    private static final Logger LOG = Logger
+            .getLogger(NetworkReceiveThread.class);
+
+    /** A decoded message and the address it was received from. */
+    private static final class ReceivedMessage {
+        private final SocketAddress address;
+        private final NetworkMessage message;
+
+        private ReceivedMessage(final SocketAddress address,
+                final NetworkMessage message) {
+            this.address = address;
+            this.message = message;
+        }
+    }
+
+    private final DatagramChannel channel;
+    /** The reader of this thread. Only used by this thread. */
+    private final NetworkMessageReader reader;
+    private final Queue<ReceivedMessage> messages;
+
+    /**
+     * Creates a new receive thread. The thread is a daemon thread, so it does
+     * not keep the application running.
+     * 
+     * @param channel
+     *            The channel to receive from, in blocking mode
+     */
+    public NetworkReceiveThread(final DatagramChannel channel) {
+        super("Network receive");
+        this.channel = channel;
+        reader = new NetworkMessageReader(null);
+        messages = new ConcurrentLinkedQueue<ReceivedMessage>();
+        setDaemon(true);
+    }
+
+    @Override
+    public void run() {
+        while (channel.isOpen()) {
+            try {
+                final SocketAddress address = reader.readMessage(channel);
+                if (address == null) {
+                    continue;
+                }
+                final NetworkMessage message = reader.decodeMessage(address);
+                if (message != null) {
+                    messages.offer(new ReceivedMessage(address, message));
+                }
+            } catch (final ClosedChannelException e) {
+                LOG.info("Channel closed, stopping the receive thread");
+                return;
+            } catch (final IOException e) {
+                LOG.error("IOException while receiving a message", e);
+            } catch (final RuntimeException e) {
+                // A malformed datagram should not stop the thread
+                LOG.warn("Could not decode a received message", e);
+            }
+        }
+    }
+
+    /**
+     * Fires the events of all messages that have been received since the last
+     * call, in the order they were received. Should be called by the thread
+     * that owns the listener.
+     * 
+     * @param listener
+     *            The listener to fire the events to
+     * @return The number of messages that were processed
+     */
+    public int processMessages(final NetworkEventListener listener) {
+        int count = 0;
+        ReceivedMessage received = messages.poll();
+        while (received != null) {
+            received.message.fireEvent(listener, received.address);
+            count++;
+            received = messages.poll();
+        }
+        return count;
+    }
+
+    /**
+     * Returns the amount of bytes received so far.
+     * 
+     * @return the amount of bytes received
+     */
+    public long getBytesRead() {
+        return reader.getBytesRead();
+    }
+}
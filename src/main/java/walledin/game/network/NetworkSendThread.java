@@ -0,0 +1,154 @@
+/*  Copyright 2010 Ben Ruijl, Wouter Smeenk
+
+This file is part of Walled In.
+
+Walled In is free software; you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation; either version 3, or (at your option)
+any later version.
+
+Walled In is distributed in the hope that it will be useful, but
+WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with Walled In; see the file LICENSE.  If not, write to the
+Free Software Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA
+02111-1307 USA.
+
+ */
+package walledin.game.network;
+
+import java.io.IOException;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.DatagramChannel;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.locks.LockSupport;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Sends datagrams on its own thread. The datagrams are copied into buffers
+ * from the buffer pool and put in a lock free queue, so the thread that
+ * encodes them never blocks on a channel. The thread is woken up when the
+ * encoding thread publishes the datagrams it queued, for example once every
+ * tick.
+ * 
+ * @author Wouter Smeenk
+ * 
+ */
+public class NetworkSendThread extends Thread {
+    private static final Logger LOG = Logger.getLogger(NetworkSendThread.class);
+
+    /** A datagram and where to send it. */
+    private static final class Packet {
+        private final DatagramChannel channel;
+        private final SocketAddress address;
+        private final ByteBuffer datagram;
+
+        private Packet(final DatagramChannel channel,
+                final SocketAddress address, final ByteBuffer datagram) {
+            this.channel = channel;
+            this.address = address;
+            this.datagram = datagram;
+        }
+    }
+
+    private final Queue<Packet> packets;
+    private final BufferPool pool;
+    private volatile boolean running;
+
+    /**
+     * Creates a new send thread. The thread is a daemon thread, so it does not
+     * keep the application running.
+     */
+    public NetworkSendThread() {
+        super("Network send");
+        packets = new ConcurrentLinkedQueue<Packet>();
+        pool = BufferPool.getInstance();
+        running = true;
+        setDaemon(true);
+    }
+
+    /**
+     * Queues a copy of a datagram. It is sent after the next call to
+     * <code>publish</code>.
+     * 
+     * @param channel
+     *            The channel to send to
+     * @param address
+     *            The address to send to, or null if the channel is connected
+     * @param datagram
+     *            The datagram, from its position to its limit
+     */
+    public void send(final DatagramChannel channel,
+            final SocketAddress address, final ByteBuffer datagram) {
+        final ByteBuffer copy = pool.borrow(datagram.remaining());
+        copy.put(datagram);
+        copy.flip();
+        packets.offer(new Packet(channel, address, copy));
+    }
+
+    /**
+     * Queues a datagram in a buffer that is borrowed from the buffer pool,
+     * without copying it. The thread releases the buffer when the datagram has
+     * been sent, so the caller should not use it anymore.
+     * 
+     * @param channel
+     *            The channel to send to
+     * @param address
+     *            The address to send to, or null if the channel is connected
+     * @param datagram
+     *            The datagram, from its position to its limit
+     */
+    public void sendBorrowed(final DatagramChannel channel,
+            final SocketAddress address, final ByteBuffer datagram) {
+        packets.offer(new Packet(channel, address, datagram));
+    }
+
+    /**
+     * Wakes up the thread to send the queued datagrams.
+     */
+    public void publish() {
+        LockSupport.unpark(this);
+    }
+
+    /**
+     * Stops the thread after the queued datagrams have been sent.
+     */
+    public void shutdown() {
+        running = false;
+        LockSupport.unpark(this);
+    }
+
+    @Override
+    public void run() {
+        while (running || !packets.isEmpty()) {
+            Packet packet = packets.poll();
+            if (packet == null) {
+                LockSupport.park(this);
+                continue;
+            }
+            while (packet != null) {
+                try {
+                    if (packet.address == null) {
+                        packet.channel.write(packet.datagram);
+                    } else {
+                        packet.channel.send(packet.datagram, packet.address);
+                    }
+                } catch (final ClosedChannelException e) {
+                    LOG.warn("Dropped a datagram for a closed channel");
+                } catch (final IOException e) {
+                    LOG.error("IOException while sending a datagram", e);
+                } finally {
+                    pool.release(packet.datagram);
+                }
+                packet = packets.poll();
+            }
+        }
+    }
+}
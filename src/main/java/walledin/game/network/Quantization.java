@@ -0,0 +1,137 @@
+/*  Copyright 2010 Ben Ruijl, Wouter Smeenk
+
+This file is part of Walled In.
+
+Walled In is free software; you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation; either version 3, or (at your option)
+any later version.
+
+Walled In is distributed in the hope that it will be useful, but
+WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with Walled In; see the file LICENSE.  If not, write to the
+Free Software Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA
+02111-1307 USA.
+
+ */
+package walledin.game.network;
+
+import java.nio.ByteBuffer;
+
+import walledin.engine.math.Vector2f;
+import walledin.game.entity.Attribute;
+import walledin.util.SettingsManager;
+
+/**
+ * The precision with which vector attributes are sent in compact game
+ * states. A quantized attribute is sent as a whole number of steps instead of
+ * as floats. Attributes without precision are sent as floats.
+ * 
+ * @author Wouter Smeenk
+ * 
+ */
+public class Quantization {
+    private static final Attribute[] ATTRIBUTES = Attribute.values();
+    /** The number of steps per unit for each attribute, by ordinal. */
+    private final float[] stepsPerUnit;
+
+    /**
+     * Creates a quantization that does not quantize any attribute.
+     */
+    public Quantization() {
+        stepsPerUnit = new float[ATTRIBUTES.length];
+    }
+
+    /**
+     * Creates the quantization that is configured in the settings.
+     * 
+     * @return The quantization
+     */
+    public static Quantization fromSettings() {
+        final SettingsManager settings = SettingsManager.getInstance();
+        final Quantization result = new Quantization();
+        result.setStepsPerUnit(Attribute.POSITION, settings
+                .getFloat("network.precision.position"));
+        result.setStepsPerUnit(Attribute.VELOCITY, settings
+                .getFloat("network.precision.velocity"));
+        result.setStepsPerUnit(Attribute.CURSOR_POS, settings
+                .getFloat("network.precision.cursorPos"));
+        return result;
+    }
+
+    /**
+     * Sets the precision of an attribute.
+     * 
+     * @param attribute
+     *            A vector attribute
+     * @param steps
+     *            The number of steps per unit, or 0 to send floats
+     */
+    public void setStepsPerUnit(final Attribute attribute, final float steps) {
+        if (!attribute.getClazz().equals(Vector2f.class)) {
+            throw new IllegalArgumentException("Only vector attributes can "
+                    + "be quantized: " + attribute);
+        }
+        stepsPerUnit[attribute.ordinal()] = steps;
+    }
+
+    public float getStepsPerUnit(final Attribute attribute) {
+        return stepsPerUnit[attribute.ordinal()];
+    }
+
+    public boolean isQuantized(final Attribute attribute) {
+        return stepsPerUnit[attribute.ordinal()] > 0;
+    }
+
+    public int quantize(final Attribute attribute, final float value) {
+        return Math.round(value * stepsPerUnit[attribute.ordinal()]);
+    }
+
+    public float dequantize(final Attribute attribute, final int steps) {
+        return steps / stepsPerUnit[attribute.ordinal()];
+    }
+
+    /**
+     * Writes the precision of the quantized attributes.
+     * 
+     * @param buffer
+     *            The buffer to write to
+     */
+    public void write(final ByteBuffer buffer) {
+        int count = 0;
+        for (final Attribute attribute : ATTRIBUTES) {
+            if (isQuantized(attribute)) {
+                count++;
+            }
+        }
+        buffer.put((byte) count);
+        for (final Attribute attribute : ATTRIBUTES) {
+            if (isQuantized(attribute)) {
+                buffer.put((byte) attribute.ordinal());
+                buffer.putFloat(getStepsPerUnit(attribute));
+            }
+        }
+    }
+
+    /**
+     * Reads the precision of the quantized attributes. Attributes that are
+     * not present are not quantized anymore.
+     * 
+     * @param buffer
+     *            The buffer to read from
+     */
+    public void read(final ByteBuffer buffer) {
+        for (int i = 0; i < stepsPerUnit.length; i++) {
+            stepsPerUnit[i] = 0;
+        }
+        final int count = buffer.get();
+        for (int i = 0; i < count; i++) {
+            final int ordinal = buffer.get();
+            stepsPerUnit[ordinal] = buffer.getFloat();
+        }
+    }
+}
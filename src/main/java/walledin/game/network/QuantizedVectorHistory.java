@@ -0,0 +1,235 @@
+/*  Copyright 2010 Ben Ruijl, Wouter Smeenk
+
+This file is part of Walled In.
+
+Walled In is free software; you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation; either version 3, or (at your option)
+any later version.
+
+Walled In is distributed in the hope that it will be useful, but
+WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with Walled In; see the file LICENSE.  If not, write to the
+Free Software Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA
+02111-1307 USA.
+
+ */
+package walledin.game.network;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Set;
+
+import walledin.engine.math.Vector2f;
+import walledin.game.entity.Attribute;
+import walledin.game.network.server.ChangeSet;
+
+/**
+ * Keeps the quantized values of the vector attributes of entities for the
+ * last versions. Compact game states encode vectors as the difference with
+ * the value at the version the client has acknowledged, which both the server
+ * and the client can look up here.
+ * 
+ * @author Wouter Smeenk
+ * 
+ */
+public class QuantizedVectorHistory {
+    /** Number of ints used per entry: version, x and y. */
+    private static final int ENTRY_SIZE = 3;
+    private static final Attribute[] ATTRIBUTES = Attribute.values();
+    /** The entries by entity id and attribute, sorted on version. */
+    private final Map<Long, Entries> entries;
+    /** If a value was missing since the last call to takeIncomplete. */
+    private boolean incomplete;
+
+    public QuantizedVectorHistory() {
+        entries = new HashMap<Long, Entries>();
+    }
+
+    private static class Entries {
+        private int[] data = new int[ENTRY_SIZE * 2];
+        private int size = 0;
+    }
+
+    private static Long key(final int id, final Attribute attribute) {
+        return (long) id << 6 | attribute.ordinal();
+    }
+
+    /**
+     * Records the value of an attribute at a version. Entries that are not
+     * needed to look up versions from the oldest needed version are dropped.
+     * 
+     * @param id
+     *            The id of the entity
+     * @param attribute
+     *            The attribute
+     * @param version
+     *            The version at which the entity has this value
+     * @param x
+     *            The quantized x value
+     * @param y
+     *            The quantized y value
+     * @param oldestNeededVersion
+     *            The oldest version that can still be looked up
+     */
+    public void record(final int id, final Attribute attribute,
+            final int version, final int x, final int y,
+            final int oldestNeededVersion) {
+        final Long key = key(id, attribute);
+        Entries current = entries.get(key);
+        if (current == null) {
+            current = new Entries();
+            entries.put(key, current);
+        }
+
+        // Find the position to insert, entries are usually added in order
+        int index = current.size;
+        while (index > 0 && current.data[(index - 1) * ENTRY_SIZE] > version) {
+            index--;
+        }
+        int offset = index * ENTRY_SIZE;
+        if (index > 0 && current.data[offset - ENTRY_SIZE] == version) {
+            offset -= ENTRY_SIZE;
+        } else {
+            if ((current.size + 1) * ENTRY_SIZE > current.data.length) {
+                final int[] data = new int[current.data.length * 2];
+                System.arraycopy(current.data, 0, data, 0, current.data.length);
+                current.data = data;
+            }
+            System.arraycopy(current.data, offset, current.data, offset
+                    + ENTRY_SIZE, (current.size - index) * ENTRY_SIZE);
+            current.size++;
+        }
+        current.data[offset] = version;
+        current.data[offset + 1] = x;
+        current.data[offset + 2] = y;
+
+        // Keep the newest entry at or before the oldest needed version
+        int first = 0;
+        while (first + 1 < current.size
+                && current.data[(first + 1) * ENTRY_SIZE] <= oldestNeededVersion) {
+            first++;
+        }
+        if (first > 0) {
+            current.size -= first;
+            System.arraycopy(current.data, first * ENTRY_SIZE, current.data,
+                    0, current.size * ENTRY_SIZE);
+        }
+    }
+
+    /**
+     * Records the quantized vectors of a change set that contains the changes
+     * of a single version. The vectors of removed entities are forgotten.
+     * 
+     * @param changeSet
+     *            The change set
+     * @param quantization
+     *            The precision of the vector attributes
+     * @param oldestNeededVersion
+     *            The oldest version that can still be looked up
+     */
+    public void record(final ChangeSet changeSet,
+            final Quantization quantization, final int oldestNeededVersion) {
+        // The changes of a version are applied at the next version
+        final int version = changeSet.getFirstVersion() + 1;
+        final Set<String> removed = changeSet.getRemoved().get(
+                changeSet.getFirstVersion());
+        if (removed != null) {
+            for (final String name : removed) {
+                remove(changeSet.getEntityIds().get(name));
+            }
+        }
+        for (final Entry<String, Map<Attribute, Object>> entry : changeSet
+                .getUpdated().entrySet()) {
+            final int id = changeSet.getEntityIds().get(entry.getKey());
+            for (final Entry<Attribute, Object> attribute : entry.getValue()
+                    .entrySet()) {
+                if (attribute.getValue() != null
+                        && quantization.isQuantized(attribute.getKey())) {
+                    final Vector2f value = (Vector2f) attribute.getValue();
+                    record(id, attribute.getKey(), version, quantization
+                            .quantize(attribute.getKey(), value.getX()),
+                            quantization.quantize(attribute.getKey(), value
+                                    .getY()), oldestNeededVersion);
+                }
+            }
+        }
+    }
+
+    /**
+     * Looks up the value an attribute had at a version.
+     * 
+     * @param id
+     *            The id of the entity
+     * @param attribute
+     *            The attribute
+     * @param version
+     *            The version
+     * @param result
+     *            Array of at least two elements to store the quantized x and y
+     *            value in
+     * @return true if the value is known, else false
+     */
+    public boolean find(final int id, final Attribute attribute,
+            final int version, final int[] result) {
+        final Entries current = entries.get(key(id, attribute));
+        if (current == null) {
+            return false;
+        }
+        for (int i = current.size - 1; i >= 0; i--) {
+            final int offset = i * ENTRY_SIZE;
+            if (current.data[offset] <= version) {
+                result[0] = current.data[offset + 1];
+                result[1] = current.data[offset + 2];
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Forgets all values of an entity.
+     * 
+     * @param id
+     *            The id of the entity
+     */
+    public void remove(final int id) {
+        for (final Attribute attribute : ATTRIBUTES) {
+            if (attribute.getClazz().equals(Vector2f.class)) {
+                entries.remove(key(id, attribute));
+            }
+        }
+    }
+
+    /**
+     * Forgets all values.
+     */
+    public void clear() {
+        entries.clear();
+        incomplete = false;
+    }
+
+    /**
+     * Marks that a value was needed that is not in the history. The values
+     * that depend on it can only be restored with the full game state.
+     */
+    public void markIncomplete() {
+        incomplete = true;
+    }
+
+    /**
+     * Returns if a value was missing since the last call, and resets it.
+     * 
+     * @return true if a value was missing, else false
+     */
+    public boolean takeIncomplete() {
+        final boolean result = incomplete;
+        incomplete = false;
+        return result;
+    }
+}
@@ -0,0 +1,397 @@
+/*  Copyright 2010 Ben Ruijl, Wouter Smeenk
+
+This file is part of Walled In.
+
+Walled In is free software; you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation; either version 3, or (at your option)
+any later version.
+
+Walled In is distributed in the hope that it will be useful, but
+WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with Walled In; see the file LICENSE.  If not, write to the
+Free Software Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA
+02111-1307 USA.
+
+ */
+package walledin.game.network;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import walledin.game.network.messages.NetworkMessage;
+import walledin.game.network.messages.game.ReliableMessage;
+
+/**
+ * Delivers control messages reliably and in order over the datagram channel.
+ * There is one reliable channel for every peer.
+ * 
+ * Every message gets the next sequence number. Messages are sent in a
+ * {@link ReliableMessage} until the peer acknowledges them. Acknowledgments
+ * are selective: they contain the highest sequence number that was received
+ * and a bit for each of the <code>ACK_WINDOW</code> numbers before it. At most
+ * <code>ACK_WINDOW</code> messages are in flight, so every message in flight
+ * is covered by the acknowledgment. Received messages are buffered until the
+ * messages before them have been delivered.
+ * 
+ * A message is sent again when it has not been acknowledged within the
+ * retransmit timeout. The timeout is calculated from the round trip time like
+ * in TCP, and doubles with every retransmission until a new round trip time
+ * is measured.
+ * 
+ * Every channel has a random session number. When the session of the peer
+ * changes, the peer has started over, so the channel starts over too.
+ * 
+ * @author Wouter Smeenk
+ * 
+ */
+public class ReliableChannel {
+    /** The number of sequence numbers before the acknowledged one. */
+    public static final int ACK_WINDOW = 32;
+    /** The retransmit timeout before a round trip time is measured, in ms. */
+    private static final long INITIAL_TIMEOUT = 500;
+    /** The minimum retransmit timeout in milliseconds. */
+    private static final long MIN_TIMEOUT = 100;
+    /** The maximum retransmit timeout in milliseconds. */
+    private static final long MAX_TIMEOUT = 3000;
+    /** The number of sends after which a message is given up. */
+    private static final int MAX_SENDS = 20;
+
+    private static final Random RANDOM = new Random();
+
+    /** A message that has not been acknowledged yet. */
+    private static final class Outgoing {
+        private final int sequence;
+        private final byte[] data;
+        /** The time the message was last sent, in ms. */
+        private long sentTime;
+        private int sendCount;
+
+        private Outgoing(final int sequence, final byte[] data) {
+            this.sequence = sequence;
+            this.data = data;
+        }
+    }
+
+    /** The session of this channel. */
+    private final int session;
+    /** The session of the peer, or 0 if nothing has been received yet. */
+    private int remoteSession;
+
+    /** The sequence number of the next message that is sent. */
+    private int nextSequence;
+    /** The messages that have not been acknowledged, oldest first. */
+    private final Deque<Outgoing> outgoing;
+
+    /** The sequence number of the last message that was delivered. */
+    private int delivered;
+    /** The highest sequence number that has been received. */
+    private int highestReceived;
+    /** Bit i is set if highestReceived - 1 - i has been received. */
+    private int receivedMask;
+    /** The received messages that can not be delivered yet. */
+    private final Map<Integer, NetworkMessage> buffered;
+    /** True if something was received since the last acknowledgment. */
+    private boolean ackPending;
+
+    /** The smoothed round trip time in ms, or -1 if not measured yet. */
+    private double roundTripTime;
+    /** The variation of the round trip time in ms. */
+    private double roundTripVariation;
+    /** The retransmit timeout in ms. */
+    private long timeout;
+    /** The number of messages that were sent again. */
+    private int retransmissions;
+    /** True if a message was sent too often without acknowledgment. */
+    private boolean failed;
+
+    public ReliableChannel() {
+        int randomSession;
+        do {
+            randomSession = RANDOM.nextInt();
+        } while (randomSession == 0);
+        session = randomSession;
+        outgoing = new ArrayDeque<Outgoing>();
+        buffered = new HashMap<Integer, NetworkMessage>();
+        reset();
+    }
+
+    /**
+     * Forgets everything that has been sent and received.
+     */
+    private void reset() {
+        nextSequence = 1;
+        outgoing.clear();
+        delivered = 0;
+        highestReceived = 0;
+        receivedMask = 0;
+        buffered.clear();
+        ackPending = false;
+        roundTripTime = -1;
+        roundTripVariation = 0;
+        timeout = INITIAL_TIMEOUT;
+        failed = false;
+    }
+
+    /**
+     * Queues a message to be sent reliably. It is sent by the next call to
+     * <code>poll</code>.
+     * 
+     * @param message
+     *            The message to send
+     */
+    public void send(final NetworkMessage message) {
+        final ByteBuffer buffer = NetworkMessageWriter.encodeBorrowed(message);
+        try {
+            final byte[] data = new byte[buffer.remaining()];
+            buffer.get(data);
+            outgoing.addLast(new Outgoing(nextSequence++, data));
+        } finally {
+            BufferPool.getInstance().release(buffer);
+        }
+    }
+
+    /**
+     * Handles a reliable message from the peer.
+     * 
+     * @param message
+     *            The received message
+     * @param now
+     *            The current time in ms
+     * @return The messages that can be delivered now, in order
+     */
+    public List<NetworkMessage> receive(final ReliableMessage message,
+            final long now) {
+        if (message.getSession() != remoteSession) {
+            if (remoteSession != 0) {
+                // The peer has started over, so what we sent is void
+                reset();
+            }
+            remoteSession = message.getSession();
+        }
+        acknowledge(message.getAck(), message.getAckMask(), now);
+
+        final List<NetworkMessage> result = new ArrayList<NetworkMessage>();
+        final List<Integer> sequences = message.getSequences();
+        final List<NetworkMessage> messages = message.getMessages();
+        for (int i = 0; i < sequences.size(); i++) {
+            final int sequence = sequences.get(i);
+            // Always acknowledge, because the last acknowledgment may be lost
+            ackPending = true;
+            if (sequence <= delivered || sequence > delivered + ACK_WINDOW
+                    || buffered.containsKey(sequence)
+                    || messages.get(i) == null) {
+                continue;
+            }
+            markReceived(sequence);
+            buffered.put(sequence, messages.get(i));
+        }
+
+        NetworkMessage next = buffered.remove(delivered + 1);
+        while (next != null) {
+            delivered++;
+            result.add(next);
+            next = buffered.remove(delivered + 1);
+        }
+        return result;
+    }
+
+    private void markReceived(final int sequence) {
+        if (sequence > highestReceived) {
+            final int shift = sequence - highestReceived;
+            if (shift > ACK_WINDOW) {
+                receivedMask = 0;
+            } else {
+                final long mask = (long) receivedMask << 1 | 1;
+                receivedMask = (int) (mask << shift - 1);
+            }
+            highestReceived = sequence;
+        } else {
+            receivedMask |= 1 << highestReceived - 1 - sequence;
+        }
+    }
+
+    /**
+     * Handles an acknowledgment of the peer. Acknowledgments can also arrive
+     * with other messages than reliable messages.
+     * 
+     * @param ack
+     *            The highest sequence number the peer has received
+     * @param ackMask
+     *            Bit i is set if the peer has received ack - 1 - i
+     * @param now
+     *            The current time in ms
+     */
+    public void acknowledge(final int ack, final int ackMask, final long now) {
+        Outgoing measured = null;
+        final Iterator<Outgoing> iterator = outgoing.iterator();
+        while (iterator.hasNext()) {
+            final Outgoing entry = iterator.next();
+            if (entry.sendCount > 0 && isAcknowledged(entry.sequence, ack,
+                    ackMask)) {
+                // Only messages that were sent once give a reliable sample
+                if (entry.sendCount == 1 && (measured == null
+                        || entry.sentTime > measured.sentTime)) {
+                    measured = entry;
+                }
+                iterator.remove();
+            }
+        }
+        if (measured != null) {
+            updateRoundTripTime(now - measured.sentTime);
+        }
+    }
+
+    /**
+     * Checks if an acknowledgment covers a sequence number. Numbers further
+     * back than the window have been received, because no more than the
+     * window is sent ahead of what has been acknowledged.
+     */
+    private static boolean isAcknowledged(final int sequence, final int ack,
+            final int ackMask) {
+        final int distance = ack - sequence;
+        return distance == 0 || distance > ACK_WINDOW || distance > 0
+                && (ackMask & 1 << distance - 1) != 0;
+    }
+
+    private void updateRoundTripTime(final long sample) {
+        if (roundTripTime < 0) {
+            roundTripTime = sample;
+            roundTripVariation = sample / 2.0;
+        } else {
+            roundTripVariation = 0.75 * roundTripVariation + 0.25
+                    * Math.abs(roundTripTime - sample);
+            roundTripTime = 0.875 * roundTripTime + 0.125 * sample;
+        }
+        timeout = Math.max(MIN_TIMEOUT, Math.min(MAX_TIMEOUT, Math
+                .round(roundTripTime + 4 * roundTripVariation)));
+    }
+
+    /**
+     * Returns the reliable message that should be sent now: the new messages,
+     * the messages of which the retransmit timeout has passed, and the
+     * acknowledgment of what has been received.
+     * 
+     * @param now
+     *            The current time in ms
+     * @return The message to send, or null if there is nothing to send
+     */
+    public ReliableMessage poll(final long now) {
+        final List<Integer> sequences = new ArrayList<Integer>();
+        final List<byte[]> data = new ArrayList<byte[]>();
+        boolean retransmitted = false;
+        if (!outgoing.isEmpty()) {
+            // Only send what the acknowledgment of the peer can cover
+            final int end = outgoing.peekFirst().sequence + ACK_WINDOW;
+            for (final Outgoing entry : outgoing) {
+                if (entry.sequence >= end) {
+                    break;
+                }
+                if (entry.sendCount > 0 && now - entry.sentTime < timeout) {
+                    continue;
+                }
+                if (entry.sendCount > 0) {
+                    retransmitted = true;
+                    retransmissions++;
+                }
+                if (entry.sendCount >= MAX_SENDS) {
+                    failed = true;
+                }
+                entry.sendCount++;
+                entry.sentTime = now;
+                sequences.add(entry.sequence);
+                data.add(entry.data);
+            }
+        }
+        if (retransmitted) {
+            timeout = Math.min(timeout * 2, MAX_TIMEOUT);
+        }
+
+        if (sequences.isEmpty() && !ackPending) {
+            return null;
+        }
+        ackPending = false;
+        return new ReliableMessage(session, highestReceived, receivedMask,
+                sequences, data);
+    }
+
+    /**
+     * Returns the highest sequence number that has been received, to
+     * acknowledge it with another message.
+     * 
+     * @return the highest received sequence number
+     */
+    public int getAck() {
+        return highestReceived;
+    }
+
+    /**
+     * Returns the bits of the sequence numbers before the highest one, to
+     * acknowledge them with another message.
+     * 
+     * @return bit i is set if getAck() - 1 - i has been received
+     */
+    public int getAckMask() {
+        return receivedMask;
+    }
+
+    /**
+     * Tells the channel the acknowledgment has been sent with another message,
+     * so <code>poll</code> does not have to send it.
+     */
+    public void setAckSent() {
+        ackPending = false;
+    }
+
+    /**
+     * Checks if there are messages that have not been acknowledged.
+     * 
+     * @return True if there are unacknowledged messages
+     */
+    public boolean hasUnacknowledged() {
+        return !outgoing.isEmpty();
+    }
+
+    /**
+     * Checks if a message has been sent many times without being
+     * acknowledged, which means the peer is probably gone.
+     * 
+     * @return True if the channel has failed
+     */
+    public boolean hasFailed() {
+        return failed;
+    }
+
+    /**
+     * Returns the smoothed round trip time.
+     * 
+     * @return the round trip time in ms, or -1 if it has not been measured
+     */
+    public double getRoundTripTime() {
+        return roundTripTime;
+    }
+
+    /**
+     * Returns the current retransmit timeout.
+     * 
+     * @return the timeout in ms
+     */
+    public long getTimeout() {
+        return timeout;
+    }
+
+    public int getRetransmissions() {
+        return retransmissions;
+    }
+}
@@ -25,7 +25,9 @@ import java.net.InetSocketAddress;
 import java.net.PortUnreachableException;
 import java.net.SocketAddress;
 import java.nio.channels.DatagramChannel;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.Deque;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Set;
@@ -35,14 +37,19 @@ import org.apache.log4j.Logger;
 import walledin.engine.Renderer;
 import walledin.engine.input.Input;
 import walledin.game.ClientLogicManager;
+import walledin.game.PlayerAction;
 import walledin.game.PlayerActionManager;
 import walledin.game.PlayerClientInfo;
 import walledin.game.Team;
+import walledin.game.network.GamestateEncoding;
+import walledin.game.network.InputFrame;
 import walledin.game.network.NetworkConstants;
 import walledin.game.network.NetworkEventListener;
 import walledin.game.network.NetworkMessageReader;
 import walledin.game.network.NetworkMessageWriter;
+import walledin.game.network.ReliableChannel;
 import walledin.game.network.ServerData;
+import walledin.game.network.messages.NetworkMessage;
 import walledin.game.network.messages.game.ConsoleUpdateMessage;
 import walledin.game.network.messages.game.GamestateMessage;
 import walledin.game.network.messages.game.GetPlayerInfoMessage;
@@ -52,6 +59,7 @@ import walledin.game.network.messages.game.LoginMessage;
 import walledin.game.network.messages.game.LoginResponseMessage;
 import walledin.game.network.messages.game.LoginResponseMessage.ErrorCode;
 import walledin.game.network.messages.game.LogoutMessage;
+import walledin.game.network.messages.game.ReliableMessage;
 import walledin.game.network.messages.game.TeamSelectMessage;
 import walledin.game.network.messages.masterserver.ChallengeMessage;
 import walledin.game.network.messages.masterserver.GetServersMessage;
@@ -62,6 +70,10 @@ import walledin.util.SettingsManager;
 
 public final class Client implements NetworkEventListener {
     private static final Logger LOG = Logger.getLogger(Client.class);
+    /** The input rate if the server does not tell its updates per second. */
+    private static final int DEFAULT_INPUT_RATE = 60;
+    /** The maximum number of input frames that are sampled in one update. */
+    private static final int MAX_INPUT_CATCH_UP = 5;
 
     private SocketAddress host;
     private String username;
@@ -84,14 +96,34 @@ public final class Client implements NetworkEventListener {
     private boolean connectedMasterServer = false;
     private boolean boundServerNotifyChannel = false;
     private int receivedVersion = 0;
-    private long lastLoginTry;
+    /** True while the client waits for the first game state. */
+    private boolean loggingIn;
     /** The time when the last update was received. */
     private long lastUpdate;
-    private final long loginRetryTime;
     private final long timeOutTime;
+    /** The gamestate encoding that is requested when logging in. */
+    private final GamestateEncoding requestedEncoding;
     /** The renderer. */
     private final Renderer renderer;
     private final ClientLogicManager clientLogicManager;
+    /** Predicts the movement of the player, or null if disabled. */
+    private final PlayerPredictor predictor;
+    /** Interpolates the entities of the server, or null if disabled. */
+    private final SnapshotInterpolator interpolator;
+    /** The game time of the last game state that was applied, or -1. */
+    private int serverTime;
+    /** The sequence number of the last input frame. */
+    private int inputSequence;
+    /** The last input frames, which are all sent with every input. */
+    private final Deque<InputFrame> inputFrames;
+    /** The number of input frames that are sent with every input. */
+    private final int inputRedundancy;
+    /** The time between two input frames in seconds. */
+    private double inputDelta;
+    /** The time that has not been sampled as input frames yet. */
+    private double inputAccumulator;
+    /** Sends the control messages to the server reliably and in order. */
+    private ReliableChannel reliableChannel;
 
     /**
      * Create the client.
@@ -110,15 +142,43 @@ public final class Client implements NetworkEventListener {
         internetServerList = new HashSet<ServerData>();
         lanServerList = new HashSet<ServerData>();
         playerList = new HashSet<PlayerClientInfo>();
+        inputFrames = new ArrayDeque<InputFrame>();
+        inputDelta = 1.0 / DEFAULT_INPUT_RATE;
+        serverTime = -1;
 
         channel = DatagramChannel.open();
         masterServerChannel = DatagramChannel.open();
 
-        loginRetryTime = SettingsManager.getInstance().getInteger(
-                "network.loginRetryTime");
-
         timeOutTime = SettingsManager.getInstance().getInteger(
                 "network.timeOutTime");
+
+        inputRedundancy = SettingsManager.getInstance().getInteger(
+                "network.inputRedundancy");
+
+        if (SettingsManager.getInstance().getBoolean(
+                "network.compactGamestates")) {
+            requestedEncoding = GamestateEncoding.COMPACT;
+        } else {
+            requestedEncoding = GamestateEncoding.STANDARD;
+        }
+
+        final Boolean prediction = SettingsManager.getInstance().getBoolean(
+                "network.prediction");
+        if (prediction != null && prediction) {
+            predictor = new PlayerPredictor(clientLogicManager
+                    .getEntityManager());
+        } else {
+            predictor = null;
+        }
+
+        final Boolean interpolation = SettingsManager.getInstance()
+                .getBoolean("network.interpolation");
+        if (interpolation != null && interpolation) {
+            interpolator = new SnapshotInterpolator(clientLogicManager
+                    .getEntityManager());
+        } else {
+            interpolator = null;
+        }
     }
 
     public void refreshServerList() {
@@ -160,6 +220,86 @@ public final class Client implements NetworkEventListener {
         processServerMessages();
         processMasterServerMessages();
         processBroadcastMessages();
+        if (interpolator != null) {
+            interpolator.update();
+        }
+    }
+
+    /**
+     * Samples the input of the player at a fixed rate, one frame for every
+     * update of the server, and sends it with the frames before it. The
+     * movement of the player is predicted for every frame. Should be called
+     * before the entities are updated.
+     * 
+     * @param delta
+     *            time since last update in seconds
+     */
+    public void updateInput(final double delta) {
+        if (!connected) {
+            return;
+        }
+        // Do not send a burst of input after a long frame
+        inputAccumulator = Math.min(inputAccumulator + delta,
+                MAX_INPUT_CATCH_UP * inputDelta);
+        while (!loggingIn && inputAccumulator >= inputDelta) {
+            inputAccumulator -= inputDelta;
+            final Set<PlayerAction> actions = new HashSet<PlayerAction>(
+                    PlayerActionManager.getInstance().getPlayerActions());
+            inputSequence++;
+            if (inputFrames.size() == inputRedundancy) {
+                inputFrames.removeFirst();
+            }
+            inputFrames.addLast(new InputFrame(inputSequence, actions,
+                    renderer.screenToWorld(Input.getInstance().getMousePos())));
+            if (predictor != null) {
+                predictor.update(clientLogicManager.getPlayerName(), actions,
+                        inputSequence);
+            }
+            sendInput();
+        }
+        sendReliableMessages();
+    }
+
+    /**
+     * Sends the last input frames to the server. The messages received over
+     * the reliable channel are acknowledged with it.
+     */
+    private void sendInput() {
+        // The server rewinds our bullets to the game time we show
+        final int viewTime = interpolator != null ? interpolator
+                .getRenderTime() : serverTime;
+        try {
+            networkWriter.sendMessage(channel, new InputMessage(
+                    receivedVersion, new ArrayList<InputFrame>(inputFrames),
+                    viewTime, reliableChannel.getAck(), reliableChannel
+                            .getAckMask()));
+            reliableChannel.setAckSent();
+        } catch (final IOException e) {
+            LOG.error("IO exception during network event", e);
+            dispose();
+        }
+    }
+
+    /**
+     * Sends the new and unacknowledged messages of the reliable channel.
+     */
+    private void sendReliableMessages() {
+        final ReliableMessage message = reliableChannel.poll(System
+                .currentTimeMillis());
+        if (message == null) {
+            return;
+        }
+        if (reliableChannel.hasFailed()) {
+            clientLogicManager
+                    .displayErrorAndDisconnect("The connection timed out.");
+            return;
+        }
+        try {
+            networkWriter.sendMessage(channel, message);
+        } catch (final IOException e) {
+            LOG.error("IO exception during network event", e);
+            dispose();
+        }
     }
 
     private void processBroadcastMessages() {
@@ -205,13 +345,6 @@ public final class Client implements NetworkEventListener {
     private void processServerMessages() {
         try {
             if (connected) {
-
-                if (lastLoginTry >= 0
-                        && System.currentTimeMillis() - lastLoginTry > loginRetryTime) {
-                    lastLoginTry = System.currentTimeMillis();
-                    networkWriter.sendMessage(channel, new LoginMessage(
-                            username));
-                }
                 // Read messages.
                 SocketAddress address = networkReader.readMessage(channel);
 
@@ -300,13 +433,28 @@ public final class Client implements NetworkEventListener {
         }
 
         try {
-            lastLoginTry = System.currentTimeMillis();
-
             LOG.info("Connecting to server " + address);
             username = System.getProperty("user.name");
 
             /* Reset some variables. */
             clientLogicManager.resetGame();
+            networkReader.resetEntityIds();
+            if (predictor != null) {
+                predictor.reset();
+            }
+            if (interpolator != null) {
+                interpolator.reset();
+            }
+            serverTime = -1;
+            inputFrames.clear();
+            inputAccumulator = 0;
+            inputDelta = 1.0 / DEFAULT_INPUT_RATE;
+
+            // The login is sent again until the server acknowledges it
+            reliableChannel = new ReliableChannel();
+            reliableChannel.send(new LoginMessage(username, requestedEncoding,
+                    renderer.getWidth(), renderer.getHeight()));
+            loggingIn = true;
 
             // always try to disconnect. Does nothing if not connected
             channel.disconnect();
@@ -363,7 +511,13 @@ public final class Client implements NetworkEventListener {
     public void dispose() {
         if (connected) {
             try {
-                networkWriter.sendMessage(channel, new LogoutMessage());
+                // Send it right away, the client may exit before the next poll
+                reliableChannel.send(new LogoutMessage());
+                final ReliableMessage message = reliableChannel.poll(System
+                        .currentTimeMillis());
+                if (message != null) {
+                    networkWriter.sendMessage(channel, message);
+                }
                 connected = false;
             } catch (final IOException e) {
                 LOG.fatal("IOException during logout", e);
@@ -394,10 +548,8 @@ public final class Client implements NetworkEventListener {
     }
 
     public void selectTeam(final Team team) {
-        try {
-            networkWriter.sendMessage(channel, new TeamSelectMessage());
-        } catch (final IOException e) {
-            LOG.error("IOException", e);
+        if (connected) {
+            reliableChannel.send(new TeamSelectMessage());
         }
     }
 
@@ -423,19 +575,21 @@ public final class Client implements NetworkEventListener {
     }
 
     /**
-     * Called when the gamestate has been updated. We only send a new input when
-     * we receive the net game state.
+     * Called when the gamestate has been updated.
      */
     @Override
     public void receivedMessage(final SocketAddress address,
             final GamestateMessage message) {
-        lastLoginTry = -1;
+        loggingIn = false;
         // FIXME check if this is correct .. version could be swaped
         final ChangeSet changeSet = message.getChangeSet();
         // The old version from where this change set updates
         final int oldVersion = changeSet.getFirstVersion();
         // The new version to which this change set updates
         final int newVersion = message.getNewVersion();
+        // Set if vectors were skipped because their reference was missing
+        final boolean incomplete = networkReader.getVectorHistory()
+                .takeIncomplete();
         if (LOG.isTraceEnabled()) {
             LOG.trace("version:" + newVersion + " receivedVersion:"
                     + receivedVersion + " oldversion: " + oldVersion);
@@ -443,18 +597,27 @@ public final class Client implements NetworkEventListener {
         if (receivedVersion >= oldVersion && newVersion > receivedVersion) {
             clientLogicManager.getEntityManager().applyChangeSet(changeSet,
                     receivedVersion);
-            receivedVersion = newVersion;
-        }
-        try {
-            networkWriter.sendMessage(
-                    channel,
-                    new InputMessage(receivedVersion, PlayerActionManager
-                            .getInstance().getPlayerActions(), renderer
-                            .screenToWorld(Input.getInstance().getMousePos())));
-        } catch (final IOException e) {
-            LOG.error("IO exception during network event", e);
-            dispose();
+            if (incomplete) {
+                // Acknowledging version 0 makes the server send everything
+                LOG.warn("Missing values in game state " + newVersion
+                        + ", requesting the full game state");
+                receivedVersion = 0;
+            } else {
+                receivedVersion = newVersion;
+            }
+            serverTime = message.getServerTime();
+            final String playerName = clientLogicManager.getPlayerName();
+            if (predictor != null) {
+                predictor.reconcile(playerName, changeSet.getUpdated().get(
+                        playerName));
+            }
+            if (interpolator != null && message.getServerTime() >= 0) {
+                // The predicted player is not shown in the past
+                interpolator.addGamestate(message.getServerTime(), changeSet,
+                        predictor != null ? playerName : null);
+            }
         }
+        networkReader.pruneEntityIds(clientLogicManager.getEntityManager());
     }
 
     @Override
@@ -471,7 +634,14 @@ public final class Client implements NetworkEventListener {
             final LoginResponseMessage message) {
         if (message.getErrorCode() == ErrorCode.ERROR_SUCCESSFULL) {
             clientLogicManager.setPlayerName(message.getEntityName());
-            LOG.info("Player entity name received: " + message.getEntityName());
+            if (predictor != null) {
+                predictor.setUpdatesPerSecond(message.getUpdatesPerSecond());
+            }
+            if (message.getUpdatesPerSecond() > 0) {
+                inputDelta = 1.0 / message.getUpdatesPerSecond();
+            }
+            LOG.info("Player entity name received: " + message.getEntityName()
+                    + " gamestate encoding: " + message.getEncoding());
             return;
         }
 
@@ -546,4 +716,19 @@ public final class Client implements NetworkEventListener {
             final GetServersMessage message) {
         // ignore
     }
+
+    /**
+     * Delivers the messages of the reliable channel that are next in order.
+     */
+    @Override
+    public void receivedMessage(final SocketAddress address,
+            final ReliableMessage message) {
+        if (!connected) {
+            return;
+        }
+        for (final NetworkMessage delivered : reliableChannel.receive(message,
+                System.currentTimeMillis())) {
+            delivered.fireEvent(this, address);
+        }
+    }
 }
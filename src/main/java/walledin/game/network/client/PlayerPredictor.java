@@ -0,0 +1,293 @@
+/*  Copyright 2010 Ben Ruijl, Wouter Smeenk
+
+This file is part of Walled In.
+
+Walled In is free software; you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation; either version 3, or (at your option)
+any later version.
+
+Walled In is distributed in the hope that it will be useful, but
+WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with Walled In; see the file LICENSE.  If not, write to the
+Free Software Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA
+02111-1307 USA.
+
+ */
+package walledin.game.network.client;
+
+import java.util.ArrayDeque;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.Map;
+import java.util.Set;
+
+import walledin.engine.math.Vector2f;
+import walledin.game.EntityManager;
+import walledin.game.PlayerAction;
+import walledin.game.collision.CollisionManager;
+import walledin.game.entity.Attribute;
+import walledin.game.entity.Entity;
+import walledin.game.entity.Family;
+import walledin.game.entity.MessageType;
+import walledin.game.entity.behaviors.physics.PhysicsBehavior;
+import walledin.game.entity.behaviors.physics.PlayerControlBehaviour;
+
+/**
+ * Predicts the movement of the player of the client, so the player does not
+ * have to wait for the server to see the result of its input.
+ * 
+ * The player is moved with the same forces and physics as on the server, a
+ * step of the same length as an update of the server for every input frame.
+ * Every step is stored with the sequence number of its input frame. When the
+ * server sends the state of the player, it also sends the sequence number of
+ * the last input frame it applied. The player is then reset to the state of
+ * the server and the steps the server has not applied yet are replayed.
+ * 
+ * Only collisions with the map are predicted. Other collisions are corrected
+ * when the state of the server arrives.
+ * 
+ * @author Wouter Smeenk
+ * 
+ */
+public class PlayerPredictor {
+    /** The maximum number of steps that are stored. */
+    private static final int MAX_STEPS = 256;
+
+    /** A step of the prediction. */
+    private static final class Step {
+        /** The sequence number of the input. */
+        private final int sequence;
+        /** The actions of the input. */
+        private final Set<PlayerAction> actions;
+        /** True if the player could jump before the step. */
+        private boolean canJump;
+
+        private Step(final int sequence, final Set<PlayerAction> actions) {
+            this.sequence = sequence;
+            this.actions = actions;
+        }
+    }
+
+    private final EntityManager entityManager;
+    /** The steps that the server has not acknowledged yet, oldest first. */
+    private final Deque<Step> steps;
+    /** The duration of a step in seconds, or 0 if unknown. */
+    private double stepDelta;
+    /** The predicted player, or null if there is none. */
+    private Entity player;
+    /** The physics of the player, which is removed from the player. */
+    private PhysicsBehavior physics;
+    /** The map the player collides with. */
+    private Entity map;
+    /** True if the player is standing on something. */
+    private boolean canJump;
+    /** The last position of the player that was received from the server. */
+    private Vector2f serverPosition;
+    /** The last velocity of the player that was received from the server. */
+    private Vector2f serverVelocity;
+    /** The sequence of the last input the server has applied. */
+    private int serverSequence;
+
+    /**
+     * Creates a new predictor.
+     * 
+     * @param entityManager
+     *            The entity manager of the client
+     */
+    public PlayerPredictor(final EntityManager entityManager) {
+        this.entityManager = entityManager;
+        steps = new ArrayDeque<Step>();
+    }
+
+    /**
+     * Sets the number of updates per second of the server. Nothing is
+     * predicted as long as this is not known.
+     * 
+     * @param updatesPerSecond
+     *            The updates per second, or 0 if unknown
+     */
+    public void setUpdatesPerSecond(final int updatesPerSecond) {
+        stepDelta = updatesPerSecond > 0 ? 1.0 / updatesPerSecond : 0;
+    }
+
+    /**
+     * Forgets the predicted player, for example when connecting to another
+     * server.
+     */
+    public void reset() {
+        player = null;
+        physics = null;
+        map = null;
+        steps.clear();
+        serverPosition = null;
+        serverVelocity = null;
+        serverSequence = 0;
+    }
+
+    /**
+     * Starts predicting a player. Its physics behavior is removed, so the
+     * entity manager does not move the player too.
+     */
+    private void attach(final Entity entity) {
+        reset();
+        if (!entity.hasBehavior(PhysicsBehavior.class)) {
+            return;
+        }
+        player = entity;
+        physics = (PhysicsBehavior) entity
+                .removeBehavior(PhysicsBehavior.class);
+        serverPosition = (Vector2f) entity.getAttribute(Attribute.POSITION);
+        serverVelocity = (Vector2f) entity.getAttribute(Attribute.VELOCITY);
+    }
+
+    private Entity findMap() {
+        if (map == null || map.isMarkedRemoved()) {
+            map = null;
+            for (final Entity entity : entityManager.getEntities().values()) {
+                if (entity.getFamily() == Family.MAP) {
+                    map = entity;
+                }
+            }
+        }
+        return map;
+    }
+
+    /**
+     * Predicts the movement of the player for a single input frame.
+     * 
+     * @param playerName
+     *            The name of the player entity
+     * @param actions
+     *            The actions of the input frame
+     * @param sequence
+     *            The sequence number of the input frame
+     */
+    public void update(final String playerName,
+            final Set<PlayerAction> actions, final int sequence) {
+        final Entity entity = entityManager.get(playerName);
+        if (entity == null || stepDelta == 0) {
+            return;
+        }
+        if (entity != player) {
+            attach(entity);
+        }
+        if (player == null) {
+            return;
+        }
+
+        final Step step = new Step(sequence, actions);
+        step.canJump = canJump;
+        if (steps.size() == MAX_STEPS) {
+            steps.removeFirst();
+        }
+        steps.addLast(step);
+        step(step.actions);
+    }
+
+    /**
+     * Corrects the prediction with the state of the player that has been
+     * received from the server.
+     * 
+     * @param playerName
+     *            The name of the player entity
+     * @param updated
+     *            The attributes of the player that the server has sent, or
+     *            null if none were sent
+     */
+    public void reconcile(final String playerName,
+            final Map<Attribute, Object> updated) {
+        if (player == null || updated == null
+                || !player.getName().equals(playerName)) {
+            return;
+        }
+        final Vector2f position = (Vector2f) updated.get(Attribute.POSITION);
+        final Vector2f velocity = (Vector2f) updated.get(Attribute.VELOCITY);
+        final Integer sequence = (Integer) updated
+                .get(Attribute.INPUT_SEQUENCE);
+        if (position == null && velocity == null && sequence == null) {
+            return;
+        }
+        if (position != null) {
+            serverPosition = position;
+        }
+        if (velocity != null) {
+            serverVelocity = velocity;
+        }
+        if (sequence != null) {
+            serverSequence = sequence;
+        }
+        if (serverPosition == null || serverVelocity == null) {
+            return;
+        }
+
+        // Drop the steps of the input the server has applied
+        while (!steps.isEmpty() && steps.peekFirst().sequence <= serverSequence) {
+            steps.removeFirst();
+        }
+
+        // Rewind to the state of the server and replay the other steps
+        setState(serverPosition, serverVelocity);
+        /*
+         * The server does not send if the player can jump, so the replay
+         * starts with what was predicted before the first replayed step. If
+         * the server state differs from the prediction, for example a landing
+         * one tick earlier, a jump in the first replayed step can be missed
+         * or added. The next correction of the server fixes it.
+         */
+        if (!steps.isEmpty()) {
+            canJump = steps.peekFirst().canJump;
+        }
+        for (final Step step : steps) {
+            step.canJump = canJump;
+            step(step.actions);
+        }
+    }
+
+    /**
+     * Moves the player a single step, like the server does in an update.
+     */
+    private void step(final Set<PlayerAction> actions) {
+        physics.onMessage(MessageType.APPLY_FORCE, PlayerControlBehaviour
+                .getMovementForce(actions, canJump));
+        physics.onUpdate(stepDelta);
+        syncPhysics();
+        canJump = false;
+
+        final Entity currentMap = findMap();
+        if (currentMap == null || !currentMap.hasAttribute(Attribute.TILES)
+                || !player.hasAttribute(Attribute.BOUNDING_GEOMETRY)) {
+            return;
+        }
+        final Vector2f theoreticalPosition = (Vector2f) player
+                .getAttribute(Attribute.POSITION);
+        CollisionManager.calculateMapCollisions(currentMap, Collections
+                .singleton(player), stepDelta);
+        syncPhysics();
+        // The player can jump if it has been pushed up by the floor
+        final Vector2f position = (Vector2f) player
+                .getAttribute(Attribute.POSITION);
+        if (position.getY() < theoreticalPosition.getY()) {
+            canJump = true;
+        }
+    }
+
+    private void setState(final Vector2f position, final Vector2f velocity) {
+        player.setAttribute(Attribute.POSITION, position);
+        player.setAttribute(Attribute.VELOCITY, velocity);
+        syncPhysics();
+    }
+
+    /**
+     * Tells the physics behavior about the position and velocity of the
+     * player, because it no longer receives the messages of the player.
+     */
+    private void syncPhysics() {
+        physics.onMessage(MessageType.ATTRIBUTE_SET, Attribute.POSITION);
+        physics.onMessage(MessageType.ATTRIBUTE_SET, Attribute.VELOCITY);
+    }
+}
@@ -0,0 +1,323 @@
+/*  Copyright 2010 Ben Ruijl, Wouter Smeenk
+
+This file is part of Walled In.
+
+Walled In is free software; you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation; either version 3, or (at your option)
+any later version.
+
+Walled In is distributed in the hope that it will be useful, but
+WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with Walled In; see the file LICENSE.  If not, write to the
+Free Software Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA
+02111-1307 USA.
+
+ */
+package walledin.game.network.client;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Map.Entry;
+
+import walledin.engine.math.Vector2f;
+import walledin.game.EntityManager;
+import walledin.game.entity.Attribute;
+import walledin.game.entity.Entity;
+import walledin.game.entity.Family;
+import walledin.game.network.server.ChangeSet;
+
+/**
+ * Shows the entities of the server a little in the past, so their positions
+ * can be interpolated between the game states that have been received. This
+ * hides the jitter and loss of the game states.
+ * 
+ * Every game state contains the game time of the server. The offset between
+ * that time and the local time is estimated from the game states that arrive
+ * the quickest. The entities are shown at the estimated server time minus a
+ * delay that adapts to the interval and the jitter of the game states. If no
+ * newer game state has arrived in time, the entities are extrapolated for a
+ * short while.
+ * 
+ * Only the positions that are in a game state are stored. An entity that is
+ * missing from a game state may have been deferred by the server, so its
+ * position is interpolated across the gap once the next position arrives.
+ * Entities that the server reported as stopped are held at their position
+ * instead of being extrapolated.
+ * 
+ * @author Wouter Smeenk
+ * 
+ */
+public class SnapshotInterpolator {
+    /** The number of positions that are stored per entity. */
+    private static final int SNAPSHOTS = 32;
+    /** The rate at which a slower connection is accepted. */
+    private static final double OFFSET_ADAPT_RATE = 0.01;
+    /** The rate at which the interval and jitter estimates adapt. */
+    private static final double ESTIMATE_RATE = 0.1;
+    /** The rate at which the delay moves to its target. */
+    private static final double DELAY_RATE = 0.05;
+    /** The number of game state intervals the entities are shown delayed. */
+    private static final double DELAY_INTERVALS = 1.5;
+    /** The number of jitter deviations that are added to the delay. */
+    private static final double DELAY_JITTERS = 2;
+    /** The maximum delay in milliseconds. */
+    private static final double MAX_DELAY = 500;
+    /** The maximum time in milliseconds an entity is extrapolated. */
+    private static final double MAX_EXTRAPOLATION = 100;
+    /** The velocity of an entity that does not move. */
+    private static final Vector2f ZERO = new Vector2f();
+
+    /** The positions of an entity at the game states. */
+    private static final class Track {
+        private final int[] times;
+        private final Vector2f[] positions;
+        /** The index of the newest position. */
+        private int newest;
+        private int count;
+        /** True if the server has reported that the entity does not move. */
+        private boolean stopped;
+
+        private Track() {
+            times = new int[SNAPSHOTS];
+            positions = new Vector2f[SNAPSHOTS];
+            newest = -1;
+        }
+
+        private void add(final int time, final Vector2f position) {
+            if (count > 0 && time <= times[newest]) {
+                positions[newest] = position;
+                return;
+            }
+            newest = (newest + 1) % SNAPSHOTS;
+            times[newest] = time;
+            positions[newest] = position;
+            count = Math.min(count + 1, SNAPSHOTS);
+        }
+
+        /** Returns the i-th newest position, starting at 0. */
+        private int index(final int age) {
+            return (newest - age + SNAPSHOTS) % SNAPSHOTS;
+        }
+
+        private Vector2f sample(final double time) {
+            final int last = index(0);
+            if (count == 1 || time >= times[last]) {
+                if (count == 1 || stopped) {
+                    return positions[last];
+                }
+                // Continue with the last known velocity for a short while
+                final int previous = index(1);
+                final double extrapolation = Math.min(time - times[last],
+                        MAX_EXTRAPOLATION);
+                final float t = (float) (extrapolation / (times[last]
+                        - times[previous]));
+                return positions[last].add(positions[last].sub(
+                        positions[previous]).scale(t));
+            }
+            for (int age = 1; age < count; age++) {
+                final int older = index(age);
+                if (times[older] <= time) {
+                    final int newer = index(age - 1);
+                    final float t = (float) ((time - times[older])
+                            / (times[newer] - times[older]));
+                    return positions[older].add(positions[newer].sub(
+                            positions[older]).scale(t));
+                }
+            }
+            return positions[index(count - 1)];
+        }
+    }
+
+    private final EntityManager entityManager;
+    /** The positions of the entities that have moved, by entity name. */
+    private final Map<String, Track> tracks;
+    /** True if the offset has been estimated. */
+    private boolean clockSynchronized;
+    /** The estimated server time minus the local time in milliseconds. */
+    private double offset;
+    /** The estimated deviation of the arrival of the game states. */
+    private double jitter;
+    /** The estimated interval between the game states in milliseconds. */
+    private double interval;
+    /** The delay the entities are shown with in milliseconds. */
+    private double delay;
+    /** The server time of the last game state. */
+    private int lastServerTime;
+
+    /**
+     * Creates a new interpolator.
+     * 
+     * @param entityManager
+     *            The entity manager of the client
+     */
+    public SnapshotInterpolator(final EntityManager entityManager) {
+        this.entityManager = entityManager;
+        tracks = new HashMap<String, Track>();
+    }
+
+    /**
+     * Forgets all game states, for example when connecting to another server.
+     */
+    public void reset() {
+        tracks.clear();
+        clockSynchronized = false;
+        jitter = 0;
+        interval = 0;
+        delay = 0;
+    }
+
+    private static double localTime() {
+        return System.nanoTime() / 1000000.0;
+    }
+
+    /**
+     * Stores the positions of a game state that has been applied. The
+     * positions that were applied are overwritten by the next call to
+     * <code>update</code>.
+     * 
+     * @param serverTime
+     *            The game time of the game state in milliseconds
+     * @param changeSet
+     *            The change set of the game state
+     * @param excludedEntity
+     *            The name of an entity that is not interpolated, or null
+     */
+    public void addGamestate(final int serverTime, final ChangeSet changeSet,
+            final String excludedEntity) {
+        final int previousServerTime = lastServerTime;
+        updateClock(serverTime);
+
+        final Iterator<Entry<String, Track>> iterator = tracks.entrySet()
+                .iterator();
+        while (iterator.hasNext()) {
+            if (entityManager.get(iterator.next().getKey()) == null) {
+                iterator.remove();
+            }
+        }
+
+        for (final Entry<String, Map<Attribute, Object>> entry : changeSet
+                .getUpdated().entrySet()) {
+            final Vector2f position = (Vector2f) entry.getValue().get(
+                    Attribute.POSITION);
+            if (position == null
+                    || isExcluded(entry.getKey(), excludedEntity)) {
+                continue;
+            }
+            Track track = tracks.get(entry.getKey());
+            if (track == null) {
+                track = new Track();
+                tracks.put(entry.getKey(), track);
+            } else if (track.stopped) {
+                // A stopped entity was still at its position in the previous
+                // game state, otherwise it would have been in it
+                track.add(previousServerTime, track.positions[track.newest]);
+            }
+            track.add(serverTime, position);
+
+            final Vector2f velocity = (Vector2f) entry.getValue().get(
+                    Attribute.VELOCITY);
+            if (velocity != null) {
+                track.stopped = velocity.equals(ZERO);
+            }
+        }
+    }
+
+    /**
+     * Checks if an entity is excluded. The weapon of an excluded player is
+     * excluded too, because it follows the player.
+     */
+    private boolean isExcluded(final String name, final String excludedEntity) {
+        if (excludedEntity == null) {
+            return false;
+        }
+        if (name.equals(excludedEntity)) {
+            return true;
+        }
+        final Entity entity = entityManager.get(name);
+        return entity != null
+                && entity.getFamily().getParent() == Family.WEAPON
+                && excludedEntity.equals(entity
+                        .getAttribute(Attribute.OWNED_BY));
+    }
+
+    private void updateClock(final int serverTime) {
+        final double sample = serverTime - localTime();
+        if (!clockSynchronized) {
+            clockSynchronized = true;
+            offset = sample;
+            lastServerTime = serverTime;
+            return;
+        }
+
+        // The game states that arrive the quickest have the highest offset
+        if (sample > offset) {
+            offset = sample;
+        } else {
+            offset += (sample - offset) * OFFSET_ADAPT_RATE;
+        }
+        jitter += (offset - sample - jitter) * ESTIMATE_RATE;
+        if (serverTime > lastServerTime) {
+            if (interval == 0) {
+                interval = serverTime - lastServerTime;
+            } else {
+                interval += (serverTime - lastServerTime - interval)
+                        * ESTIMATE_RATE;
+            }
+            lastServerTime = serverTime;
+        }
+
+        final double target = Math.min(interval * DELAY_INTERVALS + jitter
+                * DELAY_JITTERS, MAX_DELAY);
+        if (delay == 0) {
+            delay = target;
+        } else {
+            delay += (target - delay) * DELAY_RATE;
+        }
+    }
+
+    /**
+     * Moves the entities to their interpolated positions. Should be called
+     * after the game states have been applied and before rendering.
+     */
+    public void update() {
+        if (!clockSynchronized) {
+            return;
+        }
+        final double renderTime = localTime() + offset - delay;
+        for (final Entry<String, Track> entry : tracks.entrySet()) {
+            final Entity entity = entityManager.get(entry.getKey());
+            if (entity != null) {
+                entity.setAttribute(Attribute.POSITION, entry.getValue()
+                        .sample(renderTime));
+            }
+        }
+    }
+
+    /**
+     * Returns the game time the entities are shown at.
+     * 
+     * @return the game time in milliseconds, or -1 if no game state has been
+     *         received yet
+     */
+    public int getRenderTime() {
+        if (!clockSynchronized) {
+            return -1;
+        }
+        return (int) (localTime() + offset - delay);
+    }
+
+    /**
+     * Returns the delay the entities are shown with.
+     * 
+     * @return the delay in milliseconds
+     */
+    public double getDelay() {
+        return delay;
+    }
+}
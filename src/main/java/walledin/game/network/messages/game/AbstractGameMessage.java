@@ -20,6 +20,7 @@ Free Software Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA
  */
 package walledin.game.network.messages.game;
 
+import java.net.SocketAddress;
 import java.nio.ByteBuffer;
 import java.util.HashMap;
 import java.util.Map;
@@ -49,6 +50,8 @@ public abstract class AbstractGameMessage implements NetworkMessage {
         result.put((byte) 6, LogoutMessage.class);
         result.put((byte) 7, TeamSelectMessage.class);
         result.put((byte) 8, ConsoleUpdateMessage.class);
+        result.put((byte) 9, CompactGamestateMessage.class);
+        result.put((byte) 10, ReliableMessage.class);
         return result;
     }
 
@@ -72,6 +75,22 @@ public abstract class AbstractGameMessage implements NetworkMessage {
         }
     }
 
+    /**
+     * Reads the message body using the state of the reader that received it.
+     * By default the state is not used.
+     * 
+     * @param buffer
+     *            The buffer the message is read from
+     * @param address
+     *            The address the message was received from.
+     * @param reader
+     *            The reader that received the message
+     */
+    public void read(final ByteBuffer buffer, final SocketAddress address,
+            final NetworkMessageReader reader) {
+        read(buffer, address);
+    }
+
     @Override
     public void writeHeader(final ByteBuffer buffer) {
         buffer.putInt(DATAGRAM_IDENTIFICATION);
@@ -0,0 +1,112 @@
+/*  Copyright 2010 Ben Ruijl, Wouter Smeenk
+
+This file is part of Walled In.
+
+Walled In is free software; you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation; either version 3, or (at your option)
+any later version.
+
+Walled In is distributed in the hope that it will be useful, but
+WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with Walled In; see the file LICENSE.  If not, write to the
+Free Software Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA
+02111-1307 USA.
+
+ */
+package walledin.game.network.messages.game;
+
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.util.Set;
+
+import walledin.game.network.EntityIdTable;
+import walledin.game.network.NetworkMessageReader;
+import walledin.game.network.NetworkMessageWriter;
+import walledin.game.network.Quantization;
+import walledin.game.network.QuantizedVectorHistory;
+import walledin.game.network.server.ChangeSet;
+
+/**
+ * Gamestate message in the compact encoding. It is handled like a normal
+ * gamestate message by the listener.
+ * 
+ * @author Wouter Smeenk
+ * 
+ */
+public class CompactGamestateMessage extends GamestateMessage {
+    private Quantization quantization;
+    private QuantizedVectorHistory history;
+    private Set<String> refreshedEntities;
+
+    public CompactGamestateMessage() {
+
+    }
+
+    /**
+     * Creates a compact gamestate message.
+     * 
+     * @param changeSet
+     *            This changeset to send
+     * @param newVersion
+     *            The version it is updating to
+     * @param serverTime
+     *            The game time of the version in milliseconds
+     * @param quantization
+     *            The precision of the vector attributes
+     * @param history
+     *            The values of the vectors at the previous versions
+     * @param refreshedEntities
+     *            The entities that are written without using the previous
+     *            values, or null
+     */
+    public CompactGamestateMessage(final ChangeSet changeSet,
+            final int newVersion, final int serverTime,
+            final Quantization quantization,
+            final QuantizedVectorHistory history,
+            final Set<String> refreshedEntities) {
+        super(changeSet, newVersion, serverTime);
+        this.quantization = quantization;
+        this.history = history;
+        this.refreshedEntities = refreshedEntities;
+    }
+
+    @Override
+    public void read(final ByteBuffer buffer, final SocketAddress address) {
+        // Without the state of the connection only the full game state can
+        // be read
+        read(buffer, new EntityIdTable(), new Quantization(),
+                new QuantizedVectorHistory());
+    }
+
+    @Override
+    public void read(final ByteBuffer buffer, final SocketAddress address,
+            final NetworkMessageReader reader) {
+        read(buffer, reader.getEntityIdTable(), reader.getQuantization(),
+                reader.getVectorHistory());
+    }
+
+    private void read(final ByteBuffer buffer, final EntityIdTable entityIds,
+            final Quantization quantization,
+            final QuantizedVectorHistory history) {
+        newVersion = NetworkMessageReader.readVarInt(buffer);
+        changeSet = NetworkMessageReader.readCompactChangeSet(buffer,
+                newVersion, entityIds, quantization, history);
+        serverTime = -1;
+        if (buffer.hasRemaining()) {
+            serverTime = NetworkMessageReader.readVarInt(buffer);
+        }
+    }
+
+    @Override
+    public void write(final ByteBuffer buffer) {
+        NetworkMessageWriter.writeVarInt(newVersion, buffer);
+        NetworkMessageWriter.writeCompactChangeSet(changeSet, buffer,
+                quantization, history, refreshedEntities);
+        NetworkMessageWriter.writeVarInt(serverTime, buffer);
+    }
+}
@@ -29,8 +29,10 @@ import walledin.game.network.NetworkMessageWriter;
 import walledin.game.network.server.ChangeSet;
 
 public class GamestateMessage extends AbstractGameMessage {
-    private ChangeSet changeSet;
-    private int newVersion;
+    protected ChangeSet changeSet;
+    protected int newVersion;
+    /** The game time of the new version in milliseconds, or -1 if unknown. */
+    protected int serverTime;
 
     public GamestateMessage() {
 
@@ -43,10 +45,14 @@ public class GamestateMessage extends AbstractGameMessage {
      *            This changeset to send
      * @param newVersion
      *            The version it is updating to
+     * @param serverTime
+     *            The game time of the version in milliseconds
      */
-    public GamestateMessage(final ChangeSet changeSet, final int newVersion) {
+    public GamestateMessage(final ChangeSet changeSet, final int newVersion,
+            final int serverTime) {
         this.changeSet = changeSet;
         this.newVersion = newVersion;
+        this.serverTime = serverTime;
     }
 
     public ChangeSet getChangeSet() {
@@ -57,16 +63,32 @@ public class GamestateMessage extends AbstractGameMessage {
         return newVersion;
     }
 
+    /**
+     * Returns the game time of the new version on the server. The game time
+     * advances with every update of the server.
+     * 
+     * @return The time in milliseconds, or -1 if the server did not send it
+     */
+    public int getServerTime() {
+        return serverTime;
+    }
+
     @Override
     public void read(final ByteBuffer buffer, final SocketAddress address) {
         newVersion = buffer.getInt();
         changeSet = NetworkMessageReader.readChangeSet(buffer);
+        // Older servers do not send the time
+        serverTime = -1;
+        if (buffer.hasRemaining()) {
+            serverTime = buffer.getInt();
+        }
     }
 
     @Override
     public void write(final ByteBuffer buffer) {
         buffer.putInt(newVersion);
         NetworkMessageWriter.writeChangeSet(changeSet, buffer);
+        buffer.putInt(serverTime);
     }
 
     @Override
@@ -22,48 +22,146 @@ package walledin.game.network.messages.game;
 
 import java.net.SocketAddress;
 import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashSet;
+import java.util.List;
 import java.util.Set;
 
 import walledin.engine.math.Vector2f;
 import walledin.game.PlayerAction;
+import walledin.game.network.InputFrame;
 import walledin.game.network.NetworkEventListener;
 
+/**
+ * The input of a player. The newest input frame is sent in full. The frames
+ * before it are sent too, so the server still receives a frame if the message
+ * that carried it first was lost. Those frames are sent as a bit mask of
+ * actions, and a cursor position relative to the frame after it in whole
+ * units. The acknowledgment of the reliable messages of the server is sent
+ * along too.
+ * 
+ * @author Wouter Smeenk
+ * 
+ */
 public class InputMessage extends AbstractGameMessage {
     private int version;
-    private Set<PlayerAction> playerActions;
-    private Vector2f mousePos;
+    /** The input frames, oldest first. The last frame is the newest. */
+    private List<InputFrame> frames;
+    /** The game time the client shows, or -1 if it is unknown. */
+    private int viewTime;
+    /** The acknowledgment of the reliable messages, or -1 if none. */
+    private int ack;
+    /** The bits of the acknowledgment of the reliable messages. */
+    private int ackMask;
 
     public InputMessage() {
     }
 
-    public InputMessage(final int version,
-            final Set<PlayerAction> playerActions, final Vector2f mousePos) {
+    /**
+     * Creates a new input message.
+     * 
+     * @param version
+     *            The last version the client has received
+     * @param frames
+     *            The frames to send, oldest first. Should contain at least
+     *            one frame.
+     * @param viewTime
+     *            The game time the client shows, or -1 if it is unknown
+     * @param ack
+     *            The highest reliable message the client has received
+     * @param ackMask
+     *            The reliable messages before it the client has received
+     */
+    public InputMessage(final int version, final List<InputFrame> frames,
+            final int viewTime, final int ack, final int ackMask) {
         this.version = version;
-        this.playerActions = playerActions;
-        this.mousePos = mousePos;
+        this.frames = frames;
+        this.viewTime = viewTime;
+        this.ack = ack;
+        this.ackMask = ackMask;
     }
 
     @Override
     public void read(final ByteBuffer buffer, final SocketAddress address) {
         version = buffer.getInt();
         final short numActions = buffer.getShort();
-        playerActions = new HashSet<PlayerAction>();
+        final Set<PlayerAction> playerActions = new HashSet<PlayerAction>();
         for (int i = 0; i < numActions; i++) {
             playerActions.add(PlayerAction.values()[buffer.getShort()]);
         }
-        mousePos = new Vector2f(buffer.getFloat(), buffer.getFloat());
+        final Vector2f mousePos = new Vector2f(buffer.getFloat(), buffer
+                .getFloat());
+        // Older clients do not number their input
+        int sequence = 0;
+        if (buffer.hasRemaining()) {
+            sequence = buffer.getInt();
+        }
+        viewTime = -1;
+        if (buffer.hasRemaining()) {
+            viewTime = buffer.getInt();
+        }
+        InputFrame frame = new InputFrame(sequence, playerActions, mousePos);
+        ack = -1;
+        if (!buffer.hasRemaining()) {
+            frames = Collections.singletonList(frame);
+            return;
+        }
+
+        // The previous frames, newest first
+        final int numFrames = buffer.get() & 0xFF;
+        frames = new ArrayList<InputFrame>(numFrames + 1);
+        frames.add(frame);
+        for (int i = 0; i < numFrames; i++) {
+            final int mask = buffer.getShort() & 0xFFFF;
+            final Vector2f position = frame.getMousePos().sub(
+                    new Vector2f(buffer.getShort(), buffer.getShort()));
+            frame = new InputFrame(frame.getSequence() - 1, InputFrame
+                    .fromMask(mask), position);
+            frames.add(frame);
+        }
+        Collections.reverse(frames);
+
+        if (buffer.hasRemaining()) {
+            ack = buffer.getInt();
+            ackMask = buffer.getInt();
+        }
     }
 
     @Override
     public void write(final ByteBuffer buffer) {
+        InputFrame frame = frames.get(frames.size() - 1);
         buffer.putInt(version);
-        buffer.putShort((short) playerActions.size());
-        for (final PlayerAction actions : playerActions) {
+        buffer.putShort((short) frame.getActions().size());
+        for (final PlayerAction actions : frame.getActions()) {
             buffer.putShort((short) actions.ordinal());
         }
-        buffer.putFloat(mousePos.getX());
-        buffer.putFloat(mousePos.getY());
+        buffer.putFloat(frame.getMousePos().getX());
+        buffer.putFloat(frame.getMousePos().getY());
+        buffer.putInt(frame.getSequence());
+        buffer.putInt(viewTime);
+
+        // Relative to the position the server decodes, so errors do not add up
+        float x = frame.getMousePos().getX();
+        float y = frame.getMousePos().getY();
+        buffer.put((byte) (frames.size() - 1));
+        for (int i = frames.size() - 2; i >= 0; i--) {
+            frame = frames.get(i);
+            final short deltaX = toShort(x - frame.getMousePos().getX());
+            final short deltaY = toShort(y - frame.getMousePos().getY());
+            buffer.putShort((short) InputFrame.toMask(frame.getActions()));
+            buffer.putShort(deltaX);
+            buffer.putShort(deltaY);
+            x -= deltaX;
+            y -= deltaY;
+        }
+        buffer.putInt(ack);
+        buffer.putInt(ackMask);
+    }
+
+    private static short toShort(final float value) {
+        return (short) Math.max(Short.MIN_VALUE, Math.min(Short.MAX_VALUE,
+                Math.round(value)));
     }
 
     @Override
@@ -76,11 +174,67 @@ public class InputMessage extends AbstractGameMessage {
         return version;
     }
 
+    /**
+     * Returns the input frames, oldest first. The frames follow each other
+     * without gaps, and the last frame is the newest.
+     * 
+     * @return the input frames
+     */
+    public List<InputFrame> getFrames() {
+        return frames;
+    }
+
     public Set<PlayerAction> getPlayerActions() {
-        return playerActions;
+        return getNewestFrame().getActions();
     }
 
     public Vector2f getMousePos() {
-        return mousePos;
+        return getNewestFrame().getMousePos();
+    }
+
+    /**
+     * Returns the sequence number of the newest input. Every input frame the
+     * client samples has a higher number than the one before.
+     * 
+     * @return The sequence number, or 0 if the client does not number its
+     *         input
+     */
+    public int getSequence() {
+        return getNewestFrame().getSequence();
+    }
+
+    private InputFrame getNewestFrame() {
+        return frames.get(frames.size() - 1);
+    }
+
+    /**
+     * Returns the game time of the game state the client shows the other
+     * entities at, in milliseconds. The server uses it to find out how far
+     * behind the client sees the other players.
+     * 
+     * @return The game time, or -1 if the client did not send it
+     */
+    public int getViewTime() {
+        return viewTime;
+    }
+
+    /**
+     * Returns the acknowledgment of the reliable messages the server sent,
+     * which the client sends along with its input.
+     * 
+     * @return The highest sequence number the client has received, or -1 if
+     *         the client did not send an acknowledgment
+     */
+    public int getAck() {
+        return ack;
+    }
+
+    /**
+     * Returns the bits of the acknowledgment of the reliable messages.
+     * 
+     * @return bit i is set if getAck() - 1 - i has been received
+     */
+    public int getAckMask() {
+        return ackMask;
     }
 }
@@ -23,28 +23,52 @@ package walledin.game.network.messages.game;
 import java.net.SocketAddress;
 import java.nio.ByteBuffer;
 
+import walledin.game.network.GamestateEncoding;
 import walledin.game.network.NetworkEventListener;
 import walledin.game.network.NetworkMessageReader;
 import walledin.game.network.NetworkMessageWriter;
 
 public class LoginMessage extends AbstractGameMessage {
     private String name;
+    /** The gamestate encoding the client would like to receive. */
+    private GamestateEncoding encoding;
+    /** The size of the viewport of the client, 0 if unknown. */
+    private int viewportWidth;
+    private int viewportHeight;
 
     public LoginMessage() {
     }
 
-    public LoginMessage(final String name) {
+    public LoginMessage(final String name, final GamestateEncoding encoding,
+            final int viewportWidth, final int viewportHeight) {
         this.name = name;
+        this.encoding = encoding;
+        this.viewportWidth = viewportWidth;
+        this.viewportHeight = viewportHeight;
     }
 
     @Override
     public void read(final ByteBuffer buffer, final SocketAddress address) {
         name = NetworkMessageReader.readStringData(buffer);
+        // Older clients do not request an encoding
+        encoding = GamestateEncoding.STANDARD;
+        if (buffer.hasRemaining()) {
+            encoding = GamestateEncoding.values()[buffer.get()];
+        }
+        viewportWidth = 0;
+        viewportHeight = 0;
+        if (buffer.hasRemaining()) {
+            viewportWidth = buffer.getShort();
+            viewportHeight = buffer.getShort();
+        }
     }
 
     @Override
     public void write(final ByteBuffer buffer) {
         NetworkMessageWriter.writeStringData(name, buffer);
+        buffer.put((byte) encoding.ordinal());
+        buffer.putShort((short) viewportWidth);
+        buffer.putShort((short) viewportHeight);
     }
 
     @Override
@@ -56,4 +80,16 @@ public class LoginMessage extends AbstractGameMessage {
     public String getName() {
         return name;
     }
+
+    public GamestateEncoding getEncoding() {
+        return encoding;
+    }
+
+    public int getViewportWidth() {
+        return viewportWidth;
+    }
+
+    public int getViewportHeight() {
+        return viewportHeight;
+    }
 }
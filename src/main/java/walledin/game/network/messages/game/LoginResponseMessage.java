@@ -23,6 +23,7 @@ package walledin.game.network.messages.game;
 import java.net.SocketAddress;
 import java.nio.ByteBuffer;
 
+import walledin.game.network.GamestateEncoding;
 import walledin.game.network.NetworkEventListener;
 import walledin.game.network.NetworkMessageReader;
 import walledin.game.network.NetworkMessageWriter;
@@ -30,6 +31,10 @@ import walledin.game.network.NetworkMessageWriter;
 public class LoginResponseMessage extends AbstractGameMessage {
     private ErrorCode errorCode;
     private String entityName;
+    /** The gamestate encoding the server will use. */
+    private GamestateEncoding encoding;
+    /** The number of times per second the server updates the game. */
+    private int updatesPerSecond;
 
     /** Network error code lists. */
     public enum ErrorCode {
@@ -43,9 +48,12 @@ public class LoginResponseMessage extends AbstractGameMessage {
     }
 
     public LoginResponseMessage(final ErrorCode errorCode,
-            final String entityName) {
+            final String entityName, final GamestateEncoding encoding,
+            final int updatesPerSecond) {
         this.errorCode = errorCode;
         this.entityName = entityName;
+        this.encoding = encoding;
+        this.updatesPerSecond = updatesPerSecond;
     }
 
     public ErrorCode getErrorCode() {
@@ -56,16 +64,40 @@ public class LoginResponseMessage extends AbstractGameMessage {
         return entityName;
     }
 
+    public GamestateEncoding getEncoding() {
+        return encoding;
+    }
+
+    /**
+     * Returns the number of times per second the server updates the game.
+     * 
+     * @return The updates per second, or 0 if the server did not send it
+     */
+    public int getUpdatesPerSecond() {
+        return updatesPerSecond;
+    }
+
     @Override
     public void read(final ByteBuffer buffer, final SocketAddress address) {
         errorCode = ErrorCode.values()[buffer.getInt()];
         entityName = NetworkMessageReader.readStringData(buffer);
+        // Older servers do not negotiate an encoding
+        encoding = GamestateEncoding.STANDARD;
+        if (buffer.hasRemaining()) {
+            encoding = GamestateEncoding.values()[buffer.get()];
+        }
+        updatesPerSecond = 0;
+        if (buffer.hasRemaining()) {
+            updatesPerSecond = buffer.getInt();
+        }
     }
 
     @Override
     public void write(final ByteBuffer buffer) {
         buffer.putInt(errorCode.ordinal());
         NetworkMessageWriter.writeStringData(entityName, buffer);
+        buffer.put((byte) encoding.ordinal());
+        buffer.putInt(updatesPerSecond);
     }
 
     @Override
@@ -0,0 +1,152 @@
+/*  Copyright 2010 Ben Ruijl, Wouter Smeenk
+
+This file is part of Walled In.
+
+Walled In is free software; you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation; either version 3, or (at your option)
+any later version.
+
+Walled In is distributed in the hope that it will be useful, but
+WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with Walled In; see the file LICENSE.  If not, write to the
+Free Software Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA
+02111-1307 USA.
+
+ */
+package walledin.game.network.messages.game;
+
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+import walledin.game.network.NetworkEventListener;
+import walledin.game.network.NetworkMessageReader;
+import walledin.game.network.ReliableChannel;
+import walledin.game.network.messages.NetworkMessage;
+
+/**
+ * Carries the messages of a {@link ReliableChannel}, and its acknowledgment
+ * of the messages it has received. Every message is sent as a sequence number
+ * and the encoded message, including its header.
+ * 
+ * @author Wouter Smeenk
+ * 
+ */
+public class ReliableMessage extends AbstractGameMessage {
+    /** The session of the channel that sent the message. */
+    private int session;
+    /** The highest sequence number the sender has received. */
+    private int ack;
+    /** Bit i is set if the sender has received ack - 1 - i. */
+    private int ackMask;
+    /** The sequence numbers of the messages. */
+    private List<Integer> sequences;
+    /** The encoded messages, when writing. */
+    private List<byte[]> data;
+    /** The decoded messages, when reading. Null if it could not be decoded. */
+    private List<NetworkMessage> messages;
+
+    public ReliableMessage() {
+    }
+
+    public ReliableMessage(final int session, final int ack,
+            final int ackMask, final List<Integer> sequences,
+            final List<byte[]> data) {
+        this.session = session;
+        this.ack = ack;
+        this.ackMask = ackMask;
+        this.sequences = sequences;
+        this.data = data;
+    }
+
+    @Override
+    public void read(final ByteBuffer buffer, final SocketAddress address) {
+        read(buffer, address, null);
+    }
+
+    @Override
+    public void read(final ByteBuffer buffer, final SocketAddress address,
+            final NetworkMessageReader reader) {
+        session = buffer.getInt();
+        ack = buffer.getInt();
+        ackMask = buffer.getInt();
+        final int count = buffer.get() & 0xFF;
+        sequences = new ArrayList<Integer>(count);
+        messages = new ArrayList<NetworkMessage>(count);
+        for (int i = 0; i < count; i++) {
+            sequences.add(buffer.getInt());
+            final int length = buffer.getShort() & 0xFFFF;
+            final ByteBuffer message = buffer.slice();
+            message.limit(length);
+            buffer.position(buffer.position() + length);
+            messages.add(decode(message, address, reader));
+        }
+    }
+
+    private static NetworkMessage decode(final ByteBuffer message,
+            final SocketAddress address, final NetworkMessageReader reader) {
+        if (reader != null) {
+            return reader.decodeMessage(address, message);
+        }
+        // Without a reader only game messages without state can be read
+        if (message.getInt() != DATAGRAM_IDENTIFICATION) {
+            return null;
+        }
+        final AbstractGameMessage result = getMessage(message.get());
+        if (result != null) {
+            result.read(message, address);
+        }
+        return result;
+    }
+
+    @Override
+    public void write(final ByteBuffer buffer) {
+        buffer.putInt(session);
+        buffer.putInt(ack);
+        buffer.putInt(ackMask);
+        buffer.put((byte) sequences.size());
+        for (int i = 0; i < sequences.size(); i++) {
+            buffer.putInt(sequences.get(i));
+            buffer.putShort((short) data.get(i).length);
+            buffer.put(data.get(i));
+        }
+    }
+
+    @Override
+    public void fireEvent(final NetworkEventListener listener,
+            final SocketAddress address) {
+        listener.receivedMessage(address, this);
+    }
+
+    public int getSession() {
+        return session;
+    }
+
+    public int getAck() {
+        return ack;
+    }
+
+    public int getAckMask() {
+        return ackMask;
+    }
+
+    public List<Integer> getSequences() {
+        return sequences;
+    }
+
+    /**
+     * Returns the messages that were read. A message is null if it could not
+     * be decoded.
+     * 
+     * @return the messages, in the order of the sequence numbers
+     */
+    public List<NetworkMessage> getMessages() {
+        return messages;
+    }
+}
@@ -0,0 +1,282 @@
+/*  Copyright 2010 Ben Ruijl, Wouter Smeenk
+
+This file is part of Walled In.
+
+Walled In is free software; you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation; either version 3, or (at your option)
+any later version.
+
+Walled In is distributed in the hope that it will be useful, but
+WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with Walled In; see the file LICENSE.  If not, write to the
+Free Software Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA
+02111-1307 USA.
+
+ */
+package walledin.game.network.server;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Set;
+
+import walledin.engine.math.Vector2f;
+import walledin.game.collision.SpatialHash;
+import walledin.game.entity.Attribute;
+import walledin.game.entity.Entity;
+import walledin.game.entity.Family;
+
+/**
+ * Keeps track of the entities a player can see. Only the entities within the
+ * viewport of the player plus a margin are sent to the player. An entity that
+ * is visible stays visible until it is outside the margin plus the
+ * hysteresis, so entities on the border are not created and removed all the
+ * time.
+ * 
+ * Entities that enter or leave the area are sent as created or removed
+ * entities. Because these events differ per player, they are stored per
+ * version like in a change set, so they can be sent again until the player
+ * has acknowledged them.
+ * 
+ * The entities that enter the area are looked up in a spatial hash of the
+ * positions of all entities, which is shared by all players, so the cost of
+ * an update does not grow with the number of entities in the world.
+ * 
+ * @author Wouter Smeenk
+ * 
+ */
+public class AreaOfInterest {
+    /** Half the width of the area in which entities become visible. */
+    private final float halfWidth;
+    /** Half the height of the area in which entities become visible. */
+    private final float halfHeight;
+    /** Extra distance before a visible entity becomes invisible. */
+    private final float hysteresis;
+    /** The entities that are visible to the player, by name. */
+    private final Map<String, Entity> visible;
+    /** The entities that entered the area, per version. */
+    private final Map<Integer, Map<String, Family>> entered;
+    /** The entities that left the area, per version. */
+    private final Map<Integer, Set<String>> left;
+    /** The ids of the entities that entered or left the area, per version. */
+    private final Map<Integer, Map<String, Integer>> entityIds;
+    /** The last known position of the player. */
+    private Vector2f center;
+    /** The entities near the area, reused by every update. */
+    private final List<Entity> nearby;
+
+    /**
+     * Creates an area of interest.
+     * 
+     * @param viewportWidth
+     *            The width of the viewport of the player
+     * @param viewportHeight
+     *            The height of the viewport of the player
+     * @param margin
+     *            The distance outside the viewport in which entities are
+     *            visible as well
+     * @param hysteresis
+     *            The extra distance before a visible entity becomes invisible
+     */
+    public AreaOfInterest(final int viewportWidth, final int viewportHeight,
+            final float margin, final float hysteresis) {
+        halfWidth = viewportWidth * 0.5f + margin;
+        halfHeight = viewportHeight * 0.5f + margin;
+        this.hysteresis = hysteresis;
+        visible = new HashMap<String, Entity>();
+        entered = new HashMap<Integer, Map<String, Family>>();
+        left = new HashMap<Integer, Set<String>>();
+        entityIds = new HashMap<Integer, Map<String, Integer>>();
+        nearby = new ArrayList<Entity>();
+    }
+
+    /**
+     * Returns the entities that are visible to the player.
+     * 
+     * @return The visible entities, by name
+     */
+    public Map<String, Entity> getVisibleEntities() {
+        return Collections.unmodifiableMap(visible);
+    }
+
+    /**
+     * Updates the visible entities after a version has been created.
+     * 
+     * @param changeSet
+     *            The change set that only contains the changes of the version
+     * @param entities
+     *            The current entities
+     * @param positions
+     *            The current entities that have a position, inserted at their
+     *            position
+     * @param unplaced
+     *            The current entities that have no position, which are always
+     *            visible
+     * @param player
+     *            The entity of the player
+     */
+    public void update(final ChangeSet changeSet,
+            final Map<String, Entity> entities, final SpatialHash positions,
+            final Collection<Entity> unplaced, final Entity player) {
+        final int version = changeSet.getFirstVersion();
+        final Set<String> removed = changeSet.getRemoved().get(version);
+        if (removed != null) {
+            for (final String name : removed) {
+                if (visible.remove(name) != null) {
+                    addLeft(version, name, changeSet.getEntityIds().get(name));
+                }
+            }
+        }
+
+        if (player.hasAttribute(Attribute.POSITION)) {
+            center = (Vector2f) player.getAttribute(Attribute.POSITION);
+        }
+
+        final Iterator<Entity> it = visible.values().iterator();
+        while (it.hasNext()) {
+            final Entity entity = it.next();
+            if (entity != player && !isInside(entity, hysteresis)) {
+                it.remove();
+                addLeft(version, entity.getName(), entity.getId());
+            }
+        }
+
+        if (center == null) {
+            // Everything is visible until the player has a position
+            for (final Entity entity : entities.values()) {
+                enter(version, entity);
+            }
+            return;
+        }
+
+        nearby.clear();
+        positions.query(center.getX() - halfWidth, center.getY() - halfHeight,
+                center.getX() + halfWidth, center.getY() + halfHeight, nearby);
+        for (int i = 0; i < nearby.size(); i++) {
+            final Entity entity = nearby.get(i);
+            if (isInside(entity, 0)) {
+                enter(version, entity);
+            }
+        }
+        nearby.clear();
+        for (final Entity entity : unplaced) {
+            enter(version, entity);
+        }
+        enter(version, player);
+    }
+
+    /**
+     * Makes an entity visible if it is not visible yet.
+     */
+    private void enter(final int version, final Entity entity) {
+        final String name = entity.getName();
+        if (visible.containsKey(name)) {
+            return;
+        }
+        visible.put(name, entity);
+        Map<String, Family> current = entered.get(version);
+        if (current == null) {
+            current = new HashMap<String, Family>();
+            entered.put(version, current);
+        }
+        current.put(name, entity.getFamily());
+        addEntityId(version, name, entity.getId());
+    }
+
+    private void addLeft(final int version, final String name, final int id) {
+        Set<String> current = left.get(version);
+        if (current == null) {
+            current = new HashSet<String>();
+            left.put(version, current);
+        }
+        current.add(name);
+        addEntityId(version, name, id);
+    }
+
+    private void addEntityId(final int version, final String name,
+            final int id) {
+        Map<String, Integer> current = entityIds.get(version);
+        if (current == null) {
+            current = new HashMap<String, Integer>();
+            entityIds.put(version, current);
+        }
+        current.put(name, id);
+    }
+
+    private boolean isInside(final Entity entity, final float extra) {
+        if (center == null || !entity.hasAttribute(Attribute.POSITION)) {
+            return true;
+        }
+        final Vector2f position = (Vector2f) entity
+                .getAttribute(Attribute.POSITION);
+        return Math.abs(position.getX() - center.getX()) <= halfWidth + extra
+                && Math.abs(position.getY() - center.getY()) <= halfHeight
+                        + extra;
+    }
+
+    /**
+     * Creates the change set for the player from a change set of all
+     * entities. Entities that entered the area since the first version are
+     * created with all their attributes, and only the updates of visible
+     * entities are kept.
+     * 
+     * @param changeSet
+     *            The change set from the version the player has acknowledged
+     *            up to the current version. It is not modified.
+     * @return The change set of the visible entities
+     */
+    public ChangeSet filter(final ChangeSet changeSet) {
+        final int firstVersion = changeSet.getFirstVersion();
+        // The player will only build from this version or newer
+        removeOlderThan(entered.keySet().iterator(), firstVersion);
+        removeOlderThan(left.keySet().iterator(), firstVersion);
+        removeOlderThan(entityIds.keySet().iterator(), firstVersion);
+
+        final Map<String, Map<Attribute, Object>> updated = new HashMap<String, Map<Attribute, Object>>();
+        final ChangeSet result = new ChangeSet(firstVersion, changeSet
+                .getLastVersion(), new HashMap<Integer, Map<String, Family>>(
+                entered), new HashMap<Integer, Set<String>>(left), updated);
+        for (final Map<String, Integer> ids : entityIds.values()) {
+            result.getEntityIds().putAll(ids);
+        }
+
+        final Set<String> created = result.getCreatedFromVersion(firstVersion)
+                .keySet();
+        for (final String name : created) {
+            final Entity entity = visible.get(name);
+            if (entity != null) {
+                updated.put(name, entity.getNetworkAttributes());
+            }
+        }
+        for (final Entry<String, Map<Attribute, Object>> entry : changeSet
+                .getUpdated().entrySet()) {
+            final String name = entry.getKey();
+            if (visible.containsKey(name) && !created.contains(name)) {
+                updated.put(name, entry.getValue());
+                result.getEntityIds().put(name,
+                        changeSet.getEntityIds().get(name));
+            }
+        }
+        return result;
+    }
+
+    private static void removeOlderThan(final Iterator<Integer> it,
+            final int version) {
+        while (it.hasNext()) {
+            if (it.next() < version) {
+                it.remove();
+            }
+        }
+    }
+}
@@ -20,6 +20,7 @@ Free Software Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA
  */
 package walledin.game.network.server;
 
+import java.util.EnumMap;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
@@ -64,6 +65,11 @@ public class ChangeSet {
      */
     private final Map<String, Map<Attribute, Object>> updated;
 
+    /**
+     * The numeric id of every entity that is referenced by this change set
+     */
+    private final Map<String, Integer> entityIds;
+
     public ChangeSet(final int firstVersion, final Set<Entity> created,
             final Set<Entity> removed, final Map<String, Entity> entities) {
         this.firstVersion = firstVersion;
@@ -71,6 +77,7 @@ public class ChangeSet {
         this.created = new HashMap<Integer, Map<String, Family>>();
         this.removed = new HashMap<Integer, Set<String>>();
         updated = new HashMap<String, Map<Attribute, Object>>();
+        entityIds = new HashMap<String, Integer>();
         initialize(created, removed, entities);
     }
 
@@ -83,6 +90,31 @@ public class ChangeSet {
         this.created = created;
         this.removed = removed;
         this.updated = updated;
+        entityIds = new HashMap<String, Integer>();
+    }
+
+    /**
+     * Creates a copy of a change set that can be merged without modifying the
+     * original. The per version created and removed entries are shared,
+     * because they are never modified after creation.
+     * 
+     * @param changeSet
+     *            The change set to copy
+     */
+    public ChangeSet(final ChangeSet changeSet) {
+        firstVersion = changeSet.firstVersion;
+        lastVersion = changeSet.lastVersion;
+        created = new HashMap<Integer, Map<String, Family>>(changeSet.created);
+        removed = new HashMap<Integer, Set<String>>(changeSet.removed);
+        updated = new HashMap<String, Map<Attribute, Object>>();
+        for (final Entry<String, Map<Attribute, Object>> entry : changeSet.updated
+                .entrySet()) {
+            final Map<Attribute, Object> attributes = new EnumMap<Attribute, Object>(
+                    Attribute.class);
+            attributes.putAll(entry.getValue());
+            updated.put(entry.getKey(), attributes);
+        }
+        entityIds = new HashMap<String, Integer>(changeSet.entityIds);
     }
 
     /**
@@ -97,10 +129,12 @@ public class ChangeSet {
         final Map<String, Family> tempCreated = new HashMap<String, Family>();
         for (final Entity entity : created) {
             tempCreated.put(entity.getName(), entity.getFamily());
+            entityIds.put(entity.getName(), entity.getId());
         }
         final Set<String> tempRemoved = new HashSet<String>();
         for (final Entity entity : removed) {
             tempRemoved.add(entity.getName());
+            entityIds.put(entity.getName(), entity.getId());
         }
         if (tempCreated != null && !tempCreated.isEmpty()) {
             this.created.put(firstVersion, tempCreated);
@@ -109,9 +143,11 @@ public class ChangeSet {
             this.removed.put(firstVersion, tempRemoved);
         }
         for (final Entity entity : entities.values()) {
-            final Set<Attribute> changes = entity.getChangedAttributes();
-            if (!changes.isEmpty()) {
+            final long changes = entity.getChangedAttributeMask();
+            if (changes != 0) {
                 updated.put(entity.getName(), entity.getAttributes(changes));
+                entityIds.put(entity.getName(), entity.getId());
+                entity.clearChangedAttributes();
             }
         }
     }
@@ -153,12 +189,13 @@ public class ChangeSet {
             Map<Attribute, Object> ourChanges = updated.get(name);
             if (ourChanges == null) {
                 // Create new changes if we dont have it yet
-                ourChanges = new HashMap<Attribute, Object>();
+                ourChanges = new EnumMap<Attribute, Object>(Attribute.class);
             }
             // Add changes to our changes
             ourChanges.putAll(entry.getValue());
             updated.put(name, ourChanges);
         }
+        entityIds.putAll(changeSet.entityIds);
 
         if (theirRemoved != null) {
             // Remove removed entities from updated entities
@@ -232,4 +269,14 @@ public class ChangeSet {
     public Map<String, Map<Attribute, Object>> getUpdated() {
         return updated;
     }
+
+    /**
+     * Returns the numeric ids of the entities referenced by this change set.
+     * Only change sets created by the entity manager contain ids.
+     * 
+     * @return the ids of the entities, by entity name
+     */
+    public Map<String, Integer> getEntityIds() {
+        return entityIds;
+    }
 }
@@ -0,0 +1,156 @@
+/*  Copyright 2010 Ben Ruijl, Wouter Smeenk
+
+This file is part of Walled In.
+
+Walled In is free software; you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation; either version 3, or (at your option)
+any later version.
+
+Walled In is distributed in the hope that it will be useful, but
+WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with Walled In; see the file LICENSE.  If not, write to the
+Free Software Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA
+02111-1307 USA.
+
+ */
+package walledin.game.network.server;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Stores the change sets of the last versions in a ring, indexed by version.
+ * Every stored change set only contains the changes of its own version. A
+ * change set from an older version up to the current version is only merged
+ * when it is requested, and is cached until the next version is added.
+ * 
+ * The change set of the first version is kept up to date separately, so new
+ * players can always receive the complete game state.
+ * 
+ * @author Wouter Smeenk
+ * 
+ */
+public class ChangeSetHistory {
+    /** The change sets of the stored versions, indexed by version. */
+    private final ChangeSet[] changeSets;
+    /** The change set from the first version up to the current version. */
+    private final ChangeSet initialChangeSet;
+    /** The merged change sets requested since the last version was added. */
+    private final Map<Integer, ChangeSet> mergedChangeSets;
+    /** The oldest version that is stored. */
+    private int oldestVersion;
+    /** The newest version that is stored. */
+    private int newestVersion;
+
+    /**
+     * Creates a new history.
+     * 
+     * @param initialChangeSet
+     *            The change set of the first version
+     * @param capacity
+     *            The maximum number of versions that are stored
+     */
+    public ChangeSetHistory(final ChangeSet initialChangeSet,
+            final int capacity) {
+        if (capacity <= 0) {
+            throw new IllegalArgumentException(
+                    "The capacity should be at least one");
+        }
+        this.initialChangeSet = new ChangeSet(initialChangeSet);
+        changeSets = new ChangeSet[capacity];
+        mergedChangeSets = new HashMap<Integer, ChangeSet>();
+        oldestVersion = initialChangeSet.getFirstVersion();
+        newestVersion = initialChangeSet.getFirstVersion();
+        changeSets[index(newestVersion)] = initialChangeSet;
+    }
+
+    private int index(final int version) {
+        return version % changeSets.length;
+    }
+
+    /**
+     * Adds the change set of the next version. If the history is full, the
+     * oldest version is dropped.
+     * 
+     * @param changeSet
+     *            A change set that only contains the changes of the version
+     *            after the newest stored version
+     * @return The version that was dropped, or -1 if no version was dropped
+     */
+    public int add(final ChangeSet changeSet) {
+        if (changeSet.getFirstVersion() != changeSet.getLastVersion()) {
+            throw new IllegalStateException(
+                    "Cannot add a changeset with multiple versions");
+        }
+
+        if (newestVersion + 1 != changeSet.getFirstVersion()) {
+            throw new IllegalStateException("Cannot add a changeset with a"
+                    + " version other than our newest version + 1");
+        }
+
+        int droppedVersion = -1;
+        if (newestVersion - oldestVersion + 1 == changeSets.length) {
+            droppedVersion = oldestVersion;
+            changeSets[index(oldestVersion)] = null;
+            oldestVersion++;
+        }
+
+        newestVersion++;
+        changeSets[index(newestVersion)] = changeSet;
+        initialChangeSet.merge(changeSet);
+        mergedChangeSets.clear();
+        return droppedVersion;
+    }
+
+    /**
+     * Returns the change set from a version up to the newest version. The
+     * result should not be modified, because it is shared until the next
+     * version is added.
+     * 
+     * @param version
+     *            The version to get the changes from
+     * @return The change set, or null if the version is not stored
+     */
+    public ChangeSet getChangeSet(final int version) {
+        if (version == initialChangeSet.getFirstVersion()) {
+            return initialChangeSet;
+        }
+
+        if (version < oldestVersion || version > newestVersion) {
+            return null;
+        }
+
+        ChangeSet result = mergedChangeSets.get(version);
+        if (result == null) {
+            result = new ChangeSet(changeSets[index(version)]);
+            for (int i = version + 1; i <= newestVersion; i++) {
+                result.merge(changeSets[index(i)]);
+            }
+            mergedChangeSets.put(version, result);
+        }
+        return result;
+    }
+
+    /**
+     * Returns the oldest version that is stored.
+     * 
+     * @return the oldest version that is stored
+     */
+    public int getOldestVersion() {
+        return oldestVersion;
+    }
+
+    /**
+     * Returns the newest version that is stored.
+     * 
+     * @return the newest version that is stored
+     */
+    public int getNewestVersion() {
+        return newestVersion;
+    }
+}
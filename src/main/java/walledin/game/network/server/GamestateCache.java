@@ -0,0 +1,187 @@
+/*  Copyright 2010 Ben Ruijl, Wouter Smeenk
+
+This file is part of Walled In.
+
+Walled In is free software; you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation; either version 3, or (at your option)
+any later version.
+
+Walled In is distributed in the hope that it will be useful, but
+WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with Walled In; see the file LICENSE.  If not, write to the
+Free Software Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA
+02111-1307 USA.
+
+ */
+package walledin.game.network.server;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+
+import walledin.game.entity.Family;
+import walledin.game.network.GamestateEncoding;
+
+/**
+ * Remembers which gamestate message of the current tick was created for a
+ * change set. Players that get the same changes from the same base version
+ * get the same message, so it only has to be encoded once and the encoded
+ * packet can be shared.
+ * 
+ * A change set that has been filtered or scheduled for a player is
+ * identified by its base version, the entities that are created and removed
+ * in every version, the entities that are updated, and the entities that are
+ * sent in full. Players with the same view that have received the same
+ * version share a packet.
+ * 
+ * @author Wouter Smeenk
+ * 
+ */
+public class GamestateCache {
+    /** The message index of every change set of this tick. */
+    private final Map<Key, Integer> messages;
+    /** The number of players that could share a packet. */
+    private long hits;
+    /** The number of packets that had to be encoded. */
+    private long misses;
+
+    public GamestateCache() {
+        messages = new HashMap<Key, Integer>();
+    }
+
+    /**
+     * Identifies the contents of a gamestate message. It refers to the maps
+     * and sets of the change set, which are not modified while the gamestates
+     * of a tick are created.
+     */
+    private static final class Key {
+        private final GamestateEncoding encoding;
+        private final int firstVersion;
+        private final Map<Integer, Map<String, Family>> created;
+        private final Map<Integer, Set<String>> removed;
+        private final Set<String> updated;
+        private final Set<String> refreshed;
+        private final int hash;
+
+        private Key(final GamestateEncoding encoding,
+                final ChangeSet changeSet, final Set<String> refreshed) {
+            this.encoding = encoding;
+            firstVersion = changeSet.getFirstVersion();
+            created = changeSet.getCreated();
+            removed = changeSet.getRemoved();
+            updated = changeSet.getUpdated().keySet();
+            this.refreshed = refreshed == null ? Collections
+                    .<String> emptySet() : refreshed;
+            int result = encoding.hashCode();
+            result = result * 31 + firstVersion;
+            result = result * 31 + created.hashCode();
+            result = result * 31 + removed.hashCode();
+            result = result * 31 + updated.hashCode();
+            hash = result * 31 + this.refreshed.hashCode();
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+
+        @Override
+        public boolean equals(final Object obj) {
+            if (!(obj instanceof Key)) {
+                return false;
+            }
+            final Key other = (Key) obj;
+            return hash == other.hash && encoding == other.encoding
+                    && firstVersion == other.firstVersion
+                    && updated.equals(other.updated)
+                    && refreshed.equals(other.refreshed)
+                    && created.equals(other.created)
+                    && removed.equals(other.removed);
+        }
+    }
+
+    /**
+     * Forgets the messages of the previous tick. Should be called before the
+     * gamestates of a tick are created.
+     */
+    public void clear() {
+        messages.clear();
+    }
+
+    /**
+     * Returns the message that was created for the same changes in this tick.
+     * 
+     * @param encoding
+     *            The encoding of the message
+     * @param changeSet
+     *            The change set that is sent to the player
+     * @param refreshedEntities
+     *            The entities that are sent with all their attributes, or
+     *            null
+     * @return The index of the message, or -1 if there is none yet
+     */
+    public int get(final GamestateEncoding encoding,
+            final ChangeSet changeSet, final Set<String> refreshedEntities) {
+        final Integer index = messages.get(new Key(encoding, changeSet,
+                refreshedEntities));
+        if (index == null) {
+            misses++;
+            return -1;
+        }
+        hits++;
+        return index;
+    }
+
+    /**
+     * Stores the message that was created for a change set in this tick.
+     * 
+     * @param encoding
+     *            The encoding of the message
+     * @param changeSet
+     *            The change set that is sent to the player
+     * @param refreshedEntities
+     *            The entities that are sent with all their attributes, or
+     *            null
+     * @param index
+     *            The index of the message
+     */
+    public void put(final GamestateEncoding encoding,
+            final ChangeSet changeSet, final Set<String> refreshedEntities,
+            final int index) {
+        messages.put(new Key(encoding, changeSet, refreshedEntities), index);
+    }
+
+    /**
+     * Returns the number of players that received a packet that was already
+     * encoded for another player.
+     * 
+     * @return the number of hits
+     */
+    public long getHits() {
+        return hits;
+    }
+
+    /**
+     * Returns the number of packets that were encoded because no other player
+     * got the same changes.
+     * 
+     * @return the number of misses
+     */
+    public long getMisses() {
+        return misses;
+    }
+
+    /**
+     * Resets the number of hits and misses.
+     */
+    public void resetStatistics() {
+        hits = 0;
+        misses = 0;
+    }
+}
@@ -0,0 +1,160 @@
+/*  Copyright 2010 Ben Ruijl, Wouter Smeenk
+
+This file is part of Walled In.
+
+Walled In is free software; you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation; either version 3, or (at your option)
+any later version.
+
+Walled In is distributed in the hope that it will be useful, but
+WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with Walled In; see the file LICENSE.  If not, write to the
+Free Software Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA
+02111-1307 USA.
+
+ */
+package walledin.game.network.server;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+import org.apache.log4j.Logger;
+
+import walledin.game.network.BufferPool;
+import walledin.game.network.NetworkMessageWriter;
+import walledin.game.network.messages.NetworkMessage;
+
+/**
+ * Encodes the gamestate messages of the players on a fixed pool of worker
+ * threads. Every message is encoded into its own buffer from the buffer pool,
+ * so the messages can be encoded at the same time. Without worker threads the
+ * messages are encoded by the calling thread. The messages must not be
+ * modified while they are encoded.
+ * 
+ * @author Wouter Smeenk
+ * 
+ */
+public class GamestateEncoder {
+    private static final Logger LOG = Logger.getLogger(GamestateEncoder.class);
+
+    /** The worker threads, or null to encode on the calling thread. */
+    private final ExecutorService executor;
+
+    /**
+     * Creates a new encoder.
+     * 
+     * @param threads
+     *            The number of worker threads, or 0 to encode on the calling
+     *            thread
+     */
+    public GamestateEncoder(final int threads) {
+        if (threads < 0) {
+            throw new IllegalArgumentException(
+                    "The number of threads should not be negative");
+        }
+        if (threads == 0) {
+            executor = null;
+        } else {
+            executor = Executors.newFixedThreadPool(threads,
+                    new ThreadFactory() {
+                        private int count;
+
+                        @Override
+                        public Thread newThread(final Runnable runnable) {
+                            count++;
+                            final Thread thread = new Thread(runnable,
+                                    "Gamestate encoder " + count);
+                            thread.setDaemon(true);
+                            return thread;
+                        }
+                    });
+        }
+    }
+
+    /**
+     * Encodes the messages in parallel and waits until all are encoded.
+     * 
+     * @param messages
+     *            The messages to encode
+     * @return The encoded messages, in the same order as the messages. An
+     *         entry is null if its message could not be encoded. The buffers
+     *         are borrowed from the buffer pool and should be released. If the
+     *         calling thread is interrupted, the encoded buffers are released
+     *         and all entries are null.
+     */
+    public List<ByteBuffer> encode(final List<? extends NetworkMessage> messages) {
+        final List<ByteBuffer> result = new ArrayList<ByteBuffer>(messages
+                .size());
+
+        // Not worth the hand off to the workers
+        if (executor == null || messages.size() < 2) {
+            for (final NetworkMessage message : messages) {
+                result.add(NetworkMessageWriter.encodeBorrowed(message));
+            }
+            return result;
+        }
+
+        final List<Future<ByteBuffer>> futures = new ArrayList<Future<ByteBuffer>>(
+                messages.size());
+        for (final NetworkMessage message : messages) {
+            futures.add(executor.submit(new Callable<ByteBuffer>() {
+                @Override
+                public ByteBuffer call() {
+                    return NetworkMessageWriter.encodeBorrowed(message);
+                }
+            }));
+        }
+
+        // Wait for every task, even when interrupted, so no buffer is lost
+        boolean interrupted = false;
+        for (final Future<ByteBuffer> future : futures) {
+            ByteBuffer encoded = null;
+            while (true) {
+                try {
+                    encoded = future.get();
+                    break;
+                } catch (final InterruptedException e) {
+                    interrupted = true;
+                } catch (final ExecutionException e) {
+                    LOG.error("Could not encode a gamestate message", e
+                            .getCause());
+                    break;
+                }
+            }
+            result.add(encoded);
+        }
+
+        if (interrupted) {
+            LOG.warn("Interrupted while encoding gamestate messages");
+            for (int i = 0; i < result.size(); i++) {
+                if (result.get(i) != null) {
+                    BufferPool.getInstance().release(result.get(i));
+                    result.set(i, null);
+                }
+            }
+            Thread.currentThread().interrupt();
+        }
+        return result;
+    }
+
+    /**
+     * Stops the worker threads.
+     */
+    public void shutdown() {
+        if (executor != null) {
+            executor.shutdown();
+        }
+    }
+}
@@ -0,0 +1,98 @@
+/*  Copyright 2010 Ben Ruijl, Wouter Smeenk
+
+This file is part of Walled In.
+
+Walled In is free software; you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation; either version 3, or (at your option)
+any later version.
+
+Walled In is distributed in the hope that it will be useful, but
+WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with Walled In; see the file LICENSE.  If not, write to the
+Free Software Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA
+02111-1307 USA.
+
+ */
+package walledin.game.network.server;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+
+import walledin.game.network.InputFrame;
+
+/**
+ * The input frames of a player that have been received but not applied yet.
+ * The server applies one frame every update. Frames that have already been
+ * received, or that are older than a frame that has been received, are
+ * dropped. If the client sends frames faster than they are applied, the
+ * oldest frames are dropped, so the input does not lag behind more than the
+ * capacity.
+ * 
+ * @author Wouter Smeenk
+ * 
+ */
+public class InputQueue {
+    /** The maximum number of frames that are queued. */
+    private final int capacity;
+    /** The frames that have not been applied yet, oldest first. */
+    private final Deque<InputFrame> frames;
+    /** The sequence number of the newest frame that was received. */
+    private int newestSequence;
+
+    /**
+     * Creates a new input queue.
+     * 
+     * @param capacity
+     *            The maximum number of frames that are queued
+     */
+    public InputQueue(final int capacity) {
+        if (capacity <= 0) {
+            throw new IllegalArgumentException(
+                    "The capacity should be at least one");
+        }
+        this.capacity = capacity;
+        frames = new ArrayDeque<InputFrame>();
+    }
+
+    /**
+     * Adds a frame to the queue, unless it is a duplicate or arrived too late.
+     * 
+     * @param frame
+     *            The frame to add
+     * @return True if the frame was added, false if it was dropped
+     */
+    public boolean add(final InputFrame frame) {
+        if (frame.getSequence() <= newestSequence) {
+            return false;
+        }
+        newestSequence = frame.getSequence();
+        if (frames.size() == capacity) {
+            frames.removeFirst();
+        }
+        frames.addLast(frame);
+        return true;
+    }
+
+    /**
+     * Removes the oldest frame from the queue.
+     * 
+     * @return The oldest frame, or null if the queue is empty
+     */
+    public InputFrame poll() {
+        return frames.pollFirst();
+    }
+
+    /**
+     * Returns the number of frames that are queued.
+     * 
+     * @return the number of frames
+     */
+    public int size() {
+        return frames.size();
+    }
+}
@@ -29,6 +29,7 @@ import org.apache.log4j.Logger;
 import walledin.engine.math.Vector2f;
 import walledin.game.PlayerAction;
 import walledin.game.entity.Entity;
+import walledin.game.network.GamestateEncoding;
 
 public class PlayerConnection {
     @SuppressWarnings("unused")
@@ -40,8 +41,17 @@ public class PlayerConnection {
 
     private final SocketAddress address;
     private int receivedVersion;
+    /** The sequence number of the last input that was applied. */
+    private int inputSequence;
     private boolean isNew;
     private boolean isPlayerActive;
+    private GamestateEncoding encoding;
+    /** Schedules the updates if the connection has a bandwidth budget. */
+    private UpdateScheduler updateScheduler;
+    /** The entities the player can see, if only those are sent. */
+    private AreaOfInterest areaOfInterest;
+    /** The numbered input frames that have not been applied yet. */
+    private InputQueue inputQueue;
 
     public PlayerConnection(final SocketAddress address, final Entity player,
             final int currentVersion) {
@@ -54,6 +64,7 @@ public class PlayerConnection {
         this.address = address;
         receivedVersion = currentVersion;
         isNew = true;
+        encoding = GamestateEncoding.STANDARD;
     }
 
     public Entity getPlayer() {
@@ -80,14 +91,72 @@ public class PlayerConnection {
         return receivedVersion;
     }
 
+    public void setInputSequence(final int inputSequence) {
+        this.inputSequence = inputSequence;
+    }
+
+    public int getInputSequence() {
+        return inputSequence;
+    }
+
     public void setNew() {
         isNew = false;
     }
 
+    /**
+     * Makes the connection receive the full game state again, as if it is
+     * new.
+     */
+    public void requestFullGamestate() {
+        isNew = true;
+    }
+
     public boolean isNew() {
         return isNew;
     }
 
+    public GamestateEncoding getEncoding() {
+        return encoding;
+    }
+
+    public void setEncoding(final GamestateEncoding encoding) {
+        this.encoding = encoding;
+    }
+
+    /**
+     * Returns the scheduler of the entity updates.
+     * 
+     * @return The scheduler, or null if all updates are sent
+     */
+    public UpdateScheduler getUpdateScheduler() {
+        return updateScheduler;
+    }
+
+    public void setUpdateScheduler(final UpdateScheduler updateScheduler) {
+        this.updateScheduler = updateScheduler;
+    }
+
+    /**
+     * Returns the area of interest of the player.
+     * 
+     * @return The area of interest, or null if all entities are sent
+     */
+    public AreaOfInterest getAreaOfInterest() {
+        return areaOfInterest;
+    }
+
+    public void setAreaOfInterest(final AreaOfInterest areaOfInterest) {
+        this.areaOfInterest = areaOfInterest;
+    }
+
+    public InputQueue getInputQueue() {
+        return inputQueue;
+    }
+
+    public void setInputQueue(final InputQueue inputQueue) {
+        this.inputQueue = inputQueue;
+    }
+
     public Set<PlayerAction> getPlayerActions() {
         return playerActions;
     }
@@ -24,24 +24,39 @@ import java.io.IOException;
 import java.net.InetSocketAddress;
 import java.net.PortUnreachableException;
 import java.net.SocketAddress;
+import java.nio.ByteBuffer;
 import java.nio.channels.DatagramChannel;
+import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.HashSet;
-import java.util.LinkedList;
+import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
-import java.util.Queue;
+import java.util.Map.Entry;
 import java.util.Set;
 
 import org.apache.log4j.Logger;
 
+import walledin.engine.math.Vector2f;
 import walledin.game.GameLogicManager;
+import walledin.game.collision.SpatialHash;
 import walledin.game.entity.Attribute;
 import walledin.game.entity.Entity;
+import walledin.game.network.BufferPool;
+import walledin.game.network.GamestateEncoding;
+import walledin.game.network.InputFrame;
 import walledin.game.network.NetworkConstants;
 import walledin.game.network.NetworkEventListener;
 import walledin.game.network.NetworkMessageReader;
 import walledin.game.network.NetworkMessageWriter;
+import walledin.game.network.NetworkReceiveThread;
+import walledin.game.network.NetworkSendThread;
+import walledin.game.network.Quantization;
+import walledin.game.network.QuantizedVectorHistory;
+import walledin.game.network.ReliableChannel;
 import walledin.game.network.ServerData;
+import walledin.game.network.messages.NetworkMessage;
+import walledin.game.network.messages.game.CompactGamestateMessage;
 import walledin.game.network.messages.game.ConsoleUpdateMessage;
 import walledin.game.network.messages.game.GamestateMessage;
 import walledin.game.network.messages.game.GetPlayerInfoMessage;
@@ -51,6 +66,7 @@ import walledin.game.network.messages.game.LoginMessage;
 import walledin.game.network.messages.game.LoginResponseMessage;
 import walledin.game.network.messages.game.LoginResponseMessage.ErrorCode;
 import walledin.game.network.messages.game.LogoutMessage;
+import walledin.game.network.messages.game.ReliableMessage;
 import walledin.game.network.messages.game.TeamSelectMessage;
 import walledin.game.network.messages.masterserver.ChallengeMessage;
 import walledin.game.network.messages.masterserver.GetServersMessage;
@@ -67,8 +83,12 @@ import walledin.util.Utils;
 public class Server implements NetworkEventListener {
     /** Logger. */
     private static final Logger LOG = Logger.getLogger(Server.class);
+    /** The time to wait for the send thread when stopping, in ms. */
+    private static final long SHUTDOWN_TIMEOUT = 1000;
 
     private final long broadcastInterval;
+    /** The time between two logs of the network statistics, in ms. */
+    private final long statisticsInterval;
 
     /** Server port. */
     private final int port;
@@ -79,34 +99,70 @@ public class Server implements NetworkEventListener {
     /** The maximum number of frames stored in memory. */
     private final int storedChangesets;
 
+    /** Whether the compact gamestate encoding may be used. */
+    private final boolean compactGamestates;
+    /** The precision of the vectors in compact game states. */
+    private final Quantization quantization;
+    /** The quantized vectors of the stored versions. */
+    private final QuantizedVectorHistory vectorHistory;
+    /** Bytes per tick that can be sent to a player, 0 for no limit. */
+    private final int bytesPerTick;
+    /** Distance at which the priority of an entity update is halved. */
+    private final float priorityDistance;
+    /** Whether only the entities around a player are sent to the player. */
+    private final boolean areaOfInterest;
+    /** Distance outside the viewport in which entities are sent. */
+    private final float interestMargin;
+    /** Extra distance before an entity that is sent is not sent anymore. */
+    private final float interestHysteresis;
+    /** The positions of the entities, shared by the areas of interest. */
+    private final SpatialHash interestHash;
+    /** The entities without a position, which every player can see. */
+    private final List<Entity> unplacedEntities;
+    /** The maximum number of input frames that are queued per player. */
+    private final int maxQueuedInput;
+    /** Whether the network is read and written on separate threads. */
+    private final boolean threaded;
+    /** The thread that receives the messages, if threaded. */
+    private NetworkReceiveThread receiveThread;
+    /** The thread that sends the messages, if threaded. */
+    private NetworkSendThread sendThread;
+    /** Encodes the gamestates, in parallel if configured. */
+    private final GamestateEncoder gamestateEncoder;
+    /** Shares the encoded gamestates between players with the same version. */
+    private final GamestateCache gamestateCache;
+
     private final String serverName;
     private final long challengeTimeout;
     private final Map<SocketAddress, PlayerConnection> players;
+    /** The reliable channels of the clients that use them, by address. */
+    private final Map<SocketAddress, ReliableChannel> reliableChannels;
     private final int maxPlayers;
-    private boolean running;
+    /** Cleared by another thread to stop the main loop. */
+    private volatile boolean running;
     private final NetworkMessageWriter networkWriter;
     private final NetworkMessageReader networkReader;
-    private long currentTime;
+    /** Paces the main loop to the updates per second. */
+    private final TickScheduler tickScheduler;
     private final GameLogicManager gameLogicManager;
-    private final Queue<ChangeSet> changeSets;
-    private final Map<Integer, ChangeSet> changeSetLookup;
+    private final ChangeSetHistory changeSetHistory;
 
     private DatagramChannel masterServerChannel;
     private DatagramChannel channel;
     private DatagramChannel serverNotifySocket;
     private long lastChallenge;
     private long lastBroadcast;
+    private long lastStatistics;
 
     /**
      * Creates a new server. Initializes variables to their default values.
      */
     public Server(final GameLogicManager gameLogicManager) {
         players = new HashMap<SocketAddress, PlayerConnection>();
+        reliableChannels = new HashMap<SocketAddress, ReliableChannel>();
         running = false;
         networkWriter = new NetworkMessageWriter();
         networkReader = new NetworkMessageReader(this);
-        changeSetLookup = new HashMap<Integer, ChangeSet>();
-        changeSets = new LinkedList<ChangeSet>();
         this.gameLogicManager = gameLogicManager;
 
         /* Load settings */
@@ -114,19 +170,51 @@ public class Server implements NetworkEventListener {
                 "general.updatesPerSecond");
         storedChangesets = SettingsManager.getInstance().getInteger(
                 "general.storageCapacity");
+        tickScheduler = new TickScheduler(updatesPerSecond, SettingsManager
+                .getInstance().getInteger("general.maxCatchUpTicks"));
         port = SettingsManager.getInstance().getInteger("network.port");
         challengeTimeout = SettingsManager.getInstance().getInteger(
                 "network.challengeTimeOut");
         broadcastInterval = SettingsManager.getInstance().getInteger(
                 "network.lanBroadcastInterval");
+        statisticsInterval = SettingsManager.getInstance().getInteger(
+                "network.statisticsInterval");
         serverName = SettingsManager.getInstance().getString("game.serverName");
         maxPlayers = SettingsManager.getInstance()
                 .getInteger("game.maxPlayers");
+        compactGamestates = SettingsManager.getInstance().getBoolean(
+                "network.compactGamestates");
+        quantization = Quantization.fromSettings();
+        vectorHistory = new QuantizedVectorHistory();
+        bytesPerTick = SettingsManager.getInstance().getInteger(
+                "network.bytesPerTick");
+        priorityDistance = SettingsManager.getInstance().getFloat(
+                "network.priorityDistance");
+        areaOfInterest = SettingsManager.getInstance().getBoolean(
+                "network.areaOfInterest");
+        interestMargin = SettingsManager.getInstance().getFloat(
+                "network.interestMargin");
+        interestHysteresis = SettingsManager.getInstance().getFloat(
+                "network.interestHysteresis");
+        interestHash = new SpatialHash(SettingsManager.getInstance()
+                .getFloat("network.interestCellSize"));
+        unplacedEntities = new ArrayList<Entity>();
+        maxQueuedInput = SettingsManager.getInstance().getInteger(
+                "network.maxQueuedInput");
+        threaded = SettingsManager.getInstance().getBoolean(
+                "network.threaded");
+        final int encodeThreads = SettingsManager.getInstance().getInteger(
+                "network.encodeThreads");
+        gamestateEncoder = new GamestateEncoder(encodeThreads);
+        gamestateCache = new GamestateCache();
 
         // Store the first version so we can give it new players
         final ChangeSet firstChangeSet = gameLogicManager.getEntityManager()
                 .createChangeSet();
-        changeSetLookup.put(firstChangeSet.getFirstVersion(), firstChangeSet);
+        changeSetHistory = new ChangeSetHistory(firstChangeSet,
+                storedChangesets);
+        vectorHistory.record(firstChangeSet, quantization,
+                changeSetHistory.getOldestVersion());
     }
 
     /**
@@ -139,7 +227,8 @@ public class Server implements NetworkEventListener {
         init();
         channel = DatagramChannel.open();
         channel.socket().bind(new InetSocketAddress(port));
-        channel.configureBlocking(false);
+        // The receive thread blocks on the channel, the main loop does not
+        channel.configureBlocking(threaded);
         serverNotifySocket = DatagramChannel.open();
         serverNotifySocket.socket().setBroadcast(true);
         serverNotifySocket.configureBlocking(false);
@@ -149,44 +238,97 @@ public class Server implements NetworkEventListener {
 
         lastChallenge = System.currentTimeMillis();
         lastBroadcast = System.currentTimeMillis();
+        lastStatistics = System.currentTimeMillis();
+
+        if (threaded) {
+            LOG.info("starting network threads");
+            receiveThread = new NetworkReceiveThread(channel);
+            sendThread = new NetworkSendThread();
+            networkWriter.setSendThread(sendThread);
+            receiveThread.start();
+            sendThread.start();
+        }
 
         networkWriter.sendMessage(masterServerChannel,
                 new ServerNotificationMessage(createServerData()));
 
-        currentTime = System.nanoTime(); // initialize
         running = true;
         LOG.info("starting main loop");
-        while (running) {
-            final long time = System.nanoTime();
-            doLoop();
-            double delta = System.nanoTime() - time;
-            // convert to sec
-            delta /= 1000000000;
-            // Calculate the how many milliseconds are left
-            final long left = (long) ((1d / updatesPerSecond - delta) * 1000);
-            try {
-                if (left > 0) {
-                    Thread.sleep(left);
+        tickScheduler.start();
+        try {
+            while (running) {
+                final int ticks;
+                try {
+                    ticks = tickScheduler.waitForTicks();
+                } catch (final InterruptedException e) {
+                    LOG.fatal("Interrupted in network loop!", e);
+                    return;
                 }
+                doLoop(ticks);
+            }
+        } finally {
+            shutdown();
+        }
+    }
+
+    /**
+     * Stops the main loop after the current tick. Can be called from any
+     * thread.
+     */
+    public void stop() {
+        running = false;
+    }
+
+    /**
+     * Stops the network threads and closes the channels. The messages that
+     * have been handed to the send thread are sent first.
+     */
+    private void shutdown() {
+        LOG.info("shutting down");
+        if (sendThread != null) {
+            sendThread.shutdown();
+            try {
+                sendThread.join(SHUTDOWN_TIMEOUT);
             } catch (final InterruptedException e) {
-                LOG.fatal("Interrupted in network loop!", e);
-                return;
+                Thread.currentThread().interrupt();
             }
         }
+        gamestateEncoder.shutdown();
+        // Closing the channel stops the receive thread
+        closeChannel(channel);
+        closeChannel(serverNotifySocket);
+        closeChannel(masterServerChannel);
+    }
+
+    private static void closeChannel(final DatagramChannel channel) {
+        if (channel == null) {
+            return;
+        }
+        try {
+            channel.close();
+        } catch (final IOException e) {
+            LOG.warn("Could not close a channel", e);
+        }
     }
 
     /**
      * Main loop of the server. Takes care of reading messages, updating
      * gamestate, and sending messages.
      * 
+     * @param ticks
+     *            The number of times the gamestate should be updated
      * @throws IOException
      */
-    private void doLoop() throws IOException {
+    private void doLoop(final int ticks) throws IOException {
         // Read input messages and login messages
-        SocketAddress address = networkReader.readMessage(channel);
-        while (address != null) {
-            networkReader.processMessage(address);
-            address = networkReader.readMessage(channel);
+        if (receiveThread != null) {
+            receiveThread.processMessages(this);
+        } else {
+            SocketAddress address = networkReader.readMessage(channel);
+            while (address != null) {
+                networkReader.processMessage(address);
+                address = networkReader.readMessage(channel);
+            }
         }
 
         if (lastChallenge < System.currentTimeMillis() - challengeTimeout) {
@@ -212,17 +354,77 @@ public class Server implements NetworkEventListener {
             lastBroadcast = System.currentTimeMillis();
         }
 
-        double delta = System.nanoTime() - currentTime;
-        currentTime = System.nanoTime();
-        // convert to sec
-        delta /= 1000000000.0;
+        if (lastStatistics < System.currentTimeMillis() - statisticsInterval) {
+            logStatistics();
+            lastStatistics = System.currentTimeMillis();
+        }
 
-        // Update game state
-        gameLogicManager.update(delta);
-        // Process the changes
-        processChanges();
+        // Update the game state with a fixed time step, and catch up if late
+        for (int i = 0; i < ticks; i++) {
+            applyQueuedInput();
+            gameLogicManager.update(tickScheduler.getDelta());
+            // Process the changes
+            processChanges();
+        }
         // Write to all the clients
         sendGamestate(channel);
+        sendReliableMessages();
+        // Hand the messages of this tick to the send thread
+        if (sendThread != null) {
+            sendThread.publish();
+        }
+    }
+
+    /**
+     * Logs how many gamestates could be shared since the last log.
+     */
+    private void logStatistics() {
+        final long hits = gamestateCache.getHits();
+        final long total = hits + gamestateCache.getMisses();
+        if (total > 0) {
+            LOG.info("Shared " + hits + " of " + total + " gamestates ("
+                    + hits * 100 / total + "% cache hits)");
+        }
+        gamestateCache.resetStatistics();
+    }
+
+    /**
+     * Applies the next queued input frame of every player. If no frame is
+     * queued, the player keeps doing what it did.
+     */
+    private void applyQueuedInput() {
+        for (final PlayerConnection connection : players.values()) {
+            final InputFrame frame = connection.getInputQueue().poll();
+            if (frame != null) {
+                applyInput(connection, frame);
+            }
+        }
+    }
+
+    /**
+     * Applies the input of a player.
+     * 
+     * @param connection
+     *            The connection of the player
+     * @param frame
+     *            The input frame, which is numbered if it is queued
+     */
+    private void applyInput(final PlayerConnection connection,
+            final InputFrame frame) {
+        connection.setPlayerActions(frame.getActions());
+        connection.setMousePos(frame.getMousePos());
+
+        // also send the received data to the player
+        connection.getPlayer().setAttribute(Attribute.PLAYER_ACTIONS,
+                frame.getActions());
+        connection.getPlayer().setAttribute(Attribute.CURSOR_POS,
+                frame.getMousePos());
+        if (frame.getSequence() > 0) {
+            // Tells the client which input the game state includes
+            connection.setInputSequence(frame.getSequence());
+            connection.getPlayer().setAttribute(Attribute.INPUT_SEQUENCE,
+                    frame.getSequence());
+        }
     }
 
     private ServerData createServerData() {
@@ -233,14 +435,38 @@ public class Server implements NetworkEventListener {
     }
 
     private void processChanges() {
-        // Get the oldest changeset (we dont support this version anymore from
-        // now)
-        final ChangeSet oldChangeSet = changeSets.remove();
-        changeSetLookup.remove(oldChangeSet.getFirstVersion());
-        // Remove the player that are still on this version or older
+        // Get current change set from entity manager and add it to the history
+        final ChangeSet currentChangeSet = gameLogicManager.getEntityManager()
+                .createChangeSet();
+        final int droppedVersion = changeSetHistory.add(currentChangeSet);
+        if (compactGamestates) {
+            vectorHistory.record(currentChangeSet, quantization,
+                    changeSetHistory.getOldestVersion());
+        }
+        // Update the entities the players can see
+        final Map<String, Entity> entities = gameLogicManager
+                .getEntityManager().getEntities();
+        boolean hashed = false;
+        for (final PlayerConnection connection : players.values()) {
+            if (connection.getAreaOfInterest() != null) {
+                if (!hashed) {
+                    hashPositions(entities);
+                    hashed = true;
+                }
+                connection.getAreaOfInterest().update(currentChangeSet,
+                        entities, interestHash, unplacedEntities,
+                        connection.getPlayer());
+            }
+        }
+        interestHash.clear();
+        unplacedEntities.clear();
+        if (droppedVersion < 0) {
+            return;
+        }
+        // Remove the player that are still on the dropped version or older
         final Set<SocketAddress> removedPlayers = new HashSet<SocketAddress>();
         for (final PlayerConnection connection : players.values()) {
-            if (connection.getReceivedVersion() <= oldChangeSet.getFirstVersion()) {
+            if (connection.getReceivedVersion() <= droppedVersion) {
                 removedPlayers.add(connection.getAddress());
                 LOG.info("Connection lost to client " + connection.getAddress());
             }
@@ -248,16 +474,35 @@ public class Server implements NetworkEventListener {
         for (final SocketAddress address : removedPlayers) {
             removePlayer(address);
         }
-        // Get current change set from entity manager and merge it with all the
-        // save versions
-        final ChangeSet currentChangeSet = gameLogicManager.getEntityManager()
-                .createChangeSet();
-        for (final ChangeSet changeSet : changeSetLookup.values()) {
-            changeSet.merge(currentChangeSet);
+    }
+
+    /**
+     * Inserts the positions of the entities into the interest hash, so the
+     * areas of interest only have to look at the entities near them.
+     * 
+     * @param entities
+     *            The current entities
+     */
+    private void hashPositions(final Map<String, Entity> entities) {
+        for (final Entity entity : entities.values()) {
+            if (entity.hasAttribute(Attribute.POSITION)) {
+                final Vector2f position = (Vector2f) entity
+                        .getAttribute(Attribute.POSITION);
+                interestHash.insert(entity, position.getX(), position.getY(),
+                        position.getX(), position.getY(), false);
+            } else {
+                unplacedEntities.add(entity);
+            }
         }
-        // Add the current change set
-        changeSets.add(currentChangeSet);
-        changeSetLookup.put(currentChangeSet.getFirstVersion(), currentChangeSet);
+    }
+
+    /**
+     * Returns the game time, which only advances with the updates.
+     * 
+     * @return the game time in milliseconds
+     */
+    private int getServerTime() {
+        return (int) (tickScheduler.getTicks() * 1000 / updatesPerSecond);
     }
 
     /**
@@ -272,6 +517,12 @@ public class Server implements NetworkEventListener {
             throws IOException {
         final int currentVersion = gameLogicManager.getEntityManager()
                 .getCurrentVersion();
+        final int serverTime = getServerTime();
+        // The messages to encode, and for every player the message to send
+        final List<GamestateMessage> messages = new ArrayList<GamestateMessage>();
+        final List<SocketAddress> addresses = new ArrayList<SocketAddress>();
+        final List<Integer> messageIndices = new ArrayList<Integer>();
+        gamestateCache.clear();
         for (final PlayerConnection connection : players.values()) {
             // Get the version that the client has already received
             int connectionRecievedVersion = connection.getReceivedVersion();
@@ -280,8 +531,10 @@ public class Server implements NetworkEventListener {
                 connectionRecievedVersion = 0;
             }
 
-            final ChangeSet changeSet = changeSetLookup
-                    .get(connectionRecievedVersion);
+            final AreaOfInterest area = connection.getAreaOfInterest();
+            final UpdateScheduler scheduler = connection.getUpdateScheduler();
+            ChangeSet changeSet = changeSetHistory
+                    .getChangeSet(connectionRecievedVersion);
 
             if (changeSet == null) {
                 LOG.error("Could not find changeset with version "
@@ -289,14 +542,65 @@ public class Server implements NetworkEventListener {
                 continue;
             }
 
+            Map<String, Entity> entities = gameLogicManager
+                    .getEntityManager().getEntities();
+            if (area != null) {
+                changeSet = area.filter(changeSet);
+                entities = area.getVisibleEntities();
+            }
+
+            Set<String> refreshedEntities = null;
+            if (scheduler != null) {
+                changeSet = scheduler.schedule(changeSet, currentVersion,
+                        entities, connection.getPlayer(), connection
+                                .getEncoding());
+                refreshedEntities = scheduler.getRefreshedEntities();
+            }
+
+            // Players that get the same changes share the encoded message
+            final int index = gamestateCache.get(connection.getEncoding(),
+                    changeSet, refreshedEntities);
+            if (index >= 0) {
+                addresses.add(connection.getAddress());
+                messageIndices.add(index);
+                continue;
+            }
+
             if (LOG.isTraceEnabled()) {
                 LOG.trace("currentVersion: " + currentVersion + " changeset: "
                         + changeSet.getFirstVersion() + " " + changeSet.getCreated()
                         + " " + changeSet.getRemoved() + " "
                         + changeSet.getUpdated());
             }
-            networkWriter.sendMessage(channel, connection.getAddress(),
-                    new GamestateMessage(changeSet, currentVersion));
+            final GamestateMessage message;
+            if (connection.getEncoding() == GamestateEncoding.COMPACT) {
+                message = new CompactGamestateMessage(changeSet,
+                        currentVersion, serverTime, quantization,
+                        vectorHistory, refreshedEntities);
+            } else {
+                message = new GamestateMessage(changeSet, currentVersion,
+                        serverTime);
+            }
+            gamestateCache.put(connection.getEncoding(), changeSet,
+                    refreshedEntities, messages.size());
+            addresses.add(connection.getAddress());
+            messageIndices.add(messages.size());
+            messages.add(message);
+        }
+
+        // Encode every message once, and send them in the original order
+        final List<ByteBuffer> encoded = gamestateEncoder.encode(messages);
+        for (int i = 0; i < addresses.size(); i++) {
+            final ByteBuffer packet = encoded.get(messageIndices.get(i));
+            if (packet != null) {
+                networkWriter.sendEncoded(channel, addresses.get(i), packet
+                        .asReadOnlyBuffer());
+            }
+        }
+        for (final ByteBuffer packet : encoded) {
+            if (packet != null) {
+                BufferPool.getInstance().release(packet);
+            }
         }
     }
 
@@ -309,11 +613,58 @@ public class Server implements NetworkEventListener {
      */
     public void sendConsoleUpdate(String message) throws IOException {
         for (final PlayerConnection connection : players.values()) {
-            networkWriter.sendMessage(channel, connection.getAddress(),
+            sendControlMessage(connection.getAddress(),
                     new ConsoleUpdateMessage(message));
         }
     }
 
+    /**
+     * Sends a control message to a client. It is sent reliably if the client
+     * uses a reliable channel, else it is sent as a single datagram.
+     * 
+     * @param address
+     *            The address of the client
+     * @param message
+     *            The message to send
+     * @throws IOException
+     */
+    private void sendControlMessage(final SocketAddress address,
+            final NetworkMessage message) throws IOException {
+        final ReliableChannel reliableChannel = reliableChannels.get(address);
+        if (reliableChannel == null) {
+            networkWriter.sendMessage(channel, address, message);
+        } else {
+            reliableChannel.send(message);
+        }
+    }
+
+    /**
+     * Sends the new and unacknowledged messages of the reliable channels, and
+     * the acknowledgments of what was received. The channels of clients that
+     * are not playing are forgotten once everything they were sent has been
+     * acknowledged.
+     * 
+     * @throws IOException
+     */
+    private void sendReliableMessages() throws IOException {
+        final long now = System.currentTimeMillis();
+        final Iterator<Entry<SocketAddress, ReliableChannel>> iterator = reliableChannels
+                .entrySet().iterator();
+        while (iterator.hasNext()) {
+            final Entry<SocketAddress, ReliableChannel> entry = iterator.next();
+            final ReliableChannel reliableChannel = entry.getValue();
+            final ReliableMessage message = reliableChannel.poll(now);
+            if (message != null) {
+                networkWriter.sendMessage(channel, entry.getKey(), message);
+            }
+            if (!players.containsKey(entry.getKey())
+                    && (!reliableChannel.hasUnacknowledged() || reliableChannel
+                            .hasFailed())) {
+                iterator.remove();
+            }
+        }
+    }
+
     /**
      * Removes the player and player specific entities, like their cursor.
      * 
@@ -322,6 +673,7 @@ public class Server implements NetworkEventListener {
     private void removePlayer(final SocketAddress address) {
         final PlayerConnection connection = players.remove(address);
         gameLogicManager.removePlayer(connection.getPlayer().getName());
+        reliableChannels.remove(address);
     }
 
     /**
@@ -329,17 +681,6 @@ public class Server implements NetworkEventListener {
      * manager.
      */
     public final void init() {
-        // Fill the change set queue
-        for (int i = 0; i < storedChangesets; i++) {
-            final ChangeSet changeSet = gameLogicManager.getEntityManager()
-                    .createChangeSet();
-            for (final ChangeSet oldChangeSet : changeSetLookup.values()) {
-                oldChangeSet.merge(changeSet);
-            }
-            changeSets.add(changeSet);
-            changeSetLookup.put(changeSet.getFirstVersion(), changeSet);
-        }
-
         gameLogicManager.initialize();
     }
 
@@ -354,6 +695,10 @@ public class Server implements NetworkEventListener {
             final LoginMessage message) {
         final String entityName = Utils.getAddressRepresentation(address);
         ErrorCode error = ErrorCode.ERROR_LOGIN_FAILED;
+        GamestateEncoding encoding = GamestateEncoding.STANDARD;
+        if (compactGamestates) {
+            encoding = message.getEncoding();
+        }
 
         // Check if this player is already logged in
         if (!players.containsKey(address) && players.size() < maxPlayers) {
@@ -362,11 +707,25 @@ public class Server implements NetworkEventListener {
 
             final PlayerConnection con = new PlayerConnection(address, player,
                     gameLogicManager.getEntityManager().getCurrentVersion());
+            con.setEncoding(encoding);
+            con.setInputQueue(new InputQueue(maxQueuedInput));
+            if (areaOfInterest && message.getViewportWidth() > 0
+                    && message.getViewportHeight() > 0) {
+                con.setAreaOfInterest(new AreaOfInterest(message
+                        .getViewportWidth(), message.getViewportHeight(),
+                        interestMargin, interestHysteresis));
+            }
+            if (bytesPerTick > 0) {
+                con.setUpdateScheduler(new UpdateScheduler(bytesPerTick,
+                        priorityDistance));
+            }
             players.put(address, con);
 
             LOG.info("new player " + message.getName() + " @ " + address);
             error = ErrorCode.ERROR_SUCCESSFULL;
 
+        } else if (players.containsKey(address)) {
+            encoding = players.get(address).getEncoding();
         }
 
         if (players.size() >= maxPlayers) {
@@ -375,8 +734,8 @@ public class Server implements NetworkEventListener {
 
         // send the client the unique entity name of the player
         try {
-            networkWriter.sendMessage(channel, address,
-                    new LoginResponseMessage(error, entityName));
+            sendControlMessage(address, new LoginResponseMessage(error,
+                    entityName, encoding, updatesPerSecond));
         } catch (final IOException e) {
             e.printStackTrace();
         }
@@ -411,19 +770,40 @@ public class Server implements NetworkEventListener {
             LOG.trace("Input message: " + message.getVersion() + " recieved: "
                     + connection.getReceivedVersion());
         }
-        if (connection != null
-                && message.getVersion() > connection.getReceivedVersion()) {
-            connection.setNew();
-            connection.setPlayerActions(message.getPlayerActions());
-            connection.setMousePos(message.getMousePos());
-
-            // also send the received data to the player
-            connection.getPlayer().setAttribute(Attribute.PLAYER_ACTIONS,
-                    message.getPlayerActions());
+        if (connection == null) {
+            return;
+        }
+        // The client acknowledges our reliable messages with its input
+        final ReliableChannel reliableChannel = reliableChannels.get(address);
+        if (reliableChannel != null && message.getAck() >= 0) {
+            reliableChannel.acknowledge(message.getAck(), message
+                    .getAckMask(), System.currentTimeMillis());
+        }
+        // Numbered input is queued and applied one frame every update
+        boolean newer = false;
+        if (message.getSequence() > 0) {
+            for (final InputFrame frame : message.getFrames()) {
+                newer |= connection.getInputQueue().add(frame);
+            }
+        } else if (message.getVersion() > connection.getReceivedVersion()) {
+            newer = true;
+            applyInput(connection, message.getFrames().get(0));
+        }
 
-            connection.getPlayer().setAttribute(Attribute.CURSOR_POS,
-                    message.getMousePos());
+        // The bullets of the player are rewound as far as it is behind
+        if (newer && message.getViewTime() >= 0) {
+            final int behind = getServerTime() - message.getViewTime();
+            final int rewindTicks = gameLogicManager.getLagCompensator()
+                    .getRewindTicks(behind);
+            connection.getPlayer().setAttribute(Attribute.REWIND_TICKS,
+                    rewindTicks > 0 ? rewindTicks : null);
+        }
+        if (message.getVersion() > connection.getReceivedVersion()) {
+            connection.setNew();
             connection.setReceivedVersion(message.getVersion());
+        } else if (message.getVersion() == 0 && !connection.isNew()) {
+            // The client could not apply a game state and starts over
+            connection.requestFullGamestate();
         }
     }
 
@@ -445,8 +825,9 @@ public class Server implements NetworkEventListener {
         final PlayerConnection connection = players.get(address);
 
         /*
-         * Sometimes the login process takes longer than for this message to
-         * arrive. Then the connection is not made yet, so we check it.
+         * Clients without a reliable channel can send this message before the
+         * login has arrived. Then the connection is not made yet, so we check
+         * it.
          */
         if (connection != null) {
             final String entityName = connection.getPlayer().getName();
@@ -496,4 +877,21 @@ public class Server implements NetworkEventListener {
             ConsoleUpdateMessage message) {
         // ignore
     }
+
+    /**
+     * Delivers the messages of a reliable channel that are next in order.
+     */
+    @Override
+    public void receivedMessage(final SocketAddress address,
+            final ReliableMessage message) {
+        ReliableChannel reliableChannel = reliableChannels.get(address);
+        if (reliableChannel == null) {
+            reliableChannel = new ReliableChannel();
+            reliableChannels.put(address, reliableChannel);
+        }
+        for (final NetworkMessage delivered : reliableChannel.receive(message,
+                System.currentTimeMillis())) {
+            delivered.fireEvent(this, address);
+        }
+    }
 }
@@ -0,0 +1,184 @@
+/*  Copyright 2010 Ben Ruijl, Wouter Smeenk
+
+This file is part of Walled In.
+
+Walled In is free software; you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation; either version 3, or (at your option)
+any later version.
+
+Walled In is distributed in the hope that it will be useful, but
+WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with Walled In; see the file LICENSE.  If not, write to the
+Free Software Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA
+02111-1307 USA.
+
+ */
+package walledin.game.network.server;
+
+import java.util.concurrent.locks.LockSupport;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Paces a loop to a fixed number of ticks per second. Every tick represents
+ * the same amount of time, so the simulation does not depend on how
+ * accurately the thread is woken up.
+ * 
+ * The scheduler parks the thread until shortly before the next tick is due
+ * and spins for the remaining time, because parking is not accurate below a
+ * millisecond on most systems. If the loop falls behind, for example because
+ * of a garbage collection, the missed ticks are run late to catch up. At most
+ * <code>maxCatchUpTicks</code> ticks are run at once; older ticks are
+ * skipped, so the loop does not keep falling behind.
+ * 
+ * @author Wouter Smeenk
+ * 
+ */
+public class TickScheduler {
+    private static final Logger LOG = Logger.getLogger(TickScheduler.class);
+
+    /** Time in nanoseconds before a tick during which the thread spins. */
+    private static final long SPIN_NANOS = 500000;
+    /** Time in nanoseconds between reports of late and skipped ticks. */
+    private static final long REPORT_INTERVAL = 10000000000L;
+
+    /** The duration of a tick in nanoseconds. */
+    private final long tickNanos;
+    /** The duration of a tick in seconds. */
+    private final double delta;
+    /** The maximum number of ticks that are run at once. */
+    private final int maxCatchUpTicks;
+    /** The time the next tick is due. */
+    private long nextTick;
+    /** The number of ticks that have been run. */
+    private long ticks;
+    /** The number of ticks that have been run after the next was due. */
+    private long lateTicks;
+    /** The number of ticks that have been skipped. */
+    private long skippedTicks;
+    /** The time of the last report. */
+    private long lastReport;
+    /** The number of late ticks at the last report. */
+    private long reportedLateTicks;
+    /** The number of skipped ticks at the last report. */
+    private long reportedSkippedTicks;
+
+    /**
+     * Creates a new scheduler.
+     * 
+     * @param ticksPerSecond
+     *            The number of ticks per second
+     * @param maxCatchUpTicks
+     *            The maximum number of ticks that are run at once
+     */
+    public TickScheduler(final int ticksPerSecond, final int maxCatchUpTicks) {
+        if (ticksPerSecond <= 0 || maxCatchUpTicks <= 0) {
+            throw new IllegalArgumentException(
+                    "The ticks per second and catch up ticks should be positive");
+        }
+        tickNanos = 1000000000L / ticksPerSecond;
+        delta = 1.0 / ticksPerSecond;
+        this.maxCatchUpTicks = maxCatchUpTicks;
+    }
+
+    /**
+     * Starts the schedule. The first tick is due immediately.
+     */
+    public void start() {
+        nextTick = System.nanoTime();
+        lastReport = nextTick;
+    }
+
+    /**
+     * Waits until the next tick is due.
+     * 
+     * @return The number of ticks that should be run, at least one
+     * @throws InterruptedException
+     *             If the thread is interrupted while waiting
+     */
+    public int waitForTicks() throws InterruptedException {
+        long now = System.nanoTime();
+        long remaining = nextTick - now;
+        while (remaining > 0) {
+            if (Thread.interrupted()) {
+                throw new InterruptedException();
+            }
+            if (remaining > SPIN_NANOS) {
+                LockSupport.parkNanos(remaining - SPIN_NANOS);
+            }
+            now = System.nanoTime();
+            remaining = nextTick - now;
+        }
+
+        final long due = -remaining / tickNanos + 1;
+        final int run = (int) Math.min(due, maxCatchUpTicks);
+        ticks += run;
+        lateTicks += run - 1;
+        skippedTicks += due - run;
+        nextTick += due * tickNanos;
+
+        if (now - lastReport >= REPORT_INTERVAL) {
+            report(now);
+        }
+        return run;
+    }
+
+    /**
+     * Logs the ticks that were late or skipped since the last report.
+     */
+    private void report(final long now) {
+        final long late = lateTicks - reportedLateTicks;
+        final long skipped = skippedTicks - reportedSkippedTicks;
+        if (late > 0 || skipped > 0) {
+            LOG.warn("Server is falling behind: " + late + " late and "
+                    + skipped + " skipped ticks in the last "
+                    + (now - lastReport) / 1000000 + " ms");
+        }
+        lastReport = now;
+        reportedLateTicks = lateTicks;
+        reportedSkippedTicks = skippedTicks;
+    }
+
+    /**
+     * Returns the duration of a tick. This is the same for every tick.
+     * 
+     * @return the duration of a tick in seconds
+     */
+    public double getDelta() {
+        return delta;
+    }
+
+    /**
+     * Returns the number of ticks that have been run.
+     * 
+     * @return the number of ticks
+     */
+    public long getTicks() {
+        return ticks;
+    }
+
+    /**
+     * Returns the number of ticks that were run to catch up, after the next
+     * tick was already due.
+     * 
+     * @return the number of late ticks
+     */
+    public long getLateTicks() {
+        return lateTicks;
+    }
+
+    /**
+     * Returns the number of ticks that were skipped because the loop fell too
+     * far behind.
+     * 
+     * @return the number of skipped ticks
+     */
+    public long getSkippedTicks() {
+        return skippedTicks;
+    }
+}
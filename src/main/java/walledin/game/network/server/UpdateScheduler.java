@@ -0,0 +1,284 @@
+/*  Copyright 2010 Ben Ruijl, Wouter Smeenk
+
+This file is part of Walled In.
+
+Walled In is free software; you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation; either version 3, or (at your option)
+any later version.
+
+Walled In is distributed in the hope that it will be useful, but
+WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with Walled In; see the file LICENSE.  If not, write to the
+Free Software Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA
+02111-1307 USA.
+
+ */
+package walledin.game.network.server;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Set;
+
+import walledin.engine.math.Vector2f;
+import walledin.game.entity.Attribute;
+import walledin.game.entity.Entity;
+import walledin.game.entity.Family;
+import walledin.game.network.GamestateEncoding;
+import walledin.game.network.NetworkMessageWriter;
+
+/**
+ * Decides which entity updates are sent to a player when the updates do not
+ * fit in the bandwidth budget of the connection. Created and removed entities
+ * and the updates of created entities are always sent. The other updates
+ * are sent in order of priority until the budget is used.
+ * 
+ * Every tick the priority of an entity that has an update is added to its
+ * accumulated priority, which is reset when the update is sent. The priority
+ * depends on the distance to the player and the family of the entity, and
+ * the accumulation makes sure every update is sent eventually.
+ * 
+ * The client does not receive the changes of an entity that is skipped, so
+ * the entity is marked dirty in the packet. When building a packet from a
+ * version in which entities are dirty, all attributes of those entities are
+ * sent.
+ * 
+ * @author Wouter Smeenk
+ * 
+ */
+public class UpdateScheduler {
+    /** The estimated number of bytes of a created or removed entity. */
+    private static final int CREATED_REMOVED_SIZE = 8;
+    /** Weights of the families. Families not in the map inherit the weight. */
+    private static final Map<Family, Float> FAMILY_WEIGHTS = initializeFamilyWeights();
+
+    /** Number of bytes that can be sent per tick. */
+    private final int bytesPerTick;
+    /** Distance at which the priority of an entity is halved. */
+    private final float priorityDistance;
+    /** The accumulated priority by entity name. */
+    private final Map<String, Float> priorities;
+    /** The dirty entities after each sent version. */
+    private final Map<Integer, Set<String>> dirtyEntities;
+    /** The entities that are sent with all attributes in the last packet. */
+    private final Set<String> refreshedEntities;
+
+    /**
+     * Creates a new scheduler.
+     * 
+     * @param bytesPerTick
+     *            The number of bytes that can be sent per tick
+     * @param priorityDistance
+     *            The distance at which the priority of an entity is halved
+     */
+    public UpdateScheduler(final int bytesPerTick,
+            final float priorityDistance) {
+        this.bytesPerTick = bytesPerTick;
+        this.priorityDistance = priorityDistance;
+        priorities = new HashMap<String, Float>();
+        dirtyEntities = new HashMap<Integer, Set<String>>();
+        refreshedEntities = new HashSet<String>();
+    }
+
+    private static Map<Family, Float> initializeFamilyWeights() {
+        final Map<Family, Float> result = new HashMap<Family, Float>();
+        result.put(Family.ROOT, 1.0f);
+        result.put(Family.PLAYER, 4.0f);
+        result.put(Family.BULLET, 3.0f);
+        result.put(Family.GRENADE, 3.0f);
+        result.put(Family.FOAM_PARTICLE, 0.5f);
+        return result;
+    }
+
+    private static float getFamilyWeight(final Family family) {
+        Family current = family;
+        while (!FAMILY_WEIGHTS.containsKey(current)) {
+            current = current.getParent();
+        }
+        return FAMILY_WEIGHTS.get(current);
+    }
+
+    /**
+     * Returns the entities that are sent with all their attributes in the
+     * last scheduled change set. The client may not have their previous
+     * values.
+     * 
+     * @return The names of the refreshed entities
+     */
+    public Set<String> getRefreshedEntities() {
+        return refreshedEntities;
+    }
+
+    /**
+     * Creates the change set that is sent to the player.
+     * 
+     * @param changeSet
+     *            The change set from the version the player has acknowledged
+     *            up to the current version. It is not modified.
+     * @param newVersion
+     *            The version the player updates to with the result
+     * @param entities
+     *            The current entities
+     * @param player
+     *            The entity of the player
+     * @param encoding
+     *            The encoding used to send the change set
+     * @return The change set with the updates that fit in the budget
+     */
+    public ChangeSet schedule(final ChangeSet changeSet, final int newVersion,
+            final Map<String, Entity> entities, final Entity player,
+            final GamestateEncoding encoding) {
+        final int baseVersion = changeSet.getFirstVersion();
+        // The player will only build from this version or newer
+        final Iterator<Integer> it = dirtyEntities.keySet().iterator();
+        while (it.hasNext()) {
+            if (it.next() < baseVersion) {
+                it.remove();
+            }
+        }
+        Set<String> dirty = dirtyEntities.get(baseVersion);
+        if (dirty == null) {
+            dirty = Collections.emptySet();
+        }
+
+        final Map<String, Family> created = changeSet
+                .getCreatedFromVersion(baseVersion);
+        final Map<String, Map<Attribute, Object>> updated = new HashMap<String, Map<Attribute, Object>>();
+        final ChangeSet result = new ChangeSet(baseVersion, changeSet
+                .getLastVersion(), changeSet.getCreated(), changeSet
+                .getRemoved(), updated);
+        refreshedEntities.clear();
+
+        // Created and removed entities are always sent
+        int budget = bytesPerTick - CREATED_REMOVED_SIZE
+                * (created.size() + changeSet.getRemovedFromVersion(
+                        baseVersion).size());
+
+        final List<String> candidates = new ArrayList<String>();
+        final Map<String, Map<Attribute, Object>> candidateUpdates = new HashMap<String, Map<Attribute, Object>>();
+        for (final Entry<String, Map<Attribute, Object>> entry : changeSet
+                .getUpdated().entrySet()) {
+            final String name = entry.getKey();
+            if (created.containsKey(name)) {
+                // The player needs the attributes of new entities
+                updated.put(name, entry.getValue());
+                budget -= NetworkMessageWriter.estimateUpdateSize(encoding,
+                        name, entry.getValue());
+            } else if (!dirty.contains(name)) {
+                candidates.add(name);
+                candidateUpdates.put(name, entry.getValue());
+            }
+        }
+        for (final String name : dirty) {
+            final Entity entity = entities.get(name);
+            if (entity != null && !created.containsKey(name)) {
+                candidates.add(name);
+                candidateUpdates.put(name, entity.getNetworkAttributes());
+            }
+        }
+
+        // Accumulate the priorities and send the most important first
+        Vector2f playerPosition = null;
+        if (player != null && player.hasAttribute(Attribute.POSITION)) {
+            playerPosition = (Vector2f) player.getAttribute(Attribute.POSITION);
+        }
+        for (final String name : candidates) {
+            final Float current = priorities.get(name);
+            final float priority = getPriority(entities.get(name),
+                    playerPosition);
+            priorities.put(name, current == null ? priority : current
+                    + priority);
+        }
+        Collections.sort(candidates, new Comparator<String>() {
+            @Override
+            public int compare(final String o1, final String o2) {
+                return priorities.get(o2).compareTo(priorities.get(o1));
+            }
+        });
+
+        final Set<String> newDirty = new HashSet<String>();
+        for (final String name : candidates) {
+            final Map<Attribute, Object> attributes = candidateUpdates
+                    .get(name);
+            final int size = NetworkMessageWriter.estimateUpdateSize(
+                    encoding, name, attributes);
+            if (size <= budget) {
+                budget -= size;
+                updated.put(name, attributes);
+                priorities.remove(name);
+                if (dirty.contains(name)) {
+                    refreshedEntities.add(name);
+                }
+            } else {
+                newDirty.add(name);
+            }
+        }
+        dirtyEntities.put(newVersion, newDirty);
+
+        // Only the ids of the entities in the result are written
+        final Map<String, Integer> ids = changeSet.getEntityIds();
+        final Map<String, Integer> resultIds = result.getEntityIds();
+        for (final Map<String, Family> versionCreated : changeSet.getCreated()
+                .values()) {
+            for (final String name : versionCreated.keySet()) {
+                resultIds.put(name, ids.get(name));
+            }
+        }
+        for (final Set<String> versionRemoved : changeSet.getRemoved()
+                .values()) {
+            for (final String name : versionRemoved) {
+                resultIds.put(name, ids.get(name));
+            }
+        }
+        for (final String name : updated.keySet()) {
+            Integer id = ids.get(name);
+            if (id == null) {
+                // Refreshed entities need not have changed since the base
+                id = entities.get(name).getId();
+            }
+            resultIds.put(name, id);
+        }
+
+        // Forget the priorities of entities that do not exist anymore
+        if (priorities.size() > entities.size()) {
+            priorities.keySet().retainAll(entities.keySet());
+        }
+        return result;
+    }
+
+    /**
+     * Calculates the priority of an entity for the player for one tick.
+     * 
+     * @param entity
+     *            The entity, or null if it does not exist
+     * @param playerPosition
+     *            The position of the player or null if the player has no
+     *            position
+     * @return The priority
+     */
+    private float getPriority(final Entity entity,
+            final Vector2f playerPosition) {
+        if (entity == null) {
+            return 0;
+        }
+        float priority = getFamilyWeight(entity.getFamily());
+        if (playerPosition != null && entity.hasAttribute(Attribute.POSITION)) {
+            final Vector2f position = (Vector2f) entity
+                    .getAttribute(Attribute.POSITION);
+            final float distance = position.sub(playerPosition).length();
+            priority *= priorityDistance / (priorityDistance + distance);
+        }
+        return priority;
+    }
+}
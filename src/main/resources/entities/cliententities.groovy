@@ -29,6 +29,10 @@ texturePartManager.createTexturePart("foamnade", itemsTexture, new Rectangle(320
     // TODO: we should be able to define player texture here
     entity.addBehavior(new PlayerRenderBehavior(entity));
     entity.addBehavior(new PlayerParentBehavior(entity));
+
+    // Used to predict the collisions of the player, same as on the server
+    entity.setAttribute(Attribute.BOUNDING_GEOMETRY,
+    new Rectangle(0, 0, 44, 43));
 } as EntityFunction,
 
 (Family.BACKGROUND): { entity ->
@@ -0,0 +1,161 @@
+/*  Copyright 2010 Ben Ruijl, Wouter Smeenk
+
+This file is part of Walled In.
+
+Walled In is free software; you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation; either version 3, or (at your option)
+any later version.
+
+Walled In is distributed in the hope that it will be useful, but
+WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with Walled In; see the file LICENSE.  If not, write to the
+Free Software Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA
+02111-1307 USA.
+
+ */
+package walledin.engine.math;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Random;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import walledin.game.collision.CollisionManager.GeometricalCollisionData;
+
+/**
+ * Tests that the geometry kernels give exactly the same results as the
+ * geometry classes they mirror, on random rectangles and circles.
+ * 
+ * @author Ben Ruijl
+ * 
+ */
+public class GeometryKernelsTest {
+    private static final int CASES = 100000;
+
+    private Random random;
+    private float[] points;
+    private Polygon2f polygon;
+
+    @Before
+    public void setUp() {
+        random = new Random(42);
+        points = new float[8];
+    }
+
+    private float nextFloat(final float min, final float max) {
+        return min + random.nextFloat() * (max - min);
+    }
+
+    /**
+     * Creates a random rectangle, oriented or not, both as a polygon and in
+     * <code>points</code>, the way the collision manager does.
+     */
+    private void createPolygon() {
+        final float x = nextFloat(-50, 50);
+        final float y = nextFloat(-50, 50);
+        final float width = nextFloat(1, 41);
+        final float height = nextFloat(1, 41);
+        final Rectangle rectangle = new Rectangle(x, y, width, height);
+        final Vector2f offset = new Vector2f(nextFloat(-10, 10), nextFloat(
+                -10, 10));
+
+        if (random.nextBoolean()) {
+            final float angle = nextFloat(0, 7);
+            polygon = new OrientedRectangle(rectangle, angle).translate(offset)
+                    .asPolygon();
+            GeometryKernels.rectangle(points, x, y, width, height);
+            GeometryKernels.rotate(points, 4, x + width / 2.0f, y + height
+                    / 2.0f, angle);
+            GeometryKernels.translate(points, 4, offset.getX(), offset.getY());
+        } else {
+            polygon = rectangle.translate(offset).asPolygon();
+            GeometryKernels.rectangle(points, x + offset.getX(), y
+                    + offset.getY(), width, height);
+        }
+    }
+
+    private static void assertSame(final float expected, final float actual) {
+        assertEquals(Float.floatToIntBits(expected), Float
+                .floatToIntBits(actual));
+    }
+
+    @Test
+    public void circleCollisionDataIsIdentical() {
+        final MutableVector2f normal = new MutableVector2f();
+        final MutableVector2f penetration = new MutableVector2f();
+        int hits = 0;
+
+        for (int i = 0; i < CASES; i++) {
+            createPolygon();
+            final float x = nextFloat(-60, 60);
+            final float y = nextFloat(-60, 60);
+            final float radius = nextFloat(0.5f, 20.5f);
+            final float velocityX = nextFloat(-30, 30);
+            final float velocityY = nextFloat(-30, 30);
+
+            final GeometricalCollisionData expected = polygon
+                    .circleCollisionData(new Circle(new Vector2f(x, y),
+                            radius), new Vector2f(velocityX, velocityY));
+            final float time = GeometryKernels.circlePolygonCollisionData(
+                    points, 4, x, y, radius, velocityX, velocityY, normal,
+                    penetration);
+
+            assertEquals(expected.isCollided(), time >= 0);
+            if (expected.isCollided()) {
+                hits++;
+                assertSame(expected.getTime(), time);
+                assertSame(expected.getNormal().getX(), normal.getX());
+                assertSame(expected.getNormal().getY(), normal.getY());
+                assertSame(expected.getPenetration().getX(), penetration
+                        .getX());
+                assertSame(expected.getPenetration().getY(), penetration
+                        .getY());
+            }
+        }
+        // Make sure both outcomes are tested
+        assertTrue(hits > CASES / 10 && hits < CASES - CASES / 10);
+    }
+
+    @Test
+    public void closestPointAndInsideAreIdentical() {
+        final MutableVector2f closest = new MutableVector2f();
+
+        for (int i = 0; i < CASES; i++) {
+            createPolygon();
+            final Vector2f point = new Vector2f(nextFloat(-60, 60), nextFloat(
+                    -60, 60));
+
+            final Vector2f expected = polygon.closestPointOnPolygon(point);
+            GeometryKernels.closestPointOnPolygon(points, 4, point.getX(),
+                    point.getY(), closest);
+            assertSame(expected.getX(), closest.getX());
+            assertSame(expected.getY(), closest.getY());
+
+            assertEquals(polygon.pointInsidePolygon(point), GeometryKernels
+                    .pointInsidePolygon(points, 4, point.getX(), point.getY()));
+        }
+    }
+
+    @Test
+    public void overlapsLikeIntersects() {
+        for (int i = 0; i < CASES; i++) {
+            // Whole numbers, so the rectangles often touch exactly
+            final Rectangle a = new Rectangle(random.nextInt(10), random
+                    .nextInt(10), 1 + random.nextInt(5), 1 + random.nextInt(5));
+            final Rectangle b = new Rectangle(random.nextInt(10), random
+                    .nextInt(10), 1 + random.nextInt(5), 1 + random.nextInt(5));
+            assertEquals(a.intersects(b), GeometryKernels.overlaps(
+                    a.getLeft(), a.getTop(), a.getRight(), a.getBottom(), b
+                            .getLeft(), b.getTop(), b.getRight(), b
+                            .getBottom()));
+        }
+    }
+}
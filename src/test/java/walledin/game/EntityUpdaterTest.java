@@ -0,0 +1,169 @@
+/*  Copyright 2010 Ben Ruijl, Wouter Smeenk
+
+This file is part of Walled In.
+
+Walled In is free software; you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation; either version 3, or (at your option)
+any later version.
+
+Walled In is distributed in the hope that it will be useful, but
+WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with Walled In; see the file LICENSE.  If not, write to the
+Free Software Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA
+02111-1307 USA.
+
+ */
+package walledin.game;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeMap;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import walledin.engine.math.Vector2f;
+import walledin.game.entity.Attribute;
+import walledin.game.entity.Entity;
+import walledin.game.entity.EntityFactory;
+import walledin.game.entity.Family;
+import walledin.game.entity.MessageType;
+import walledin.game.entity.behaviors.physics.PhysicsBehavior;
+import walledin.game.entity.behaviors.physics.PhysicsSystem;
+import walledin.util.Utils;
+
+/**
+ * Tests that updating the entities on worker threads gives the same result as
+ * updating them on one thread.
+ * 
+ * @author Ben Ruijl
+ * 
+ */
+public class EntityUpdaterTest {
+    /** Enough bodies to use the worker threads. */
+    private static final int BODIES = 200;
+    private static final double DELTA = 1 / 60.0;
+
+    private List<EntityUpdater> updaters;
+
+    @Before
+    public void setUp() {
+        updaters = new ArrayList<EntityUpdater>();
+    }
+
+    @After
+    public void tearDown() {
+        for (final EntityUpdater updater : updaters) {
+            updater.shutdown();
+        }
+    }
+
+    private EntityManager createManager(final EntityFactory factory,
+            final int threads) {
+        final EntityManager manager = new EntityManager(factory);
+        manager.setPhysicsSystem(new PhysicsSystem());
+        if (threads > 0) {
+            final EntityUpdater updater = new EntityUpdater(threads);
+            updaters.add(updater);
+            manager.setEntityUpdater(updater);
+        }
+        return manager;
+    }
+
+    /** Returns the position and velocity of every entity, by name. */
+    private static Map<String, String> getState(final EntityManager manager) {
+        final Map<String, String> state = new TreeMap<String, String>();
+        for (final Entity entity : manager.getEntities().values()) {
+            state.put(entity.getName(), String.valueOf(entity
+                    .getAttribute(Attribute.POSITION))
+                    + entity.getAttribute(Attribute.VELOCITY));
+        }
+        return state;
+    }
+
+    private static void addBodies(final EntityManager manager) {
+        for (int i = 0; i < BODIES; i++) {
+            final Entity entity = new Entity(manager, Family.FOAMGUN_BULLET,
+                    "body" + i);
+            entity.setAttribute(Attribute.POSITION, new Vector2f(i, -i));
+            entity.setAttribute(Attribute.VELOCITY, new Vector2f(50, i));
+            entity.addBehavior(new PhysicsBehavior(entity, 1 + i % 4));
+            manager.add(entity);
+        }
+    }
+
+    @Test
+    public void parallelBodiesMatchSerialBodies() {
+        final EntityManager serial = createManager(null, 0);
+        final EntityManager parallel = createManager(null, 4);
+        addBodies(serial);
+        addBodies(parallel);
+        for (final Entity entity : parallel.getEntities().values()) {
+            assertTrue(entity.isParallelSafe());
+        }
+
+        for (int tick = 0; tick < 100; tick++) {
+            final Vector2f force = new Vector2f(tick, -2 * tick);
+            for (int i = tick % 3; i < BODIES; i += 3) {
+                serial.get("body" + i).sendMessage(MessageType.APPLY_FORCE,
+                        force);
+                parallel.get("body" + i).sendMessage(MessageType.APPLY_FORCE,
+                        force);
+            }
+            serial.update(DELTA);
+            parallel.update(DELTA);
+            assertEquals(getState(serial), getState(parallel));
+        }
+        assertEquals(BODIES, parallel.getPhysicsSystem().getBodyCount());
+    }
+
+    private EntityManager createGrenades(final int threads) throws IOException {
+        final EntityFactory factory = new EntityFactory();
+        factory.loadScript(Utils.getClasspathURL("entities/entities.groovy"));
+        factory.loadScript(Utils
+                .getClasspathURL("entities/serverentities.groovy"));
+        final EntityManager manager = createManager(factory, threads);
+        final Random random = new Random(7);
+        for (int i = 0; i < BODIES; i++) {
+            final Entity grenade = manager.create(Family.FOAMNADE);
+            grenade.setAttribute(Attribute.POSITION, new Vector2f(random
+                    .nextFloat() * 1000, random.nextFloat() * 1000));
+            grenade.sendMessage(MessageType.APPLY_FORCE, new Vector2f(random
+                    .nextFloat() * 10000, -random.nextFloat() * 10000));
+        }
+        return manager;
+    }
+
+    /**
+     * The grenades create foam bullets when they explode. The bullets should
+     * be created in the same order whatever the number of threads.
+     */
+    @Test
+    public void createdEntitiesDoNotDependOnThreads() throws IOException {
+        final EntityManager single = createGrenades(1);
+        final EntityManager parallel = createGrenades(4);
+
+        int maxEntities = 0;
+        for (int tick = 0; tick < 200; tick++) {
+            single.update(DELTA);
+            parallel.update(DELTA);
+            single.createChangeSet();
+            parallel.createChangeSet();
+            assertEquals(getState(single), getState(parallel));
+            maxEntities = Math.max(maxEntities, single.getEntities().size());
+        }
+        assertTrue(maxEntities > BODIES);
+    }
+}
@@ -0,0 +1,110 @@
+/*  Copyright 2010 Ben Ruijl, Wouter Smeenk
+
+This file is part of Walled In.
+
+Walled In is free software; you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation; either version 3, or (at your option)
+any later version.
+
+Walled In is distributed in the hope that it will be useful, but
+WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with Walled In; see the file LICENSE.  If not, write to the
+Free Software Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA
+02111-1307 USA.
+
+ */
+package walledin.game.entity.behaviors.physics;
+
+import static org.junit.Assert.assertEquals;
+
+import org.junit.Test;
+
+import walledin.engine.math.Vector2f;
+import walledin.game.EntityManager;
+import walledin.game.entity.Attribute;
+import walledin.game.entity.Entity;
+import walledin.game.entity.Family;
+import walledin.game.entity.MessageType;
+
+/**
+ * Tests that the physics system moves the bodies exactly like the physics
+ * behaviors do on their own.
+ * 
+ * @author Ben Ruijl
+ * 
+ */
+public class PhysicsSystemTest {
+    private static final int BODIES = 200;
+    private static final int STEPS = 100;
+    private static final double DELTA = 1 / 60.0;
+
+    private static Entity createEntity(final EntityManager manager,
+            final int index) {
+        final boolean gravity = index % 2 == 0;
+        final Entity entity = new Entity(manager, Family.FOAMGUN_BULLET, "e"
+                + index);
+        entity.setAttribute(Attribute.POSITION, new Vector2f(index,
+                2 * index));
+        entity.setAttribute(Attribute.VELOCITY, new Vector2f(100 + index, -50));
+        entity.addBehavior(new PhysicsBehavior(entity, 0.5f + index % 3,
+                gravity, gravity));
+        manager.add(entity);
+        return entity;
+    }
+
+    private static void assertSameAttribute(final Entity expected,
+            final Entity actual, final Attribute attribute) {
+        final Vector2f a = (Vector2f) expected.getAttribute(attribute);
+        final Vector2f b = (Vector2f) actual.getAttribute(attribute);
+        assertEquals(a.getX(), b.getX(), 0);
+        assertEquals(a.getY(), b.getY(), 0);
+    }
+
+    @Test
+    public void systemMatchesBehaviors() {
+        final EntityManager plain = new EntityManager(null);
+        final EntityManager batch = new EntityManager(null);
+        batch.setPhysicsSystem(new PhysicsSystem());
+
+        final Entity[] expected = new Entity[BODIES];
+        final Entity[] actual = new Entity[BODIES];
+        for (int i = 0; i < BODIES; i++) {
+            expected[i] = createEntity(plain, i);
+            actual[i] = createEntity(batch, i);
+        }
+
+        for (int step = 0; step < STEPS; step++) {
+            for (int i = step % 7; i < BODIES; i += 7) {
+                final Vector2f force = new Vector2f(10, step % 5 - 2);
+                expected[i].sendMessage(MessageType.APPLY_FORCE, force);
+                actual[i].sendMessage(MessageType.APPLY_FORCE, force);
+            }
+            if (step == STEPS / 2) {
+                // Attribute changes and removals between the ticks
+                final Vector2f position = new Vector2f();
+                expected[3].setAttribute(Attribute.POSITION, position);
+                actual[3].setAttribute(Attribute.POSITION, position);
+                final Vector2f velocity = new Vector2f(-20, 40);
+                expected[4].setAttribute(Attribute.VELOCITY, velocity);
+                actual[4].setAttribute(Attribute.VELOCITY, velocity);
+                expected[5].remove();
+                actual[5].remove();
+            }
+            plain.update(DELTA);
+            batch.update(DELTA);
+        }
+
+        for (int i = 0; i < BODIES; i++) {
+            if (i != 5) {
+                assertSameAttribute(expected[i], actual[i], Attribute.POSITION);
+                assertSameAttribute(expected[i], actual[i], Attribute.VELOCITY);
+            }
+        }
+        assertEquals(BODIES - 1, batch.getPhysicsSystem().getBodyCount());
+    }
+}
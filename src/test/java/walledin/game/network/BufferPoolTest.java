@@ -0,0 +1,82 @@
+/*  Copyright 2010 Ben Ruijl, Wouter Smeenk
+
+This file is part of Walled In.
+
+Walled In is free software; you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation; either version 3, or (at your option)
+any later version.
+
+Walled In is distributed in the hope that it will be useful, but
+WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with Walled In; see the file LICENSE.  If not, write to the
+Free Software Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA
+02111-1307 USA.
+
+ */
+package walledin.game.network;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.nio.ByteBuffer;
+
+import org.junit.Test;
+
+/**
+ * Tests the reuse of buffers by the buffer pool.
+ * 
+ * @author Wouter Smeenk
+ * 
+ */
+public class BufferPoolTest {
+    @Test
+    public void releasedBufferIsReused() {
+        final BufferPool pool = new BufferPool(false);
+        final ByteBuffer buffer = pool.borrow(100);
+        assertTrue(buffer.isDirect());
+        assertEquals(BufferPool.MIN_SIZE, buffer.capacity());
+        buffer.put((byte) 1);
+        pool.release(buffer);
+        assertEquals(0, pool.getBorrowedCount());
+
+        final ByteBuffer reused = pool.borrow(BufferPool.MIN_SIZE);
+        assertSame(buffer, reused);
+        assertEquals(0, reused.position());
+        assertEquals(1, pool.getAllocatedCount());
+    }
+
+    @Test
+    public void buffersAreSizedByClass() {
+        final BufferPool pool = new BufferPool(false);
+        final ByteBuffer small = pool.borrow(BufferPool.MIN_SIZE + 1);
+        assertEquals(BufferPool.MIN_SIZE * 2, small.capacity());
+        pool.release(small);
+        assertNotSame(small, pool.borrow(BufferPool.MIN_SIZE));
+    }
+
+    @Test
+    public void doubleReleaseFailsAssertion() {
+        boolean assertions = false;
+        assert assertions = true;
+        if (!assertions) {
+            return;
+        }
+        final BufferPool pool = new BufferPool(false);
+        final ByteBuffer buffer = pool.borrow(100);
+        pool.release(buffer);
+        try {
+            pool.release(buffer);
+        } catch (final AssertionError e) {
+            return;
+        }
+        fail("The second release should fail");
+    }
+}
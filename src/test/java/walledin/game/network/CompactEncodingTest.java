@@ -0,0 +1,164 @@
+/*  Copyright 2010 Ben Ruijl, Wouter Smeenk
+
+This file is part of Walled In.
+
+Walled In is free software; you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation; either version 3, or (at your option)
+any later version.
+
+Walled In is distributed in the hope that it will be useful, but
+WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with Walled In; see the file LICENSE.  If not, write to the
+Free Software Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA
+02111-1307 USA.
+
+ */
+package walledin.game.network;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import static walledin.game.network.server.ChangeSetFixtures.PLAYER;
+import static walledin.game.network.server.ChangeSetFixtures.PLAYER_ID;
+
+import java.nio.ByteBuffer;
+
+import org.junit.Test;
+
+import walledin.game.entity.Attribute;
+import walledin.game.entity.Family;
+import walledin.game.network.server.ChangeSet;
+import walledin.game.network.server.ChangeSetFixtures;
+
+/**
+ * Tests the variable length integers and the entity ids of the compact game
+ * state encoding.
+ * 
+ * @author Wouter Smeenk
+ * 
+ */
+public class CompactEncodingTest {
+    private static final int[] VALUES = { 0, 1, 127, 128, 300, 16383, 16384,
+            Integer.MAX_VALUE, -1, -64, Integer.MIN_VALUE };
+
+    private final ByteBuffer buffer = ByteBuffer.allocate(1024);
+
+    @Test
+    public void varIntRoundTrip() {
+        for (final int value : VALUES) {
+            buffer.clear();
+            NetworkMessageWriter.writeVarInt(value, buffer);
+            buffer.flip();
+            assertEquals(value, NetworkMessageReader.readVarInt(buffer));
+            assertEquals(0, buffer.remaining());
+        }
+    }
+
+    @Test
+    public void varIntSize() {
+        assertEquals(1, varIntSize(0));
+        assertEquals(1, varIntSize(127));
+        assertEquals(2, varIntSize(128));
+        assertEquals(2, varIntSize(16383));
+        assertEquals(3, varIntSize(16384));
+        assertEquals(5, varIntSize(-1));
+    }
+
+    private int varIntSize(final int value) {
+        buffer.clear();
+        NetworkMessageWriter.writeVarInt(value, buffer);
+        return buffer.position();
+    }
+
+    @Test
+    public void signedVarIntRoundTrip() {
+        for (final int value : VALUES) {
+            buffer.clear();
+            NetworkMessageWriter.writeSignedVarInt(value, buffer);
+            buffer.flip();
+            assertEquals(value, NetworkMessageReader.readSignedVarInt(buffer));
+        }
+        // Small negative values are small after zigzag encoding
+        buffer.clear();
+        NetworkMessageWriter.writeSignedVarInt(-64, buffer);
+        assertEquals(1, buffer.position());
+    }
+
+    @Test
+    public void varLongRoundTrip() {
+        final long[] values = { 0, 1, 127, 128, 1L << 35, Long.MAX_VALUE, -1 };
+        for (final long value : values) {
+            buffer.clear();
+            NetworkMessageWriter.writeVarLong(value, buffer);
+            buffer.flip();
+            assertEquals(value, NetworkMessageReader.readVarLong(buffer));
+        }
+    }
+
+    private static ChangeSet createChangeSet(final int version,
+            final boolean create, final boolean remove) {
+        final ChangeSet changeSet = ChangeSetFixtures.createChangeSet(version,
+                version);
+        if (create) {
+            ChangeSetFixtures.addCreated(changeSet, version, PLAYER,
+                    Family.PLAYER, PLAYER_ID);
+        }
+        if (remove) {
+            ChangeSetFixtures.addRemoved(changeSet, version, PLAYER, PLAYER_ID);
+        } else {
+            ChangeSetFixtures.addUpdated(changeSet, PLAYER, PLAYER_ID).put(
+                    Attribute.HEALTH, version * 10);
+        }
+        return changeSet;
+    }
+
+    private ChangeSet roundTrip(final ChangeSet changeSet,
+            final EntityIdTable entityIds) {
+        buffer.clear();
+        NetworkMessageWriter.writeCompactChangeSet(changeSet, buffer,
+                new Quantization(), null, null);
+        buffer.flip();
+        return NetworkMessageReader.readCompactChangeSet(buffer, changeSet
+                .getLastVersion() + 1, entityIds, new Quantization(), null);
+    }
+
+    @Test
+    public void createdEntityIdIsRemembered() {
+        final EntityIdTable entityIds = new EntityIdTable();
+        final ChangeSet created = roundTrip(createChangeSet(0, true, false),
+                entityIds);
+        assertEquals(Family.PLAYER, created.getCreated().get(0).get(PLAYER));
+        assertEquals(PLAYER, entityIds.getName(PLAYER_ID));
+
+        final ChangeSet updated = roundTrip(createChangeSet(1, false, false),
+                entityIds);
+        assertEquals(10, updated.getUpdated().get(PLAYER).get(
+                Attribute.HEALTH));
+
+        final ChangeSet removed = roundTrip(createChangeSet(2, false, true),
+                entityIds);
+        assertTrue(removed.getRemoved().get(2).contains(PLAYER));
+    }
+
+    @Test
+    public void updateOnlyWritesTheId() {
+        final ChangeSet changeSet = createChangeSet(1, false, false);
+        buffer.clear();
+        NetworkMessageWriter.writeCompactChangeSet(changeSet, buffer,
+                new Quantization(), null, null);
+        // Versions, counts, id, mask and health, but not the name
+        assertTrue(buffer.position() < PLAYER.length() + 8);
+    }
+
+    @Test
+    public void unknownIdIsSkipped() {
+        final ChangeSet changeSet = roundTrip(createChangeSet(1, false, false),
+                new EntityIdTable());
+        assertTrue(changeSet.getUpdated().isEmpty());
+    }
+}
@@ -0,0 +1,172 @@
+/*  Copyright 2010 Ben Ruijl, Wouter Smeenk
+
+This file is part of Walled In.
+
+Walled In is free software; you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation; either version 3, or (at your option)
+any later version.
+
+Walled In is distributed in the hope that it will be useful, but
+WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with Walled In; see the file LICENSE.  If not, write to the
+Free Software Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA
+02111-1307 USA.
+
+ */
+package walledin.game.network;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import walledin.game.network.messages.NetworkMessage;
+import walledin.game.network.messages.game.ConsoleUpdateMessage;
+
+/**
+ * Tests that messages larger than a datagram are split in fragments by the
+ * writer and reassembled by the reader.
+ * 
+ * @author Wouter Smeenk
+ * 
+ */
+public class FragmentationTest {
+    private static final SocketAddress ADDRESS = new InetSocketAddress(
+            "localhost", 1234);
+
+    /** Collects the datagrams instead of sending them. */
+    private static class CapturingSendThread extends NetworkSendThread {
+        private final List<ByteBuffer> datagrams = new ArrayList<ByteBuffer>();
+
+        @Override
+        public void send(final DatagramChannel channel,
+                final SocketAddress address, final ByteBuffer datagram) {
+            final ByteBuffer copy = ByteBuffer.allocate(datagram.remaining());
+            copy.put(datagram);
+            copy.flip();
+            datagrams.add(copy);
+        }
+
+        @Override
+        public void sendBorrowed(final DatagramChannel channel,
+                final SocketAddress address, final ByteBuffer datagram) {
+            send(channel, address, datagram);
+            BufferPool.getInstance().release(datagram);
+        }
+    }
+
+    private NetworkMessageWriter writer;
+    private NetworkMessageReader reader;
+    private CapturingSendThread sendThread;
+
+    @Before
+    public void setUp() {
+        writer = new NetworkMessageWriter();
+        reader = new NetworkMessageReader(null);
+        sendThread = new CapturingSendThread();
+        writer.setSendThread(sendThread);
+    }
+
+    private static String createText(final int length) {
+        final StringBuilder builder = new StringBuilder(length);
+        for (int i = 0; i < length; i++) {
+            builder.append((char) ('a' + i % 26));
+        }
+        return builder.toString();
+    }
+
+    /**
+     * Decodes the datagrams in order, and returns the message that the last
+     * one completes. All earlier datagrams should not complete a message.
+     */
+    private NetworkMessage decodeAll(final List<ByteBuffer> datagrams) {
+        NetworkMessage message = null;
+        for (int i = 0; i < datagrams.size(); i++) {
+            assertNull(message);
+            message = reader.decodeMessage(ADDRESS, datagrams.get(i));
+        }
+        return message;
+    }
+
+    @Test
+    public void smallMessageIsNotFragmented() throws IOException {
+        writer.sendMessage(null, ADDRESS, new ConsoleUpdateMessage("hello"));
+        assertEquals(1, sendThread.datagrams.size());
+        assertEquals(0, writer.getFragmentsWritten());
+        final ConsoleUpdateMessage message = (ConsoleUpdateMessage) decodeAll(sendThread.datagrams);
+        assertEquals("hello", message.getMessage());
+    }
+
+    @Test
+    public void largeMessageIsReassembled() throws IOException {
+        final String text = createText(5000);
+        writer.sendMessage(null, ADDRESS, new ConsoleUpdateMessage(text));
+
+        assertEquals(5, sendThread.datagrams.size());
+        assertEquals(5, writer.getFragmentsWritten());
+        for (final ByteBuffer datagram : sendThread.datagrams) {
+            assertTrue(datagram.remaining() <= NetworkConstants.MAX_DATAGRAM_SIZE);
+        }
+        final ConsoleUpdateMessage message = (ConsoleUpdateMessage) decodeAll(sendThread.datagrams);
+        assertEquals(text, message.getMessage());
+    }
+
+    @Test
+    public void fragmentsAreReassembledInAnyOrder() throws IOException {
+        final String text = createText(10000);
+        writer.sendMessage(null, ADDRESS, new ConsoleUpdateMessage(text));
+
+        final List<ByteBuffer> datagrams = sendThread.datagrams;
+        Collections.shuffle(datagrams, new Random(42));
+        // A duplicate does not complete the message a second time
+        final ByteBuffer duplicate = datagrams.get(0).duplicate();
+        datagrams.add(1, duplicate);
+        final ConsoleUpdateMessage message = (ConsoleUpdateMessage) decodeAll(datagrams);
+        assertEquals(text, message.getMessage());
+    }
+
+    @Test
+    public void encodedMessageIsUnchangedBySending() throws IOException {
+        final String text = createText(3000);
+        final ByteBuffer encoded = NetworkMessageWriter
+                .encodeBorrowed(new ConsoleUpdateMessage(text));
+        try {
+            final int limit = encoded.limit();
+            // The same encoded message is sent to two players
+            writer.sendEncoded(null, ADDRESS, encoded);
+            assertEquals(0, encoded.position());
+            assertEquals(limit, encoded.limit());
+            final int count = sendThread.datagrams.size();
+            writer.sendEncoded(null, ADDRESS, encoded);
+            assertEquals(count * 2, sendThread.datagrams.size());
+
+            final List<ByteBuffer> first = sendThread.datagrams.subList(0,
+                    count);
+            final List<ByteBuffer> second = sendThread.datagrams.subList(
+                    count, count * 2);
+            assertEquals(text, ((ConsoleUpdateMessage) decodeAll(first))
+                    .getMessage());
+            assertEquals(text, ((ConsoleUpdateMessage) decodeAll(second))
+                    .getMessage());
+        } finally {
+            BufferPool.getInstance().release(encoded);
+        }
+    }
+}
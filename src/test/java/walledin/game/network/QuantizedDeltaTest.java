@@ -0,0 +1,160 @@
+/*  Copyright 2010 Ben Ruijl, Wouter Smeenk
+
+This file is part of Walled In.
+
+Walled In is free software; you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation; either version 3, or (at your option)
+any later version.
+
+Walled In is distributed in the hope that it will be useful, but
+WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with Walled In; see the file LICENSE.  If not, write to the
+Free Software Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA
+02111-1307 USA.
+
+ */
+package walledin.game.network;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import static walledin.game.network.server.ChangeSetFixtures.PLAYER;
+import static walledin.game.network.server.ChangeSetFixtures.PLAYER_ID;
+
+import java.nio.ByteBuffer;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import walledin.engine.math.Vector2f;
+import walledin.game.entity.Attribute;
+import walledin.game.entity.Family;
+import walledin.game.network.server.ChangeSet;
+import walledin.game.network.server.ChangeSetFixtures;
+
+/**
+ * Tests the quantized vectors of the compact game state encoding, which are
+ * written relative to the value at the first version of the change set.
+ * 
+ * @author Wouter Smeenk
+ * 
+ */
+public class QuantizedDeltaTest {
+    private static final float STEPS = 16;
+
+    private final ByteBuffer buffer = ByteBuffer.allocate(1024);
+    private Quantization quantization;
+    private QuantizedVectorHistory serverHistory;
+
+    @Before
+    public void setUp() {
+        quantization = new Quantization();
+        quantization.setStepsPerUnit(Attribute.POSITION, STEPS);
+        serverHistory = new QuantizedVectorHistory();
+    }
+
+    private static ChangeSet createChangeSet(final int version,
+            final Vector2f position) {
+        final ChangeSet changeSet = ChangeSetFixtures.createChangeSet(version,
+                version);
+        if (version == 0) {
+            ChangeSetFixtures.addCreated(changeSet, version, PLAYER,
+                    Family.PLAYER, PLAYER_ID);
+        }
+        ChangeSetFixtures.addUpdated(changeSet, PLAYER, PLAYER_ID).put(
+                Attribute.POSITION, position);
+        return changeSet;
+    }
+
+    /**
+     * Writes a change set like the server does, and records it in the
+     * history of the server.
+     */
+    private int write(final ChangeSet changeSet) {
+        buffer.clear();
+        NetworkMessageWriter.writeCompactChangeSet(changeSet, buffer,
+                quantization, serverHistory, null);
+        buffer.flip();
+        serverHistory.record(changeSet, quantization, 0);
+        return buffer.remaining();
+    }
+
+    private static Vector2f getPosition(final ChangeSet changeSet) {
+        return (Vector2f) changeSet.getUpdated().get(PLAYER).get(
+                Attribute.POSITION);
+    }
+
+    @Test
+    public void deltaRoundTrip() {
+        final EntityIdTable entityIds = new EntityIdTable();
+        final Quantization clientQuantization = new Quantization();
+        final QuantizedVectorHistory clientHistory = new QuantizedVectorHistory();
+
+        final int fullSize = write(createChangeSet(0, new Vector2f(1000.3f,
+                2000.7f)));
+        Vector2f position = getPosition(NetworkMessageReader
+                .readCompactChangeSet(buffer, 1, entityIds,
+                        clientQuantization, clientHistory));
+        assertEquals(1000.3f, position.getX(), 0.5f / STEPS);
+        assertEquals(2000.7f, position.getY(), 0.5f / STEPS);
+
+        final int deltaSize = write(createChangeSet(1, new Vector2f(1001.3f,
+                1999.7f)));
+        position = getPosition(NetworkMessageReader.readCompactChangeSet(
+                buffer, 2, entityIds, clientQuantization, clientHistory));
+        assertEquals(1001.3f, position.getX(), 0.5f / STEPS);
+        assertEquals(1999.7f, position.getY(), 0.5f / STEPS);
+        // The quantization is only in the full state, the rest is the delta
+        assertTrue(deltaSize < fullSize - 2);
+        assertFalse(clientHistory.takeIncomplete());
+    }
+
+    @Test
+    public void quantizedVectorRoundTrip() {
+        final int[] reference = { 123, -456 };
+        final int[] result = new int[2];
+        final Vector2f value = new Vector2f(-10.5f, 33.25f);
+        for (final boolean relative : new boolean[] { false, true }) {
+            buffer.clear();
+            NetworkMessageWriter.writeQuantizedVector2fData(
+                    Attribute.POSITION, value, relative, reference,
+                    quantization, buffer);
+            buffer.flip();
+            final QuantizedVectorHistory history = new QuantizedVectorHistory();
+            history.record(PLAYER_ID, Attribute.POSITION, 0, reference[0],
+                    reference[1], 0);
+            assertTrue(NetworkMessageReader.readQuantizedVector2fData(PLAYER_ID,
+                    Attribute.POSITION, 0, history, result, buffer));
+            assertEquals(quantization.quantize(Attribute.POSITION, value
+                    .getX()), result[0]);
+            assertEquals(quantization.quantize(Attribute.POSITION, value
+                    .getY()), result[1]);
+        }
+    }
+
+    @Test
+    public void missingReferenceIsSkipped() {
+        write(createChangeSet(0, new Vector2f(10, 20)));
+        write(createChangeSet(1, new Vector2f(11, 21)));
+
+        // The client knows the entity, but has not received its position
+        final EntityIdTable entityIds = new EntityIdTable();
+        entityIds.put(PLAYER_ID, PLAYER);
+        final Quantization clientQuantization = new Quantization();
+        clientQuantization.setStepsPerUnit(Attribute.POSITION, STEPS);
+        final QuantizedVectorHistory clientHistory = new QuantizedVectorHistory();
+        final ChangeSet changeSet = NetworkMessageReader.readCompactChangeSet(
+                buffer, 2, entityIds, clientQuantization, clientHistory);
+
+        assertFalse(changeSet.getUpdated().get(PLAYER).containsKey(
+                Attribute.POSITION));
+        assertTrue(clientHistory.takeIncomplete());
+        assertFalse(clientHistory.takeIncomplete());
+    }
+}
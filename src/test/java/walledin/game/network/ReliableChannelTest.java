@@ -0,0 +1,172 @@
+/*  Copyright 2010 Ben Ruijl, Wouter Smeenk
+
+This file is part of Walled In.
+
+Walled In is free software; you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation; either version 3, or (at your option)
+any later version.
+
+Walled In is distributed in the hope that it will be useful, but
+WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with Walled In; see the file LICENSE.  If not, write to the
+Free Software Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA
+02111-1307 USA.
+
+ */
+package walledin.game.network;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import walledin.game.network.messages.NetworkMessage;
+import walledin.game.network.messages.game.ConsoleUpdateMessage;
+import walledin.game.network.messages.game.ReliableMessage;
+
+/**
+ * Tests the delivery, retransmission and acknowledgment of the reliable
+ * channel. The messages between the channels are encoded and decoded like
+ * they are sent over the network.
+ * 
+ * @author Wouter Smeenk
+ * 
+ */
+public class ReliableChannelTest {
+    private static final SocketAddress ADDRESS = new InetSocketAddress(
+            "localhost", 1234);
+
+    private ReliableChannel sender;
+    private ReliableChannel receiver;
+
+    @Before
+    public void setUp() {
+        sender = new ReliableChannel();
+        receiver = new ReliableChannel();
+    }
+
+    /**
+     * Encodes and decodes a reliable message.
+     */
+    private static ReliableMessage transfer(final ReliableMessage message) {
+        final ByteBuffer buffer = NetworkMessageWriter.encodeBorrowed(message);
+        try {
+            buffer.getInt();
+            buffer.get();
+            final ReliableMessage result = new ReliableMessage();
+            result.read(buffer, ADDRESS);
+            return result;
+        } finally {
+            BufferPool.getInstance().release(buffer);
+        }
+    }
+
+    private static void assertMessages(final List<NetworkMessage> messages,
+            final String... expected) {
+        assertEquals(expected.length, messages.size());
+        for (int i = 0; i < expected.length; i++) {
+            assertEquals(expected[i], ((ConsoleUpdateMessage) messages.get(i))
+                    .getMessage());
+        }
+    }
+
+    @Test
+    public void messagesAreDeliveredInOrder() {
+        sender.send(new ConsoleUpdateMessage("first"));
+        sender.send(new ConsoleUpdateMessage("second"));
+        sender.send(new ConsoleUpdateMessage("third"));
+        final ReliableMessage message = transfer(sender.poll(0));
+        assertEquals(Arrays.asList(1, 2, 3), message.getSequences());
+        assertMessages(receiver.receive(message, 0), "first", "second",
+                "third");
+    }
+
+    @Test
+    public void lostMessageIsRetransmitted() {
+        sender.send(new ConsoleUpdateMessage("lost"));
+        assertEquals(1, sender.poll(0).getSequences().size());
+
+        // Nothing to send before the timeout
+        assertNull(sender.poll(sender.getTimeout() - 1));
+
+        final long timeout = sender.getTimeout();
+        final ReliableMessage message = sender.poll(timeout);
+        assertEquals(Arrays.asList(1), message.getSequences());
+        assertEquals(1, sender.getRetransmissions());
+        // The timeout backs off
+        assertEquals(timeout * 2, sender.getTimeout());
+        assertMessages(receiver.receive(transfer(message), timeout), "lost");
+    }
+
+    @Test
+    public void acknowledgedMessageIsNotRetransmitted() {
+        sender.send(new ConsoleUpdateMessage("hello"));
+        assertMessages(receiver.receive(transfer(sender.poll(0)), 0), "hello");
+
+        // The receiver acknowledges without messages of its own
+        final ReliableMessage ack = receiver.poll(40);
+        assertTrue(ack.getSequences().isEmpty());
+        assertEquals(1, ack.getAck());
+        assertTrue(sender.receive(transfer(ack), 50).isEmpty());
+
+        assertFalse(sender.hasUnacknowledged());
+        assertEquals(50, sender.getRoundTripTime(), 0.001);
+        assertNull(sender.poll(10000));
+        assertEquals(0, sender.getRetransmissions());
+    }
+
+    @Test
+    public void acknowledgmentCanArriveWithOtherMessages() {
+        sender.send(new ConsoleUpdateMessage("hello"));
+        receiver.receive(transfer(sender.poll(0)), 0);
+        // Like the ack in an input message
+        sender.acknowledge(receiver.getAck(), receiver.getAckMask(), 20);
+        assertFalse(sender.hasUnacknowledged());
+    }
+
+    @Test
+    public void laterMessageWaitsForLostMessage() {
+        sender.send(new ConsoleUpdateMessage("first"));
+        sender.poll(0);
+        sender.send(new ConsoleUpdateMessage("second"));
+        final ReliableMessage second = sender.poll(10);
+        assertEquals(Arrays.asList(2), second.getSequences());
+        assertTrue(receiver.receive(transfer(second), 10).isEmpty());
+
+        // The selective acknowledgment only covers the second message
+        final ReliableMessage ack = receiver.poll(20);
+        assertEquals(2, ack.getAck());
+        assertEquals(0, ack.getAckMask() & 1);
+        sender.receive(transfer(ack), 30);
+        assertTrue(sender.hasUnacknowledged());
+
+        final ReliableMessage first = sender.poll(sender.getTimeout());
+        assertEquals(Arrays.asList(1), first.getSequences());
+        assertMessages(receiver.receive(transfer(first), 600), "first",
+                "second");
+    }
+
+    @Test
+    public void duplicateMessageIsDeliveredOnce() {
+        sender.send(new ConsoleUpdateMessage("once"));
+        final ReliableMessage message = sender.poll(0);
+        assertMessages(receiver.receive(transfer(message), 0), "once");
+        assertTrue(receiver.receive(transfer(message), 10).isEmpty());
+        // The duplicate is acknowledged again
+        assertEquals(1, receiver.poll(20).getAck());
+    }
+}
@@ -0,0 +1,132 @@
+/*  Copyright 2010 Ben Ruijl, Wouter Smeenk
+
+This file is part of Walled In.
+
+Walled In is free software; you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation; either version 3, or (at your option)
+any later version.
+
+Walled In is distributed in the hope that it will be useful, but
+WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with Walled In; see the file LICENSE.  If not, write to the
+Free Software Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA
+02111-1307 USA.
+
+ */
+package walledin.game.network.server;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+import walledin.game.entity.Attribute;
+import walledin.game.entity.Family;
+
+/**
+ * Builds the change sets used by the tests, without an entity manager.
+ * 
+ * @author Wouter Smeenk
+ * 
+ */
+public final class ChangeSetFixtures {
+    /** The name of the entity most tests use. */
+    public static final String PLAYER = "player";
+    /** The id of that entity. */
+    public static final int PLAYER_ID = 300;
+
+    /** Private constructor. Never called. */
+    private ChangeSetFixtures() {
+
+    }
+
+    /**
+     * Creates a change set without changes.
+     * 
+     * @param firstVersion
+     *            The first version of the change set
+     * @param lastVersion
+     *            The last version of the change set
+     * @return the change set
+     */
+    public static ChangeSet createChangeSet(final int firstVersion,
+            final int lastVersion) {
+        return new ChangeSet(firstVersion, lastVersion,
+                new HashMap<Integer, Map<String, Family>>(),
+                new HashMap<Integer, Set<String>>(),
+                new HashMap<String, Map<Attribute, Object>>());
+    }
+
+    /**
+     * Records the creation of an entity and gives it an id.
+     * 
+     * @param changeSet
+     *            The change set
+     * @param version
+     *            The version the entity is created at
+     * @param name
+     *            The name of the entity
+     * @param family
+     *            The family of the entity
+     * @param id
+     *            The id of the entity
+     */
+    public static void addCreated(final ChangeSet changeSet,
+            final int version, final String name, final Family family,
+            final int id) {
+        Map<String, Family> names = changeSet.getCreated().get(version);
+        if (names == null) {
+            names = new HashMap<String, Family>();
+            changeSet.getCreated().put(version, names);
+        }
+        names.put(name, family);
+        changeSet.getEntityIds().put(name, id);
+    }
+
+    /**
+     * Records the removal of an entity and gives it an id.
+     * 
+     * @param changeSet
+     *            The change set
+     * @param version
+     *            The version the entity is removed at
+     * @param name
+     *            The name of the entity
+     * @param id
+     *            The id of the entity
+     */
+    public static void addRemoved(final ChangeSet changeSet,
+            final int version, final String name, final int id) {
+        Set<String> names = changeSet.getRemoved().get(version);
+        if (names == null) {
+            names = new HashSet<String>();
+            changeSet.getRemoved().put(version, names);
+        }
+        names.add(name);
+        changeSet.getEntityIds().put(name, id);
+    }
+
+    /**
+     * Records an update of an entity and gives it an id.
+     * 
+     * @param changeSet
+     *            The change set
+     * @param name
+     *            The name of the entity
+     * @param id
+     *            The id of the entity
+     * @return the attributes of the update, to put the changed values in
+     */
+    public static Map<Attribute, Object> addUpdated(
+            final ChangeSet changeSet, final String name, final int id) {
+        final Map<Attribute, Object> attributes = new HashMap<Attribute, Object>();
+        changeSet.getUpdated().put(name, attributes);
+        changeSet.getEntityIds().put(name, id);
+        return attributes;
+    }
+}
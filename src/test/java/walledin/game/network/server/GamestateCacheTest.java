@@ -0,0 +1,80 @@
+/*  Copyright 2010 Ben Ruijl, Wouter Smeenk
+
+This file is part of Walled In.
+
+Walled In is free software; you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation; either version 3, or (at your option)
+any later version.
+
+Walled In is distributed in the hope that it will be useful, but
+WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with Walled In; see the file LICENSE.  If not, write to the
+Free Software Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA
+02111-1307 USA.
+
+ */
+package walledin.game.network.server;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.Collections;
+
+import org.junit.Test;
+
+import walledin.game.network.GamestateEncoding;
+
+/**
+ * Tests that players only share a gamestate if they get the same changes.
+ * 
+ * @author Wouter Smeenk
+ * 
+ */
+public class GamestateCacheTest {
+    private static ChangeSet createChangeSet(final int version,
+            final String... updatedNames) {
+        final ChangeSet changeSet = ChangeSetFixtures.createChangeSet(version,
+                version + 1);
+        for (int i = 0; i < updatedNames.length; i++) {
+            ChangeSetFixtures.addUpdated(changeSet, updatedNames[i], i);
+        }
+        return changeSet;
+    }
+
+    @Test
+    public void sameChangesAreShared() {
+        final GamestateCache cache = new GamestateCache();
+        assertEquals(-1, cache.get(GamestateEncoding.COMPACT,
+                createChangeSet(5, "a", "b"), null));
+        cache.put(GamestateEncoding.COMPACT, createChangeSet(5, "a", "b"),
+                null, 0);
+        // Another player with the same view, filtered separately
+        assertEquals(0, cache.get(GamestateEncoding.COMPACT, createChangeSet(
+                5, "b", "a"), Collections.<String> emptySet()));
+        assertEquals(1, cache.getHits());
+        assertEquals(1, cache.getMisses());
+    }
+
+    @Test
+    public void differentChangesAreNotShared() {
+        final GamestateCache cache = new GamestateCache();
+        cache.put(GamestateEncoding.COMPACT, createChangeSet(5, "a", "b"),
+                null, 0);
+        assertEquals(-1, cache.get(GamestateEncoding.COMPACT,
+                createChangeSet(5, "a"), null));
+        assertEquals(-1, cache.get(GamestateEncoding.COMPACT,
+                createChangeSet(4, "a", "b"), null));
+        assertEquals(-1, cache.get(GamestateEncoding.STANDARD,
+                createChangeSet(5, "a", "b"), null));
+        assertEquals(-1, cache.get(GamestateEncoding.COMPACT,
+                createChangeSet(5, "a", "b"), Collections.singleton("a")));
+
+        cache.clear();
+        assertEquals(-1, cache.get(GamestateEncoding.COMPACT,
+                createChangeSet(5, "a", "b"), null));
+    }
+}
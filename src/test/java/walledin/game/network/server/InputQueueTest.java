@@ -0,0 +1,103 @@
+/*  Copyright 2010 Ben Ruijl, Wouter Smeenk
+
+This file is part of Walled In.
+
+Walled In is free software; you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation; either version 3, or (at your option)
+any later version.
+
+Walled In is distributed in the hope that it will be useful, but
+WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with Walled In; see the file LICENSE.  If not, write to the
+Free Software Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA
+02111-1307 USA.
+
+ */
+package walledin.game.network.server;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.EnumSet;
+
+import org.junit.Test;
+
+import walledin.engine.math.Vector2f;
+import walledin.game.PlayerAction;
+import walledin.game.network.InputFrame;
+
+/**
+ * Tests that the input queue keeps the frames in order and drops duplicates.
+ * 
+ * @author Wouter Smeenk
+ * 
+ */
+public class InputQueueTest {
+    private static InputFrame createFrame(final int sequence) {
+        return new InputFrame(sequence, EnumSet.noneOf(PlayerAction.class),
+                new Vector2f());
+    }
+
+    @Test
+    public void framesArePolledInOrder() {
+        final InputQueue queue = new InputQueue(8);
+        for (int i = 1; i <= 3; i++) {
+            assertTrue(queue.add(createFrame(i)));
+        }
+        assertEquals(3, queue.size());
+        for (int i = 1; i <= 3; i++) {
+            assertEquals(i, queue.poll().getSequence());
+        }
+        assertNull(queue.poll());
+    }
+
+    @Test
+    public void duplicateFramesAreDropped() {
+        final InputQueue queue = new InputQueue(8);
+        // Every input message repeats the last frames
+        assertTrue(queue.add(createFrame(1)));
+        assertTrue(queue.add(createFrame(2)));
+        assertFalse(queue.add(createFrame(1)));
+        assertFalse(queue.add(createFrame(2)));
+        assertTrue(queue.add(createFrame(3)));
+        assertEquals(3, queue.size());
+
+        // Applied frames are not added again
+        queue.poll();
+        assertFalse(queue.add(createFrame(1)));
+        assertEquals(2, queue.poll().getSequence());
+    }
+
+    @Test
+    public void lateFramesAreDropped() {
+        final InputQueue queue = new InputQueue(8);
+        assertTrue(queue.add(createFrame(5)));
+        // Arrived after a newer frame
+        assertFalse(queue.add(createFrame(4)));
+        assertEquals(1, queue.size());
+    }
+
+    @Test
+    public void oldestFramesAreDroppedWhenFull() {
+        final InputQueue queue = new InputQueue(3);
+        for (int i = 1; i <= 5; i++) {
+            assertTrue(queue.add(createFrame(i)));
+        }
+        assertEquals(3, queue.size());
+        assertEquals(3, queue.poll().getSequence());
+        assertEquals(4, queue.poll().getSequence());
+        assertEquals(5, queue.poll().getSequence());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void capacityMustBePositive() {
+        new InputQueue(0);
+    }
+}